@@ -8,6 +8,8 @@ import java.util.function.Consumer;
 
 import com.cleo.connector.shell.interfaces.IConnectorAction;
 import com.cleo.connector.shell.interfaces.IConnectorHost;
+import com.cleo.labs.util.zip.DirectoryScanner;
+import com.cleo.labs.util.zip.NioDirectoryScanner;
 import com.cleo.labs.util.zip.ThreadedZipDirectoryInputStream.Copier;
 import com.google.common.io.ByteStreams;
 
@@ -28,6 +30,17 @@ public interface FileFactory {
         return getFile(s.toString());
     }
 
+    /**
+     * Returns {@code file} as a local file system {@code File}, for the operations
+     * that work on the file in place (patching and renaming), or {@code null}
+     * if it is not on the local file system (a URI file, say).
+     * @param file a file returned by {@link #getFile(String)}
+     * @return the local file, or {@code null}
+     */
+    default File getNormalFile(File file) {
+        return file;
+    }
+
     public InputStream getInputStream(File file) throws IOException;
     default InputStream getInputStream(String filename) throws IOException {
         return getInputStream(getFile(filename));
@@ -41,6 +54,10 @@ public interface FileFactory {
         };
     }
 
+    default DirectoryScanner getScanner() {
+        return new NioDirectoryScanner();
+    }
+
     public OutputStream getOutputStream(File file, long modtime) throws IOException;
     default OutputStream getOutputStream(String filename, long modtime) throws IOException {
         return getOutputStream(getFile(filename), modtime);
@@ -14,6 +14,8 @@ import java.util.function.Consumer;
 import com.cleo.connector.api.ConnectorException;
 import com.cleo.connector.shell.interfaces.IConnectorAction;
 import com.cleo.connector.shell.interfaces.IConnectorHost;
+import com.cleo.labs.util.zip.DirectoryScanner;
+import com.cleo.labs.util.zip.NioDirectoryScanner;
 import com.cleo.labs.util.zip.ThreadedZipDirectoryInputStream;
 import com.cleo.labs.util.zip.ThreadedZipDirectoryInputStream.Copier;
 import com.cleo.lexicom.beans.LexActionBean;
@@ -76,6 +78,11 @@ public class LexFileFactory implements FileFactory {
         }
     }
 
+    public File getNormalFile(File file) {
+        LexFile lexfile = (LexFile)file;
+        return lexfile.isNormalFile() ? lexfile.getFile() : null;
+    }
+
     public InputStream getInputStream(File file) throws IOException {
         try {
             LexFile lexfile = (LexFile)file;
@@ -125,6 +132,16 @@ public class LexFileFactory implements FileFactory {
         };
     }
 
+    public DirectoryScanner getScanner() {
+        // normal files can be scanned with NIO, URI files use LexFile.listFiles()
+        return new NioDirectoryScanner()
+                .pathResolver(f -> {
+                    LexFile lexfile = (LexFile)f;
+                    return lexfile.isNormalFile() ? lexfile.getFile().toPath() : null;
+                })
+                .childResolver((parent, name) -> new LexFile(parent.getPath(), name));
+    }
+
     public OutputStream getOutputStream(File file, long modtime) throws IOException {
         try {
             LexFile lexfile = (LexFile)file;
@@ -10,17 +10,21 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 
 import com.cleo.connector.api.ConnectorClient;
 import com.cleo.connector.api.ConnectorException;
@@ -36,21 +40,37 @@ import com.cleo.connector.api.directory.Entry;
 import com.cleo.connector.api.interfaces.IConnectorConfig;
 import com.cleo.connector.api.interfaces.IConnectorIncoming;
 import com.cleo.connector.api.interfaces.IConnectorOutgoing;
+import com.cleo.connector.api.property.ConnectorPropertyException;
 import com.cleo.connector.shell.interfaces.IConnector;
 import com.cleo.connector.shell.interfaces.IConnectorHost;
 import com.cleo.labs.connector.zip.ZipConnectorSchema.UnzipMode;
+import com.cleo.labs.util.zip.BlockDelta;
+import com.cleo.labs.util.zip.BlockingPipe;
+import com.cleo.labs.util.zip.ChangeLog;
+import com.cleo.labs.util.zip.ChecksumCache;
+import com.cleo.labs.util.zip.DirectoryScanner;
 import com.cleo.labs.util.zip.Finder;
 import com.cleo.labs.util.zip.Found;
+import com.cleo.labs.util.zip.HashTree;
 import com.cleo.labs.util.zip.LocalFinderInputStream;
+import com.cleo.labs.util.zip.MultiplexedZapOutputStream;
 import com.cleo.labs.util.zip.PathUtil;
+import com.cleo.labs.util.zip.PresetDictionary;
+import com.cleo.labs.util.zip.RemoteState;
+import com.cleo.labs.util.zip.ScanIndex;
+import com.cleo.labs.util.zip.SignatureCache;
 import com.cleo.labs.util.zip.ThreadedZipDirectoryInputStream;
 import com.cleo.labs.util.zip.UnzipDirectoryStreamWrapper;
 import com.cleo.labs.util.zip.UnzipProcessor;
+import com.cleo.labs.util.zip.ZapFoundOutputStream;
 import com.cleo.labs.util.zip.Finder.DirectoryMode;
 import com.cleo.labs.util.zip.Found.Operation;
+import com.cleo.labs.util.zip.LocalFinderInputStream.ListingFormat;
 import com.cleo.util.MacroUtil;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.ObjectArrays;
+import com.google.common.io.ByteStreams;
 
 public class ZipConnectorClient extends ConnectorClient {
     private ZipConnectorConfig config;
@@ -116,6 +136,219 @@ public class ZipConnectorClient extends ConnectorClient {
         return null;
     }
 
+    /**
+     * Opens the Remote Directory Listing of just the directories changed
+     * since {@code token}, by adding {@code zip.listingsince} to its URI.
+     * @param token a {@link ChangeLog} token from an earlier listing
+     * @return the listing
+     * @throws IOException if the listing can not be opened
+     */
+    private InputStream getRemoteReplicaInputStream(String token) throws IOException {
+        String remoteReplica = config.getRemoteDirectoryListing();
+        remoteReplica += (remoteReplica.contains("?") ? "&" : "?") + "zip.listingsince=" + token;
+        logger.debug("comparing files to changes in "+remoteReplica);
+        return factory.getInputStream(remoteReplica);
+    }
+
+    /**
+     * Returns the {@code name} subdirectory of the Cache Directory. By default
+     * the cache is a hidden directory next to (not inside) the Root Path, so
+     * that it is not zipped along with the files, whatever subdirectory of
+     * the Root Path is being zipped or unzipped.
+     * @param name the subdirectory for one kind of cached data
+     * @return the directory, or {@code null} if no Cache Directory is set and
+     * the Root Path is not on the local file system
+     */
+    private File getCacheDirectory(String name) {
+        String cacheDirectory = config.getCacheDirectory();
+        if (!Strings.isNullOrEmpty(cacheDirectory)) {
+            return new File(cacheDirectory, name);
+        }
+        File root = factory.getNormalFile(factory.getFile(PathUtil.asDirectory(config.getRootPath())));
+        if (root == null) {
+            logger.debug("no Cache Directory for "+name+": the Root Path is not on the local file system");
+            return null;
+        }
+        root = root.getAbsoluteFile();
+        return new File(new File(root.getParentFile(), "."+root.getName()+".zipcache"), name);
+    }
+
+    /**
+     * Returns the scanner for {@code root}, with a {@link ScanIndex} if Scan Index
+     * is enabled and {@code root} is on the local file system, where the index
+     * can check the directory modified times.
+     * @param root the root directory
+     * @return the scanner
+     */
+    private DirectoryScanner getScanner(File root) {
+        DirectoryScanner scanner = factory.getScanner();
+        if (config.getScanIndex() && factory.getNormalFile(root) == null) {
+            logger.debug("scan index needs a local file system: not indexing "+root.getPath());
+        } else if (config.getScanIndex()) {
+            File index = getCacheDirectory("index");
+            if (index != null) {
+                logger.debug("using scan index "+index.getPath());
+                scanner = new ScanIndex(scanner, index).debug(s -> logger.debug(s));
+            }
+        }
+        return scanner;
+    }
+
+    /**
+     * Returns a {@link HashTree} if Subtree Hashes are enabled.
+     * @param scanner the scanner
+     * @param filter the filter, which must be the one used with the hash tree
+     * @param key the settings making up {@code filter}, to keep hashes for different filters apart
+     * @return the hash tree, or {@code null}
+     */
+    private HashTree getHashTree(DirectoryScanner scanner, Predicate<Found> filter, String...key) {
+        if (!config.getSubtreeHashes()) {
+            return null;
+        }
+        File hashes = getCacheDirectory("hash");
+        if (hashes == null) {
+            return null;
+        }
+        logger.debug("using hash tree "+hashes.getPath());
+        return new HashTree(scanner, filter, String.join("\n", key), hashes).debug(s -> logger.debug(s));
+    }
+
+    /**
+     * Returns a {@link ChecksumCache} if Content Checksums are enabled.
+     * @return the checksum cache, or {@code null}
+     */
+    private ChecksumCache getChecksumCache() {
+        if (!config.getContentChecksums()) {
+            return null;
+        }
+        File checksums = getCacheDirectory("checksum");
+        if (checksums == null) {
+            return null;
+        }
+        logger.debug("using checksum cache "+checksums.getPath());
+        return new ChecksumCache(checksums)
+                .opener(f -> factory.getInputStream(f.file()))
+                .debug(s -> logger.debug(s));
+    }
+
+    /**
+     * Returns a {@link SignatureCache} for {@code root} if Delta Transfer is enabled
+     * and {@code root} is on the local file system, where a delta can be applied.
+     * Without signatures in the listing, changed files are sent whole.
+     * @param root the root directory
+     * @return the signature cache, or {@code null}
+     */
+    private SignatureCache getSignatureCache(File root) {
+        if (!config.getDeltaTransfer()) {
+            return null;
+        } else if (factory.getNormalFile(root) == null) {
+            logger.debug("delta transfer needs a local file system: no signatures for "+root.getPath());
+            return null;
+        }
+        File signatures = getCacheDirectory("signature");
+        if (signatures == null) {
+            return null;
+        }
+        logger.debug("using signature cache "+signatures.getPath());
+        return new SignatureCache(signatures)
+                .opener(f -> factory.getInputStream(f.file()))
+                .debug(s -> logger.debug(s));
+    }
+
+    /**
+     * Returns the chunk size for a multiplexed zap archive, which shares the
+     * Zap Buffer Memory among the files in flight.
+     * @return the chunk size in bytes
+     */
+    private int getZapChunkSize() {
+        long share = config.getZapBufferMemory() / config.getZapParallelism();
+        return (int)Math.max(4096L, Math.min(MultiplexedZapOutputStream.DEFAULT_CHUNK_SIZE, share));
+    }
+
+    /**
+     * Returns a {@link PresetDictionary} for {@code root} if Zap Dictionary is
+     * enabled and applies: a zap archive compressed file by file. The dictionary
+     * is trained from the files selected by {@code filter} and kept in the cache.
+     * @param root the root directory
+     * @param filter the files being zipped
+     * @return the dictionary, or {@code null}
+     * @throws ConnectorPropertyException if a Compression Level is invalid
+     */
+    private PresetDictionary getPresetDictionary(File root, Predicate<Found> filter) throws ConnectorPropertyException {
+        if (!config.getZapDictionary() || config.getZapSolid()
+                || config.getCompressionLevel() != ZapFoundOutputStream.ZAP_LEVEL
+                || config.getZapCompressionLevel() == Deflater.NO_COMPRESSION) {
+            return null;
+        }
+        File dictionaries = getCacheDirectory("dictionary");
+        if (dictionaries == null) {
+            return null;
+        }
+        try {
+            PresetDictionary dictionary = new PresetDictionary.Cache(dictionaries)
+                    .debug(s -> logger.debug(s))
+                    .get(root, new Finder(root).filter(filter), f -> factory.getInputStream(f.file()));
+            logger.logDetail("using "+dictionary, 1);
+            return dictionary;
+        } catch (IOException e) {
+            // the dictionary only improves compression: carry on without it
+            logger.debug("unable to train a dictionary: "+e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns a {@link RemoteState} for {@code root} if Remote State Cache is enabled,
+     * a Remote Directory Listing is set, and the Compression Level is zap (as only
+     * a zap archive carries every replication operation to the remote side).
+     * @param root the root directory
+     * @param key the patterns making up the filter, to keep states for different filters apart
+     * @return the remote state, or {@code null}
+     * @throws ConnectorPropertyException if the Compression Level is invalid
+     */
+    private RemoteState getRemoteState(File root, String...key) throws ConnectorPropertyException {
+        String remoteReplica = config.getRemoteDirectoryListing();
+        if (!config.getRemoteStateCache() || Strings.isNullOrEmpty(remoteReplica)
+                || config.getCompressionLevel() != ZapFoundOutputStream.ZAP_LEVEL) {
+            return null;
+        }
+        File states = getCacheDirectory("state");
+        if (states == null) {
+            return null;
+        }
+        logger.debug("using remote state in "+states.getPath());
+        return new RemoteState(states, ObjectArrays.concat(new String[] {root.getAbsolutePath(), remoteReplica}, key, String.class))
+                .refresh(config.getRemoteStateRefresh(), TimeUnit.HOURS)
+                .debug(s -> logger.debug(s));
+    }
+
+    /**
+     * Returns the {@link ChangeLog} for the Root Path if Change Log is enabled.
+     * @return the change log, or {@code null}
+     */
+    private ChangeLog getChangeLog() {
+        if (!config.getChangeLog()) {
+            return null;
+        }
+        File root = factory.getFile(PathUtil.asDirectory(config.getRootPath()));
+        File changes = getCacheDirectory("changes");
+        if (changes == null) {
+            return null;
+        }
+        logger.debug("using change log in "+changes.getPath());
+        return new ChangeLog(changes, root)
+                .debug(s -> logger.debug(s));
+    }
+
+    private void logScanner(DirectoryScanner scanner, HashTree hashTree) {
+        if (scanner instanceof ScanIndex) {
+            logger.logDetail(scanner.toString(), 1);
+        }
+        if (hashTree != null) {
+            logger.logDetail(hashTree.toString(), 1);
+        }
+    }
+
     @Command(name = GET)
     public ConnectorCommandResult get(GetCommand get) throws ConnectorException, IOException {
         IConnectorIncoming destination = get.getDestination();
@@ -128,35 +361,128 @@ public class ZipConnectorClient extends ConnectorClient {
         factory.setSourceAndDest(get.getSource().getPath(), get.getDestination().getName(), MacroUtil.SOURCE_FILE, s -> logger.debug(s));
 
         File file = factory.getFile(root+sourceFile);
+        File directory = factory.getFile(root+sourceDir);
+        DirectoryScanner scanner = getScanner(directory);
 
         if (file.getName().equals(DIRECTORY_LISTING)) {
-            try (LocalFinderInputStream in = LocalFinderInputStream.builder(factory.getFile(root+sourceDir))
-                    .filter(Finder.excluding(config.getExclusions()))
+            Predicate<Found> filter = config.getExclusionFilter();
+            HashTree hashTree = getHashTree(scanner, filter, "exclusions:"+config.getExclusionsValue());
+            ChangeLog changes = getChangeLog();
+            String token = null;
+            Set<String> changed = null;
+            try {
+                if (changes != null) {
+                    String[] base = PathUtil.split(sourceDir);
+                    if (!Strings.isNullOrEmpty(config.getListingSince()) && scanner instanceof ScanIndex
+                            && config.getChangeLogScan()) {
+                        // directories changed locally, and not by an unzip, are found by a scan of the
+                        // directories: each costs an index lookup, and needs no sorting
+                        ((ScanIndex)scanner).changed(d -> changes.record(base, d));
+                        new Finder(directory)
+                                .filter(filter)
+                                .scanner(scanner)
+                                .directoryMode(DirectoryMode.only)
+                                .ordered(false)
+                                .stream(true)
+                                .count();
+                        ((ScanIndex)scanner).changed(null);
+                    }
+                    // the token comes first, so that a change made during the listing is listed again next time
+                    token = changes.token();
+                    changed = changes.since(config.getListingSince(), base);
+                }
+            } catch (IOException ioe) {
+                throw new ConnectorException(String.format("unable to read change log for '%s'", sourceFile),
+                    ioe, ConnectorException.Category.fileNonExistentOrNoAccess);
+            }
+            try (ChecksumCache checksums = getChecksumCache();
+                    LocalFinderInputStream in = LocalFinderInputStream.builder(directory)
+                    .filter(filter)
+                    .scanner(scanner)
+                    .parallelism(config.getScanParallelism())
+                    .format(config.getListingFormat())
+                    .pageSize(config.getListingPageSize(), config.getScanRunSize())
+                    .hashTree(hashTree)
+                    .checksums(checksums)
+                    .signatures(getSignatureCache(directory))
+                    .only(changed)
+                    .token(token)
                     .debug(s -> logger.debug(s))
                     .build()) {
                 transfer(in, destination.getStream(), true);
+                logScanner(scanner, hashTree);
                 return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
             } catch (IOException ioe) {
                 throw new ConnectorException(String.format("'%s' does not exist or is not accessible", sourceFile),
                     ioe, ConnectorException.Category.fileNonExistentOrNoAccess);
             }
         } else {
-            try (ThreadedZipDirectoryInputStream zip = ThreadedZipDirectoryInputStream.builder(factory.getFile(root+sourceDir))
-                    .copier(factory.getCopier())
-                    .level(config.getCompressionLevel())
-                    .filter(Finder.excluding(config.getExclusions())
-                            .and(Finder.only(config.getSelect())))
-                    .directoryMode(config.getDirectoryMode())
-                    .remoteReplica(getRemoteReplicaInputStream())
-                    .debug(s -> logger.debug(s))
-                    .timeout(config.getRemoteDirectoryListingTimeout(), config.getRemoteDirectoryListingTimeoutUnit())
-                    .build()) {
-                zip.finder().replicateDeletes(config.getReplicateDeletes());
-                transfer(zip, destination.getStream(), true);
+            Predicate<Found> filter = config.getExclusionFilter().and(config.getSelectFilter());
+            String[] key = {"exclusions:"+config.getExclusionsValue(), "select:"+config.getSelect()};
+            HashTree hashTree = getHashTree(scanner, filter, key);
+            RemoteState state = getRemoteState(directory, key);
+            boolean live = state == null || !state.usable();
+            boolean success = false;
+            try (ChecksumCache checksums = getChecksumCache()) {
+                if (state != null) {
+                    // record what the remote side will have before the local tree can change under the transfer
+                    try (LocalFinderInputStream listing = LocalFinderInputStream.builder(directory)
+                            .filter(filter)
+                            .scanner(scanner)
+                            .parallelism(config.getScanParallelism())
+                            .format(ListingFormat.binary)
+                            .hashTree(hashTree)
+                            .checksums(checksums)
+                            .build()) {
+                        state.record(listing);
+                    }
+                }
+                try (ThreadedZipDirectoryInputStream zip = ThreadedZipDirectoryInputStream.builder(directory)
+                        .copier(factory.getCopier())
+                        .level(config.getCompressionLevel())
+                        .zapLevel(config.getZapCompressionLevel())
+                        .solid(config.getZapSolid())
+                        .dictionary(getPresetDictionary(directory, filter))
+                        .multiplexed(config.getZapParallelism())
+                        .chunkSize(getZapChunkSize())
+                        .deflateThreads(config.getDeflateParallelism())
+                        .filter(filter)
+                        .scanner(scanner)
+                        .parallelism(config.getScanParallelism())
+                        .runSize(config.getScanRunSize())
+                        .directoryMode(config.getDirectoryMode())
+                        .ordered(false) // the Finder still sorts when replicating or excluding empty directories
+                        .remoteReplica(live ? getRemoteReplicaInputStream()
+                                : state.token() != null ? state.merge(getRemoteReplicaInputStream(state.token()))
+                                : state.listing())
+                        .mergeJoin(config.getMergeListings())
+                        .decoderParallelism(config.getRemoteDirectoryListingParallelism())
+                        .hashTree(hashTree)
+                        .checksums(checksums)
+                        .debug(s -> logger.debug(s))
+                        .timeout(config.getRemoteDirectoryListingTimeout(), config.getRemoteDirectoryListingTimeoutUnit())
+                        .build()) {
+                    zip.finder().replicateDeletes(config.getReplicateDeletes())
+                            .detectMoves(config.getDetectMoves());
+                    transfer(zip, destination.getStream(), true);
+                    if (state != null && live) {
+                        state.received(zip.finder().remoteToken());
+                    }
+                }
+                if (state != null) {
+                    state.commit(live);
+                }
+                success = true;
+                logScanner(scanner, hashTree);
                 return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
             } catch (IOException ioe) {
                 throw new ConnectorException(String.format("'%s' does not exist or is not accessible", sourceFile),
                     ioe, ConnectorException.Category.fileNonExistentOrNoAccess);
+            } finally {
+                if (state != null && !success) {
+                    // the remote side may be anywhere between the old and new states
+                    state.invalidate();
+                }
             }
         }
     }
@@ -170,8 +496,14 @@ public class ZipConnectorClient extends ConnectorClient {
         private boolean unzipRootFilesLast = false;
         private boolean suppressDirectoryCreation = false;
         private boolean replicateDeletes = false;
-        public Unzipper(String root) {
-            this.root = root;
+        private ChecksumCache checksums = null;
+        private ChangeLog changes = null;
+        private String[] base;
+        public Unzipper(String root, String destination) {
+            this.root = root+destination;
+            this.checksums = getChecksumCache();
+            this.changes = getChangeLog();
+            this.base = PathUtil.split(destination);
             this.unzipRootFilesLast = config.unzipRootFilesLast();
             this.suppressDirectoryCreation = config.getSuppressDirectoryCreation();
             this.replicateDeletes = config.getReplicateDeletes();
@@ -180,14 +512,21 @@ public class ZipConnectorClient extends ConnectorClient {
             }
         }
         private boolean rmdirs(File root) {
-            for (Found file : new Finder(root).directoryMode(DirectoryMode.exclude)) {
-                if (!file.file().delete() && file.file().exists()) {
-                    return false;
-                }
+            // files can be deleted in any order, but directories must be emptied bottom up
+            boolean deleted = new Finder(root)
+                    .scanner(factory.getScanner())
+                    .directoryMode(DirectoryMode.exclude)
+                    .ordered(false)
+                    .stream(true)
+                    .allMatch(file -> file.file().delete() || !file.file().exists());
+            if (!deleted) {
+                return false;
             }
-            List<Found> dirs =
-                    Lists.reverse(Lists.newArrayList(
-                            new Finder(root).directoryMode(DirectoryMode.only).iterator()));
+            List<Found> dirs = Lists.reverse(new Finder(root)
+                    .scanner(factory.getScanner())
+                    .directoryMode(DirectoryMode.only)
+                    .stream(true)
+                    .collect(Collectors.toList()));
             for (Found dir : dirs) {
                 if (!dir.file().delete() && dir.file().exists()) {
                     return false;
@@ -200,6 +539,9 @@ public class ZipConnectorClient extends ConnectorClient {
             if (exception != null) {
                 throw exception;
             }
+            if (changes != null) {
+                changes.record(base, zip);
+            }
             if (zip.directory()) {
                 pool.execute(() -> {
                     try {
@@ -208,6 +550,9 @@ public class ZipConnectorClient extends ConnectorClient {
                         }
                         if (zip.operation()==Operation.add) { 
                             if (!suppressDirectoryCreation) {
+                                if (changes != null && !zip.file().getParentFile().exists()) {
+                                    changes.recordPath(base, zip);
+                                }
                                 zip.file().mkdirs();
                             }
                         } else if (zip.operation()==Operation.delete) {
@@ -220,28 +565,109 @@ public class ZipConnectorClient extends ConnectorClient {
                     }
                 });
                 return null;
+            } else if (zip.operation()==Operation.touch) {
+                // same contents, just a new modified time: done here so that the
+                // modified time is not also set by the caller while we check it
+                if (logProcessor != null) {
+                    logProcessor.process(zip);
+                }
+                if (checksums != null) {
+                    checksums.touch(zip.file(), zip.modified());
+                }
+                if (!zip.file().setLastModified(zip.modified())) {
+                    logger.logError("unable to set modified time for file "+zip.fullname());
+                }
+                return null;
+            } else if (zip.operation()==Operation.move) {
+                // the same file is already here under another name: done here so that
+                // the source is moved before any directory it was in is deleted
+                if (logProcessor != null) {
+                    logProcessor.process(zip);
+                }
+                File source = zip.source().file();
+                File target = zip.file();
+                if (unzipRootFilesLast && zip.depth() == 1) {
+                    target = saveForLast(zip.file());
+                } else if (!suppressDirectoryCreation && !target.getParentFile().exists()) {
+                    if (changes != null) {
+                        changes.recordPath(base, zip);
+                    }
+                    target.getParentFile().mkdirs();
+                }
+                if (changes != null) {
+                    changes.record(base, zip.source());
+                }
+                if (!source.isFile()) {
+                    // already gone (the sender's remote state was stale, say): fail the transfer, so
+                    // that the sender drops its remote state and the next replication sends the file
+                    throw new IOException("unable to move "+zip.source().fullname()+" to "+zip.fullname()+": file not found");
+                }
+                long checksum = checksums == null ? ChecksumCache.UNKNOWN_CHECKSUM
+                        : checksums.get(new Found().file(source).length(source.length()).modified(source.lastModified()));
+                File from = factory.getNormalFile(source);
+                File to = factory.getNormalFile(target);
+                if (from != null && to != null) {
+                    Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    // not on the local file system: copy and delete through the factory
+                    try (InputStream in = factory.getInputStream(source);
+                            OutputStream out = factory.getOutputStream(target, zip.modified())) {
+                        ByteStreams.copy(in, out);
+                    }
+                    if (!source.delete()) {
+                        logger.logError("unable to delete moved file "+zip.source().fullname());
+                    }
+                }
+                if (!target.setLastModified(zip.modified())) {
+                    logger.logError("unable to set modified time for file "+zip.fullname());
+                }
+                if (checksum != ChecksumCache.UNKNOWN_CHECKSUM) {
+                    checksums.put(new Found().file(target).length(zip.length()).modified(zip.modified()), checksum);
+                }
+                return null;
             } else {
-                PipedOutputStream out = new PipedOutputStream();
-                PipedInputStream in = new PipedInputStream(out, ThreadedZipDirectoryInputStream.DEFAULT_BUFFERSIZE);
+                BlockingPipe pipe = new BlockingPipe(ThreadedZipDirectoryInputStream.DEFAULT_BUFFERSIZE);
+                InputStream in = pipe.input();
+                OutputStream out = pipe.output();
                 pool.execute(() -> {
                     OutputStream file = null;
                     try {
                         if (logProcessor != null) {
                             logProcessor.process(zip);
                         }
-                        if (zip.operation()==Operation.add) {
-                            if (unzipRootFilesLast && zip.path().length == 1) {
-                                file = factory.getOutputStream(saveForLast(zip.file()), zip.modified());
-                            } else {
-                                if (!suppressDirectoryCreation) {
-                                    File parent = zip.file().getParentFile();
-                                    if (!parent.exists()) {
-                                        parent.mkdirs();
-                                    } else if (!parent.isDirectory()) {
-                                        throw new IOException("can not create parent directory for "+zip.fullname()+": file already exists");
+                        if (zip.operation()==Operation.add || zip.operation()==Operation.delta) {
+                            File target = zip.file();
+                            if (unzipRootFilesLast && zip.depth() == 1) {
+                                target = saveForLast(zip.file());
+                            } else if (!suppressDirectoryCreation) {
+                                File parent = zip.file().getParentFile();
+                                if (!parent.exists()) {
+                                    if (changes != null) {
+                                        changes.recordPath(base, zip);
                                     }
+                                    parent.mkdirs();
+                                } else if (!parent.isDirectory()) {
+                                    throw new IOException("can not create parent directory for "+zip.fullname()+": file already exists");
                                 }
-                                file = factory.getOutputStream(zip.file(), zip.modified());
+                            }
+                            BlockDelta.Patcher patcher = null;
+                            if (zip.operation()==Operation.delta) {
+                                // the differences from the file that is already here, which
+                                // is only listed with signatures on a local file system
+                                File local = factory.getNormalFile(zip.file());
+                                File replaced = factory.getNormalFile(target);
+                                if (local == null || replaced == null) {
+                                    throw new IOException("can not apply delta to "+zip.fullname()+": not on a local file system");
+                                }
+                                patcher = new BlockDelta.Patcher(local, replaced);
+                                file = patcher;
+                            } else {
+                                file = factory.getOutputStream(target, zip.modified());
+                            }
+                            ChecksumCache.Recorder recorder = null;
+                            if (checksums != null) {
+                                recorder = checksums.recorder(zip, file);
+                                file = recorder;
                             }
                             byte[] buffer = new byte[ThreadedZipDirectoryInputStream.DEFAULT_BUFFERSIZE];
                             int n;
@@ -250,6 +676,18 @@ public class ZipConnectorClient extends ConnectorClient {
                                     file.write(buffer, 0, n);
                                 }
                             }
+                            if (patcher != null) {
+                                // closing the patcher verifies and replaces the file, so do not ignore failure
+                                OutputStream patched = file;
+                                file = null;
+                                patched.close();
+                                if (!target.setLastModified(zip.modified())) {
+                                    logger.logError("unable to set modified time for file "+zip.fullname());
+                                }
+                            }
+                            if (recorder != null) {
+                                recorder.record();
+                            }
                         } else if (zip.operation()==Operation.delete) {
                             if (replicateDeletes && !zip.file().delete()) {
                                 logger.logError("unable to delete file "+zip.fullname());
@@ -292,6 +730,13 @@ public class ZipConnectorClient extends ConnectorClient {
         }
         public void finish() throws IOException {
             shutdownAndAwaitTermination();
+            if (checksums != null) {
+                checksums.close();
+                checksums = null;
+            }
+            if (changes != null) {
+                changes.flush();
+            }
             if (tempdir != null) {
                 File tempdirfile = factory.getFile(tempdir);
                 for (File temp : tempdirfile.listFiles()) {
@@ -344,6 +789,12 @@ public class ZipConnectorClient extends ConnectorClient {
                 } else {
                     if (zip.operation()==Operation.add) {
                         logger.logDetail("create "+zip.fullname(), 1);
+                    } else if (zip.operation()==Operation.delta) {
+                        logger.logDetail("patch "+zip.fullname(), 1);
+                    } else if (zip.operation()==Operation.move) {
+                        logger.logDetail("move "+zip.source().fullname()+" to "+zip.fullname(), 1);
+                    } else if (zip.operation()==Operation.touch) {
+                        logger.logDetail("touch "+zip.fullname(), 1);
                     } else if (zip.operation()==Operation.delete) {
                         logger.logDetail("delete "+zip.fullname(), 1);
                     }
@@ -366,12 +817,14 @@ public class ZipConnectorClient extends ConnectorClient {
         Unzipper processor = null;
 
         try (UnzipDirectoryStreamWrapper unzip = new UnzipDirectoryStreamWrapper(p -> factory.getFile(root+destination, p))) {
-            unzip.filter(Finder.excluding(config.getExclusions()))
-                 .interrupted(() -> connectorAction.isInterrupted());
+            unzip.filter(config.getExclusionFilter())
+                 .interrupted(() -> connectorAction.isInterrupted())
+                 .writers(config.getZapParallelism())
+                 .memory(config.getZapBufferMemory());
             switch (config.getUnzipMode()) {
             case unzip:
             case unzipAndLog:
-                processor = this.new Unzipper(root+destination);
+                processor = this.new Unzipper(root, destination);
                 unzip.processor(processor);
                 break;
             case log:
@@ -380,7 +833,7 @@ public class ZipConnectorClient extends ConnectorClient {
             case preflight:
                 unzip.processor(zip -> {
                     // first check the implied parent directory unless we're at the top of the zip
-                    if (zip.path().length > 1) {
+                    if (zip.depth() > 1) {
                         File parent = zip.file().getParentFile();
                         if (parent.exists()) {
                             if (!parent.isDirectory()) {
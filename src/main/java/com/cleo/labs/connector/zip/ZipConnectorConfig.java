@@ -1,15 +1,25 @@
 package com.cleo.labs.connector.zip;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 import java.util.zip.Deflater;
 
 import com.cleo.connector.api.property.ConnectorPropertyException;
 import com.cleo.labs.connector.zip.ExclusionTableProperty.Exclusion;
 import com.cleo.labs.connector.zip.ZipConnectorSchema.UnzipMode;
+import com.cleo.labs.util.zip.Found;
+import com.cleo.labs.util.zip.FoundFilter;
 import com.cleo.labs.util.zip.Finder.DirectoryMode;
+import com.cleo.labs.util.zip.LocalFinderInputStream.ListingFormat;
+import com.cleo.labs.util.zip.ZapFoundInputStream;
 import com.cleo.labs.util.zip.ZapFoundOutputStream;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 public class ZipConnectorConfig {
     private ZipConnectorClient client;
@@ -41,6 +51,37 @@ public class ZipConnectorConfig {
         }
     }
 
+    public int getZapCompressionLevel() throws ConnectorPropertyException {
+        String value = schema.zapCompressionLevel.getValue(client);
+        if (Strings.isNullOrEmpty(value) || value.equalsIgnoreCase(ZipConnectorSchema.NONE)) {
+            return Deflater.NO_COMPRESSION;
+        } else if (value.equalsIgnoreCase(ZipConnectorSchema.DEFAULT)) {
+            return Deflater.DEFAULT_COMPRESSION;
+        } else {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new ConnectorPropertyException(e);
+            }
+        }
+    }
+
+    public boolean getZapSolid() {
+        try {
+            return schema.zapSolid.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return false;
+        }
+    }
+
+    public boolean getZapDictionary() {
+        try {
+            return schema.zapDictionary.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return false;
+        }
+    }
+
     public boolean getDontZipEmptyDirectories() {
         try {
             return schema.dontZipEmptyDirectories.getValue(client);
@@ -98,21 +139,36 @@ public class ZipConnectorConfig {
         return pattern;
     }
 
+    private static String[] toPatterns(String value) {
+        Exclusion[] exclusions = ExclusionTableProperty.toExclusions(value);
+        return Stream.of(exclusions)
+                .filter(Exclusion::isEnabled)
+                .map(Exclusion::getExclusionPattern)
+                .map(ZipConnectorConfig::globByDefault)
+                .toArray(String[]::new);
+    }
+
     public String[] getExclusions() {
         try {
-            String value = schema.exclusions.getValue(client);
-            Exclusion[] exclusions = ExclusionTableProperty.toExclusions(value);
-            String[] patterns = Stream.of(exclusions)
-                    .filter(Exclusion::isEnabled)
-                    .map(Exclusion::getExclusionPattern)
-                    .map(ZipConnectorConfig::globByDefault)
-                    .toArray(String[]::new);
-            return patterns;
+            return toPatterns(schema.exclusions.getValue(client));
         } catch (ConnectorPropertyException e) {
             return new String[0];
         }
     }
 
+    /**
+     * Returns the Exclusions property as entered, which identifies the
+     * exclusions in cache keys without parsing the table on every transfer.
+     * @return the exclusion table JSON, or {@code ""}
+     */
+    public String getExclusionsValue() {
+        try {
+            return Strings.nullToEmpty(schema.exclusions.getValue(client));
+        } catch (ConnectorPropertyException e) {
+            return "";
+        }
+    }
+
     public String getSelect() {
         try {
             return globByDefault(schema.select.getValue(client));
@@ -121,6 +177,50 @@ public class ZipConnectorConfig {
         }
     }
 
+    /*
+     * Compiled filters are shared by all connector instances, keyed by the
+     * raw property value (the exclusion table JSON or the select pattern),
+     * so that repeated transfers with the same settings skip recompilation.
+     */
+    private static final Cache<String,Predicate<Found>> filters = CacheBuilder.newBuilder()
+            .maximumSize(100)
+            .build();
+
+    private static Predicate<Found> cachedFilter(String key, Callable<Predicate<Found>> compiler) {
+        try {
+            return filters.get(key, compiler);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IllegalArgumentException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the compiled {@link FoundFilter} for the enabled {@link #getExclusions()}.
+     * @return the (possibly cached) exclusion filter
+     */
+    public Predicate<Found> getExclusionFilter() {
+        String json = getExclusionsValue();
+        if (json.isEmpty()) {
+            return FoundFilter.excluding();
+        }
+        return cachedFilter("exclusions:"+json, () -> FoundFilter.excluding(toPatterns(json)));
+    }
+
+    /**
+     * Returns the compiled {@link FoundFilter} for the {@link #getSelect()} pattern.
+     * @return the (possibly cached) select filter
+     */
+    public Predicate<Found> getSelectFilter() {
+        String select = getSelect();
+        if (select == null) {
+            return FoundFilter.only(null);
+        }
+        return cachedFilter("select:"+select, () -> FoundFilter.only(select));
+    }
+
     public String getRemoteDirectoryListing() {
         try {
             return schema.remoteDirectoryListing.getValue(client);
@@ -137,6 +237,14 @@ public class ZipConnectorConfig {
         }
     }
 
+    public int getRemoteDirectoryListingParallelism() {
+        try {
+            return Math.max(1, schema.remoteDirectoryListingParallelism.getValue(client));
+        } catch (ConnectorPropertyException e) {
+            return 1;
+        }
+    }
+
     public boolean getReplicateDeletes() {
         try {
             return schema.replicateDeletes.getValue(client);
@@ -145,6 +253,22 @@ public class ZipConnectorConfig {
         }
     }
 
+    public boolean getDetectMoves() {
+        try {
+            return schema.detectMoves.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return false;
+        }
+    }
+
+    public boolean getMergeListings() {
+        try {
+            return schema.mergeListings.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return false;
+        }
+    }
+
     public TimeUnit getRemoteDirectoryListingTimeoutUnit() {
         return TimeUnit.SECONDS;
     }
@@ -164,6 +288,24 @@ public class ZipConnectorConfig {
         }
     }
 
+    public ListingFormat getListingFormat() {
+        try {
+            String value = schema.listingFormat.getValue(client);
+            return ListingFormat.valueOf(value);
+        } catch (ConnectorPropertyException | IllegalArgumentException | NullPointerException e) {
+            // if value is null or empty we'll wind up here
+            return ListingFormat.json;
+        }
+    }
+
+    public int getListingPageSize() {
+        try {
+            return Math.max(0, schema.listingPageSize.getValue(client));
+        } catch (ConnectorPropertyException e) {
+            return 0;
+        }
+    }
+
     public UnzipMode getUnzipMode() {
         try {
             String value = schema.unzipMode.getValue(client);
@@ -189,4 +331,124 @@ public class ZipConnectorConfig {
             return false;
         }
     }
-}
\ No newline at end of file
+
+    public int getScanParallelism() {
+        try {
+            return Math.max(1, schema.scanParallelism.getValue(client));
+        } catch (ConnectorPropertyException e) {
+            return 1;
+        }
+    }
+
+    public int getZapParallelism() {
+        try {
+            return Math.max(1, schema.zapParallelism.getValue(client));
+        } catch (ConnectorPropertyException e) {
+            return 1;
+        }
+    }
+
+    public long getZapBufferMemory() {
+        try {
+            return Math.max(1, schema.zapBufferMemory.getValue(client)) * 1024L * 1024L;
+        } catch (ConnectorPropertyException e) {
+            return ZapFoundInputStream.DEFAULT_MEMORY;
+        }
+    }
+
+    public int getDeflateParallelism() {
+        try {
+            return Math.max(1, schema.deflateParallelism.getValue(client));
+        } catch (ConnectorPropertyException e) {
+            return 1;
+        }
+    }
+
+    public int getScanRunSize() {
+        try {
+            return Math.max(0, schema.scanRunSize.getValue(client));
+        } catch (ConnectorPropertyException e) {
+            return 100000;
+        }
+    }
+
+    public boolean getScanIndex() {
+        try {
+            return schema.scanIndex.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return false;
+        }
+    }
+
+    public boolean getSubtreeHashes() {
+        try {
+            return schema.subtreeHashes.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return false;
+        }
+    }
+
+    public boolean getContentChecksums() {
+        try {
+            return schema.contentChecksums.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return false;
+        }
+    }
+
+    public boolean getDeltaTransfer() {
+        try {
+            return schema.deltaTransfer.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return false;
+        }
+    }
+
+    public boolean getRemoteStateCache() {
+        try {
+            return schema.remoteStateCache.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return false;
+        }
+    }
+
+    public long getRemoteStateRefresh() {
+        try {
+            return schema.remoteStateRefresh.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return 24L;
+        }
+    }
+
+    public boolean getChangeLog() {
+        try {
+            return schema.changeLog.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return false;
+        }
+    }
+
+    public boolean getChangeLogScan() {
+        try {
+            return schema.changeLogScan.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return true;
+        }
+    }
+
+    public String getListingSince() {
+        try {
+            return schema.listingSince.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return null;
+        }
+    }
+
+    public String getCacheDirectory() {
+        try {
+            return schema.cacheDirectory.getValue(client);
+        } catch (ConnectorPropertyException e) {
+            return null;
+        }
+    }
+}
@@ -15,6 +15,7 @@ import com.cleo.connector.api.property.CommonProperties;
 import com.cleo.connector.api.property.CommonProperty;
 import com.cleo.connector.api.property.CommonPropertyGroups;
 import com.cleo.connector.api.property.PropertyBuilder;
+import com.cleo.labs.util.zip.LocalFinderInputStream.ListingFormat;
 import com.google.common.base.Charsets;
 import com.google.common.io.Resources;
 
@@ -43,6 +44,31 @@ public class ZipConnectorSchema extends ConnectorConfig {
             .setPossibleValues(DEFAULT,NONE,"1","2","3","4","5","6","7","8","9",ZAP)
             .build();
 
+    @Property
+    final public IConnectorProperty<String> zapCompressionLevel = new PropertyBuilder<>("ZapCompressionLevel", NONE)
+            .setAllowedInSetCommand(true)
+            .setDescription("Compression level none (0), 1-9, or default compression for the files in a \"zap\" archive."+
+                            " Any level but none requires a connector on the receiving side that reads compressed zap archives.")
+            .setPossibleValues(NONE,DEFAULT,"1","2","3","4","5","6","7","8","9")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Boolean> zapSolid = new PropertyBuilder<>("ZapSolid", false)
+            .setAllowedInSetCommand(true)
+            .setDescription("Compress a \"zap\" archive as a whole at the Zap Compression Level (or the default level), "+
+                            "instead of file by file, so that many small, similar files compress better."+
+                            " Requires a connector on the receiving side that reads solid zap archives.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Boolean> zapDictionary = new PropertyBuilder<>("ZapDictionary", false)
+            .setAllowedInSetCommand(true)
+            .setDescription("Compress each file in a \"zap\" archive with a dictionary trained from a sample of the files "+
+                            "under the Root Path (kept in the Cache Directory for a week), so that small, similar files compress better."+
+                            " Applies only with a Zap Compression Level and without Zap Solid."+
+                            " Requires a connector on the receiving side that reads zap archives with dictionaries.")
+            .build();
+
     @Property
     final public IConnectorProperty<String> exclusions = new PropertyBuilder<>("Exclusions", "")
             .setAllowedInSetCommand(false)
@@ -74,6 +100,35 @@ public class ZipConnectorSchema extends ConnectorConfig {
             .setGroup(CommonPropertyGroups.ConnectAdvanced)
             .build();
 
+    @Property
+    final IConnectorProperty<Integer> remoteDirectoryListingParallelism = new PropertyBuilder<>("RemoteDirectoryListingParallelism", 1)
+            .setAllowedInSetCommand(true)
+            .setDescription("The number of threads decoding a JSON Remote Directory Listing while zipping."+
+                            " Values greater than 1 help when decoding, rather than the network,"+
+                            " limits replication of a large tree.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> listingFormat = new PropertyBuilder<>("ListingFormat", ListingFormat.json.name())
+            .setAllowedInSetCommand(true)
+            .setDescription("The format of the directory listing produced by GET directory.listing."+
+                            " Select \"binary\" for a more compact listing, but only when the connector"+
+                            " reading it as its Remote Directory Listing is a version that recognizes it.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .setPossibleValues("", ListingFormat.json.name(), ListingFormat.binary.name())
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> listingPageSize = new PropertyBuilder<>("ListingPageSize", 0)
+            .setAllowedInSetCommand(true)
+            .setDescription("Directories with more entries than this are split into pages of this size"+
+                            " in the directory listing produced by GET directory.listing, so that neither side"+
+                            " holds a huge directory in memory at once (the reading side only with \"Merge Listings\")."+
+                            " Set to 0 to list each directory in one piece, which all versions can read.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
     @Property
     final IConnectorProperty<Boolean> replicateDeletes = new PropertyBuilder<>("ReplicateDeletes", false)
             .setDescription("Enable when zipping to send deletes, and enable when unzipping to process deletes."+
@@ -82,6 +137,25 @@ public class ZipConnectorSchema extends ConnectorConfig {
             .setGroup(CommonPropertyGroups.ConnectAdvanced)
             .build();
 
+    @Property
+    final IConnectorProperty<Boolean> detectMoves = new PropertyBuilder<>("DetectMoves", false)
+            .setAllowedInSetCommand(true)
+            .setDescription("Enable when zipping with \"Replicate Deletes\" to send a file or directory that was renamed"+
+                            " or moved as a move of the file already on the remote side, instead of a delete and a new copy."+
+                            " Files match by length and modified time (and checksum with \"Content Checksums\")."+
+                            " Requires that \"Compression Level\" be set to \"zap\".")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> mergeListings = new PropertyBuilder<>("MergeListings", false)
+            .setAllowedInSetCommand(true)
+            .setDescription("Compare the Remote Directory Listing with the local directories in order as it is read,"+
+                            " holding only the directories on the current path instead of any part of either side"+
+                            " that gets ahead of the other. Requires a listing produced by GET directory.listing.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
     @Property
     final IConnectorProperty<Boolean> dontZipEmptyDirectories = new PropertyBuilder<>("DontZipEmptyDirectories", false)
             .setAllowedInSetCommand(false)
@@ -142,6 +216,142 @@ public class ZipConnectorSchema extends ConnectorConfig {
             .setGroup(CommonPropertyGroups.ConnectAdvanced)
             .build();
 
+    @Property
+    final IConnectorProperty<Integer> scanParallelism = new PropertyBuilder<>("ScanParallelism", 1)
+            .setAllowedInSetCommand(true)
+            .setDescription("The number of directories to list at the same time while zipping. "+
+                 "Values greater than 1 help most when the Root Path is on a high-latency file system.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> zapParallelism = new PropertyBuilder<>("ZapParallelism", 1)
+            .setAllowedInSetCommand(true)
+            .setDescription("The number of files to read (and compress) at the same time into a multiplexed \"zap\" archive "+
+                 "while zipping, and the number of files to write at the same time while unzipping one. "+
+                 "Values greater than 1 on the zipping side require a connector on the receiving side that reads multiplexed zap archives.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> zapBufferMemory = new PropertyBuilder<>("ZapBufferMemory", 16)
+            .setAllowedInSetCommand(true)
+            .setDescription("The memory in MB for the chunks of files in flight in a multiplexed \"zap\" archive: "+
+                 "shared by the files being zipped, or waiting to be written while unzipping.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> deflateParallelism = new PropertyBuilder<>("DeflateParallelism", 1)
+            .setAllowedInSetCommand(true)
+            .setDescription("The number of threads compressing each large file (1MB or more) in a zip archive, "+
+                 "in blocks joined into a single standard deflate stream.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> scanRunSize = new PropertyBuilder<>("ScanRunSize", 100000)
+            .setAllowedInSetCommand(true)
+            .setDescription("Directories with more entries than this are sorted in runs of this size "+
+                 "that are spilled to temporary files, so that very large directories can be zipped "+
+                 "without holding the whole directory in memory. Set to 0 to always sort in memory.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> scanIndex = new PropertyBuilder<>("ScanIndex", false)
+            .setAllowedInSetCommand(true)
+            .setDescription("Keep an index of directory listings between GETs, and reuse the listings "+
+                 "of directories whose modified time has not changed since the last GET. "+
+                 "A file updated in place does not change the modified time of its directory, "+
+                 "so it is not seen until something else in the directory changes. "+
+                 "Only for a Root Path on the local file system.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> cacheDirectory = new PropertyBuilder<>("CacheDirectory", "")
+            .setAllowedInSetCommand(true)
+            .setDescription("A local directory in which to keep cached data like the Scan Index. "+
+                 "By default everything cached is kept in a hidden directory next to the Root Path, "+
+                 "and nothing is cached for a Root Path that is not on the local file system.")
+            .setType(IConnectorProperty.Type.PathType)
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> subtreeHashes = new PropertyBuilder<>("SubtreeHashes", false)
+            .setAllowedInSetCommand(true)
+            .setDescription("Include a hash of each directory and everything under it in a directory listing, "+
+                 "and when replicating skip any directory whose hash matches the Remote Directory Listing. "+
+                 "The hashes are cached in the Cache Directory. Enable on both sides of the replication.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> contentChecksums = new PropertyBuilder<>("ContentChecksums", false)
+            .setAllowedInSetCommand(true)
+            .setDescription("Remember a checksum of each file sent or received, include it in a directory listing, "+
+                 "and when replicating compare files of the same length by checksum, sending only a new modified time "+
+                 "for files that were touched but not changed. The checksums are cached in the Cache Directory. "+
+                 "Enable on both sides of the replication, with a Compression Level of \"zap\".")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> deltaTransfer = new PropertyBuilder<>("DeltaTransfer", false)
+            .setAllowedInSetCommand(true)
+            .setDescription("Include block signatures of each large file in a directory listing, "+
+                 "and when replicating send a changed file as just the blocks that differ from the Remote Directory Listing. "+
+                 "The signatures are cached in the Cache Directory. Enable on both sides of the replication, "+
+                 "with a Compression Level of \"zap\". The receiving side must be a local file system.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> remoteStateCache = new PropertyBuilder<>("RemoteStateCache", false)
+            .setAllowedInSetCommand(true)
+            .setDescription("Remember the state each successful replication leaves the remote side in, and compare "+
+                 "against it instead of reading the Remote Directory Listing, until the Remote State Refresh interval "+
+                 "has passed. The state is kept in the Cache Directory. Requires a Compression Level of \"zap\".")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<Long> remoteStateRefresh = new PropertyBuilder<>("RemoteStateRefresh", 24L)
+            .setAllowedInSetCommand(true)
+            .setDescription("How often, in hours, to read the Remote Directory Listing to correct the Remote State Cache "+
+                 "for changes made on the remote side. Set to 0 to read it on the next replication.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> changeLog = new PropertyBuilder<>("ChangeLog", false)
+            .setAllowedInSetCommand(true)
+            .setDescription("Record the directories changed by each unzip in a change log kept in the Cache Directory, "+
+                 "and end each directory listing with a token that can be passed back as Listing Since. "+
+                 "Enable on the receiving side to let a Remote State Cache merge just the changes.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> changeLogScan = new PropertyBuilder<>("ChangeLogScan", true)
+            .setAllowedInSetCommand(true)
+            .setDescription("With a Change Log and Scan Index, scan the directories for local changes "+
+                 "not made by an unzip before each Listing Since, which visits every directory. "+
+                 "Turn off when nothing but the replication changes the Root Path.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> listingSince = new PropertyBuilder<>("ListingSince", "")
+            .setAllowedInSetCommand(true)
+            .setDescription("A change log token from an earlier directory listing: list only the directories "+
+                 "changed since. Usually set with ?zip.listingsince=token on the Remote Directory Listing URI "+
+                 "by a replicating sender, rather than directly.")
+            .setGroup(CommonPropertyGroups.ConnectAdvanced)
+            .build();
+
     @Property
     final IConnectorProperty<String> retrieveDirectorySort = CommonProperties.of(CommonProperty.RetrieveDirectorySort);
 
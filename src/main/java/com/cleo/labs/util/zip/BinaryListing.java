@@ -0,0 +1,375 @@
+package com.cleo.labs.util.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * A compact binary encoding for directory listings, as an alternative to
+ * the length-prefixed JSON produced by {@link LocalFinderInputStream}.
+ * <p/>
+ * A binary listing starts with the 4-byte {@link #MAGIC} (which, read as a
+ * JSON record length, would be an implausible 1.5GB) and a version byte,
+ * followed by one record per directory until the end of the stream:
+ * <ul>
+ * <li>the directory full name, front-coded against the previous directory:
+ *     a varint count of leading bytes shared with the previous name,
+ *     then the varint length and UTF-8 bytes of the rest</li>
+ * <li>the directory itself encoded as an entry (below), without the name</li>
+ * </ul>
+ * Each entry is a varint of flags (a single byte for the first seven, so
+ * that later flags can follow on without a new layout), then for the contents of a directory its name
+ * relative to the parent (or its full name if {@link #FULLNAME} is set) as a
+ * varint length and UTF-8 bytes, an operation tag if {@link #OPERATION} is set,
+ * the zigzag varint length and the zigzag varint modified time (as a
+ * difference from the previous entry in the record). If {@link #HASH} is set,
+ * the varint length and bytes of the {@link HashTree} hash follow, if
+ * {@link #CHECKSUM} is set, the 4 bytes of the {@link ChecksumCache} checksum,
+ * if {@link #SIGNATURES} is set, the varint length and bytes of the
+ * {@link BlockDelta} signatures, and if {@link #CONTENTS} is set, a varint count and the entries of the contents.
+ * A directory listed in several pages (see {@link Found#page(Found[], boolean)}) has one record per page,
+ * all but the last with {@link #MORE} set.
+ * <p/>
+ * A record without {@link #DIRECTORY} set is a token record (see {@link Found#token()}): its name,
+ * which is not front-coded, is the token.
+ * <p/>
+ * The lengths and counts in a listing are not trusted for allocation:
+ * names and other bytes are read in bounded chunks, and contents are
+ * collected as they arrive, so a corrupt length ends in an
+ * {@link EOFException} rather than an attempt to allocate it.
+ */
+public class BinaryListing {
+
+    public static final int MAGIC = 0x5A4C5354; // ZLST
+    public static final int VERSION = 2; // 2 adds HASH, CHECKSUM, SIGNATURES, MORE and tokens
+
+    private static final int DIRECTORY = 0x01;
+    private static final int CONTENTS  = 0x02;
+    private static final int OPERATION = 0x04;
+    private static final int FULLNAME  = 0x08;
+    private static final int HASH      = 0x10;
+    private static final int CHECKSUM  = 0x20;
+    private static final int SIGNATURES = 0x40;
+    private static final int MORE       = 0x80; // the first flag in a second byte
+
+    /**
+     * The most bytes allocated ahead of reading them.
+     */
+    private static final int CHUNK = 64 * 1024;
+
+    /**
+     * Returns the prefix of the full names of the contents of a directory,
+     * which is empty for the root.
+     */
+    private static String prefix(Found directory) {
+        return directory.depth()==0 ? "" : directory.fullname();
+    }
+
+    /**
+     * Encodes directories, each with its contents, to an {@code OutputStream}.
+     */
+    public static class Writer {
+        private OutputStream out;
+        private ByteArrayOutputStream record;
+        private byte[] previous;
+        private long modified;
+
+        /**
+         * Creates a new {@code Writer} and writes the header to {@code out}.
+         * @param out the {@code OutputStream} to write to
+         * @throws IOException
+         */
+        public Writer(OutputStream out) throws IOException {
+            this.out = out;
+            this.record = new ByteArrayOutputStream();
+            this.previous = new byte[0];
+            this.modified = 0L;
+            writeInt(out, MAGIC);
+            out.write(VERSION);
+        }
+
+        /**
+         * Encodes a directory, with its contents, as a single record.
+         * @param directory the directory to write
+         * @throws IOException
+         */
+        public void write(Found directory) throws IOException {
+            record.reset();
+            if (directory.token() != null) {
+                byte[] token = directory.token().getBytes(StandardCharsets.UTF_8);
+                writeVarint(record, 0);
+                writeVarint(record, token.length);
+                record.write(token);
+                writeVarint(record, 0);
+                writeVarlong(record, 0L);
+                writeVarlong(record, 0L);
+                record.writeTo(out);
+                return;
+            }
+            byte[] name = directory.fullname().getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            int max = Math.min(name.length, previous.length);
+            while (shared < max && name[shared] == previous[shared]) {
+                shared++;
+            }
+            writeVarint(record, shared);
+            writeVarint(record, name.length-shared);
+            record.write(name, shared, name.length-shared);
+            previous = name;
+            modified = 0L;
+            writeEntry(directory, 0, null);
+            record.writeTo(out);
+        }
+
+        private void writeEntry(Found found, int flags, String name) throws IOException {
+            flags |= (found.directory() ? DIRECTORY : 0)
+                    | (found.contents() != null ? CONTENTS : 0)
+                    | (found.operation() != null ? OPERATION : 0)
+                    | (found.hash() != null ? HASH : 0)
+                    | (found.checksum() != ChecksumCache.UNKNOWN_CHECKSUM ? CHECKSUM : 0)
+                    | (found.signatures() != null ? SIGNATURES : 0)
+                    | (found.more() ? MORE : 0);
+            writeVarint(record, flags);
+            if (name != null) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                writeVarint(record, bytes.length);
+                record.write(bytes);
+            }
+            if (found.operation() != null) {
+                record.write(found.operation().tag());
+            }
+            writeVarlong(record, zigzag(found.length()));
+            writeVarlong(record, zigzag(found.modified()-modified));
+            modified = found.modified();
+            if (found.hash() != null) {
+                writeVarint(record, found.hash().length);
+                record.write(found.hash());
+            }
+            if (found.checksum() != ChecksumCache.UNKNOWN_CHECKSUM) {
+                writeInt(record, (int)found.checksum());
+            }
+            if (found.signatures() != null) {
+                writeVarint(record, found.signatures().length);
+                record.write(found.signatures());
+            }
+            if (found.contents() != null) {
+                String prefix = prefix(found);
+                writeVarint(record, found.contents().length);
+                for (Found child : found.contents()) {
+                    String fullname = child.fullname();
+                    int suffix = child.directory() ? 1 : 0;
+                    if (fullname.startsWith(prefix) && fullname.length() >= prefix.length()+suffix &&
+                            (!child.directory() || fullname.endsWith("/"))) {
+                        writeEntry(child, 0, fullname.substring(prefix.length(), fullname.length()-suffix));
+                    } else {
+                        writeEntry(child, FULLNAME, fullname);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes directories written by a {@link Writer}.
+     */
+    public static class Reader {
+        private InputStream in;
+        private byte[] previous;
+        private long modified;
+
+        /**
+         * Creates a new {@code Reader} for a stream whose {@link #MAGIC}
+         * has already been read, and reads the version.
+         * @param in the {@code InputStream} positioned after the {@code MAGIC}
+         * @throws IOException if the version is not supported
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = in;
+            this.previous = new byte[0];
+            int version = in.read();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("unsupported directory listing version "+version);
+            }
+        }
+
+        /**
+         * Reads the next directory, or returns {@code null} at the end of the stream.
+         * @return the next directory, or {@code null}
+         * @throws IOException
+         */
+        public Found read() throws IOException {
+            int first = in.read();
+            if (first < 0) {
+                return null;
+            }
+            int shared = readVarint(in, first);
+            int length = readVarint(in, in.read());
+            if (shared > previous.length) {
+                throw new IOException("corrupt directory listing");
+            }
+            byte[] rest = readBytes(in, length);
+            byte[] name = new byte[shared+rest.length];
+            System.arraycopy(previous, 0, name, 0, shared);
+            System.arraycopy(rest, 0, name, shared, rest.length);
+            modified = 0L;
+            Found directory = new Found().fullname(new String(name, StandardCharsets.UTF_8));
+            readEntry(directory, readVarint(in, in.read()), null);
+            if (!directory.directory()) {
+                // a token record
+                return new Found().token(directory.fullname());
+            }
+            previous = name;
+            return directory;
+        }
+
+        /**
+         * Reads an entry into {@code found}, including its name
+         * relative to {@code prefix} unless {@code prefix} is {@code null}.
+         */
+        private void readEntry(Found found, int flags, String prefix) throws IOException {
+            boolean directory = (flags & DIRECTORY) != 0;
+            found.directory(directory);
+            found.more((flags & MORE) != 0);
+            if (prefix != null) {
+                byte[] bytes = readBytes(in, readVarint(in, in.read()));
+                String name = new String(bytes, StandardCharsets.UTF_8);
+                if ((flags & FULLNAME) != 0) {
+                    found.fullname(name);
+                } else {
+                    found.fullname(directory ? prefix+name+"/" : prefix+name);
+                }
+            }
+            if ((flags & OPERATION) != 0) {
+                found.operation(Found.Operation.of(readByte(in)));
+            }
+            found.length(unzigzag(readVarlong(in)));
+            modified += unzigzag(readVarlong(in));
+            found.modified(modified);
+            if ((flags & HASH) != 0) {
+                found.hash(readBytes(in, readVarint(in, in.read())));
+            }
+            if ((flags & CHECKSUM) != 0) {
+                found.checksum(readInt(in) & 0xFFFFFFFFL);
+            }
+            if ((flags & SIGNATURES) != 0) {
+                found.signatures(readBytes(in, readVarint(in, in.read())));
+            }
+            if ((flags & CONTENTS) != 0) {
+                String contentsPrefix = prefix(found);
+                int count = readVarint(in, in.read());
+                List<Found> contents = new ArrayList<>(Math.min(count, CHUNK));
+                for (int i=0; i<count; i++) {
+                    Found child = new Found();
+                    readEntry(child, readVarint(in, in.read()), contentsPrefix);
+                    contents.add(child);
+                }
+                found.contents(contents.toArray(new Found[contents.size()]));
+            }
+        }
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeInt(OutputStream out, int n) throws IOException {
+        out.write(n >>> 24);
+        out.write(n >>> 16);
+        out.write(n >>> 8);
+        out.write(n);
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        return readByte(in) << 24 | readByte(in) << 16 | readByte(in) << 8 | readByte(in);
+    }
+
+    private static void writeVarint(OutputStream out, int n) throws IOException {
+        writeVarlong(out, n & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarlong(OutputStream out, long n) throws IOException {
+        while ((n & ~0x7FL) != 0) {
+            out.write((int)(n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out.write((int)n);
+    }
+
+    /**
+     * Reads {@code length} bytes, allocating no more than {@link #CHUNK}
+     * bytes ahead of those actually read.
+     */
+    private static byte[] readBytes(InputStream in, int length) throws IOException {
+        if (length <= CHUNK) {
+            byte[] bytes = new byte[length];
+            ByteStreams.readFully(in, bytes);
+            return bytes;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(CHUNK);
+        if (ByteStreams.copy(ByteStreams.limit(in, length), bytes) < length) {
+            throw new EOFException("truncated directory listing");
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("truncated directory listing");
+        }
+        return b;
+    }
+
+    /**
+     * Reads a varint whose first byte has already been read.
+     */
+    private static int readVarint(InputStream in, int first) throws IOException {
+        if (first < 0) {
+            throw new EOFException("truncated directory listing");
+        }
+        long n = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            if (shift > 28) {
+                throw new IOException("corrupt directory listing");
+            }
+            b = readByte(in);
+            n |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        }
+        if (n > Integer.MAX_VALUE) {
+            throw new IOException("corrupt directory listing");
+        }
+        return (int)n;
+    }
+
+    private static long readVarlong(InputStream in) throws IOException {
+        long n = 0;
+        for (int shift=0; shift<64; shift+=7) {
+            int b = readByte(in);
+            n |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+        throw new IOException("corrupt directory listing");
+    }
+
+    /**
+     * Utility class.
+     */
+    private BinaryListing() {
+    }
+}
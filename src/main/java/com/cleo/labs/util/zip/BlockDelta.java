@@ -0,0 +1,698 @@
+package com.cleo.labs.util.zip;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * An rsync-style block delta, used to send a changed file as the
+ * differences from the old version already at the receiving side.
+ * <p/>
+ * The receiver describes its old version with {@link #signatures(InputStream, long)}:
+ * the file is cut into blocks of {@link #blockSize(long)} bytes, and each block
+ * is summarized by a weak rolling checksum and a strong 64-bit hash. These
+ * signatures travel in the directory listing. The sender writes its new
+ * version through an {@link Encoder}, which finds the old blocks at any
+ * offset in the new file and emits a delta of block copies and literal
+ * bytes. The receiver writes the delta into a {@link Patcher}, which builds
+ * the new file next to the old one, verifies its CRC-32C and length, and
+ * only then replaces the old file.
+ * <p/>
+ * A delta is the block size (varint) followed by instructions, each a tag byte:
+ * <ul>
+ * <li>{@link #COPY}: a varint first block and a varint block count to copy from the old file</li>
+ * <li>{@link #LITERAL}: a varint length and that many bytes</li>
+ * <li>{@link #END}: the varint length and 4-byte CRC-32C of the new file</li>
+ * </ul>
+ */
+public class BlockDelta {
+
+    /**
+     * Files smaller than this are just sent.
+     */
+    public static final long DEFAULT_THRESHOLD = 1024L * 1024L;
+
+    private static final int MIN_BLOCK = 4 * 1024;
+    private static final int MAX_BLOCK = 1024 * 1024;
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    private static final int END     = 0;
+    private static final int COPY    = 1;
+    private static final int LITERAL = 2;
+
+    /**
+     * Returns the block size for a file of {@code length} bytes: about the
+     * square root of the length (as a power of 2), so that both the number
+     * of signatures and the size of each block grow slowly.
+     * @param length the file length
+     * @return the block size
+     */
+    public static int blockSize(long length) {
+        long root = Long.highestOneBit((long)Math.sqrt((double)length));
+        return (int)Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, root));
+    }
+
+    /**
+     * Computes the block signatures of a file: the block size, the file
+     * length, the block count and for each block its weak and strong checksums.
+     * @param in the file contents
+     * @param length the file length
+     * @return the encoded signatures
+     * @throws IOException
+     */
+    public static byte[] signatures(InputStream in, long length) throws IOException {
+        int blockSize = blockSize(length);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(blockSize);
+        out.writeLong(length);
+        out.writeInt((int)((length+blockSize-1)/blockSize));
+        byte[] block = new byte[blockSize];
+        int count = 0;
+        int blocks = 0;
+        while (true) {
+            int n = in.read(block, count, blockSize-count);
+            if (n > 0) {
+                count += n;
+            }
+            if (count == blockSize || n < 0 && count > 0) {
+                out.writeInt(weak(block, 0, count));
+                out.writeLong(strong(block, 0, count));
+                blocks++;
+                count = 0;
+            }
+            if (n < 0) {
+                break;
+            }
+        }
+        if ((long)blocks*blockSize < length || (long)(blocks-1)*blockSize >= Math.max(length, 1)) {
+            throw new IOException("file changed while computing signatures");
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static int weak(byte[] b, int off, int len) {
+        int a = 0;
+        int s = 0;
+        for (int i=0; i<len; i++) {
+            a += b[off+i] & 0xFF;
+            s += (len-i) * (b[off+i] & 0xFF);
+        }
+        return (a & 0xFFFF) | (s << 16);
+    }
+
+    private static long strong(byte[] b, int off, int len) {
+        return Hashing.murmur3_128().hashBytes(b, off, len).asLong();
+    }
+
+    /**
+     * The signatures of the old file, indexed by weak checksum.
+     */
+    private static class Signatures {
+        private int blockSize;
+        private int[] weak;
+        private long[] strong;
+        private int lastLength;
+        private BitSet tags = new BitSet(1<<16);
+        private Map<Integer,int[]> blocks = new HashMap<>();
+
+        private Signatures(byte[] signatures) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(signatures));
+            blockSize = in.readInt();
+            long length = in.readLong();
+            int count = in.readInt();
+            if (blockSize < 1 || count < 0 || signatures.length != 16 + 12L*count ||
+                    (long)count*blockSize < length || count > 0 && (long)(count-1)*blockSize >= length) {
+                throw new IOException("corrupt block signatures");
+            }
+            lastLength = (int)(length - (long)(count-1)*blockSize);
+            weak = new int[count];
+            strong = new long[count];
+            for (int i=0; i<count; i++) {
+                weak[i] = in.readInt();
+                strong[i] = in.readLong();
+                tags.set(tag(weak[i]));
+                int[] list = blocks.get(weak[i]);
+                if (list == null) {
+                    blocks.put(weak[i], new int[] {i});
+                } else if (weak[i] != weak[i-1] || strong[i] != strong[i-1]) {
+                    // (runs of identical blocks need only remember the first)
+                    int[] longer = new int[list.length+1];
+                    System.arraycopy(list, 0, longer, 0, list.length);
+                    longer[list.length] = i;
+                    blocks.put(weak[i], longer);
+                }
+            }
+        }
+
+        private static int tag(int weak) {
+            return (weak ^ (weak >>> 16)) & 0xFFFF;
+        }
+
+        /**
+         * Returns the old block matching {@code len} bytes of {@code b},
+         * preferring {@code preferred} (to extend a run of copies), or -1.
+         */
+        private int find(int weak, byte[] b, int off, int len, int preferred) {
+            if (!tags.get(tag(weak))) {
+                return -1;
+            }
+            int[] list = blocks.get(weak);
+            if (list == null) {
+                return -1;
+            }
+            long hash = strong(b, off, len);
+            if (preferred >= 0 && preferred < this.weak.length && this.weak[preferred] == weak &&
+                    strong[preferred] == hash && length(preferred) == len) {
+                return preferred;
+            }
+            for (int i : list) {
+                if (strong[i] == hash && length(i) == len) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int length(int block) {
+            return block < weak.length-1 ? blockSize : lastLength;
+        }
+    }
+
+    /**
+     * An {@code OutputStream} that encodes the new file written to it as
+     * a delta against old file {@code signatures}, written to {@code out}.
+     * Call {@link #finish()} after the last byte to complete the delta
+     * (closing the {@code Encoder} finishes it but does not close {@code out}).
+     */
+    public static class Encoder extends OutputStream {
+        private Signatures signatures;
+        private OutputStream out;
+        private int blockSize;
+        private byte[] buffer;  // [0,pos) pending literal, [pos,end) the window and beyond
+        private int pos;
+        private int end;
+        private boolean rolling;
+        private int a;
+        private int s;
+        private long copyStart;
+        private long copyCount;
+        private Hasher checksum;
+        private long length;
+        private long literals;
+        private boolean started;
+        private boolean finished;
+
+        /**
+         * Creates a new {@code Encoder}, which writes nothing to {@code out}
+         * until the first byte of the new file (or {@link #finish()}).
+         * @param signatures the signatures of the old file
+         * @param out the stream for the delta
+         * @throws IOException if the signatures are corrupt
+         */
+        public Encoder(byte[] signatures, OutputStream out) throws IOException {
+            this.signatures = new Signatures(signatures);
+            this.out = out;
+            this.blockSize = this.signatures.blockSize;
+            this.buffer = new byte[MAX_LITERAL + 2*blockSize];
+            this.pos = 0;
+            this.end = 0;
+            this.rolling = false;
+            this.copyStart = 0;
+            this.copyCount = 0;
+            this.checksum = Hashing.crc32c().newHasher();
+            this.length = 0;
+            this.literals = 0;
+            this.started = false;
+            this.finished = false;
+        }
+
+        private void start() throws IOException {
+            if (!started) {
+                started = true;
+                writeVarlong(out, blockSize);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            start();
+            checksum.putBytes(b, off, len);
+            length += len;
+            while (len > 0) {
+                int n = Math.min(len, buffer.length-end);
+                System.arraycopy(b, off, buffer, end, n);
+                end += n;
+                off += n;
+                len -= n;
+                scan();
+            }
+        }
+
+        /**
+         * Matches full windows in the buffer, leaving room for more input.
+         */
+        private void scan() throws IOException {
+            while (end-pos >= blockSize) {
+                if (!rolling) {
+                    int w = weak(buffer, pos, blockSize);
+                    a = w & 0xFFFF;
+                    s = w >>> 16;
+                    rolling = true;
+                }
+                int block = signatures.find((a & 0xFFFF) | (s << 16), buffer, pos, blockSize,
+                        copyCount > 0 ? (int)(copyStart+copyCount) : -1);
+                if (block >= 0) {
+                    literal();
+                    copy(block);
+                    pos += blockSize;
+                    compact(pos);
+                    rolling = false;
+                } else if (end-pos > blockSize) {
+                    // roll the window forward one byte, leaving that byte behind as a literal
+                    int out = buffer[pos] & 0xFF;
+                    int in = buffer[pos+blockSize] & 0xFF;
+                    a += in - out;
+                    s += a - blockSize * out;
+                    pos++;
+                    if (pos >= MAX_LITERAL) {
+                        literal();
+                    }
+                } else {
+                    // wait for more input to roll into
+                    break;
+                }
+            }
+        }
+
+        private void compact(int from) {
+            System.arraycopy(buffer, from, buffer, 0, end-from);
+            end -= from;
+            pos -= from;
+        }
+
+        /**
+         * Emits the pending literal bytes {@code [0,pos)}.
+         */
+        private void literal() throws IOException {
+            if (pos > 0) {
+                flushCopy();
+                out.write(LITERAL);
+                writeVarlong(out, pos);
+                out.write(buffer, 0, pos);
+                literals += pos;
+                compact(pos);
+            }
+        }
+
+        private void copy(int block) throws IOException {
+            if (copyCount > 0 && copyStart+copyCount == block) {
+                copyCount++;
+            } else {
+                flushCopy();
+                copyStart = block;
+                copyCount = 1;
+            }
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyCount > 0) {
+                out.write(COPY);
+                writeVarlong(out, copyStart);
+                writeVarlong(out, copyCount);
+                copyCount = 0;
+            }
+        }
+
+        /**
+         * Completes the delta, matching a short last block if possible.
+         * @throws IOException
+         */
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            start();
+            // the remaining bytes may end with the (short) last block
+            int last = signatures.weak.length-1;
+            int tail = signatures.lastLength;
+            if (last >= 0 && tail > 0 && tail < blockSize && end-pos >= tail &&
+                    signatures.find(weak(buffer, end-tail, tail), buffer, end-tail, tail, last) == last) {
+                pos = end-tail;
+                literal();
+                copy(last);
+                pos += tail;
+                compact(pos);
+            }
+            pos = end;
+            literal();
+            flushCopy();
+            out.write(END);
+            writeVarlong(out, length);
+            int crc = checksum.hash().asInt();
+            out.write(crc >>> 24);
+            out.write(crc >>> 16);
+            out.write(crc >>> 8);
+            out.write(crc);
+            out.flush();
+        }
+
+        /**
+         * Returns the CRC-32C of the new file, once finished.
+         * @return the checksum
+         */
+        public long checksum() {
+            return checksum.hash().padToLong();
+        }
+
+        /**
+         * Returns the number of literal bytes in the delta, once finished.
+         * @return the number of bytes not found in the old file
+         */
+        public long literals() {
+            return literals;
+        }
+
+        /**
+         * Returns the length of the new file written so far.
+         * @return the length
+         */
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+    }
+
+    /**
+     * An {@code OutputStream} that applies a delta written to it to the old
+     * {@code basis} file, building the new version in a temporary file in
+     * the directory of the {@code target} (usually the {@code basis} itself).
+     * When the {@code Patcher} is closed after a complete
+     * and verified delta, the temporary file replaces the target (atomically
+     * where the file system allows); otherwise the temporary file is removed,
+     * the target is left as it was and {@code close()} fails.
+     */
+    public static class Patcher extends OutputStream {
+        private File target;
+        private File temp;
+        private RandomAccessFile basis;
+        private OutputStream out;
+        private byte[] header;
+        private int headerLength;
+        private long blockSize;
+        private long literal;
+        private Hasher checksum;
+        private long length;
+        private boolean done;
+        private long expectedLength;
+        private int expectedChecksum;
+
+        /**
+         * Creates a {@code Patcher} that replaces the old {@code target} file.
+         * @param target the old file, replaced by the new one
+         * @throws IOException if the old file can not be read
+         */
+        public Patcher(File target) throws IOException {
+            this(target, target);
+        }
+
+        /**
+         * Creates a {@code Patcher} that builds the new file in {@code target}
+         * from the old {@code basis} file.
+         * @param basis the old file
+         * @param target the new file (which may be the {@code basis})
+         * @throws IOException if the old file can not be read
+         */
+        public Patcher(File basis, File target) throws IOException {
+            this.target = target;
+            this.temp = File.createTempFile("."+target.getName()+".", ".delta", target.getAbsoluteFile().getParentFile());
+            this.out = new FileOutputStream(temp);
+            this.header = new byte[32];
+            this.headerLength = 0;
+            this.blockSize = -1;
+            this.literal = 0;
+            this.checksum = Hashing.crc32c().newHasher();
+            this.length = 0;
+            this.done = false;
+            try {
+                this.basis = new RandomAccessFile(basis, "r");
+            } catch (IOException e) {
+                out.close();
+                temp.delete();
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (literal > 0) {
+                    int n = (int)Math.min(len, literal);
+                    emit(b, off, n);
+                    literal -= n;
+                    off += n;
+                    len -= n;
+                } else if (done) {
+                    throw new IOException("unexpected data after end of delta");
+                } else {
+                    if (headerLength == header.length) {
+                        throw new IOException("corrupt delta");
+                    }
+                    header[headerLength++] = b[off++];
+                    len--;
+                    parse();
+                }
+            }
+        }
+
+        /**
+         * Executes the instruction in {@code header}, if it is complete.
+         */
+        private void parse() throws IOException {
+            long[] values = new long[2];
+            if (blockSize < 0) {
+                if (varlongs(0, values, 1) > 0) {
+                    blockSize = values[0];
+                    if (blockSize < 1 || blockSize > MAX_BLOCK) {
+                        throw new IOException("corrupt delta");
+                    }
+                    headerLength = 0;
+                }
+                return;
+            }
+            switch (header[0]) {
+            case COPY:
+                if (varlongs(1, values, 2) > 0) {
+                    headerLength = 0;
+                    copy(values[0], values[1]);
+                }
+                break;
+            case LITERAL:
+                if (varlongs(1, values, 1) > 0) {
+                    headerLength = 0;
+                    literal = values[0];
+                }
+                break;
+            case END:
+                int at = varlongs(1, values, 1);
+                if (at > 0 && headerLength == at+4) {
+                    expectedLength = values[0];
+                    expectedChecksum = (header[at] & 0xFF) << 24 | (header[at+1] & 0xFF) << 16 |
+                            (header[at+2] & 0xFF) << 8 | (header[at+3] & 0xFF);
+                    headerLength = 0;
+                    done = true;
+                }
+                break;
+            default:
+                throw new IOException("corrupt delta");
+            }
+        }
+
+        /**
+         * Parses {@code count} varlongs from {@code header} starting at
+         * {@code at}, returning the offset after them or 0 if incomplete.
+         */
+        private int varlongs(int at, long[] values, int count) throws IOException {
+            for (int v=0; v<count; v++) {
+                long n = 0;
+                int shift = 0;
+                while (true) {
+                    if (at >= headerLength) {
+                        return 0;
+                    } else if (shift > 63) {
+                        throw new IOException("corrupt delta");
+                    }
+                    int b = header[at++];
+                    n |= (long)(b & 0x7F) << shift;
+                    shift += 7;
+                    if ((b & 0x80) == 0) {
+                        break;
+                    }
+                }
+                values[v] = n;
+            }
+            return at;
+        }
+
+        private void copy(long start, long count) throws IOException {
+            long offset = start*blockSize;
+            long remaining = count*blockSize;
+            if (start < 0 || count < 0 || offset > basis.length()) {
+                throw new IOException("corrupt delta");
+            }
+            remaining = Math.min(remaining, basis.length()-offset);
+            basis.seek(offset);
+            byte[] buffer = new byte[(int)Math.min(remaining, ThreadedZipDirectoryInputStream.DEFAULT_BUFFERSIZE)];
+            while (remaining > 0) {
+                int n = basis.read(buffer, 0, (int)Math.min(remaining, buffer.length));
+                if (n < 0) {
+                    throw new IOException("old file changed while applying delta");
+                }
+                emit(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+
+        private void emit(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            checksum.putBytes(b, off, len);
+            length += len;
+        }
+
+        /**
+         * Returns the CRC-32C of the new file, once closed.
+         * @return the checksum
+         */
+        public long checksum() {
+            return checksum.hash().padToLong();
+        }
+
+        /**
+         * Returns the length of the new file, once closed.
+         * @return the length
+         */
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out == null) {
+                return;
+            }
+            boolean replaced = false;
+            try {
+                out.close();
+                out = null;
+                basis.close();
+                if (!done || literal > 0 || headerLength > 0) {
+                    throw new IOException("incomplete delta for "+target.getPath());
+                } else if (length != expectedLength || checksum.hash().asInt() != expectedChecksum) {
+                    throw new IOException("delta verification failed for "+target.getPath());
+                }
+                try {
+                    Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                replaced = true;
+            } finally {
+                if (out != null) {
+                    out.close();
+                    basis.close();
+                }
+                if (!replaced) {
+                    temp.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns an {@link Encoder} for a {@link Found.Operation#delta} entry
+     * about to be written to {@code zip}. Only the Zap format can carry a
+     * delta, so for other formats (or unusable signatures) the entry
+     * is changed to a plain {@link Found.Operation#add} and there is no
+     * {@code Encoder}.
+     * @param found the entry
+     * @param zip the stream it will be written to
+     * @return an {@code Encoder} writing to {@code zip}, or {@code null}
+     */
+    static Encoder encoder(Found found, FoundOutputStream zip) {
+        return encoder(found, zip, zip instanceof ZapFoundOutputStream);
+    }
+
+    /**
+     * Returns an {@link Encoder} for a {@link Found.Operation#delta} entry
+     * about to be written to {@code out}, like {@link #encoder(Found, FoundOutputStream)}
+     * for a stream that is not a {@link FoundOutputStream}.
+     * @param found the entry
+     * @param out the stream it will be written to
+     * @param zap {@code true} if {@code out} is part of a Zap archive
+     * @return an {@code Encoder} writing to {@code out}, or {@code null}
+     */
+    static Encoder encoder(Found found, OutputStream out, boolean zap) {
+        if (found.operation() == Found.Operation.delta) {
+            if (zap && found.signatures() != null) {
+                try {
+                    return new Encoder(found.signatures(), out);
+                } catch (IOException e) {
+                    // send the whole file instead
+                }
+            }
+            found.operation(Found.Operation.add);
+        }
+        return null;
+    }
+
+    private static void writeVarlong(OutputStream out, long n) throws IOException {
+        while ((n & ~0x7FL) != 0) {
+            out.write((int)(n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out.write((int)n);
+    }
+
+    /**
+     * Utility class.
+     */
+    private BlockDelta() {
+    }
+}
@@ -0,0 +1,209 @@
+package com.cleo.labs.util.zip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded byte pipe between a writing thread and a reading thread,
+ * like {@link java.io.PipedInputStream}/{@link java.io.PipedOutputStream}
+ * but event driven: a blocked reader wakes as soon as bytes are written
+ * (or the pipe is closed or failed), and a blocked writer wakes as soon as
+ * room is made (or the reader closes), instead of rechecking once a second.
+ * <p/>
+ * The writer ends the pipe with {@link OutputStream#close()}, after which
+ * the reader sees end of stream once the buffered bytes are consumed, or with
+ * {@link #fail(IOException)}, after which the reader sees the exception.
+ * If the reader closes its end, pending and future writes fail.
+ */
+public class BlockingPipe {
+
+    private final byte[] buffer;
+    private int head;  // next byte to read
+    private int count; // bytes available to read
+
+    private boolean writeClosed;
+    private boolean readClosed;
+    private IOException failure;
+
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final Condition notFull;
+
+    private final InputStream input;
+    private final OutputStream output;
+
+    public BlockingPipe(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        this.buffer = new byte[bufferSize];
+        this.head = 0;
+        this.count = 0;
+        this.writeClosed = false;
+        this.readClosed = false;
+        this.failure = null;
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.notFull = lock.newCondition();
+        this.input = new Input();
+        this.output = new Output();
+    }
+
+    /**
+     * Returns the reading end of the pipe.
+     * @return the {@code InputStream}
+     */
+    public InputStream input() {
+        return input;
+    }
+
+    /**
+     * Returns the writing end of the pipe.
+     * @return the {@code OutputStream}
+     */
+    public OutputStream output() {
+        return output;
+    }
+
+    /**
+     * Ends the pipe abnormally: the reader receives {@code e} once
+     * the bytes already written are consumed.
+     * @param e the exception to report to the reader
+     */
+    public void fail(IOException e) {
+        lock.lock();
+        try {
+            if (failure == null) {
+                failure = e;
+            }
+            writeClosed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class Input extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len+off > b.length) {
+                throw new IndexOutOfBoundsException();
+            } else if (len == 0) {
+                return 0;
+            }
+            lock.lock();
+            try {
+                while (count == 0) {
+                    if (readClosed) {
+                        throw new IOException("pipe closed");
+                    } else if (failure != null) {
+                        throw failure;
+                    } else if (writeClosed) {
+                        return -1;
+                    }
+                    notEmpty.await();
+                }
+                int n = Math.min(len, count);
+                int first = Math.min(n, buffer.length-head);
+                System.arraycopy(buffer, head, b, off, first);
+                System.arraycopy(buffer, 0, b, off+first, n-first);
+                head = (head+n) % buffer.length;
+                count -= n;
+                notFull.signal();
+                return n;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                readClosed = true;
+                count = 0;
+                notFull.signalAll();
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private class Output extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len+off > b.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            lock.lock();
+            try {
+                while (len > 0) {
+                    while (count == buffer.length && !readClosed && !writeClosed) {
+                        notFull.await();
+                    }
+                    if (readClosed) {
+                        throw new IOException("pipe closed by reader");
+                    } else if (writeClosed) {
+                        throw new IOException("pipe closed");
+                    }
+                    int tail = (head+count) % buffer.length;
+                    int n = Math.min(len, buffer.length-count);
+                    int first = Math.min(n, buffer.length-tail);
+                    System.arraycopy(b, off, buffer, tail, first);
+                    System.arraycopy(b, off+first, buffer, 0, n-first);
+                    count += n;
+                    off += n;
+                    len -= n;
+                    notEmpty.signal();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                writeClosed = true;
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
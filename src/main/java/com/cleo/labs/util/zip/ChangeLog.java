@@ -0,0 +1,306 @@
+package com.cleo.labs.util.zip;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Records which directories of a tree have changed, so that a directory
+ * listing can be limited to the directories changed since an earlier one.
+ * The receiving side records the directories touched by each entry it
+ * unzips (and any local changes it detects), and includes a token for the
+ * current position in the log with each listing it produces. The replicating
+ * side hands the token back with its next request for a listing, and gets
+ * just the directories changed since (see {@link #since(String, String[])}),
+ * which it merges onto the listing it remembers (see {@link RemoteState#merge}).
+ * <p/>
+ * The log is a file in the cache directory, named for the root directory,
+ * that starts with a random generation number and continues with the full
+ * names of the changed directories, appended under an exclusive file lock
+ * and read under a shared one. A token is
+ * the generation and the length of the log at the time. When the log grows
+ * beyond its {@link #maxLength(long) maximum length} it is started over
+ * with a new generation, and tokens from the old generation are no longer
+ * recognized, so that the next listing is complete.
+ */
+public class ChangeLog {
+
+    private static final int MAGIC = 0x0C4C4347; // .LCG
+    private static final int HEADER = Integer.BYTES + Long.BYTES;
+    private static final long DEFAULT_MAX_LENGTH = 16L*1024L*1024L;
+
+    /**
+     * File locks are held by the whole process, and overlapping ones (even
+     * shared ones) are an error rather than a wait, so threads take turns
+     * with these first.
+     */
+    private static final Striped<Lock> LOCKS = Striped.lock(16);
+
+    /**
+     * The full name of the root directory.
+     */
+    public static final String ROOT = "/";
+
+    private File cacheDirectory;
+    private File log;
+    private long maxLength;
+    private Set<String> pending;
+    private Consumer<String> debug;
+
+    /**
+     * Creates a change log for {@code root} kept in {@code cacheDirectory}.
+     * @param cacheDirectory the cache directory (created as needed)
+     * @param root the root directory whose changes are logged
+     */
+    public ChangeLog(File cacheDirectory, File root) {
+        String hash = Hashing.murmur3_128()
+                .hashString(root.getAbsolutePath(), StandardCharsets.UTF_8)
+                .toString();
+        this.cacheDirectory = cacheDirectory;
+        this.log = new File(cacheDirectory, hash+".log");
+        this.maxLength = DEFAULT_MAX_LENGTH;
+        this.pending = ConcurrentHashMap.newKeySet();
+        this.debug = s->{};
+    }
+
+    /**
+     * Sets the length beyond which the log is started over.
+     * @param maxLength the maximum length in bytes
+     * @return this
+     */
+    public ChangeLog maxLength(long maxLength) {
+        this.maxLength = maxLength;
+        return this;
+    }
+
+    public ChangeLog debug(Consumer<String> debug) {
+        if (debug==null) {
+            this.debug = s->{};
+        } else {
+            this.debug = debug;
+        }
+        return this;
+    }
+
+    /**
+     * Returns the full name of the directory {@code path}, which is
+     * {@link #ROOT} for the root.
+     */
+    private static String directory(String[] path, int length) {
+        return length == 0 ? ROOT : PathUtil.join(Arrays.copyOf(path, length))+"/";
+    }
+
+    /**
+     * Drops empty elements, as {@link PathUtil#split(String)} returns
+     * a single empty element for an empty path.
+     */
+    private static String[] base(String[] base) {
+        return Arrays.stream(base).filter(s -> !s.isEmpty()).toArray(String[]::new);
+    }
+
+    private static String[] concat(String[] base, String[] path) {
+        base = base(base);
+        String[] result = Arrays.copyOf(base, base.length+path.length);
+        System.arraycopy(path, 0, result, base.length, path.length);
+        return result;
+    }
+
+    /**
+     * Records the change of a single directory.
+     * @param fullname the full name of the directory, or {@link #ROOT}
+     */
+    public void record(String fullname) {
+        pending.add(fullname);
+    }
+
+    /**
+     * Records the directory that an unzipped entry was added to, deleted
+     * from (or moved into), and the entry itself if it is a directory
+     * (which for the directory at {@code base} itself is all there is).
+     * @param base the path of the directory the entry was unzipped into, relative to the root
+     * @param entry the entry
+     */
+    public void record(String[] base, Found entry) {
+        String[] path = concat(base, entry.path());
+        if (entry.path().length > 0) {
+            pending.add(directory(path, path.length-1));
+        }
+        if (entry.directory()) {
+            pending.add(directory(path, path.length));
+        }
+    }
+
+    /**
+     * Records every directory from the root to the entry, for an
+     * entry whose parent directories were created to unzip it.
+     * @param base the path of the directory the entry was unzipped into, relative to the root
+     * @param entry the entry
+     */
+    public void recordPath(String[] base, Found entry) {
+        String[] path = concat(base, entry.path());
+        for (int i=0; i<path.length; i++) {
+            pending.add(directory(path, i));
+        }
+        if (entry.directory()) {
+            pending.add(directory(path, path.length));
+        }
+    }
+
+    /**
+     * Appends the recorded changes to the log.
+     * @throws IOException if the log can not be updated
+     */
+    public void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            for (String fullname : pending) {
+                pending.remove(fullname);
+                out.writeUTF(fullname);
+            }
+        }
+        cacheDirectory.mkdirs();
+        Lock local = LOCKS.get(log.getPath());
+        local.lock();
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            FileLock lock = file.getChannel().lock();
+            try {
+                if (file.length() < HEADER || file.length() + buffer.size() > maxLength) {
+                    start(file);
+                }
+                file.seek(file.length());
+                file.write(buffer.toByteArray());
+            } finally {
+                lock.release();
+            }
+        } finally {
+            local.unlock();
+        }
+    }
+
+    /**
+     * Starts the log over with a new generation.
+     */
+    private void start(RandomAccessFile file) throws IOException {
+        long generation = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        debug.accept("change log: starting generation "+Long.toHexString(generation)+" in "+log.getPath());
+        file.setLength(0L);
+        file.writeInt(MAGIC);
+        file.writeLong(generation);
+    }
+
+    /**
+     * Returns a token for the current position in the log, after
+     * appending any recorded changes.
+     * @return the token
+     * @throws IOException if the log can not be read or updated
+     */
+    public String token() throws IOException {
+        flush();
+        cacheDirectory.mkdirs();
+        Lock local = LOCKS.get(log.getPath());
+        local.lock();
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            FileLock lock = file.getChannel().lock();
+            try {
+                if (file.length() < HEADER) {
+                    start(file);
+                }
+                file.seek(Integer.BYTES);
+                return Long.toHexString(file.readLong())+"."+Long.toHexString(file.length());
+            } finally {
+                lock.release();
+            }
+        } finally {
+            local.unlock();
+        }
+    }
+
+    /**
+     * Returns the directories changed since {@code token} that are at
+     * or below {@code base}, named relative to {@code base}, after
+     * appending any recorded changes.
+     * @param token a token returned by {@link #token()}
+     * @param base the path of the listed directory relative to the root
+     * @return the changed directories in sorted order, or {@code null} if
+     * the token is not from the current generation of the log, and
+     * so a complete listing is needed
+     * @throws IOException if the log can not be read
+     */
+    public Set<String> since(String token, String[] base) throws IOException {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        long generation;
+        long position;
+        try {
+            int dot = token.indexOf('.');
+            generation = Long.parseLong(token.substring(0, dot), 16);
+            position = Long.parseLong(token.substring(dot+1), 16);
+        } catch (RuntimeException e) {
+            debug.accept("change log: invalid token "+token);
+            return null;
+        }
+        flush();
+        if (!log.isFile()) {
+            return null;
+        }
+        base = base(base);
+        String prefix = base.length == 0 ? "" : directory(base, base.length);
+        Set<String> changed = new TreeSet<>();
+        Lock local = LOCKS.get(log.getPath());
+        local.lock();
+        try (RandomAccessFile file = new RandomAccessFile(log, "r")) {
+            // shared, so that flush() can not start the log over in mid-read
+            FileLock lock = file.getChannel().lock(0L, Long.MAX_VALUE, true);
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel())));
+                long length = file.length();
+                if (length < HEADER || in.readInt() != MAGIC || in.readLong() != generation || position < HEADER || position > length) {
+                    debug.accept("change log: token "+token+" is from another generation");
+                    return null;
+                }
+                ByteStreams.skipFully(in, position-HEADER);
+                try {
+                    while (true) {
+                        String fullname = in.readUTF();
+                        if (prefix.isEmpty()) {
+                            changed.add(fullname);
+                        } else if (fullname.startsWith(prefix)) {
+                            changed.add(fullname.length() == prefix.length() ? ROOT : fullname.substring(prefix.length()));
+                        }
+                    }
+                } catch (EOFException e) {
+                    // the end of the log (a record cut short by a crash is skipped)
+                }
+            } finally {
+                lock.release();
+            }
+        } finally {
+            local.unlock();
+        }
+        debug.accept("change log: "+changed.size()+" directories changed since "+token);
+        return changed;
+    }
+}
@@ -0,0 +1,430 @@
+package com.cleo.labs.util.zip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.cleo.labs.util.zip.ZipDirectoryInputStream.Opener;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Remembers a CRC-32C checksum of file contents, keyed by the path, length
+ * and modified time of the file, so that the contents of an unchanged file
+ * are never read again just to checksum them.
+ * <p/>
+ * Checksums are recorded as files are sent (by a zip stream with a
+ * {@code checksums} cache) or received (by a {@link Recorder} around the
+ * file being written), so in the steady state a replication never reads
+ * a file only to checksum it. With checksums on both sides,
+ * {@link Found#calculateReplica(Found, ChecksumCache)} can tell a file whose
+ * contents changed without changing its length or modified time (beyond the
+ * 2-second wiggle) from one that was only touched, sending the first as
+ * an {@link Found.Operation#add} and the second as a metadata-only
+ * {@link Found.Operation#touch}.
+ * <p/>
+ * As with {@link ScanIndex}, a checksum is not remembered for a file modified
+ * within {@code racyInterval} of the time its contents were read, since the
+ * file could be rewritten (with the same length) within the resolution of the
+ * file system clock without moving its modified time, and the stale checksum
+ * would then hide the change. Such a file is checksummed again the next time,
+ * by when its modified time is old enough to be trusted.
+ * <p/>
+ * The cache is a directory with one small file for each directory of files,
+ * loaded when first needed and written back when evicted from memory or
+ * when the cache is closed. A lost or damaged cache file just means the
+ * checksums are unknown.
+ */
+public class ChecksumCache implements AutoCloseable {
+
+    public static final long UNKNOWN_CHECKSUM = -1L;
+
+    private static final int MAGIC = 0x0C4C4353; // .LCS
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final long DEFAULT_RACY_INTERVAL = 2000L;
+
+    private File cacheDirectory;
+    private Opener opener;
+    private long racyInterval;
+    private Consumer<String> debug;
+    private LinkedHashMap<File,Directory> directories;
+
+    /**
+     * The remembered checksums for the files in a directory.
+     */
+    private static class Directory {
+        private File index;
+        private Map<String,Entry> entries = new HashMap<>();
+        private boolean dirty = false;
+    }
+
+    private static class Entry {
+        private long length;
+        private long modified;
+        private int checksum;
+        private Entry(long length, long modified, int checksum) {
+            this.length = length;
+            this.modified = modified;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Creates a new checksum cache kept in {@code cacheDirectory}.
+     * @param cacheDirectory the cache directory (created as needed)
+     */
+    public ChecksumCache(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+        this.opener = f -> new FileInputStream(f.file());
+        this.racyInterval = DEFAULT_RACY_INTERVAL;
+        this.debug = s->{};
+        this.directories = new LinkedHashMap<File,Directory>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File,Directory> eldest) {
+                if (size() > DEFAULT_CAPACITY) {
+                    save(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Sets the {@link Opener} used to read files that have to be
+     * checksummed by {@link #checksum(Found)}.
+     * @param opener the opener
+     * @return this
+     */
+    public ChecksumCache opener(Opener opener) {
+        this.opener = opener;
+        return this;
+    }
+
+    public ChecksumCache racyInterval(long racyInterval, TimeUnit unit) {
+        this.racyInterval = unit.toMillis(racyInterval);
+        return this;
+    }
+
+    public ChecksumCache debug(Consumer<String> debug) {
+        if (debug==null) {
+            this.debug = s->{};
+        } else {
+            this.debug = debug;
+        }
+        return this;
+    }
+
+    private static Hasher hasher() {
+        return Hashing.crc32c().newHasher();
+    }
+
+    /**
+     * Returns the remembered checksum of a file, if the file has not
+     * changed (by length or modified time) since it was recorded.
+     * @param found the file
+     * @return the checksum, or {@link #UNKNOWN_CHECKSUM}
+     */
+    public synchronized long get(Found found) {
+        File file = found.file().getAbsoluteFile();
+        Entry entry = directory(file.getParentFile()).entries.get(file.getName());
+        if (entry != null && entry.length == found.length() && entry.modified == found.modified()) {
+            return entry.checksum & 0xFFFFFFFFL;
+        }
+        return UNKNOWN_CHECKSUM;
+    }
+
+    /**
+     * Returns the checksum of a file, reading the file if it
+     * is not already remembered.
+     * @param found the file
+     * @return the checksum
+     * @throws IOException if the file can not be read
+     */
+    public long checksum(Found found) throws IOException {
+        long checksum = get(found);
+        if (checksum == UNKNOWN_CHECKSUM) {
+            long recorded = System.currentTimeMillis();
+            Hasher hasher = hasher();
+            long length = 0;
+            byte[] buffer = new byte[ThreadedZipDirectoryInputStream.DEFAULT_BUFFERSIZE];
+            try (InputStream in = opener.open(found)) {
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    hasher.putBytes(buffer, 0, n);
+                    length += n;
+                }
+            }
+            checksum = hasher.hash().padToLong();
+            if (length == found.length()) {
+                put(found, checksum, recorded);
+            } else {
+                debug.accept("checksum: "+found.fullname()+" changed while reading");
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Remembers the checksum of a file with the length
+     * and modified time in {@code found}, as of now.
+     * @param found the file
+     * @param checksum its checksum
+     */
+    public void put(Found found, long checksum) {
+        put(found, checksum, System.currentTimeMillis());
+    }
+
+    /**
+     * Remembers the checksum of a file with the length and modified time
+     * in {@code found}, unless the file was modified too close to the
+     * time its contents were read to trust the modified time.
+     * @param found the file
+     * @param checksum its checksum
+     * @param recorded the time the contents were read (from the start)
+     */
+    public synchronized void put(Found found, long checksum, long recorded) {
+        File file = found.file().getAbsoluteFile();
+        Directory directory = directory(file.getParentFile());
+        if (recorded - found.modified() < racyInterval) {
+            debug.accept("checksum: "+file.getPath()+" modified too recently to remember");
+            if (directory.entries.remove(file.getName()) != null) {
+                directory.dirty = true;
+            }
+            return;
+        }
+        directory.entries.put(file.getName(), new Entry(found.length(), found.modified(), (int)checksum));
+        directory.dirty = true;
+    }
+
+    /**
+     * Updates the modified time remembered for a file whose modified time
+     * is about to be set without changing its contents, provided the
+     * file is as remembered now.
+     * @param file the file
+     * @param modified the new modified time
+     */
+    public synchronized void touch(File file, long modified) {
+        File absolute = file.getAbsoluteFile();
+        Directory directory = directory(absolute.getParentFile());
+        Entry entry = directory.entries.get(absolute.getName());
+        if (entry != null) {
+            if (entry.length == file.length() && entry.modified == file.lastModified() &&
+                    System.currentTimeMillis() - modified >= racyInterval) {
+                entry.modified = modified;
+            } else {
+                directory.entries.remove(absolute.getName());
+            }
+            directory.dirty = true;
+        }
+    }
+
+    /**
+     * Sets the remembered checksum of each file in {@code directory.contents()}
+     * on the file, and forgets the files that are no longer there.
+     * @param directory a directory with its contents
+     */
+    public synchronized void fill(Found directory) {
+        if (directory.file() == null || directory.contents() == null) {
+            return;
+        }
+        Directory cached = directory(directory.file().getAbsoluteFile());
+        Map<String,Found> files = new HashMap<>();
+        for (Found child : directory.contents()) {
+            if (!child.directory() && child.file() != null) {
+                files.put(child.file().getName(), child);
+            }
+        }
+        Iterator<Map.Entry<String,Entry>> i = cached.entries.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String,Entry> e = i.next();
+            Found child = files.get(e.getKey());
+            Entry entry = e.getValue();
+            if (child == null) {
+                i.remove();
+                cached.dirty = true;
+            } else if (entry.length == child.length() && entry.modified == child.modified()) {
+                child.checksum(entry.checksum & 0xFFFFFFFFL);
+            }
+        }
+    }
+
+    /**
+     * An {@code OutputStream} filter that checksums the bytes written through
+     * it, to be remembered with {@link #record()} once the file is complete
+     * (so that nothing is remembered for a file that failed part way through).
+     */
+    public class Recorder extends FilterOutputStream {
+        private Found found;
+        private Hasher hasher;
+        private long length;
+        private long started;
+        private boolean recorded;
+
+        private Recorder(Found found, OutputStream out) {
+            super(out);
+            this.found = found;
+            this.hasher = hasher();
+            this.length = 0;
+            this.started = System.currentTimeMillis();
+            this.recorded = false;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            hasher.putByte((byte)b);
+            length++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            hasher.putBytes(b, off, len);
+            length += len;
+        }
+
+        /**
+         * Remembers the checksum of the bytes written, if the number
+         * of bytes matches the length of the file (when known).
+         */
+        public void record() {
+            if (!recorded) {
+                recorded = true;
+                if (found.modified() < 0 || found.file() == null) {
+                    return;
+                } else if (found.length() != Found.UNKNOWN_LENGTH && found.length() != length) {
+                    debug.accept("checksum: "+found.fullname()+" changed while copying");
+                    return;
+                }
+                put(new Found().file(found.file()).length(length).modified(found.modified()),
+                        hasher.hash().padToLong(), started);
+            }
+        }
+    }
+
+    /**
+     * Returns a {@link Recorder} that remembers the checksum of
+     * {@code found} as it is written to {@code out}.
+     * @param found the file being written or sent
+     * @param out the stream to write to
+     * @return a {@code Recorder}
+     */
+    public Recorder recorder(Found found, OutputStream out) {
+        return new Recorder(found, out);
+    }
+
+    /**
+     * Writes any changed checksums back to the cache directory.
+     */
+    public synchronized void flush() {
+        for (Directory directory : directories.values()) {
+            save(directory);
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        directories.clear();
+    }
+
+    private Directory directory(File parent) {
+        Directory directory = directories.get(parent);
+        if (directory == null) {
+            directory = load(parent);
+            directories.put(parent, directory);
+        }
+        return directory;
+    }
+
+    private File indexFile(File directory) {
+        String hash = Hashing.murmur3_128()
+                .hashString(directory.getPath(), StandardCharsets.UTF_8)
+                .toString();
+        return new File(new File(cacheDirectory, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    private Directory load(File parent) {
+        Directory directory = new Directory();
+        directory.index = indexFile(parent);
+        if (!directory.index.isFile()) {
+            return directory;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(directory.index)))) {
+            if (in.readInt() != MAGIC) {
+                return directory;
+            }
+            int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                String name = in.readUTF();
+                long length = in.readLong();
+                long modified = in.readLong();
+                int checksum = in.readInt();
+                directory.entries.put(name, new Entry(length, modified, checksum));
+            }
+        } catch (IOException e) {
+            // a damaged cache entry just means unknown checksums
+            debug.accept("checksum cache: unable to read "+directory.index.getPath()+": "+e);
+            directory.entries.clear();
+        }
+        return directory;
+    }
+
+    private void save(Directory directory) {
+        if (!directory.dirty) {
+            return;
+        }
+        directory.dirty = false;
+        File index = directory.index;
+        try {
+            if (directory.entries.isEmpty()) {
+                Files.deleteIfExists(index.toPath());
+                return;
+            }
+            index.getParentFile().mkdirs();
+            File temp = File.createTempFile("sum", ".tmp", index.getParentFile());
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(directory.entries.size());
+                    for (Map.Entry<String,Entry> e : directory.entries.entrySet()) {
+                        out.writeUTF(e.getKey());
+                        out.writeLong(e.getValue().length);
+                        out.writeLong(e.getValue().modified);
+                        out.writeInt(e.getValue().checksum);
+                    }
+                }
+                try {
+                    Files.move(temp.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            // the cache is an optimization: a failure to update it just means a miss next time
+            debug.accept("checksum cache: unable to write "+index.getPath()+": "+e);
+        }
+    }
+}
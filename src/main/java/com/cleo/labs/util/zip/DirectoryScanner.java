@@ -0,0 +1,52 @@
+package com.cleo.labs.util.zip;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.stream.Stream;
+
+/**
+ * Lists the contents of a directory on behalf of a {@link Finder}.
+ * The {@link Finder} takes care of filtering, sorting and setting
+ * the {@link Found.Operation}, so a scanner need only return each
+ * child of the directory with its {@code directory}, {@code length}
+ * and {@code modified} attributes populated.
+ */
+public interface DirectoryScanner {
+    /**
+     * Returns the (unfiltered and unsorted) children of {@code directory}.
+     * The returned {@code Stream} may be backed by an open directory
+     * handle, so the caller must close it.
+     * @param directory the directory to scan, which must have a {@code file()}
+     * @return a {@code Stream} of {@link Found} children
+     * @throws IOException if the directory can not be listed
+     */
+    public Stream<Found> scan(Found directory) throws IOException;
+
+    /**
+     * Returns the {@code File} for the child {@code name} of {@code directory},
+     * of the same kind as the {@code File}s returned by {@link #scan(Found)}.
+     * This is used to recreate children that have been spilled out of memory
+     * by a {@link SortedListing}.
+     * @param directory the parent directory
+     * @param name the name of the child
+     * @return the child {@code File}
+     */
+    default File resolve(File directory, String name) {
+        return new File(directory, name);
+    }
+
+    /**
+     * The classic {@code File.listFiles()} scanner, which costs a
+     * listing plus three attribute lookups ({@code isDirectory()},
+     * {@code length()} and {@code lastModified()}) per child. It works
+     * for any {@code File}, including subclasses that implement their
+     * own notion of a file system.
+     */
+    public static final DirectoryScanner FILE = directory -> {
+        File[] files = directory.file().listFiles();
+        if (files == null) {
+            throw new IOException("unable to list directory "+directory.file().getPath());
+        }
+        return Stream.of(files).map(directory::child);
+    };
+}
@@ -37,13 +37,16 @@ public class EmbeddedInputStream extends FilterInputStream {
         }
         int n = 0;
         while (n < len && length >= 0) {
+            if (offset >= length) {
+                // refill only when more is needed, so a read never
+                // consumes more than one buffer beyond what it returns
+                buffer();
+                continue;
+            }
             int room = Math.min(length-offset, len-n);
             System.arraycopy(buf, offset, b, off+n, room);
             n += room;
             offset += room;
-            if (offset >= length) {
-                buffer();
-            }
         }
         return n==0 && length<0 ? -1 : n;
     }
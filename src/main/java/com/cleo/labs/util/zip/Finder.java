@@ -1,26 +1,36 @@
 package com.cleo.labs.util.zip;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
-import java.nio.file.PathMatcher;
-import java.nio.file.Paths;
+import java.io.UncheckedIOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
-import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.cleo.labs.util.zip.Found.Operation;
+import com.google.common.collect.Iterators;
 
 public class Finder implements Iterator<Found>, Iterable<Found> {
 
@@ -55,12 +65,35 @@ public class Finder implements Iterator<Found>, Iterable<Found> {
     private long timeout;
     private TimeUnit unit;
     private ConcurrentMap<String,Found> remoteDirectories;
-    private boolean decoderRunning;
-    private boolean closed;
+    private boolean mergeJoin;
+    private int decoderParallelism;
+    private BlockingQueue<Found> remoteQueue;
+    private Found remoteNext;
+    private boolean remoteEnded;
+    private Found unpushed;
+    private HashTree hashTree;
+    private Set<String> matchedSubtrees;
+    private ChecksumCache checksums;
+    private boolean detectMoves;
+    private MoveIndex moveIndex;
+    private List<Found> deletedDirectories;
+    private Deque<Found> drained;
+    private volatile boolean decoderRunning;
+    private volatile boolean closed;
 
     private File root;
     private Predicate<Found> filter;
+    private Predicate<Found> descend;
+    private DirectoryScanner scanner;
+    private int parallelism;
+    private ForkJoinPool pool;
+    private ConcurrentMap<String,ForkJoinTask<SortedListing>> prefetched;
+    private final ConcurrentMap<String,String> names = new ConcurrentHashMap<>();
+    private int runSize;
+    private int pageSize;
+    private File spillDirectory;
     private DirectoryMode directoryMode;
+    private boolean ordered;
     private int limit;
 
     private Consumer<String> debug;
@@ -69,49 +102,160 @@ public class Finder implements Iterator<Found>, Iterable<Found> {
         return remoteDecoder != null;
     }
 
+    /**
+     * The number of remote listings the decoder may read ahead of
+     * the local traversal in {@link #mergeJoin(boolean)} mode.
+     */
+    private static final int MERGE_LOOKAHEAD = 64;
+
+    /**
+     * The most distinct names interned in a scan: past this, new names
+     * (mostly unique file names) are kept as scanned, while the names
+     * already seen continue to be shared.
+     */
+    private static final int MAX_NAMES = 64 * 1024;
+
+    private boolean merging() {
+        return mergeJoin && replicating();
+    }
+
+    /**
+     * Streaming mode is enabled by setting a {@code runSize}, but replication
+     * and {@code DirectoryMode.only} need the complete contents of each directory,
+     * so they are streamed only when merge-joining (see {@link #mergeJoin(boolean)})
+     * and when listing in pages (see {@link #pageSize(int)}) respectively.
+     * @return {@code true} if large directories should be streamed
+     */
+    private boolean streaming() {
+        return runSize > 0 && (!replicating() || mergeJoin) && (directoryMode != DirectoryMode.only || pageSize > 0);
+    }
+
+    /**
+     * Directory contents are sorted, with directories before files, unless
+     * the Finder is set to be unordered. But replication ({@code calculateReplica})
+     * and {@code DirectoryMode.excludeEmpty} depend on the order, so they are
+     * always sorted.
+     * @return {@code true} if directory contents should be sorted
+     */
+    private boolean ordered() {
+        return ordered || replicating() || directoryMode == DirectoryMode.excludeEmpty;
+    }
+
+    /**
+     * A placeholder on the stack for the remaining contents of a directory
+     * too large to be held in memory, which are read from the {@link SortedListing}
+     * one at a time as the stack is popped. A cursor may instead return the
+     * contents in pages (in {@code DirectoryMode.only} with a {@code pageSize}),
+     * or merged with the pages of the remote listing (when merge-joining),
+     * in which case the subdirectories are {@code held} until the directory
+     * is finished, as its listing must be complete before any subdirectory's.
+     */
+    private static class Cursor extends Found {
+        private Found directory;
+        private SortedListing listing;
+        private Iterator<Found> entries;
+        private boolean paged;
+        private List<Found> held;
+        public Cursor(Found directory, SortedListing listing) {
+            this.directory = directory;
+            this.listing = listing;
+            this.entries = listing;
+            this.paged = false;
+            this.held = null;
+        }
+        public Cursor(Found directory, SortedListing listing, Iterator<Found> entries, boolean paged) {
+            this.directory = directory;
+            this.listing = listing;
+            this.entries = entries;
+            this.paged = paged;
+            this.held = new ArrayList<>();
+        }
+        public void close() {
+            if (listing != null) {
+                listing.close();
+            }
+        }
+    }
+
+    /**
+     * Like {@link Found#containsAFile()}, but also works for a directory
+     * that was just pushed as a streamed {@link Cursor}.
+     * @param dir the directory
+     * @return {@code true} if the directory contains a file
+     */
+    private boolean containsAFile(Found dir) {
+        Found top = stack.peekFirst();
+        if (top instanceof Cursor && ((Cursor)top).directory == dir && ((Cursor)top).listing != null) {
+            return ((Cursor)top).listing.containsAFile();
+        }
+        return dir.containsAFile();
+    }
+
     private void start() {
         state = State.GET;
+        if (parallelism > 1) {
+            pool = new ForkJoinPool(parallelism);
+            prefetched = new ConcurrentHashMap<>();
+        }
         Found start = new Found(new String[0], root);
         if (start.directory()) {
             if (replicating()) {
                 start.operation(Operation.match);
+                remoteDecoder.parallelism(decoderParallelism);
+                if (mergeJoin) {
+                    // the remote listings are joined in order as the local directories are pushed
+                    startMerge();
+                    unpushed = start; // pushed by advance() once its remote listing is in
+                    return;
+                }
                 remoteDirectories = new ConcurrentHashMap<>();
                 decoderRunning = true;
                 new Thread(() -> {
-                    for (Found remote : remoteDecoder) {
-                        debug.accept("remote directory "+remote+" retrieved");
+                    try {
+                        for (Found remote : remoteDecoder) {
+                            debug.accept("remote directory "+remote+" retrieved");
 if (remote.contents()!=null) {
     Stream.of(remote.contents()).forEach(x->debug.accept("> "+x));
 }
-                        if (closed) {
-                            debug.accept("remote directory listing canceled: closed");
-                            remoteDecoder.close();
-                            return;
-                        }
-                        Found local = remoteDirectories.putIfAbsent(remote.fullname(), remote);
-                        if (local != null) {
-                            if (local.remote()) {
-                                throw new AssertionError("directory "+local.fullname()+" is not marked local");
+                            if (closed) {
+                                debug.accept("remote directory listing canceled: closed");
+                                remoteDecoder.close();
+                                return;
+                            }
+                            if (inMatchedSubtree(remote)) {
+                                continue;
                             }
+                            Found local = remoteDirectories.putIfAbsent(remote.fullname(), remote);
+                            if (local != null) {
+                                if (local.remote()) {
+                                    throw new AssertionError("directory "+local.fullname()+" is not marked local");
+                                }
+                                if (sameSubtree(local, remote)) {
+                                    remoteDirectories.remove(remote.fullname());
+                                    continue;
+                                }
 if (local.contents()!=null) {
     Stream.of(local.contents()).forEach(x->debug.accept("< "+x));
 }
-                            Found dir = local.calculateReplica(remote);
+                                Found dir = local.calculateReplica(remote, checksums);
 if (dir.contents()!=null) {
     debug.accept("replica calulated from remote for "+dir);
     Stream.of(dir.contents()).forEach(x->debug.accept("= "+x));
 }
-                            remoteDirectories.remove(remote.fullname());
-                            addToStack(dir);
+                                remoteDirectories.remove(remote.fullname());
+                                addToStack(dir);
+                            }
                         }
+                        remoteDecoder.close();
+                        debug.accept("remote directory listing completed");
+                        if (remoteDecoder.exception()!=null) {
+                            debug.accept("remote directory listing exception: "+remoteDecoder.exception().toString());
+                        }
+                    } finally {
+                        // always wake the iterating thread, even if decoding failed
+                        decoderRunning = false;
+                        stack.addFirst(Found.FOUND_END);
                     }
-                    remoteDecoder.close();
-                    debug.accept("remote directory listing completed");
-                    if (remoteDecoder.exception()!=null) {
-                        debug.accept("remote directory listing exception: "+remoteDecoder.exception().toString());
-                    }
-                    decoderRunning = false;
-                    stack.addFirst(Found.FOUND_END);
                 }, "decoderThread")
                 .start();
                 push(start);
@@ -123,15 +267,255 @@ if (dir.contents()!=null) {
         }
     }
 
+    /**
+     * Starts the decoder thread for {@link #mergeJoin(boolean)} mode, which
+     * just hands the remote listings over in order through a small queue,
+     * ending with {@link Found#FOUND_END}.
+     */
+    private void startMerge() {
+        remoteQueue = new ArrayBlockingQueue<>(MERGE_LOOKAHEAD);
+        remoteDecoder.pages(true);
+        new Thread(() -> {
+            try {
+                for (Found remote : remoteDecoder) {
+                    debug.accept("remote directory "+remote+" retrieved");
+                    while (!closed && !remoteQueue.offer(remote, timeout, unit)) {
+                        // wait for the local traversal to catch up
+                    }
+                    if (closed) {
+                        debug.accept("remote directory listing canceled: closed");
+                        remoteDecoder.close();
+                        return;
+                    }
+                }
+                remoteDecoder.close();
+                debug.accept("remote directory listing completed");
+                if (remoteDecoder.exception()!=null) {
+                    debug.accept("remote directory listing exception: "+remoteDecoder.exception().toString());
+                }
+                while (!closed && !remoteQueue.offer(Found.FOUND_END, timeout, unit)) {
+                    // wait for the local traversal to catch up
+                }
+            } catch (InterruptedException e) {
+                debug.accept("remote directory listing canceled: interrupted");
+            }
+        }, "decoderThread")
+        .start();
+    }
+
+    /**
+     * Compares directories in the order of a pre-order traversal of sorted
+     * listings. As {@link Found#compareTo(Found)} compares directory names as
+     * if they were full names with a trailing {@code /}, this is just the
+     * order of their full names, with the root first.
+     * @param a a directory
+     * @param b another directory
+     * @return {@code <0}, {@code 0} or {@code >0} as {@code a} comes before, is, or comes after {@code b}
+     */
+    static int preorder(Found a, Found b) {
+        if (a.depth()==0) {
+            return b.depth()==0 ? 0 : -1;
+        } else if (b.depth()==0) {
+            return 1;
+        }
+        return a.fullname().compareTo(b.fullname());
+    }
+
+    /**
+     * Returns the remote listing of {@code dir} in {@link #mergeJoin(boolean)}
+     * mode. As directories are pushed in the same pre-order as the remote
+     * listings arrive, any remote listing before {@code dir} is for a directory
+     * that will never be pushed (in a matched subtree, filtered out, or a delete
+     * that is not being replicated) and is discarded. A remote listing after
+     * {@code dir} is held for a later directory.
+     * @param dir the directory being pushed
+     * @return its remote listing, or {@code null} if there is none
+     */
+    private Found remoteListing(Found dir) {
+        while (true) {
+            if (remoteNext == null) {
+                remoteNext = takeRemote();
+                if (remoteNext == null) {
+                    return null;
+                }
+            }
+            int order = preorder(remoteNext, dir);
+            if (order > 0) {
+                return null;
+            }
+            Found remote = remoteNext;
+            remoteNext = null;
+            if (order == 0) {
+                return remote;
+            }
+            debug.accept("remote directory "+remote+" skipped");
+        }
+    }
+
+    /**
+     * Makes sure {@link #remoteListing(Found)} will not wait for the decoder
+     * thread when {@code dir} is pushed in {@link #mergeJoin(boolean)} mode,
+     * discarding the remote listings before {@code dir} until one at or after
+     * it is in hand.
+     * @param dir the directory about to be pushed
+     * @return {@code false} if the decoder thread did not deliver within the timeout
+     */
+    private boolean remoteReady(Found dir) {
+        while (!remoteEnded && !closed) {
+            if (remoteNext == null) {
+                remoteNext = pollRemote();
+                if (remoteNext == null) {
+                    return remoteEnded || closed;
+                }
+            }
+            if (preorder(remoteNext, dir) >= 0) {
+                return true;
+            }
+            debug.accept("remote directory "+remoteNext+" skipped");
+            remoteNext = null;
+        }
+        return true;
+    }
+
+    /**
+     * Takes the next remote listing from the decoder thread, waiting for it
+     * as long as it takes. This is only used once {@link #remoteReady(Found)}
+     * has returned, or for the following pages of a listing, which the decoder
+     * thread hands over back to back.
+     * @return the next remote listing, or {@code null} at the end (or once closed)
+     */
+    private Found takeRemote() {
+        Found remote = null;
+        while (remote == null && !remoteEnded && !closed) {
+            remote = pollRemote();
+        }
+        return remote;
+    }
+
+    /**
+     * Polls the decoder thread for the next remote listing, waiting no longer
+     * than the timeout.
+     * @return the next remote listing, or {@code null} at the end, once closed or on timeout
+     */
+    private Found pollRemote() {
+        Found remote = null;
+        try {
+            remote = remoteQueue.poll(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (remote == Found.FOUND_END) {
+            remoteEnded = true;
+            if (!closed && remoteDecoder.exception() != null) {
+                // a truncated listing would turn into adds (or, worse, skipped deletes)
+                throw new AssertionError("wrapped IOException found", remoteDecoder.exception());
+            }
+            return null;
+        }
+        return remote;
+    }
+
+    /**
+     * Returns the contents of a remote listing in {@link #mergeJoin(boolean)}
+     * mode, taking the following pages from the decoder thread as needed.
+     * @param first the first page of the remote listing
+     * @return the remote contents
+     */
+    private Iterator<Found> pages(Found first) {
+        return new Iterator<Found>() {
+            private Found page = first;
+            private int index = 0;
+            @Override
+            public boolean hasNext() {
+                while (page != null && (page.contents() == null || index >= page.contents().length)) {
+                    page = page.more() ? nextPage(page) : null;
+                    index = 0;
+                }
+                return page != null;
+            }
+            @Override
+            public Found next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.contents()[index++];
+            }
+        };
+    }
+
+    /**
+     * Takes the page following {@code page} of a remote listing.
+     * @param page the previous page
+     * @return the next page, or {@code null} if the listing went on to another directory
+     */
+    private Found nextPage(Found page) {
+        Found next = remoteNext != null ? remoteNext : takeRemote();
+        remoteNext = null;
+        if (next != null && preorder(next, page) != 0) {
+            // the rest of the remote contents are missing: leave the next directory for later
+            debug.accept("remote directory "+page+" is missing pages");
+            remoteNext = next;
+            return null;
+        }
+        return next;
+    }
+
+    /**
+     * Returns {@code true} if a directory pushed in {@link #mergeJoin(boolean)}
+     * mode is replicated from its remote listing (see {@link #merge(Found, Found)}).
+     */
+    private static boolean joined(Found dir, Found remote) {
+        return remote != null && (dir.operation() == Operation.match || dir.operation() == Operation.delete);
+    }
+
+    /**
+     * Joins a directory with its remote listing in {@link #mergeJoin(boolean)}
+     * mode: a {@code match} directory is compared with its listing, a deleted
+     * directory takes its contents from it (to be deleted in turn), and a
+     * directory without a remote listing is added as it is.
+     * @param dir the directory, with its local contents
+     * @param remote the remote listing, or {@code null}
+     * @return the directory with the replica operations as contents
+     */
+    private Found merge(Found dir, Found remote) {
+        if (remote == null) {
+            return dir;
+        } else if (dir.operation() == Operation.match) {
+            return dir.calculateReplica(remote, checksums);
+        } else if (dir.operation() == Operation.delete && remote.contents() != null) {
+            Stream.of(remote.contents()).forEach(f -> f.operation(Operation.delete));
+            dir.contents(remote.contents());
+        }
+        return dir;
+    }
+
     private Found advance() {
+        if (!drained.isEmpty()) {
+            // what was left in the moveIndex goes out as it is
+            return drained.pollFirst();
+        }
+        if (unpushed != null && !closed) {
+            // the merge-join root waits for its remote listing like any other directory
+            if (!remoteReady(unpushed)) {
+                return null;
+            }
+            push(unpushed);
+            unpushed = null;
+        }
         Found result = null;
-        while (result==null && (!stack.isEmpty() || replicating() && decoderRunning)) {
+        while (result==null && !closed && (!stack.isEmpty() || replicating() && decoderRunning)) {
+            boolean page = false;
             // pull the next Found, taking care of null (waiting for decodeThread)
-            // and the DONE_FINDING sentinel
+            // and the FOUND_END sentinel, which the decodeThread and close() post
+            // to wake us up. The timeout only bounds how long next() may block
+            // before returning null, so that callers can check for cancellation.
             try {
                 result = stack.pollFirst(timeout, unit);
                 if (result == Found.FOUND_END) {
                     result = null;
+                } else if (result instanceof Cursor) {
+                    page = ((Cursor)result).paged;
+                    result = next((Cursor)result);
                 }
             } catch (InterruptedException e) {
                 result = null;
@@ -151,57 +535,283 @@ if (dir.contents()!=null) {
                         return pendingDirectories.pollFirst();
                     }
                 }
-                push(result);
+                if (!page && result.directory() && merging() && !remoteReady(result)) {
+                    // put it back and return null, as on a stack timeout, rather than
+                    // block next() until the remote side gets to this directory
+                    stack.addFirst(result);
+                    return null;
+                }
+                if (!page) {
+                    // a later page of a directory has already been pushed
+                    push(result);
+                    unprefetch(result);
+                    prefetch();
+                }
+                Found top = stack.peekFirst();
+                if (top instanceof Cursor && ((Cursor)top).paged && ((Cursor)top).directory == result) {
+                    // a directory listed in pages is reported as its first page
+                    result = next((Cursor)stack.pollFirst());
+                }
                 if (result.directory()) {
                     if (directoryMode == DirectoryMode.exclude) {
                         // don't report out this Found ever
                         result = null;
                     } else if (directoryMode == DirectoryMode.excludeEmpty &&
                             result.operation()!=Operation.delete &&
-                            !result.containsAFile()) {
+                            !containsAFile(result)) {
                         // don't report out this Found right now
                         pendingDirectories.add(result);
                         result = null;
                     }
                 }
+                if (result != null && moving()) {
+                    result = deferMove(result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Pulls the next entry from a streamed directory, leaving the rest on the
+     * stack. A paged cursor returns the next page of the directory instead,
+     * and a merged cursor the next entry of the replica that is to be
+     * stacked (and may run out without one). The held subdirectories
+     * go on the stack, in order, once the cursor is finished.
+     * @param cursor the cursor
+     * @return the next entry, or {@code null}
+     */
+    private Found next(Cursor cursor) {
+        Found result = null;
+        if (cursor.held == null) {
+            result = cursor.entries.next().operation(Operation.add);
+        } else if (cursor.paged) {
+            List<Found> page = new ArrayList<>(Math.min(pageSize, 1024));
+            while (page.size() < pageSize && cursor.entries.hasNext()) {
+                Found child = cursor.entries.next().operation(Operation.add);
+                page.add(child);
+                if (child.directory()) {
+                    cursor.held.add(child);
+                }
+            }
+            result = cursor.directory.page(page.toArray(new Found[page.size()]), cursor.entries.hasNext());
+        } else {
+            while (result == null && cursor.entries.hasNext()) {
+                Found child = cursor.entries.next();
+                if (!stackable(child)) {
+                    // skip it
+                } else if (child.directory()) {
+                    cursor.held.add(child);
+                } else {
+                    result = child;
+                }
+            }
+        }
+        if (cursor.entries.hasNext()) {
+            stack.addFirst(cursor);
+        } else {
+            cursor.close();
+            if (cursor.held != null) {
+                for (int i=cursor.held.size()-1; i>=0; i--) {
+                    stack.addFirst(cursor.held.get(i));
+                }
             }
         }
         return result;
     }
 
+    /**
+     * Moves are detected only when replicating deletes, as a move
+     * removes the source file from the remote side.
+     * @return {@code true} if adds and deletes go through the {@link MoveIndex}
+     */
+    private boolean moving() {
+        if (detectMoves && replicateDeletes && replicating() && moveIndex == null) {
+            moveIndex = new MoveIndex(MoveIndex.DEFAULT_CAPACITY, checksums);
+        }
+        return moveIndex != null;
+    }
+
+    /**
+     * Offers a candidate add or delete to the {@link MoveIndex}, and holds
+     * back deleted directories until the end, so that a directory is not
+     * deleted before the files are moved out of it.
+     * @param found the next {@code Found}
+     * @return the {@code Found} to return now, or {@code null}
+     */
+    private Found deferMove(Found found) {
+        if (found.directory() && found.operation() == Operation.delete) {
+            deletedDirectories.add(found);
+            return null;
+        } else if (MoveIndex.candidate(found)) {
+            return moveIndex.offer(found);
+        }
+        return found;
+    }
+
     private void addToStack(Found dir) {
         Found[] found = dir.contents();
         for (int i=found.length-1; i>=0; i--) {
-            if (directoryMode == DirectoryMode.only && !found[i].directory()) {
-                // skip it
-            } else if (!found[i].directory() && found[i].operation() == Operation.match) {
-                // don't stack "match" files (but DO stack "match" directories for analysis)
-            } else if (found[i].operation() == Operation.delete && !replicateDeletes) {
-                // also don't stack "delete"s unless requested
-            } else {
+            if (stackable(found[i])) {
                 stack.addFirst(found[i]);
             }
         }
     }
 
+    private boolean stackable(Found found) {
+        if (directoryMode == DirectoryMode.only && !found.directory()) {
+            return false;
+        } else if (!found.directory() && found.operation() == Operation.match) {
+            // don't stack "match" files (but DO stack "match" directories for analysis)
+            return false;
+        } else if (found.operation() == Operation.delete && !replicateDeletes) {
+            // also don't stack "delete"s unless requested
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Lists, filters and sorts (if {@link #ordered()}) the contents of a directory.
+     * In streaming mode directories with more than {@code runSize} entries are
+     * spilled to disk.
+     * @param dir the directory to list
+     * @return the listing
+     */
+    private SortedListing list(Found dir) {
+        try (Stream<Found> children = scanner.scan(dir)) {
+            if (!ordered()) {
+                return SortedListing.unsorted(dir,
+                        children.filter(filter).map(child -> child.intern(names, MAX_NAMES)).iterator(),
+                        scanner,
+                        streaming() ? runSize : 0,
+                        spillDirectory);
+            }
+            return SortedListing.sort(dir,
+                    children.filter(filter).map(child -> child.intern(names, MAX_NAMES)).iterator(),
+                    scanner,
+                    streaming() ? runSize : 0,
+                    spillDirectory);
+        } catch (IOException e) {
+            // an unreadable directory is not an empty one
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the contents of a directory, either by collecting the listing
+     * already started in the parallel {@code pool} by {@link #prefetch()},
+     * or by listing it now.
+     * @param dir the directory to list
+     * @return the sorted listing
+     */
+    private SortedListing listing(Found dir) {
+        if (pool != null) {
+            ForkJoinTask<SortedListing> task = prefetched.remove(dir.fullname());
+            if (task != null) {
+                return task.join();
+            }
+        }
+        return list(dir);
+    }
+
+    /**
+     * In parallel mode, starts listing the directories next in line on the
+     * stack, keeping no more than {@code parallelism} listings in hand. The
+     * listings are collected in order as the directories are pushed, so the
+     * order of the traversal is not affected, but siblings are listed at the
+     * same time.
+     */
+    private void prefetch() {
+        if (pool != null) {
+            try {
+                Iterator<Found> next = stack.iterator();
+                for (int ahead = 0; ahead < parallelism && prefetched.size() < parallelism && next.hasNext(); ) {
+                    Found child = next.next();
+                    if (child.directory() && !(child instanceof Cursor) && child.file() != null &&
+                            filter.test(child) && descend.test(child)) {
+                        ahead++;
+                        if (!prefetched.containsKey(child.fullname())) {
+                            prefetched.put(child.fullname(), pool.submit(() -> list(child)));
+                        }
+                    }
+                }
+            } catch (RejectedExecutionException e) {
+                // the pool was shut down by close(): the listings will be done inline (if at all)
+            }
+        }
+    }
+
+    /**
+     * Drops the listing prefetched for a directory that was pushed without
+     * being listed (in a matched subtree, or matched by its hash).
+     * @param dir the directory just pushed
+     */
+    private void unprefetch(Found dir) {
+        if (pool != null) {
+            ForkJoinTask<SortedListing> task = prefetched.remove(dir.fullname());
+            if (task != null && !task.cancel(true) && !task.isCompletedAbnormally()) {
+                task.join().close();
+            }
+        }
+    }
+
+    private void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            for (ForkJoinTask<SortedListing> task : prefetched.values()) {
+                if (!task.cancel(true) && !task.isCompletedAbnormally()) {
+                    task.join().close();
+                }
+            }
+            prefetched.clear();
+        }
+        if (runSize > 0) {
+            // clean up any spilled listings still on the stack
+            for (Found found : stack) {
+                if (found instanceof Cursor) {
+                    ((Cursor)found).close();
+                }
+            }
+        }
+    }
+
     private void push(Found dir) {
         // if it's a directory, push more onto the todo stack
-        if (dir.directory() && filter.test(dir)) {
+        if (dir.directory() && filter.test(dir) && descend.test(dir)) {
+            Found merged = merging() ? remoteListing(dir) : null;
+            if (hashTree != null && replicating() && dir.operation()==Operation.match) {
+                // if the remote listing is already here, a matching hash saves listing the directory at all
+                Found remote = merging() ? merged : remoteDirectories.get(dir.fullname());
+                if (remote != null && remote.remote() && sameSubtree(dir, remote)) {
+                    if (!merging()) {
+                        remoteDirectories.remove(dir.fullname());
+                    }
+                    return;
+                }
+            }
             if (dir.file() != null) { 
                 // filter, index and populate dir.contents
-                File[] files = dir.file().listFiles();
-                Found[] found = Stream.of(files)
-                        .map(dir::child)
-                        .filter(filter)
-                        .sorted() // directories < files, otherwise compare fullname
-                        .map(new Function<Found,Found> () {
-                            @Override
-                            public Found apply(Found t) {
-                                t.operation(Operation.add);
-                                return t;
-                            }
-                        })
-                        .toArray(Found[]::new);
+                SortedListing listing = listing(dir);
+                if (pageSize > 0 && directoryMode == DirectoryMode.only &&
+                        (listing.spilled() || listing.contents().length > pageSize)) {
+                    // list the directory in pages from the stack
+                    stack.addFirst(new Cursor(dir, listing, listing, true));
+                    return;
+                } else if (listing.spilled()) {
+                    // too large to hold in memory: stream the contents from the stack
+                    // (only in streaming mode, so when replicating only when merge-joining)
+                    if (merging() && joined(dir, merged)) {
+                        stack.addFirst(new Cursor(dir, listing, Found.replica(listing, pages(merged), checksums), false));
+                    } else {
+                        stack.addFirst(new Cursor(dir, listing));
+                    }
+                    return;
+                }
+                Found[] found = listing.contents();
+                for (Found child : found) {
+                    child.operation(Operation.add);
+                }
                 dir.contents(found);
             } else if (dir.contents()==null) {
                 // some deleted remote directories will not have contents
@@ -209,7 +819,15 @@ if (dir.contents()!=null) {
             }
             // in replication mode, we have to compare any "match" directories
             // we can go ahead and push "add" and "delete"
-            if (replicating() && dir.operation()==Operation.match) {
+            if (merging()) {
+                if (joined(dir, merged) && merged.more()) {
+                    // a remote listing in pages is merged from the stack
+                    stack.addFirst(new Cursor(dir, null,
+                            Found.replica(Iterators.forArray(dir.contents()), pages(merged), checksums), false));
+                    return;
+                }
+                dir = merge(dir, merged);
+            } else if (replicating() && dir.operation()==Operation.match) {
                 Found remote = remoteDirectories.putIfAbsent(dir.fullname(), dir);
                 if (remote == null) {
                     // if the remote decoder hasn't posted this one yet, wait for later
@@ -219,7 +837,10 @@ if (dir.contents()!=null) {
                     throw new AssertionError("directory "+remote.fullname()+" is not marked remote");
                 }
                 remoteDirectories.remove(dir.fullname());
-                dir = dir.calculateReplica(remote);
+                if (sameSubtree(dir, remote)) {
+                    return;
+                }
+                dir = dir.calculateReplica(remote, checksums);
 if (dir.contents()!=null) {
     debug.accept("replica calulated in push for "+dir);
     Stream.of(dir.contents()).forEach(x->debug.accept("= "+x));
@@ -229,23 +850,82 @@ if (dir.contents()!=null) {
         }
     }
 
+    /**
+     * Returns {@code true} if the {@link HashTree} hash of the local directory
+     * matches the hash in the remote listing, in which case the whole subtree
+     * is recorded as matched and will not be listed or compared any further.
+     * @param local the local directory
+     * @param remote the remote directory listing
+     * @return {@code true} if the subtree is unchanged
+     */
+    private boolean sameSubtree(Found local, Found remote) {
+        if (hashTree == null || remote.hash() == null || local.file() == null) {
+            return false;
+        }
+        try {
+            if (Arrays.equals(hashTree.hash(local), remote.hash())) {
+                debug.accept("subtree "+local.fullname()+" matched by hash");
+                matchedSubtrees.add(local.depth()==0 ? "" : local.fullname());
+                return true;
+            }
+        } catch (IOException e) {
+            // without a local hash, just compare the listings
+            debug.accept("unable to hash "+local.fullname()+": "+e);
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if a directory is inside a subtree matched
+     * by {@link #sameSubtree(Found, Found)} (the root is recorded as {@code ""}).
+     * @param dir the directory
+     * @return {@code true} if its parent or an ancestor has been matched
+     */
+    private boolean inMatchedSubtree(Found dir) {
+        if (matchedSubtrees.isEmpty()) {
+            return false;
+        } else if (matchedSubtrees.contains("")) {
+            return true;
+        }
+        String name = dir.fullname();
+        for (int slash = name.indexOf('/'); slash >= 0 && slash < name.length()-1; slash = name.indexOf('/', slash+1)) {
+            if (matchedSubtrees.contains(name.substring(0, slash+1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean done() {
         if (limit > 0 && count >= limit) {
             return true;
+        } else if (closed) {
+            return true;
         } else if (next != null) {
             return false;
         } else if (!replicating()) {
             return true;
         } else if (decoderRunning) {
             return false;
-        } else if (!stack.isEmpty()) {
+        } else if (!stack.isEmpty() || !drained.isEmpty() || unpushed != null) {
             return false;
         } else {
-            if (!remoteDirectories.isEmpty()) {
+            if (merging() && !remoteEnded && !closed) {
+                // read the rest of the remote listing, so the remote side is not left
+                // blocked, a timeout at a time
+                remoteNext = null;
+                pollRemote();
+                if (!remoteEnded && !closed) {
+                    return false;
+                }
+            }
+            if (remoteDirectories != null && !remoteDirectories.isEmpty()) {
                 Collection<Found> values = remoteDirectories.values();
                 for (Found dir : values) {
                     remoteDirectories.remove(dir.fullname());
-                    if (dir.remote()) {
+                    if (inMatchedSubtree(dir)) {
+                        // the decoder posted it before its matching parent was found
+                    } else if (dir.remote()) {
                         // orphaned remote listings get turned into "deletes"
                         if (replicateDeletes) {
                             dir.operation(Operation.delete);
@@ -267,7 +947,16 @@ if (dir.contents()!=null) {
             if (remoteDecoder.exception() != null) {
                 throw new AssertionError("wrapped IOException found", remoteDecoder.exception());
             }
-            return stack.isEmpty();
+            if (stack.isEmpty() && moveIndex != null) {
+                // everything has been offered: send what was not moved, then the deleted directories
+                debug.accept("detected "+moveIndex.moves()+" moves");
+                drained.addAll(moveIndex.drain());
+                drained.addAll(deletedDirectories);
+                deletedDirectories.clear();
+                moveIndex = null;
+                detectMoves = false;
+            }
+            return stack.isEmpty() && drained.isEmpty();
         }
     }
 
@@ -283,6 +972,7 @@ if (dir.contents()!=null) {
             }
             if (done()) {
                 state = State.DONE;
+                shutdown();
             } else {
                 state = State.GOT;
                 if (next != null) {
@@ -296,7 +986,16 @@ if (dir.contents()!=null) {
     public Finder(File root) {
         this.root = root;
         this.filter = ALL;
+        this.descend = ALL;
+        this.scanner = DirectoryScanner.FILE;
+        this.parallelism = 1;
+        this.pool = null;
+        this.prefetched = null;
+        this.runSize = 0;
+        this.pageSize = 0;
+        this.spillDirectory = null;
         this.directoryMode = DirectoryMode.include;
+        this.ordered = true;
 
         this.next = null;
         this.state = State.NEW;
@@ -307,9 +1006,22 @@ if (dir.contents()!=null) {
 
         this.remoteDecoder = null;
         this.replicateDeletes = false;
+        this.hashTree = null;
+        this.matchedSubtrees = ConcurrentHashMap.newKeySet();
+        this.checksums = null;
+        this.detectMoves = false;
+        this.moveIndex = null;
+        this.deletedDirectories = new ArrayList<>();
+        this.drained = new ArrayDeque<>();
         this.timeout = 10;
         this.unit = TimeUnit.SECONDS;
         this.decoderRunning = false;
+        this.mergeJoin = false;
+        this.decoderParallelism = 1;
+        this.remoteQueue = null;
+        this.remoteNext = null;
+        this.remoteEnded = false;
+        this.unpushed = null;
         this.closed = false;
 
         this.debug = s->{};
@@ -323,6 +1035,71 @@ if (dir.contents()!=null) {
         return this;
     }
 
+    /**
+     * Limits the traversal to the directories accepted by {@code descend}.
+     * Unlike the {@link #filter(Predicate)}, which removes entries from
+     * the contents of their directory, a directory that is not descended
+     * is still found, but is not listed.
+     * @param descend the directories to list
+     * @return this
+     */
+    public Finder descend(Predicate<Found> descend) {
+        if (state != State.NEW) {
+            throw new IllegalStateException("Finder is iterating -- can't set descend");
+        }
+        this.descend = descend;
+        return this;
+    }
+
+    public Finder scanner(DirectoryScanner scanner) {
+        if (state != State.NEW) {
+            throw new IllegalStateException("Finder is iterating -- can't set scanner");
+        }
+        this.scanner = scanner==null ? DirectoryScanner.FILE : scanner;
+        return this;
+    }
+
+    public Finder parallelism(int parallelism) {
+        if (state != State.NEW) {
+            throw new IllegalStateException("Finder is iterating -- can't set parallelism");
+        }
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    public Finder runSize(int runSize) {
+        if (state != State.NEW) {
+            throw new IllegalStateException("Finder is iterating -- can't set runSize");
+        }
+        this.runSize = Math.max(0, runSize);
+        return this;
+    }
+
+    /**
+     * In {@code DirectoryMode.only}, returns a directory with more than
+     * {@code pageSize} entries as a sequence of pages (see
+     * {@link Found#page(Found[], boolean)}), which with a {@code runSize}
+     * are streamed from a spilled listing, so that a huge directory is
+     * never held in memory at once.
+     * @param pageSize the maximum number of entries in a page, or {@code 0}
+     * @return this
+     */
+    public Finder pageSize(int pageSize) {
+        if (state != State.NEW) {
+            throw new IllegalStateException("Finder is iterating -- can't set pageSize");
+        }
+        this.pageSize = Math.max(0, pageSize);
+        return this;
+    }
+
+    public Finder spillDirectory(File spillDirectory) {
+        if (state != State.NEW) {
+            throw new IllegalStateException("Finder is iterating -- can't set spillDirectory");
+        }
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
     public Finder directoryMode(DirectoryMode directoryMode) {
         if (state != State.NEW) {
             throw new IllegalStateException("Finder is iterating -- can't set directoryMode");
@@ -331,11 +1108,75 @@ if (dir.contents()!=null) {
         return this;
     }
 
+    /**
+     * Setting {@code ordered} to {@code false} skips sorting the directory
+     * contents, which are returned in the order the {@link DirectoryScanner}
+     * lists them (directories are still returned before their contents).
+     * This is ignored (the contents are sorted anyway) when replicating or in
+     * {@code DirectoryMode.excludeEmpty}.
+     * @param ordered {@code false} to return directory contents unsorted
+     * @return this
+     */
+    public Finder ordered(boolean ordered) {
+        if (state != State.NEW) {
+            throw new IllegalStateException("Finder is iterating -- can't set ordered");
+        }
+        this.ordered = ordered;
+        return this;
+    }
+
     public Finder replicateDeletes(boolean replicateDeletes) {
         this.replicateDeletes = replicateDeletes;
         return this;
     }
 
+    /**
+     * When replicating deletes, matches the files to be deleted with the
+     * files to be added anywhere in the tree, sending a file or directory
+     * that was renamed as a {@link Operation#move} of the remote files (see
+     * {@link MoveIndex}). Deleted directories are held until the end.
+     * @param detectMoves {@code true} to detect moves
+     * @return this
+     */
+    public Finder detectMoves(boolean detectMoves) {
+        this.detectMoves = detectMoves;
+        return this;
+    }
+
+    /**
+     * Replicates with a streaming merge-join of the local traversal and the
+     * remote listings, which arrive in the same pre-order. Instead of holding
+     * local directories and remote listings until their partner shows up,
+     * each remote listing is read as its local directory is pushed, so memory
+     * is bounded by the depth of the tree. This requires a remote listing in
+     * the sorted order of a {@code Finder} (as produced by {@link LocalFinderInputStream}).
+     * @param mergeJoin {@code true} to merge-join the listings
+     * @return this
+     */
+    public Finder mergeJoin(boolean mergeJoin) {
+        if (state != State.NEW) {
+            throw new IllegalStateException("Finder is iterating -- can't set mergeJoin");
+        }
+        this.mergeJoin = mergeJoin;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads decoding the remote listing (see
+     * {@link RemoteFinderStreamDecoder#parallelism(int)}). The decoded
+     * listings are matched with the local directories in stream order
+     * either way.
+     * @param decoderParallelism the number of decoding threads
+     * @return this
+     */
+    public Finder decoderParallelism(int decoderParallelism) {
+        if (state != State.NEW) {
+            throw new IllegalStateException("Finder is iterating -- can't set decoderParallelism");
+        }
+        this.decoderParallelism = decoderParallelism;
+        return this;
+    }
+
     public Finder limit(int limit) {
         this.limit = limit;
         return this;
@@ -349,6 +1190,45 @@ if (dir.contents()!=null) {
         return this;
     }
 
+    /**
+     * Returns the {@link ChangeLog} token that ended the remote listing,
+     * once it has been read to the end.
+     * @return the token, or {@code null}
+     */
+    public String remoteToken() {
+        return remoteDecoder == null ? null : remoteDecoder.token();
+    }
+
+    /**
+     * When replicating against a remote listing that includes {@link HashTree}
+     * hashes, skips any directory whose hash matches the local {@code hashTree},
+     * which must have been built with the same filter as this {@code Finder}.
+     * @param hashTree the local hash tree, or {@code null}
+     * @return this
+     */
+    public Finder hashTree(HashTree hashTree) {
+        if (state != State.NEW) {
+            throw new IllegalStateException("Finder is iterating -- can't set hashTree");
+        }
+        this.hashTree = hashTree;
+        return this;
+    }
+
+    /**
+     * When replicating against a remote listing that includes {@link ChecksumCache}
+     * checksums, compares files of the same length by checksum, using (and
+     * updating) the local {@code checksums}. See {@link Found#calculateReplica(Found, ChecksumCache)}.
+     * @param checksums the local checksums, or {@code null}
+     * @return this
+     */
+    public Finder checksums(ChecksumCache checksums) {
+        if (state != State.NEW) {
+            throw new IllegalStateException("Finder is iterating -- can't set checksums");
+        }
+        this.checksums = checksums;
+        return this;
+    }
+
     public Finder timeout(long timeout, TimeUnit unit) {
         this.timeout = timeout;
         this.unit = unit;
@@ -387,37 +1267,15 @@ if (dir.contents()!=null) {
     public static Predicate<Found> NONE = found->false;
 
     public static Predicate<Found> excluding(String...patterns) {
-        if (patterns==null || patterns.length==0) {
-            return ALL;
-        }
-        PathMatcher[] matchers = new PathMatcher[patterns.length];
-        FileSystem fs = FileSystems.getDefault();
-        for (int i=0; i<patterns.length; i++) {
-            matchers[i] = fs.getPathMatcher(patterns[i]);
-        }
-        return f->!Stream.of(matchers)
-            .anyMatch(m -> m.matches(Paths.get("", f.path())));
+        return FoundFilter.excluding(patterns);
     }
 
     public static Predicate<Found> including(String...patterns) {
-        if (patterns==null || patterns.length==0) {
-            return NONE;
-        }
-        PathMatcher[] matchers = new PathMatcher[patterns.length];
-        FileSystem fs = FileSystems.getDefault();
-        for (int i=0; i<patterns.length; i++) {
-            matchers[i] = fs.getPathMatcher(patterns[i]);
-        }
-        return f->f.directory() || Stream.of(matchers)
-            .anyMatch(m -> m.matches(Paths.get("", f.path())));
+        return FoundFilter.including(patterns);
     }
 
     public static Predicate<Found> only(String pattern) {
-        if (pattern==null || pattern.isEmpty()) {
-            return ALL;
-        }
-        PathMatcher matcher = FileSystems.getDefault().getPathMatcher(pattern);
-        return f->f.directory() || matcher.matches(Paths.get("", f.path()));
+        return FoundFilter.only(pattern);
     }
 
     @Override
@@ -425,7 +1283,120 @@ if (dir.contents()!=null) {
         return this;
     }
 
+    /**
+     * A {@link Spliterator} over the same {@code Found}s as the iterator,
+     * which splits at directory boundaries: {@code pending} holds the
+     * subtrees still to be traversed (in order), and a split hands the
+     * first half of them to a new {@code Splitter}. A directory is listed
+     * (setting its {@code contents}) the first time it is reached or when
+     * a split needs something to divide.
+     */
+    private class Splitter implements Spliterator<Found> {
+        private Deque<Found> pending;
+
+        public Splitter(Deque<Found> pending) {
+            this.pending = pending;
+        }
+
+        private void expand(Found dir) {
+            if (dir.directory() && dir.contents() == null) {
+                if (dir.file() != null && filter.test(dir) && descend.test(dir)) {
+                    Found[] found = list(dir).contents();
+                    for (int i=found.length-1; i>=0; i--) {
+                        found[i].operation(Operation.add);
+                        if (directoryMode != DirectoryMode.only || found[i].directory()) {
+                            pending.addFirst(found[i]);
+                        }
+                    }
+                    dir.contents(found);
+                } else {
+                    dir.contents(new Found[0]);
+                }
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Found> action) {
+            while (!pending.isEmpty()) {
+                Found next = pending.pollFirst();
+                expand(next); // its contents are next in line
+                if (!next.directory() || directoryMode != DirectoryMode.exclude) {
+                    action.accept(next);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<Found> trySplit() {
+            if (pending.size() == 1) {
+                // nothing to divide: list the directory and divide its contents
+                Found dir = pending.pollFirst();
+                expand(dir);
+                pending.addFirst(dir);
+            }
+            int half = pending.size() / 2;
+            if (half == 0) {
+                return null;
+            }
+            Deque<Found> prefix = new ArrayDeque<>(half);
+            for (int i=0; i<half; i++) {
+                prefix.addLast(pending.pollFirst());
+            }
+            return new Splitter(prefix);
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return Finder.this.characteristics();
+        }
+    }
+
+    private int characteristics() {
+        return (ordered() ? Spliterator.ORDERED : 0) | Spliterator.NONNULL | Spliterator.DISTINCT;
+    }
+
+    /**
+     * Returns a {@code Stream} of the {@code Found}s this Finder would iterate.
+     * If the Finder is replicating, excluding empty directories, limited or
+     * streaming large directories (see {@link #runSize(int)}), the stream is
+     * sequential and simply wraps the iterator. Otherwise it splits at directory
+     * boundaries, so a parallel stream lists and processes subtrees in parallel.
+     * The stream is {@code ORDERED} unless {@code ordered(false)} is set.
+     * @param parallel {@code true} for a parallel stream
+     * @return the stream
+     */
+    public Stream<Found> stream(boolean parallel) {
+        if (state != State.NEW) {
+            throw new IllegalStateException("Finder is iterating -- can't start a stream");
+        }
+        if (replicating() || directoryMode == DirectoryMode.excludeEmpty || limit > 0 || runSize > 0 || pageSize > 0) {
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, characteristics()), false)
+                    .onClose(this::close);
+        }
+        state = State.DONE; // the iterator is not used
+        Deque<Found> pending = new ArrayDeque<>();
+        pending.add(new Found(new String[0], root));
+        return StreamSupport.stream(new Splitter(pending), parallel);
+    }
+
     public void close() {
         closed = true; // signals decodeThread to stop
+        stack.addFirst(Found.FOUND_END); // wakes up advance() if it is waiting
+        if (remoteQueue != null) {
+            // wakes up the merge decoderThread if it is waiting for room, and advance() if it is polling
+            remoteQueue.clear();
+            remoteQueue.offer(Found.FOUND_END);
+        }
+        if (remoteDecoder != null) {
+            remoteDecoder.close(); // wakes up decodeThread if it is reading
+        }
+        shutdown();
     }
 }
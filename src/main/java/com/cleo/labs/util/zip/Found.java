@@ -7,18 +7,26 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentMap;
 
 import com.fasterxml.jackson.annotation.JsonGetter;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.JsonSetter;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 
 public class Found implements Comparable<Found>, Cloneable {
     public enum Operation {
         add (0),
         delete (1),
         match (2),
+        touch (3),
+        delta (4),
+        move (5),
         end(100);
 
         private int tag;
@@ -28,6 +36,14 @@ public class Found implements Comparable<Found>, Cloneable {
         public int tag() {
             return tag;
         }
+        /**
+         * Returns {@code true} for the operations whose
+         * entries carry file content.
+         * @return {@code true} for {@code add} and {@code delta}
+         */
+        public boolean content() {
+            return this == add || this == delta;
+        }
         public static Operation of(int tag) {
             for (Operation o : EnumSet.allOf(Operation.class)) {
                 if (tag == o.tag) {
@@ -41,6 +57,9 @@ public class Found implements Comparable<Found>, Cloneable {
     public static final Found FOUND_END = new Found().operation(Operation.end);
 
     private String[] path;
+    private Found parent;
+    private String name;
+    private int depth;
     private Operation operation;
     private File file;
     private boolean directory;
@@ -48,11 +67,55 @@ public class Found implements Comparable<Found>, Cloneable {
     private long modified;
     private String fullname;
     private Found[] contents;
+    private byte[] hash;
+    private long checksum;
+    private byte[] signatures;
+    private Found source;
+    private boolean more;
+    private String token;
     private boolean remote;
 
+    /**
+     * Returns the path elements. For a {@code Found} created with {@link #child},
+     * the array is assembled from the chain of parents on each call (and is not
+     * retained), so prefer {@link #depth()} or {@link #fullname()} where they will do.
+     * For a {@code Found} created from a {@link #fullname(String)} the array
+     * is parsed on first use.
+     * @return the path elements
+     */
     public String[] path() {
+        if (path == null) {
+            if (name != null) {
+                // walk up to an ancestor with a path (ultimately the root)
+                Found ancestor = this;
+                while (ancestor.path == null && ancestor.name != null) {
+                    ancestor = ancestor.parent;
+                }
+                String[] base = ancestor.path();
+                String[] result = Arrays.copyOf(base, depth);
+                Found f = this;
+                for (int i=depth-1; i>=base.length; i--) {
+                    result[i] = f.name;
+                    f = f.parent;
+                }
+                return result;
+            } else if (fullname != null) {
+                path = PathUtil.split(fullname);
+            }
+        }
         return path;
     }
+    /**
+     * Returns the number of path elements, which is {@code path().length}.
+     * @return the depth of this {@code Found} below the root
+     */
+    public int depth() {
+        if (name != null) {
+            return depth;
+        }
+        String[] path = path();
+        return path == null ? 0 : path.length;
+    }
     @JsonGetter
     public Operation operation() {
         return operation;
@@ -72,8 +135,19 @@ public class Found implements Comparable<Found>, Cloneable {
     public long modified() {
         return modified;
     }
+    /**
+     * Returns the {@code /} separated path, with a trailing {@code /} for
+     * directories. For a {@code Found} created with {@link #child}, the
+     * name is built from the parent's name on first use and retained, so
+     * that entries never compared or matched by full name don't hold one.
+     * @return the full name
+     */
     @JsonGetter
     public String fullname() {
+        if (fullname == null && name != null) {
+            String full = parent.depth()==0 ? name : parent.fullname()+name;
+            fullname = directory ? full+'/' : full;
+        }
         return this.fullname;
     }
     @JsonGetter
@@ -81,6 +155,66 @@ public class Found implements Comparable<Found>, Cloneable {
     public Found[] contents() {
         return contents;
     }
+    /**
+     * Returns the {@link HashTree} hash of a directory and its contents,
+     * if the directory listing included one.
+     * @return the hash, or {@code null}
+     */
+    @JsonGetter
+    @JsonInclude(Include.NON_NULL)
+    public byte[] hash() {
+        return hash;
+    }
+    /**
+     * Returns the {@link ChecksumCache} checksum of a file, if known.
+     * @return the checksum, or {@link ChecksumCache#UNKNOWN_CHECKSUM}
+     */
+    public long checksum() {
+        return checksum;
+    }
+    @JsonGetter("checksum")
+    @JsonInclude(Include.NON_NULL)
+    private Long jsonChecksum() {
+        return checksum == ChecksumCache.UNKNOWN_CHECKSUM ? null : checksum;
+    }
+    /**
+     * Returns the {@link BlockDelta} signatures of a large file, if the
+     * directory listing included them.
+     * @return the signatures, or {@code null}
+     */
+    @JsonGetter
+    @JsonInclude(Include.NON_NULL)
+    public byte[] signatures() {
+        return signatures;
+    }
+    /**
+     * Returns the remote file that a {@link Operation#move} renames
+     * to this one (identified by its {@code fullname} and {@code file}).
+     * @return the source, or {@code null}
+     */
+    public Found source() {
+        return source;
+    }
+    /**
+     * Returns {@code true} if this is a page of a directory listing whose
+     * contents continue in the next page (see {@link #page(Found[], boolean)}).
+     * @return {@code true} if more contents follow
+     */
+    @JsonGetter
+    @JsonInclude(Include.NON_DEFAULT)
+    public boolean more() {
+        return more;
+    }
+    /**
+     * Returns the {@link ChangeLog} token of a token record, which
+     * follows the directories of a listing (see {@link RemoteFinderStreamDecoder#token()}).
+     * @return the token, or {@code null} if this is not a token record
+     */
+    @JsonGetter
+    @JsonInclude(Include.NON_NULL)
+    public String token() {
+        return token;
+    }
     public boolean remote() {
         return remote;
     }
@@ -112,7 +246,9 @@ public class Found implements Comparable<Found>, Cloneable {
     @JsonSetter
     public Found fullname(String fullname) {
         this.fullname = fullname;
-        this.path = PathUtil.split(fullname);
+        this.path = null; // parsed from fullname when needed
+        this.parent = null;
+        this.name = null;
         return this;
     }
     @JsonSetter
@@ -120,6 +256,38 @@ public class Found implements Comparable<Found>, Cloneable {
         this.contents = contents;
         return this;
     }
+    @JsonSetter
+    public Found hash(byte[] hash) {
+        this.hash = hash;
+        return this;
+    }
+    public Found checksum(long checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+    @JsonSetter("checksum")
+    private void jsonChecksum(Long checksum) {
+        this.checksum = checksum == null ? ChecksumCache.UNKNOWN_CHECKSUM : checksum;
+    }
+    @JsonSetter
+    public Found signatures(byte[] signatures) {
+        this.signatures = signatures;
+        return this;
+    }
+    public Found source(Found source) {
+        this.source = source;
+        return this;
+    }
+    @JsonSetter
+    public Found more(boolean more) {
+        this.more = more;
+        return this;
+    }
+    @JsonSetter
+    public Found token(String token) {
+        this.token = token;
+        return this;
+    }
     public Found remote(boolean remote) {
         this.remote = remote;
         return this;
@@ -131,12 +299,21 @@ public class Found implements Comparable<Found>, Cloneable {
     public Found() {
         this.operation = null;
         this.path = null;
+        this.parent = null;
+        this.name = null;
+        this.depth = 0;
         this.file = null;
         this.directory = false;
         this.length = UNKNOWN_LENGTH;
         this.modified = -1;
         this.fullname = null;
         this.contents = null;
+        this.hash = null;
+        this.checksum = ChecksumCache.UNKNOWN_CHECKSUM;
+        this.signatures = null;
+        this.source = null;
+        this.more = false;
+        this.token = null;
         this.remote = false;
     }
 
@@ -148,6 +325,9 @@ public class Found implements Comparable<Found>, Cloneable {
      */
     public Found(String[] path, File file) {
         this.path = path;
+        this.parent = null;
+        this.name = null;
+        this.depth = path.length;
         this.file = file;
         this.directory = file.isDirectory();
         this.length = file.length();
@@ -157,6 +337,12 @@ public class Found implements Comparable<Found>, Cloneable {
             this.fullname += '/';
         }
         this.contents = null;
+        this.hash = null;
+        this.checksum = ChecksumCache.UNKNOWN_CHECKSUM;
+        this.signatures = null;
+        this.source = null;
+        this.more = false;
+        this.token = null;
         this.remote = false;
     }
 
@@ -205,6 +391,9 @@ public class Found implements Comparable<Found>, Cloneable {
         found.directory(dis.readBoolean());
         found.modified(dis.readLong());
         found.length(dis.readLong());
+        if (op == Operation.move) {
+            found.source(new Found().fullname(dis.readUTF()));
+        }
         return found;
     }
 
@@ -221,17 +410,69 @@ public class Found implements Comparable<Found>, Cloneable {
             dos.writeBoolean(directory());
             dos.writeLong(modified());
             dos.writeLong(length());
+            if (operation() == Operation.move) {
+                dos.writeUTF(source().fullname());
+            }
         }
     }
 
+    /**
+     * Creates a {@code Found} for a child of this directory. Rather than
+     * copying the path of the parent, the child refers to this {@code Found}
+     * and keeps only its own name, so the memory for a deep tree is
+     * proportional to the number of entries, not to their depth.
+     * @param child the child {@code File}
+     * @return the new child {@code Found}
+     */
     public Found child(File child) {
-        String[] childpath = Arrays.copyOf(this.path, this.path.length+1);
-        childpath[childpath.length-1] = child.getName();
-        return new Found(childpath, child);
+        return child(child, child.isDirectory(), child.length(), child.lastModified());
+    }
+
+    /**
+     * Like {@link #child(File)}, but with the attributes supplied by the
+     * caller (usually a {@link DirectoryScanner} that has already read them)
+     * instead of looked up one at a time from the {@code File}.
+     * @param child the child {@code File}
+     * @param directory {@code true} for directories, {@code false} for files
+     * @param length the length
+     * @param modified the modified time
+     * @return the new child {@code Found}
+     */
+    public Found child(File child, boolean directory, long length, long modified) {
+        Found found = new Found();
+        found.parent = this;
+        found.name = child.getName();
+        found.depth = depth()+1;
+        found.file = child;
+        found.directory = directory;
+        found.length = length;
+        found.modified = modified;
+        return found;
+    }
+    /**
+     * Replaces the name of a {@link #child} with the equal one already in
+     * {@code names}, adding it there while there are fewer than {@code max},
+     * so that the names repeated across the directories of a scan (like
+     * {@code target} or {@code index.html}) are held once.
+     * @param names the names interned so far in the scan
+     * @param max the most names to intern
+     * @return this
+     */
+    Found intern(ConcurrentMap<String,String> names, int max) {
+        if (name != null) {
+            String interned = names.get(name);
+            if (interned == null && names.size() < max) {
+                interned = names.putIfAbsent(name, name);
+            }
+            if (interned != null) {
+                name = interned;
+            }
+        }
+        return this;
     }
     public boolean contains(Found found) {
         return directory &&
-                (path.length==0 || found.fullname.startsWith(fullname));
+                (depth()==0 || found.fullname().startsWith(fullname()));
     }
     public boolean containsAFile() {
         return contents!=null && contents.length>0 && !contents[contents.length-1].directory;
@@ -245,7 +486,10 @@ public class Found implements Comparable<Found>, Cloneable {
         if (operation!=null) {
             s.append(operation).append(' ');
         }
-        s.append(fullname);
+        s.append(fullname());
+        if (source!=null) {
+            s.append(" from ").append(source.fullname());
+        }
         if (directory) {
             if (contents==null) {
                 s.append(" contents=null");
@@ -256,54 +500,107 @@ public class Found implements Comparable<Found>, Cloneable {
         if (!directory) {
             s.append(" length=").append(length).append(" modified=").append(modified);
         }
-        if (path==null) {
+        if (path==null && name==null && fullname==null) {
             s.append(" path=null");
         }
         return s.toString();
     }
     @Override
     public int compareTo(Found f) {
-        return directory==f.directory()
-                ? fullname.compareTo(f.fullname())
-                : directory ? -1 : 1;
+        if (directory != f.directory()) {
+            return directory ? -1 : 1;
+        } else if (name != null && f.name != null && parent == f.parent) {
+            // siblings (the usual case when sorting a listing) differ only by name
+            return compareNames(name, f.name, directory);
+        }
+        return fullname().compareTo(f.fullname());
+    }
+
+    /**
+     * Compares two names as if they were full names with a common prefix,
+     * including the trailing {@code /} of directory names.
+     */
+    private static int compareNames(String a, String b, boolean directory) {
+        if (!directory) {
+            return a.compareTo(b);
+        }
+        int n = Math.min(a.length(), b.length());
+        for (int i=0; i<n; i++) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(i);
+            if (ca != cb) {
+                return ca - cb;
+            }
+        }
+        if (a.length() == b.length()) {
+            return 0;
+        }
+        // the shorter name continues with its trailing /
+        return a.length() < b.length() ? '/' - b.charAt(n) : a.charAt(n) - '/';
     }
     @Override
     protected Found clone() throws CloneNotSupportedException {
         return (Found)super.clone();
     }
 
+    /**
+     * Returns a page of this directory listing: a copy of this directory
+     * with part of its contents, which continue in the next page if
+     * {@code more} is {@code true}. A huge directory is listed as a
+     * sequence of pages, so that it never has to be held in memory at once.
+     * @param contents the contents of the page
+     * @param more {@code true} if more pages follow
+     * @return the page
+     */
+    public Found page(Found[] contents, boolean more) {
+        try {
+            Found page = clone();
+            page.contents = contents;
+            page.more = more;
+            return page;
+        } catch (CloneNotSupportedException impossible) {
+            return null;
+        }
+    }
+
     private static final long WIGGLE = 2000; // 2-second modtime wiggle room: see https://en.wikipedia.org/wiki/ZIP_(file_format)
 
     public Found calculateReplica(Found remote) {
+        return calculateReplica(remote, null);
+    }
+
+    /**
+     * Compares the contents of this (local) directory with the {@code remote}
+     * listing of the same directory, setting the operation needed on each
+     * entry to make the remote directory match: {@link Operation#add} for new
+     * and changed files, {@link Operation#delete} for files only on the remote
+     * side, and {@link Operation#match} for files (and all directories)
+     * found on both sides.
+     * <p/>
+     * Without {@code checksums}, or for remote files without a checksum, a
+     * file is changed if its length or modified time (beyond a 2-second
+     * wiggle) differ. When the remote listing includes a checksum for a file
+     * with the same length, the local checksum (remembered or computed) decides
+     * instead: different contents are an {@code add}, even within the
+     * wiggle, and the same contents with a different modified time are a
+     * metadata-only {@link Operation#touch}.
+     * <p/>
+     * A changed file whose remote listing includes {@link BlockDelta}
+     * signatures is a {@link Operation#delta} instead of an {@code add},
+     * carrying the remote signatures so the sender can send just the
+     * differences.
+     * @param remote the remote listing of the same directory
+     * @param checksums the local checksums, or {@code null}
+     * @return a copy of this directory with the replica operations as contents
+     */
+    public Found calculateReplica(Found remote, ChecksumCache checksums) {
         if (!directory || !remote.directory) {
             throw new IllegalArgumentException("calculateReplica requires directories");
         }
 
         List<Found> operations = new ArrayList<>();
-        int localindex = 0;
-        int remoteindex = 0;
-        while (localindex < contents.length || remoteindex < remote.contents.length) {
-            if (remoteindex >= remote.contents.length ||
-                    localindex < contents.length && contents[localindex].compareTo(remote.contents[remoteindex]) < 0) {
-                operations.add(contents[localindex].operation(Operation.add));
-                localindex++;
-            } else if (localindex >= contents.length ||
-                    remoteindex < remote.contents.length && contents[localindex].compareTo(remote.contents[remoteindex]) > 0) {
-                operations.add(remote.contents[remoteindex].operation(Operation.delete));
-                remoteindex++;
-            } else if (contents[localindex].compareTo(remote.contents[remoteindex]) == 0 &&
-                     !contents[localindex].directory &&
-                     (contents[localindex].length != remote.contents[remoteindex].length ||
-                      Math.abs(contents[localindex].modified - remote.contents[remoteindex].modified)>WIGGLE)) {
-                operations.add(contents[localindex].operation(Operation.add));
-                localindex++;
-                remoteindex++;
-            } else {
-                operations.add(contents[localindex].operation(Operation.match));
-                localindex++;
-                remoteindex++;
-            }
-        }
+        replica(Iterators.forArray(contents), Iterators.forArray(remote.contents), checksums)
+            .forEachRemaining(operations::add);
 
         try {
             Found result = clone();
@@ -313,4 +610,84 @@ public class Found implements Comparable<Found>, Cloneable {
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * The streaming form of {@link #calculateReplica(Found, ChecksumCache)}:
+     * merges the sorted {@code local} contents of a directory with the sorted
+     * contents of its {@code remote} listing one entry at a time, so that
+     * neither has to be held in memory (the local contents may come from a
+     * spilled {@link SortedListing}, and the remote contents from the pages
+     * of a remote listing).
+     * @param local the sorted local contents
+     * @param remote the sorted remote contents
+     * @param checksums the local checksums, or {@code null}
+     * @return the contents with the replica operations set
+     */
+    public static Iterator<Found> replica(Iterator<Found> local, Iterator<Found> remote, ChecksumCache checksums) {
+        return new Replica(local, remote, checksums);
+    }
+
+    private static class Replica implements Iterator<Found> {
+        private PeekingIterator<Found> local;
+        private PeekingIterator<Found> remote;
+        private ChecksumCache checksums;
+
+        public Replica(Iterator<Found> local, Iterator<Found> remote, ChecksumCache checksums) {
+            this.local = Iterators.peekingIterator(local);
+            this.remote = Iterators.peekingIterator(remote);
+            this.checksums = checksums;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return local.hasNext() || remote.hasNext();
+        }
+
+        @Override
+        public Found next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (!remote.hasNext() ||
+                    local.hasNext() && local.peek().compareTo(remote.peek()) < 0) {
+                return local.next().operation(Operation.add);
+            } else if (!local.hasNext() ||
+                    local.peek().compareTo(remote.peek()) > 0) {
+                return remote.next().operation(Operation.delete);
+            } else if (!local.peek().directory) {
+                Found found = local.next();
+                Found other = remote.next();
+                Operation operation = compareFile(found, other, checksums);
+                if (operation == Operation.add && other.signatures != null) {
+                    found.signatures(other.signatures);
+                    operation = Operation.delta;
+                }
+                return found.operation(operation);
+            } else {
+                remote.next();
+                return local.next().operation(Operation.match);
+            }
+        }
+    }
+
+    /**
+     * Returns the operation that replicates a {@code local} file
+     * over the {@code remote} file of the same name.
+     */
+    private static Operation compareFile(Found local, Found remote, ChecksumCache checksums) {
+        boolean sameTime = Math.abs(local.modified - remote.modified) <= WIGGLE;
+        if (local.length != remote.length) {
+            return Operation.add;
+        } else if (checksums != null && remote.checksum != ChecksumCache.UNKNOWN_CHECKSUM && local.file != null) {
+            try {
+                if (checksums.checksum(local) != remote.checksum) {
+                    return Operation.add;
+                }
+                return sameTime ? Operation.match : Operation.touch;
+            } catch (IOException e) {
+                // fall back to comparing the attributes
+            }
+        }
+        return sameTime ? Operation.match : Operation.add;
+    }
+}
@@ -0,0 +1,402 @@
+package com.cleo.labs.util.zip;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Stream;
+
+/**
+ * A compiled set of {@code glob:} and {@code regex:} patterns, with the
+ * same syntax and meaning as {@link java.nio.file.FileSystem#getPathMatcher(String)},
+ * matched against the relative path of a {@link Found}.
+ * <p/>
+ * All the {@code glob:} patterns are translated to regular expressions
+ * (following the same rules as the default file system) and matched directly
+ * against the {@code fullname} of the {@code Found}, without allocating a
+ * {@code Path}. Most exclusion globs end in a literal (like {@code *.tmp} or
+ * {@code **}{@code /target}), so globs are indexed by the last character of
+ * their literal tail, and only the globs whose tail ends the path are tried.
+ * Globs without a literal tail are combined into a single alternation.
+ * {@code regex:} patterns are compiled separately, since they may contain
+ * numbered groups and back references.
+ * <p/>
+ * For {@link #including(String...)} and {@link #only(String)}, which
+ * traditionally accepted every directory so that matching files could be
+ * found below it, directories are accepted only if some pattern could
+ * match a path below the directory. This prunes entire subtrees from the
+ * {@link Finder}. Pruning is based on {@link Matcher#hitEnd()}, and is only
+ * attempted when all the patterns are globs.
+ * <p/>
+ * On file systems whose separator is not {@code /} the default file system
+ * matchers are used instead, preserving their platform-specific rules.
+ */
+public class FoundFilter implements Predicate<Found> {
+
+    private enum Mode {excluding, including, only};
+
+    /**
+     * A glob with a literal tail, which must end any path it matches.
+     */
+    private static class Tailed {
+        private String tail;
+        private int index;
+        public Tailed(String tail, int index) {
+            this.tail = tail;
+            this.index = index;
+        }
+    }
+
+    private Mode mode;
+    private Pattern globs;
+    private Map<Character,List<Tailed>> tailed;
+    private boolean regexes;
+    private int firstRegex;
+    private PathMatcher[] matchers;
+    private ThreadLocal<Matcher[]> local;
+
+    // local matcher indexes: all globs, untailed globs, then tailed globs and regexes
+    private static final int ALL = 0;
+    private static final int UNTAILED = 1;
+
+    private FoundFilter(Mode mode, String...patterns) {
+        this.mode = mode;
+        if (File.separatorChar != '/') {
+            this.matchers = new PathMatcher[patterns.length];
+            for (int i=0; i<patterns.length; i++) {
+                matchers[i] = FileSystems.getDefault().getPathMatcher(patterns[i]);
+            }
+        } else {
+            this.matchers = null;
+            this.tailed = new HashMap<>();
+            StringBuilder all = new StringBuilder();
+            StringBuilder untailed = new StringBuilder();
+            List<Pattern> patternList = new ArrayList<>();
+            patternList.add(null);
+            patternList.add(null);
+            List<Pattern> regexList = new ArrayList<>();
+            for (String pattern : patterns) {
+                int colon = pattern.indexOf(':');
+                if (colon <= 0 || colon == pattern.length()) {
+                    throw new IllegalArgumentException();
+                }
+                String syntax = pattern.substring(0, colon);
+                String expression = pattern.substring(colon+1);
+                if (syntax.equalsIgnoreCase("glob")) {
+                    String regex = toRegex(expression);
+                    alternate(all, regex);
+                    String tail = tail(expression);
+                    if (tail.isEmpty()) {
+                        alternate(untailed, regex);
+                    } else {
+                        tailed.computeIfAbsent(tail.charAt(tail.length()-1), c -> new ArrayList<>())
+                            .add(new Tailed(tail, patternList.size()));
+                        patternList.add(Pattern.compile(regex));
+                    }
+                } else if (syntax.equalsIgnoreCase("regex")) {
+                    regexList.add(Pattern.compile(expression));
+                } else {
+                    throw new UnsupportedOperationException("Syntax '"+syntax+"' not recognized");
+                }
+            }
+            this.globs = all.length() > 0 ? Pattern.compile(all.toString()) : null;
+            patternList.set(ALL, globs);
+            patternList.set(UNTAILED, untailed.length() > 0 ? Pattern.compile(untailed.toString()) : null);
+            this.regexes = !regexList.isEmpty();
+            patternList.addAll(regexList);
+            Pattern[] compiled = patternList.toArray(new Pattern[patternList.size()]);
+            this.firstRegex = compiled.length - regexList.size();
+            this.local = ThreadLocal.withInitial(() -> {
+                Matcher[] matchers = new Matcher[compiled.length];
+                for (int i=0; i<compiled.length; i++) {
+                    matchers[i] = compiled[i] == null ? null : compiled[i].matcher("");
+                }
+                return matchers;
+            });
+        }
+    }
+
+    private static void alternate(StringBuilder alternation, String regex) {
+        if (alternation.length() > 0) {
+            alternation.append('|');
+        }
+        alternation.append("(?:").append(regex).append(')');
+    }
+
+    /**
+     * Returns the literal tail of a glob: the characters following the
+     * last glob metacharacter (or escape), which must literally end any
+     * matching path.
+     * @param glob the glob
+     * @return the literal tail, possibly empty
+     */
+    private static String tail(String glob) {
+        int i = glob.length();
+        while (i > 0 && "*?[]{}\\,".indexOf(glob.charAt(i-1)) < 0) {
+            i--;
+        }
+        return glob.substring(i);
+    }
+
+    public static Predicate<Found> excluding(String...patterns) {
+        if (patterns==null || patterns.length==0) {
+            return Finder.ALL;
+        }
+        return new FoundFilter(Mode.excluding, patterns);
+    }
+
+    public static Predicate<Found> including(String...patterns) {
+        if (patterns==null || patterns.length==0) {
+            return Finder.NONE;
+        }
+        return new FoundFilter(Mode.including, patterns);
+    }
+
+    public static Predicate<Found> only(String pattern) {
+        if (pattern==null || pattern.isEmpty()) {
+            return Finder.ALL;
+        }
+        return new FoundFilter(Mode.only, pattern);
+    }
+
+    /**
+     * Returns the length of the relative path in {@code fullname}, which
+     * is the {@code fullname} less any trailing {@code /} for directories.
+     * @param fullname the {@code fullname}
+     * @return the length of the relative path
+     */
+    private static int pathLength(String fullname) {
+        int length = fullname.length();
+        return length > 0 && fullname.charAt(length-1) == '/' ? length-1 : length;
+    }
+
+    /**
+     * Returns {@code true} if any of the patterns matches {@code found}.
+     * @param found the {@code Found} to test
+     * @return {@code true} if any pattern matches
+     */
+    public boolean matches(Found found) {
+        if (matchers != null) {
+            return Stream.of(matchers).anyMatch(m -> m.matches(Paths.get("", found.path())));
+        }
+        String fullname = found.fullname();
+        int length = pathLength(fullname);
+        Matcher[] matchers = local.get();
+        if (length > 0) {
+            List<Tailed> candidates = tailed.get(fullname.charAt(length-1));
+            if (candidates != null) {
+                for (Tailed candidate : candidates) {
+                    int start = length - candidate.tail.length();
+                    if (start >= 0 && fullname.startsWith(candidate.tail, start) &&
+                            matchers[candidate.index].reset(fullname).region(0, length).matches()) {
+                        return true;
+                    }
+                }
+            }
+        }
+        Matcher untailed = matchers[UNTAILED];
+        if (untailed != null && untailed.reset(fullname).region(0, length).matches()) {
+            return true;
+        }
+        for (int i=firstRegex; i<matchers.length; i++) {
+            if (matchers[i].reset(fullname).region(0, length).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if any of the patterns could match a path below
+     * the directory {@code found}. This is conservative: when in doubt
+     * (non-glob patterns or other file systems), it returns {@code true}.
+     * @param found the directory to test
+     * @return {@code false} only if no path below {@code found} could match
+     */
+    public boolean couldMatchBelow(Found found) {
+        if (matchers != null || regexes || globs == null || found.depth() == 0) {
+            return true;
+        }
+        // match against "path/": if matching never looked at the end of the
+        // input, no longer input starting with "path/" could match either
+        String fullname = found.fullname();
+        int length = pathLength(fullname);
+        if (length == fullname.length()) {
+            fullname = fullname+'/';
+        }
+        Matcher matcher = local.get()[ALL];
+        return matcher.reset(fullname).region(0, length+1).matches() || matcher.hitEnd();
+    }
+
+    @Override
+    public boolean test(Found found) {
+        switch (mode) {
+        case excluding:
+            return !matches(found);
+        case including:
+        case only:
+        default:
+            if (found.directory()) {
+                return couldMatchBelow(found);
+            }
+            return matches(found);
+        }
+    }
+
+    /**
+     * Translates a glob to an anchored regular expression over {@code /}
+     * separated paths, following the glob syntax documented for
+     * {@link java.nio.file.FileSystem#getPathMatcher(String)}:
+     * <ul>
+     * <li>{@code *} matches within a name, {@code **} across names</li>
+     * <li>{@code ?} matches one character of a name</li>
+     * <li>{@code [...]} matches one character of a name from a set of
+     *     characters and ranges, negated by a leading {@code !}</li>
+     * <li>{@code {a,b}} matches any of its (unnested) subpatterns</li>
+     * <li>{@code \} quotes the following character</li>
+     * </ul>
+     * @param glob the glob (without the {@code glob:} prefix)
+     * @return the equivalent regular expression
+     * @throws PatternSyntaxException if the glob is invalid
+     */
+    public static String toRegex(String glob) {
+        return new Glob(glob).translate();
+    }
+
+    /**
+     * A single pass over a glob, appending the regular expression as it goes.
+     */
+    private static class Glob {
+        private final String glob;
+        private final StringBuilder regex;
+        private int at;
+
+        public Glob(String glob) {
+            this.glob = glob;
+            this.regex = new StringBuilder(glob.length()*2+2);
+            this.at = 0;
+        }
+
+        private boolean more() {
+            return at < glob.length();
+        }
+
+        private boolean peek(char c) {
+            return more() && glob.charAt(at) == c;
+        }
+
+        private PatternSyntaxException error(String message, int index) {
+            return new PatternSyntaxException(message, glob, index);
+        }
+
+        /**
+         * Appends {@code c} as a literal, quoting anything but letters and
+         * digits (a backslash makes any other character literal, in or out
+         * of a character class).
+         * @param c the character
+         */
+        private void literal(char c) {
+            if (!Character.isLetterOrDigit(c)) {
+                regex.append('\\');
+            }
+            regex.append(c);
+        }
+
+        public String translate() {
+            regex.append('^');
+            int group = -1; // where the open '{' is, if any
+            while (more()) {
+                char c = glob.charAt(at++);
+                if (c == '*') {
+                    if (peek('*')) {
+                        at++;
+                        regex.append(".*");
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else if (c == '[') {
+                    characterClass();
+                } else if (c == '{') {
+                    if (group >= 0) {
+                        throw error("Cannot nest groups", at-1);
+                    }
+                    group = at-1;
+                    regex.append("(?:(?:");
+                } else if (c == ',' && group >= 0) {
+                    regex.append(")|(?:");
+                } else if (c == '}' && group >= 0) {
+                    group = -1;
+                    regex.append("))");
+                } else if (c == '\\') {
+                    if (!more()) {
+                        throw error("No character to escape", at-1);
+                    }
+                    literal(glob.charAt(at++));
+                } else {
+                    literal(c);
+                }
+            }
+            if (group >= 0) {
+                throw error("Missing '}'", glob.length()-1);
+            }
+            return regex.append('$').toString();
+        }
+
+        /**
+         * Appends the character class starting after a {@code [}, as an
+         * intersection with {@code [^/]}, since no class matches a separator.
+         * A leading {@code !} negates the class, and a leading {@code -}
+         * (after any {@code !}) is literal, as is a {@code -} just before the
+         * closing {@code ]}.
+         */
+        private void characterClass() {
+            int open = at-1;
+            regex.append("[[^/]&&[");
+            if (peek('!')) {
+                at++;
+                regex.append('^');
+            }
+            boolean first = true;
+            while (more() && !peek(']')) {
+                char from = glob.charAt(at++);
+                if (from == '/') {
+                    throw error("Explicit 'name separator' in class", at-1);
+                } else if (from == '-' && !first) {
+                    throw error("Invalid range", at-1);
+                }
+                literal(from);
+                first = false;
+                if (peek('-') && at+1 < glob.length() && glob.charAt(at+1) != ']') {
+                    char to = glob.charAt(at+1);
+                    if (to == '/') {
+                        throw error("Explicit 'name separator' in class", at+1);
+                    } else if (to < from) {
+                        throw error("Invalid range", at-1);
+                    }
+                    regex.append('-');
+                    literal(to);
+                    at += 2;
+                } else if (peek('-')) {
+                    // a trailing '-' is literal
+                    at++;
+                    literal('-');
+                }
+            }
+            if (!more()) {
+                throw error("Missing ']'", open);
+            }
+            at++;
+            regex.append("]]");
+        }
+    }
+}
@@ -4,9 +4,12 @@ import java.io.File;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.util.Arrays;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 import com.google.common.io.ByteStreams;
 import com.google.gwt.thirdparty.guava.common.base.Strings;
@@ -29,6 +32,66 @@ public abstract class FoundInputStream extends FilterInputStream {
 
     abstract public void closeEntry() throws IOException;
 
+    /**
+     * Returns how many bytes of input reading an entry (or a buffer of its
+     * content) may consume beyond what it returns, for readers that are fed
+     * input as it arrives rather than reading it on demand.
+     * @return the lookahead in bytes, or 0 if it is small
+     * @throws IOException if the archive can not be read
+     */
+    public int lookahead() throws IOException {
+        return 0;
+    }
+
+    public static final int BUFFER_SIZE = 16384;
+
+    /**
+     * Unzips the rest of the archive: each entry passing {@code filter} is
+     * handed to {@code processor}, and its content is copied to the stream
+     * the processor returns (if any), after which the modified time is set.
+     * An archive whose entries are interleaved overrides this to copy the
+     * contents of several entries at the same time, on other threads.
+     * @param filter selects the entries to unzip
+     * @param processor returns the stream for the content of an entry, or {@code null}
+     * @param interrupted stops unzipping when it returns {@code true}
+     * @throws IOException if the archive can not be read or an entry can not be written
+     */
+    public void unzip(Predicate<Found> filter, UnzipProcessor processor, BooleanSupplier interrupted) throws IOException {
+        Found found;
+        byte[] buf = new byte[BUFFER_SIZE];
+        while (!interrupted.getAsBoolean() && (found = getNextEntry()) != null) {
+            if (filter.test(found)) {
+                OutputStream out = processor.process(found);
+                if (out!=null) {
+                    try {
+                        int n;
+                        while (!interrupted.getAsBoolean() && (n = read(buf)) >= 0) {
+                            out.write(buf, 0,  n);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                    modified(found);
+                }
+            }
+            closeEntry();
+        }
+    }
+
+    /**
+     * Sets the modified time of an unzipped entry, if it has one.
+     * @param found the entry
+     */
+    protected static void modified(Found found) {
+        if (found.modified() >= 0) {
+            try {
+                found.file().setLastModified(found.modified());
+            } catch (Exception ignore) {
+                // don't worry about it -- some URIs don't allow this
+            }
+        }
+    }
+
     @Override
     public int read() throws IOException {
         return in.read();
@@ -52,6 +115,10 @@ public abstract class FoundInputStream extends FilterInputStream {
 
     public static final byte[] ZIP_SIGNATURE = new byte[] {0x50, 0x4B, 0x03, 0x04};
     public static final byte[] CLEO_SIGNATURE = new byte[] {0x0C, 0x4C, 0x0E, 0x00};
+    public static final byte[] ZAP2_SIGNATURE = new byte[] {0x0C, 0x4C, 0x0E, 0x02};
+    public static final byte[] ZAP_SOLID_SIGNATURE = new byte[] {0x0C, 0x4C, 0x0E, 0x03};
+    public static final byte[] ZAP_DICTIONARY_SIGNATURE = new byte[] {0x0C, 0x4C, 0x0E, 0x04};
+    public static final byte[] ZAP_MUX_SIGNATURE = new byte[] {0x0C, 0x4C, 0x0E, 0x05};
 
     public static FoundInputStream getFoundInputStream(InputStream in, String filename) throws IOException {
         PushbackInputStream push = new PushbackInputStream(in, ZIP_SIGNATURE.length);
@@ -60,7 +127,9 @@ public abstract class FoundInputStream extends FilterInputStream {
         push.unread(sig);
         if (Arrays.equals(sig, ZIP_SIGNATURE)) {
             return new ZipFoundInputStream(push);
-        } else if (Arrays.equals(sig, CLEO_SIGNATURE)) {
+        } else if (Arrays.equals(sig, CLEO_SIGNATURE) || Arrays.equals(sig, ZAP2_SIGNATURE)
+                || Arrays.equals(sig, ZAP_SOLID_SIGNATURE) || Arrays.equals(sig, ZAP_DICTIONARY_SIGNATURE)
+                || Arrays.equals(sig, ZAP_MUX_SIGNATURE)) {
             return new ZapFoundInputStream(push);
         } else if (!Strings.isNullOrEmpty(filename)) {
             return new BytesFoundInputStream(push, filename);
@@ -5,6 +5,7 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.function.Function;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 
 public abstract class FoundOutputStream extends FilterOutputStream {
@@ -43,11 +44,31 @@ public abstract class FoundOutputStream extends FilterOutputStream {
     public static final int ZAP_LEVEL = -2;
 
     public static FoundOutputStream getFoundOutputStream(OutputStream out, int level) throws IOException {
+        return getFoundOutputStream(out, level, Deflater.NO_COMPRESSION, false, null, 1);
+    }
+
+    /**
+     * Returns a zap archive for {@link #ZAP_LEVEL}, compressing its entries (or
+     * the whole archive, if {@code solid}) at {@code zapLevel}, or a zip archive
+     * compressed at {@code level}.
+     * @param out the stream to write the archive to
+     * @param level a {@link Deflater} level, or {@link #ZAP_LEVEL}
+     * @param zapLevel the {@link Deflater} level for a zap archive
+     * @param solid {@code true} to compress a zap archive as a whole
+     * @param dictionary a preset dictionary for the entries of a zap archive,
+     * or {@code null} (zip archives have no way to carry one)
+     * @param deflateThreads the number of threads compressing each large file
+     * of a zip archive (see {@link ParallelDeflater})
+     * @return the archive
+     * @throws IOException if the archive can not be started
+     */
+    public static FoundOutputStream getFoundOutputStream(OutputStream out, int level, int zapLevel, boolean solid,
+            PresetDictionary dictionary, int deflateThreads) throws IOException {
         if (level == ZAP_LEVEL) {
-            ZapFoundOutputStream zap = new ZapFoundOutputStream(out);
+            ZapFoundOutputStream zap = new ZapFoundOutputStream(out, zapLevel, solid, dictionary);
             return zap;
         } else {
-            ZipFoundOutputStream zip = new ZipFoundOutputStream(out);
+            ZipFoundOutputStream zip = new ZipFoundOutputStream(out, deflateThreads);
             zip.zip().setMethod(ZipEntry.DEFLATED);
             zip.zip().setLevel(level);
             return zip;
@@ -0,0 +1,281 @@
+package com.cleo.labs.util.zip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Computes a rolled-up hash for each directory over its (filtered) contents:
+ * the name, length and modified time of each file and the name and hash of
+ * each subdirectory. Two directories with the same hash would replicate as
+ * all {@link Found.Operation#match}, so a replicating {@link Finder} can skip a
+ * subtree whose hash matches the one in the remote directory listing
+ * without listing, comparing or sending any of it.
+ * <p/>
+ * Modified times are hashed in the same 2-second resolution that
+ * {@link Found#calculateReplica(Found)} tolerates (which is also the
+ * resolution of zip timestamps), and directory modified times are not
+ * hashed at all, since replication does not preserve them.
+ * <p/>
+ * So that computing hashes does not itself cost a full scan, the contents
+ * and hash of each directory are kept in a cache directory, with one small
+ * file per directory, and reused under the same rules as a {@link ScanIndex}:
+ * the directory modified time is unchanged, the entry was recorded well
+ * after that time, and when {@code verify} is set (the default) each
+ * remembered file still has the same modified time and length. An unchanged
+ * tree is then hashed with a file read per directory and an attribute lookup
+ * per entry, but without listing any directory.
+ * <p/>
+ * The hashes depend on the filter, so the {@code key} identifying the
+ * filter is part of the cache entry names. Hashes are remembered in memory
+ * once computed, so a {@code HashTree} reflects the tree at the time it was
+ * first asked and should be used for a single listing or transfer.
+ */
+public class HashTree {
+
+    private static final int MAGIC = 0x0C4C4854; // .LHT
+    private static final long DEFAULT_RACY_INTERVAL = 2000L;
+    private static final long RESOLUTION = 2000L;
+
+    private DirectoryScanner scanner;
+    private Predicate<Found> filter;
+    private File cacheDirectory;
+    private String key;
+    private boolean verify;
+    private long racyInterval;
+    private Consumer<String> debug;
+
+    private Map<String,byte[]> hashes;
+    private AtomicLong hits;
+    private AtomicLong misses;
+
+    /**
+     * Creates a new hash tree cached in {@code cacheDirectory}.
+     * @param scanner the scanner to list directories that are not cached
+     * @param filter the filter applied to the contents of each directory
+     * @param key a string identifying the filter
+     * @param cacheDirectory the cache directory (created as needed)
+     */
+    public HashTree(DirectoryScanner scanner, Predicate<Found> filter, String key, File cacheDirectory) {
+        this.scanner = scanner;
+        this.filter = filter;
+        this.key = key;
+        this.cacheDirectory = cacheDirectory;
+        this.verify = true;
+        this.racyInterval = DEFAULT_RACY_INTERVAL;
+        this.debug = s->{};
+        this.hashes = new HashMap<>();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    public HashTree verify(boolean verify) {
+        this.verify = verify;
+        return this;
+    }
+
+    public HashTree racyInterval(long racyInterval, TimeUnit unit) {
+        this.racyInterval = unit.toMillis(racyInterval);
+        return this;
+    }
+
+    public HashTree debug(Consumer<String> debug) {
+        if (debug==null) {
+            this.debug = s->{};
+        } else {
+            this.debug = debug;
+        }
+        return this;
+    }
+
+    /**
+     * Returns the number of directories whose contents were reused from the cache.
+     * @return the hit count
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of directories that had to be listed.
+     * @return the miss count
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hash tree %s: %d hits, %d misses", cacheDirectory.getPath(), hits(), misses());
+    }
+
+    /**
+     * Returns the hash of a directory and everything under it, computing
+     * (and caching) the hashes of all its subdirectories as needed.
+     * @param dir the directory
+     * @return the hash
+     * @throws IOException
+     */
+    public synchronized byte[] hash(Found dir) throws IOException {
+        byte[] hash = hashes.get(dir.fullname());
+        if (hash == null) {
+            hash = compute(dir);
+        }
+        return hash;
+    }
+
+    /**
+     * A directory as remembered in the cache.
+     */
+    private static class Node {
+        private long modified;
+        private long indexed;
+        private byte[] hash;
+        private List<Found> contents;
+    }
+
+    private byte[] compute(Found dir) throws IOException {
+        File directory = dir.file();
+        File index = indexFile(directory);
+        long modified = directory.lastModified();
+        Node node = read(dir, index);
+        List<Found> contents;
+        long indexed = System.currentTimeMillis();
+        if (node != null && modified != 0L && node.modified == modified &&
+                node.indexed - modified >= racyInterval &&
+                (!verify || node.contents.stream().allMatch(HashTree::unchanged))) {
+            hits.incrementAndGet();
+            contents = node.contents;
+            indexed = node.indexed;
+        } else {
+            misses.incrementAndGet();
+            try (Stream<Found> scanned = scanner.scan(dir)) {
+                contents = scanned.filter(filter).collect(Collectors.toList());
+            }
+            node = null;
+        }
+        contents.sort(Comparator.comparing(Found::fullname));
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (Found child : contents) {
+            String name = child.file().getName();
+            hasher.putBoolean(child.directory())
+                .putInt(name.length())
+                .putString(name, StandardCharsets.UTF_8);
+            if (child.directory()) {
+                hasher.putBytes(compute(child));
+            } else {
+                hasher.putLong(child.length())
+                    .putLong(Math.floorDiv(child.modified(), RESOLUTION));
+            }
+        }
+        byte[] hash = hasher.hash().asBytes();
+        if (node == null || !Arrays.equals(hash, node.hash)) {
+            write(index, modified, indexed, hash, contents);
+        }
+        hashes.put(dir.fullname(), hash);
+        return hash;
+    }
+
+    private static boolean unchanged(Found child) {
+        File file = child.file();
+        if (child.directory()) {
+            return file.isDirectory();
+        } else {
+            return file.lastModified() == child.modified() && file.length() == child.length();
+        }
+    }
+
+    private File indexFile(File directory) {
+        String hash = Hashing.murmur3_128()
+                .hashString(key+'\0'+directory.getAbsolutePath(), StandardCharsets.UTF_8)
+                .toString();
+        return new File(new File(cacheDirectory, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    private Node read(Found dir, File index) {
+        if (!index.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            Node node = new Node();
+            node.modified = in.readLong();
+            node.indexed = in.readLong();
+            node.hash = new byte[in.readUnsignedByte()];
+            in.readFully(node.hash);
+            int count = in.readInt();
+            node.contents = new ArrayList<>(count);
+            for (int i=0; i<count; i++) {
+                boolean directory = in.readBoolean();
+                String name = in.readUTF();
+                long length = in.readLong();
+                long modified = in.readLong();
+                node.contents.add(dir.child(scanner.resolve(dir.file(), name), directory, length, modified));
+            }
+            return node;
+        } catch (IOException e) {
+            // a damaged cache entry is just a miss
+            debug.accept("hash tree: unable to read "+index.getPath()+": "+e);
+            return null;
+        }
+    }
+
+    private void write(File index, long modified, long indexed, byte[] hash, List<Found> contents) {
+        try {
+            index.getParentFile().mkdirs();
+            File temp = File.createTempFile("hash", ".tmp", index.getParentFile());
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeLong(modified);
+                    out.writeLong(indexed);
+                    out.writeByte(hash.length);
+                    out.write(hash);
+                    out.writeInt(contents.size());
+                    for (Found child : contents) {
+                        out.writeBoolean(child.directory());
+                        out.writeUTF(child.file().getName());
+                        out.writeLong(child.length());
+                        out.writeLong(child.modified());
+                    }
+                }
+                try {
+                    Files.move(temp.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            // the cache is an optimization: a failure to update it just means a miss next time
+            debug.accept("hash tree: unable to write "+index.getPath()+": "+e);
+        }
+    }
+}
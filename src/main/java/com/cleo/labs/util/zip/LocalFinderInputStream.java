@@ -5,6 +5,9 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
@@ -16,15 +19,43 @@ public class LocalFinderInputStream extends FilterInputStream implements LambdaW
 
     private static final ObjectMapper mapper = new ObjectMapper();
 
+    /**
+     * The encoding of the directory listing:
+     * <ul>
+     * <li>{@code json} is a sequence of JSON encoded directories, each
+     *     preceded by its length in 4 bytes, which all versions can read</li>
+     * <li>{@code binary} is the more compact {@link BinaryListing} format,
+     *     which {@link RemoteFinderStreamDecoder} recognizes automatically</li>
+     * </ul>
+     */
+    public enum ListingFormat {json, binary};
+
     private Iterator<Found> directories;
+    private ListingFormat format;
+    private BinaryListing.Writer binary;
+    private HashTree hashTree;
+    private ChecksumCache checksums;
+    private SignatureCache signatures;
+    private boolean continued;
+    private NavigableSet<String> only;
+    private String token;
 
     private OutputStream output;
     private LambdaWriterInputStream input;
     private Consumer<String> debug;
 
-    private LocalFinderInputStream(Finder finder, Consumer<String> debug) {
+    private LocalFinderInputStream(Finder finder, ListingFormat format, HashTree hashTree, ChecksumCache checksums,
+            SignatureCache signatures, NavigableSet<String> only, String token, Consumer<String> debug) {
         super(null);
         this.directories = finder.directoryMode(DirectoryMode.only);
+        this.format = format;
+        this.binary = null;
+        this.hashTree = hashTree;
+        this.checksums = checksums;
+        this.signatures = signatures;
+        this.continued = false;
+        this.only = only;
+        this.token = token;
         this.input = new LambdaWriterInputStream(this);
         this.in = input;
         this.output = input.getOutputStream();
@@ -34,6 +65,16 @@ public class LocalFinderInputStream extends FilterInputStream implements LambdaW
     public static class Builder {
         private File path = null;
         private Predicate<Found> filter = Finder.ALL;
+        private DirectoryScanner scanner = DirectoryScanner.FILE;
+        private int parallelism = 1;
+        private int pageSize = 0;
+        private int runSize = 0;
+        private ListingFormat format = ListingFormat.json;
+        private HashTree hashTree = null;
+        private ChecksumCache checksums = null;
+        private SignatureCache signatures = null;
+        private NavigableSet<String> only = null;
+        private String token = null;
         private Consumer<String> debug = s->{};
 
         public Builder(File path) {
@@ -45,6 +86,94 @@ public class LocalFinderInputStream extends FilterInputStream implements LambdaW
             return this;
         }
 
+        public Builder scanner(DirectoryScanner scanner) {
+            this.scanner = scanner;
+            return this;
+        }
+
+        public Builder parallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Lists directories with more than {@code pageSize} entries in pages
+         * (see {@link Finder#pageSize(int)}), which a {@link RemoteFinderStreamDecoder}
+         * joins back together unless the reader can use them as they are.
+         * With a {@code runSize}, the directory is not held in memory either.
+         * @param pageSize the maximum entries per page, or {@code 0} not to page
+         * @param runSize the maximum entries sorted in memory, or {@code 0}
+         * @return this
+         */
+        public Builder pageSize(int pageSize, int runSize) {
+            this.pageSize = pageSize;
+            this.runSize = runSize;
+            return this;
+        }
+
+        public Builder format(ListingFormat format) {
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * Includes the hash of each directory from {@code hashTree} in the listing,
+         * which must have been built with the same filter.
+         * @param hashTree the hash tree, or {@code null}
+         * @return this
+         */
+        public Builder hashTree(HashTree hashTree) {
+            this.hashTree = hashTree;
+            return this;
+        }
+
+        /**
+         * Includes the remembered checksum of each file from {@code checksums}
+         * in the listing. Files are not read to compute missing checksums.
+         * @param checksums the checksum cache, or {@code null}
+         * @return this
+         */
+        public Builder checksums(ChecksumCache checksums) {
+            this.checksums = checksums;
+            return this;
+        }
+
+        /**
+         * Includes the {@link BlockDelta} signatures of each large file from
+         * {@code signatures} in the listing, so that changed files can be
+         * sent as a delta. Missing signatures are computed (and remembered).
+         * @param signatures the signature cache, or {@code null}
+         * @return this
+         */
+        public Builder signatures(SignatureCache signatures) {
+            this.signatures = signatures;
+            return this;
+        }
+
+        /**
+         * Lists only the directories named in {@code directories} (for
+         * example those changed according to a {@link ChangeLog}). The
+         * directories leading to them are traversed, but not listed.
+         * @param directories the full names of the directories to list
+         * ({@link ChangeLog#ROOT} for the root), or {@code null} to list all
+         * @return this
+         */
+        public Builder only(Set<String> directories) {
+            this.only = directories == null ? null : new TreeSet<>(directories);
+            return this;
+        }
+
+        /**
+         * Follows the directories with a record of {@code token}, which
+         * the reader gets from {@link RemoteFinderStreamDecoder#token()}.
+         * @param token the {@link ChangeLog} token, or {@code null}
+         * @return this
+         */
+        public Builder token(String token) {
+            this.token = token;
+            return this;
+        }
+
         public Builder debug(Consumer<String> debug) {
             this.debug = debug;
             return this;
@@ -57,13 +186,25 @@ public class LocalFinderInputStream extends FilterInputStream implements LambdaW
             if (debug == null) {
                 debug = s->{};
             }
-            Finder finder = new Finder(path).filter(filter).debug(debug);
+            Finder finder = new Finder(path).filter(filter).scanner(scanner).parallelism(parallelism).debug(debug);
+            if (pageSize > 0) {
+                finder.pageSize(pageSize).runSize(runSize);
+            }
+            if (only != null) {
+                NavigableSet<String> names = only;
+                finder.descend(d -> {
+                    // a listed directory, or one on the way to one
+                    String next = names.ceiling(d.fullname());
+                    return d.depth()==0 ? !names.isEmpty() : next != null && next.startsWith(d.fullname());
+                });
+            }
             return finder;
         }
 
         public LocalFinderInputStream build() {
             Finder finder = setupFinder();
-            return new LocalFinderInputStream(finder, debug);
+            return new LocalFinderInputStream(finder, format == null ? ListingFormat.json : format, hashTree, checksums, signatures,
+                    only, token, debug);
         }
     }
 
@@ -73,12 +214,41 @@ public class LocalFinderInputStream extends FilterInputStream implements LambdaW
 
     @Override
     public void write(OutputStream out) throws IOException {
-        if (directories.hasNext()) {
-            Found directory = directories.next();
+        Found directory = null;
+        while (directory == null && directories.hasNext()) {
+            directory = directories.next();
+            if (only != null && !only.contains(directory.fullname())) {
+                // just on the way to a listed directory
+                directory = null;
+            }
+        }
+        if (directory == null && token != null) {
+            directory = new Found().token(token);
+            token = null;
+        }
+        if (directory != null) {
             debug.accept("directory.listing includes "+directory);
-            byte[] buffer = mapper.writeValueAsBytes(directory);
-            output.write(Ints.toByteArray(buffer.length));
-            output.write(buffer);
+            if (hashTree != null && !continued && directory.token() == null) {
+                // the hash goes with the first page
+                directory.hash(hashTree.hash(directory));
+            }
+            continued = directory.more();
+            if (checksums != null) {
+                checksums.fill(directory);
+            }
+            if (signatures != null) {
+                signatures.fill(directory);
+            }
+            if (format == ListingFormat.binary) {
+                if (binary == null) {
+                    binary = new BinaryListing.Writer(output);
+                }
+                binary.write(directory);
+            } else {
+                byte[] buffer = mapper.writeValueAsBytes(directory);
+                output.write(Ints.toByteArray(buffer.length));
+                output.write(buffer);
+            }
         } else {
             output.close();
         }
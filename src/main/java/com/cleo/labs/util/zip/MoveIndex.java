@@ -0,0 +1,183 @@
+package com.cleo.labs.util.zip;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.cleo.labs.util.zip.Found.Operation;
+
+/**
+ * Matches the files a replica would {@link Operation#delete} with the files
+ * it would {@link Operation#add} anywhere in the tree, so that a renamed
+ * file or directory is sent as a {@link Operation#move} of the remote file
+ * instead of a delete and a full copy.
+ * <p/>
+ * As the {@link Finder} walks the tree, each candidate add or delete is
+ * offered to the index, which either returns the {@code move} it completes
+ * or holds on to it (keyed by length) hoping for a partner to come along.
+ * Files match if they have the same length and, when the remote listing
+ * includes a {@link ChecksumCache} checksum, the same checksum and modified
+ * time (give or take 2 seconds). Without checksums, batches of files of the
+ * same size and time would match each other, so the files must also have
+ * the same name and exactly the same modified time. A file that matches
+ * more than one partner is not a move, as there is no telling which is right.
+ * <p/>
+ * The index holds at most {@code capacity} files: when it is full, the
+ * file held longest is given up and returned to be sent as it was.
+ * Whatever is left at the end is returned by {@link #drain()}.
+ */
+public class MoveIndex {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private static final long WIGGLE = 2000L;
+
+    private int capacity;
+    private ChecksumCache checksums;
+    private Map<Long,List<Found>> adds;
+    private Map<Long,List<Found>> deletes;
+    private LinkedHashSet<Found> held;
+    private int moves;
+
+    /**
+     * Creates a new index.
+     * @param capacity the maximum number of files held
+     * @param checksums the local checksums, or {@code null}
+     */
+    public MoveIndex(int capacity, ChecksumCache checksums) {
+        this.capacity = capacity;
+        this.checksums = checksums;
+        this.adds = new HashMap<>();
+        this.deletes = new HashMap<>();
+        this.held = new LinkedHashSet<>();
+        this.moves = 0;
+    }
+
+    /**
+     * Returns {@code true} if {@code found} is a file that could be
+     * part of a move. Empty files are cheaper to send than to match.
+     * @param found the file
+     * @return {@code true} for the adds and deletes of non-empty files
+     */
+    public static boolean candidate(Found found) {
+        return !found.directory() && found.length() > 0 &&
+                (found.operation() == Operation.add || found.operation() == Operation.delete);
+    }
+
+    /**
+     * Offers a candidate add or delete to the index, returning either
+     * the {@code move} it completes, a file given up to make room for it,
+     * or {@code null} if it is just held.
+     * @param found the candidate
+     * @return a {@code Found} to send now, or {@code null}
+     */
+    public Found offer(Found found) {
+        boolean add = found.operation() == Operation.add;
+        Found partner = take(add ? deletes : adds, found, add);
+        if (partner != null) {
+            moves++;
+            return add ? move(found, partner) : move(partner, found);
+        }
+        (add ? adds : deletes).computeIfAbsent(found.length(), l -> new ArrayList<>(1)).add(found);
+        held.add(found);
+        if (held.size() > capacity) {
+            Found eldest = held.iterator().next();
+            remove(eldest);
+            return eldest;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the files still held, in the order they were offered,
+     * leaving the index empty.
+     * @return the files to send as they were
+     */
+    public List<Found> drain() {
+        List<Found> result = new ArrayList<>(held);
+        held.clear();
+        adds.clear();
+        deletes.clear();
+        return result;
+    }
+
+    /**
+     * Returns the number of moves matched so far.
+     * @return the number of moves
+     */
+    public int moves() {
+        return moves;
+    }
+
+    private static Found move(Found add, Found delete) {
+        return add.operation(Operation.move).source(delete);
+    }
+
+    /**
+     * Removes and returns the one partner for {@code found} from {@code index},
+     * or returns {@code null} if there is none, or more than one.
+     */
+    private Found take(Map<Long,List<Found>> index, Found found, boolean add) {
+        List<Found> candidates = index.get(found.length());
+        if (candidates == null) {
+            return null;
+        }
+        Found partner = null;
+        for (Found candidate : candidates) {
+            if (add ? matches(found, candidate) : matches(candidate, found)) {
+                if (partner != null) {
+                    return null;
+                }
+                partner = candidate;
+            }
+        }
+        if (partner != null) {
+            remove(partner);
+        }
+        return partner;
+    }
+
+    private void remove(Found found) {
+        held.remove(found);
+        Map<Long,List<Found>> index = found.operation() == Operation.add ? adds : deletes;
+        List<Found> list = index.get(found.length());
+        for (Iterator<Found> i = list.iterator(); i.hasNext();) {
+            if (i.next() == found) {
+                i.remove();
+                break;
+            }
+        }
+        if (list.isEmpty()) {
+            index.remove(found.length());
+        }
+    }
+
+    /**
+     * Returns {@code true} if the local {@code add} file has the same
+     * contents as the remote {@code delete} file, as far as we can tell.
+     */
+    private boolean matches(Found add, Found delete) {
+        if (add.length() != delete.length()) {
+            return false;
+        } else if (checksums != null && delete.checksum() != ChecksumCache.UNKNOWN_CHECKSUM && add.file() != null) {
+            if (Math.abs(add.modified() - delete.modified()) > WIGGLE) {
+                return false;
+            }
+            try {
+                return checksums.checksum(add) == delete.checksum();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return add.modified() == delete.modified() && name(add).equals(name(delete));
+    }
+
+    private static String name(Found found) {
+        String[] path = found.path();
+        return path.length == 0 ? "" : path[path.length-1];
+    }
+}
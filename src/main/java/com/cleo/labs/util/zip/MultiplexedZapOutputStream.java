@@ -0,0 +1,256 @@
+package com.cleo.labs.util.zip;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes the multiplexed zap archive format, in which the contents of
+ * several entries are written at the same time, each from its own thread,
+ * as chunks interleaved in the archive. The archive is signed with
+ * {@link FoundInputStream#ZAP_MUX_SIGNATURE}, followed by the chunk size
+ * and a sequence of frames, each a type byte and an entry id:
+ * <ul>
+ * <li>{@link #OPEN} is followed by the {@link Found} entry and, for the
+ *     operations that have content, a method byte ({@link ZipEntry#STORED}
+ *     or {@link ZipEntry#DEFLATED})</li>
+ * <li>{@link #DATA} is followed by a length (at most the chunk size) and
+ *     that many bytes of the entry's (possibly deflated) content</li>
+ * <li>{@link #CLOSE} ends the entry's content</li>
+ * <li>{@link #END} (with no id) ends the archive</li>
+ * </ul>
+ * Entries are opened in the order of their {@link #OPEN} frames, so the
+ * operations without content keep their order, but their contents may
+ * finish in any order. Each entry in flight holds a chunk buffer (and a
+ * {@link Deflater}, reused from entry to entry), so the memory used is
+ * the number of entries in flight times the chunk size. The deflaters of
+ * entries that never close (because copying their content failed) are
+ * ended with the archive.
+ * <p/>
+ * The typical sequence, on each of several threads, is:
+ * <pre>
+ * Entry entry = zap.entry();
+ * entry.open(found);
+ * ...write the content to entry...
+ * entry.close();
+ * </pre>
+ * followed by {@link #close()} once all the entries are closed.
+ */
+public class MultiplexedZapOutputStream implements Closeable {
+
+    public static final int END = 0;
+    public static final int OPEN = 1;
+    public static final int DATA = 2;
+    public static final int CLOSE = 3;
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private DataOutputStream out;
+    private int level;
+    private int chunkSize;
+    private int nextId;
+    private ConcurrentLinkedQueue<Deflater> deflaters;
+    private Set<Deflater> active;
+    private boolean closed;
+
+    /**
+     * Creates a multiplexed zap archive compressing the content of its
+     * entries at {@code level}.
+     * @param out the stream to write the archive to
+     * @param level a {@link Deflater} level, or {@link Deflater#NO_COMPRESSION}
+     * @param chunkSize the largest chunk of content in a frame
+     * @throws IOException if the signature can not be written
+     */
+    public MultiplexedZapOutputStream(OutputStream out, int level, int chunkSize) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.level = level;
+        this.chunkSize = chunkSize;
+        this.nextId = 0;
+        this.deflaters = new ConcurrentLinkedQueue<>();
+        this.active = ConcurrentHashMap.newKeySet();
+        this.closed = false;
+        this.out.write(FoundInputStream.ZAP_MUX_SIGNATURE);
+        this.out.writeInt(chunkSize);
+    }
+
+    /**
+     * Creates a new entry, which writes nothing until it is {@link Entry#open(Found) opened}.
+     * @return the entry
+     */
+    public synchronized Entry entry() {
+        return new Entry(nextId++);
+    }
+
+    private synchronized void open(int id, Found found, int method) throws IOException {
+        out.writeByte(OPEN);
+        out.writeInt(id);
+        found.write(out);
+        if (found.operation().content()) {
+            out.writeByte(method);
+        }
+    }
+
+    private synchronized void frame(int type, int id, byte[] b, int len) throws IOException {
+        out.writeByte(type);
+        out.writeInt(id);
+        if (type == DATA) {
+            out.writeInt(len);
+            out.write(b, 0, len);
+        }
+    }
+
+    /**
+     * An entry in the archive, whose content is written to it as an
+     * {@code OutputStream} from a single thread.
+     */
+    public class Entry extends OutputStream {
+        private int id;
+        private byte[] chunk;
+        private int count;
+        private Deflater deflater;
+        private DeflaterOutputStream deflated;
+        private boolean opened;
+        private boolean content;
+
+        private Entry(int id) {
+            this.id = id;
+            this.chunk = null;
+            this.count = 0;
+            this.deflater = null;
+            this.deflated = null;
+            this.opened = false;
+            this.content = false;
+        }
+
+        /**
+         * Writes the entry to the archive, after which its content (if any) may be written.
+         * @param found the entry
+         * @throws IOException if the entry can not be written
+         */
+        public void open(Found found) throws IOException {
+            content = found.operation().content();
+            int method = ZipEntry.STORED;
+            if (content) {
+                if (level != Deflater.NO_COMPRESSION &&
+                        !(found.length() == 0L && found.operation() == Found.Operation.add)) {
+                    method = ZipEntry.DEFLATED;
+                    deflater = deflaters.poll();
+                    if (deflater == null) {
+                        deflater = new Deflater(level, true);
+                    }
+                    active.add(deflater);
+                    deflated = new DeflaterOutputStream(new Chunker(), deflater, EmbeddedOutputStream.DEFAULT_BUFSIZE);
+                }
+            }
+            MultiplexedZapOutputStream.this.open(id, found, method);
+            opened = true;
+        }
+
+        private void chunk() throws IOException {
+            if (count > 0) {
+                frame(DATA, id, chunk, count);
+                count = 0;
+            }
+        }
+
+        private void buffer(byte[] b, int off, int len) throws IOException {
+            if (chunk == null) {
+                chunk = new byte[chunkSize];
+            }
+            while (len > 0) {
+                int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == chunk.length) {
+                    chunk();
+                }
+            }
+        }
+
+        /**
+         * Feeds the deflated content into the chunk buffer.
+         */
+        private class Chunker extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                buffer(new byte[] {(byte)b}, 0, 1);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                buffer(b, off, len);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!content) {
+                throw new IOException("entry "+id+" has no content");
+            } else if (deflated != null) {
+                deflated.write(b, off, len);
+            } else {
+                buffer(b, off, len);
+            }
+        }
+
+        /**
+         * Ends the content of the entry. An entry without content needs no close.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!opened || !content) {
+                return;
+            }
+            opened = false;
+            if (deflated != null) {
+                deflated.finish();
+                deflater.reset();
+                active.remove(deflater);
+                deflaters.add(deflater);
+                deflater = null;
+                deflated = null;
+            }
+            chunk();
+            chunk = null;
+            frame(CLOSE, id, null, 0);
+        }
+    }
+
+    /**
+     * Ends the archive, which must be done only once every entry is closed
+     * (or has failed, when the archive is closed as it is abandoned).
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                out.writeByte(END);
+                out.flush();
+            } finally {
+                Deflater deflater;
+                while ((deflater = deflaters.poll()) != null) {
+                    deflater.end();
+                }
+                for (Deflater leftover : active) {
+                    leftover.end();
+                }
+                active.clear();
+                out.close();
+            }
+        }
+    }
+}
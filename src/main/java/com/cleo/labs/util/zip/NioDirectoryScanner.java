@@ -0,0 +1,124 @@
+package com.cleo.labs.util.zip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A {@link DirectoryScanner} built on {@code Files.newDirectoryStream}
+ * that fetches the {@code BasicFileAttributes} of each child in a
+ * single call, instead of the listing plus three lookups per child
+ * that {@link DirectoryScanner#FILE} costs. This matters most on
+ * network file systems, where each lookup is a round trip.
+ * <p/>
+ * Directories that can not be mapped to a {@code Path} on a real file
+ * system (the {@code pathResolver} returns {@code null}) are handed
+ * to the {@code fallback} scanner. By default only plain {@code java.io.File}
+ * objects are mapped, so {@code File} subclasses like URI-based files
+ * keep their own semantics.
+ */
+public class NioDirectoryScanner implements DirectoryScanner {
+
+    private Function<File,Path> pathResolver = f -> f.getClass()==File.class ? f.toPath() : null;
+    private BiFunction<File,String,File> childResolver = File::new;
+    private DirectoryScanner fallback = DirectoryScanner.FILE;
+
+    /**
+     * Sets the function that maps a directory {@code File} to a {@code Path},
+     * returning {@code null} for directories that must use the {@code fallback}.
+     * @param pathResolver the {@code File} to {@code Path} mapper
+     * @return {@code this} for fluent style
+     */
+    public NioDirectoryScanner pathResolver(Function<File,Path> pathResolver) {
+        this.pathResolver = pathResolver;
+        return this;
+    }
+
+    /**
+     * Sets the function that creates the {@code File} for a child
+     * of a directory, so that children are created using the same
+     * {@code File} subclass as the directory.
+     * @param childResolver the parent {@code File} and child name to {@code File} mapper
+     * @return {@code this} for fluent style
+     */
+    public NioDirectoryScanner childResolver(BiFunction<File,String,File> childResolver) {
+        this.childResolver = childResolver;
+        return this;
+    }
+
+    /**
+     * Sets the scanner to use for directories the {@code pathResolver}
+     * can not map.
+     * @param fallback the fallback scanner
+     * @return {@code this} for fluent style
+     */
+    public NioDirectoryScanner fallback(DirectoryScanner fallback) {
+        this.fallback = fallback;
+        return this;
+    }
+
+    /**
+     * Opens the directory stream for {@code path}.
+     * @param path the directory {@code Path}
+     * @return the open {@code DirectoryStream}
+     * @throws IOException
+     */
+    protected DirectoryStream<Path> open(Path path) throws IOException {
+        return Files.newDirectoryStream(path);
+    }
+
+    /**
+     * Reads the attributes of a single directory entry (following links,
+     * as {@code File} does).
+     * @param entry the entry {@code Path}
+     * @return the attributes
+     * @throws IOException
+     */
+    protected BasicFileAttributes attributes(Path entry) throws IOException {
+        return Files.readAttributes(entry, BasicFileAttributes.class);
+    }
+
+    private Found child(Found directory, Path entry) {
+        File file = resolve(directory.file(), entry.getFileName().toString());
+        try {
+            BasicFileAttributes attributes = attributes(entry);
+            return directory.child(file, attributes.isDirectory(), attributes.size(),
+                    attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            // dangling links or entries deleted since listing: look like File does
+            return directory.child(file, false, 0L, 0L);
+        }
+    }
+
+    @Override
+    public File resolve(File directory, String name) {
+        return childResolver.apply(directory, name);
+    }
+
+    @Override
+    public Stream<Found> scan(Found directory) throws IOException {
+        Path path = pathResolver.apply(directory.file());
+        if (path == null) {
+            return fallback.scan(directory);
+        }
+        DirectoryStream<Path> entries = open(path);
+        return StreamSupport.stream(entries.spliterator(), false)
+                .onClose(() -> {
+                    try {
+                        entries.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .map(entry -> child(directory, entry));
+    }
+
+}
@@ -0,0 +1,283 @@
+package com.cleo.labs.util.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A raw {@link Deflater} that can compress a large entry on several threads,
+ * the way pigz does: the input is split into blocks, each block is deflated
+ * on a pool with the last 32KB of the block before it as the dictionary (so
+ * little is lost at the block boundaries), and the blocks are joined in order
+ * into a single deflate stream. Every block but the last ends with a sync flush,
+ * which ends it on a byte boundary without ending the stream, and the last
+ * block ends the stream, so the result can be inflated by any reader.
+ * <p/>
+ * It stands in for the deflater of a {@link ZipOutputStream} (which is a
+ * {@link DeflaterOutputStream}), so the zip framing, the CRC-32 (computed by
+ * the {@code ZipOutputStream} over the input it is given) and the sizes (read
+ * back from {@link #getBytesRead()} and {@link #getBytesWritten()}) are
+ * unchanged. Only entries {@link #parallel(boolean) marked parallel} are split;
+ * the others are deflated as usual, on the calling thread.
+ * <p/>
+ * Up to twice as many blocks as threads are in flight at a time, after which
+ * {@link #needsInput()} returns {@code false} until the oldest block has been
+ * written out.
+ * <p/>
+ * {@link #end()} stops the threads. Threads left idle (by a stream that was
+ * never closed, say) end on their own after {@link #KEEP_ALIVE_SECONDS}.
+ */
+public class ParallelDeflater extends Deflater {
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int OUTPUT_SIZE = 64 * 1024;
+    public static final long KEEP_ALIVE_SECONDS = 10L;
+
+    private int level;
+    private int blockSize;
+    private int maxInFlight;
+    private ExecutorService pool;
+    private ConcurrentLinkedQueue<Deflater> deflaters;
+    private boolean parallel;
+
+    private byte[] block;
+    private int count;
+    private byte[] dictionary;
+    private ArrayDeque<Future<byte[]>> pending;
+    private byte[] output;
+    private int outputPos;
+    private boolean finishing;
+    private long bytesRead;
+    private long bytesWritten;
+
+    /**
+     * Creates a raw deflater that compresses parallel entries on {@code threads} threads.
+     * @param level the {@link Deflater} level
+     * @param threads the number of threads
+     */
+    public ParallelDeflater(int level, int threads) {
+        super(level, true);
+        this.level = level;
+        this.blockSize = DEFAULT_BLOCK_SIZE;
+        this.maxInFlight = 2 * threads;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "deflateThread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        this.pool = pool;
+        this.deflaters = new ConcurrentLinkedQueue<>();
+        this.parallel = false;
+        this.pending = new ArrayDeque<>();
+        clear();
+    }
+
+    /**
+     * Sets the size of the blocks compressed in parallel.
+     * @param blockSize the block size in bytes
+     * @return this
+     */
+    public ParallelDeflater blockSize(int blockSize) {
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    /**
+     * Sets whether the entries that follow are compressed in parallel, until
+     * it is set again. Set it only between entries, before any input.
+     * @param parallel {@code true} to compress in parallel
+     */
+    public void parallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    private void clear() {
+        for (Future<byte[]> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        block = null;
+        count = 0;
+        dictionary = null;
+        output = null;
+        outputPos = 0;
+        finishing = false;
+        bytesRead = 0L;
+        bytesWritten = 0L;
+    }
+
+    /**
+     * Hands the current block to the pool, keeping its end as the dictionary for the next.
+     */
+    private void submit(boolean last) {
+        byte[] input = block == null ? new byte[0] : block;
+        int length = count;
+        byte[] preset = dictionary;
+        dictionary = Arrays.copyOfRange(input, Math.max(0, length-DICTIONARY_SIZE), length);
+        pending.add(pool.submit(() -> compress(input, length, preset, last)));
+        block = null;
+        count = 0;
+    }
+
+    private byte[] compress(byte[] input, int length, byte[] preset, boolean last) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try {
+            if (preset != null && preset.length > 0) {
+                deflater.setDictionary(preset);
+            }
+            deflater.setInput(input, 0, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[OUTPUT_SIZE];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                }
+            } else {
+                // a sync flush ends on a byte boundary: a full buffer means there is more
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, SYNC_FLUSH);
+                    out.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+            deflaters.add(deflater);
+        }
+    }
+
+    private boolean draining() {
+        return output != null && outputPos < output.length;
+    }
+
+    @Override
+    public void setInput(byte[] b, int off, int len) {
+        if (!parallel) {
+            super.setInput(b, off, len);
+            return;
+        }
+        bytesRead += len;
+        while (len > 0) {
+            if (block == null) {
+                block = new byte[blockSize];
+            }
+            int n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == blockSize) {
+                submit(false);
+            }
+        }
+    }
+
+    @Override
+    public boolean needsInput() {
+        if (!parallel) {
+            return super.needsInput();
+        } else if (finishing || draining()) {
+            return false;
+        }
+        // write out finished blocks as they come, and wait for one when too many are in flight
+        return pending.isEmpty() || (!pending.peek().isDone() && pending.size() < maxInFlight);
+    }
+
+    @Override
+    public int deflate(byte[] b, int off, int len, int flush) {
+        if (!parallel) {
+            return super.deflate(b, off, len, flush);
+        }
+        if (!draining()) {
+            if (pending.isEmpty()) {
+                return 0;
+            }
+            try {
+                output = pending.poll().get();
+                outputPos = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new IOException("interrupted while deflating"));
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("error deflating a block", e.getCause());
+            }
+        }
+        int n = Math.min(len, output.length - outputPos);
+        System.arraycopy(output, outputPos, b, off, n);
+        outputPos += n;
+        bytesWritten += n;
+        return n;
+    }
+
+    @Override
+    public void finish() {
+        if (!parallel) {
+            super.finish();
+        } else if (!finishing) {
+            finishing = true;
+            submit(true);
+        }
+    }
+
+    @Override
+    public boolean finished() {
+        if (!parallel) {
+            return super.finished();
+        }
+        return finishing && pending.isEmpty() && !draining();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return parallel ? bytesRead : super.getBytesRead();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return parallel ? bytesWritten : super.getBytesWritten();
+    }
+
+    @Override
+    public void setLevel(int level) {
+        super.setLevel(level);
+        this.level = level;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        clear();
+    }
+
+    @Override
+    public void end() {
+        clear();
+        pool.shutdownNow();
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+        super.end();
+    }
+}
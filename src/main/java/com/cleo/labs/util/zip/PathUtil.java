@@ -1,9 +1,16 @@
 package com.cleo.labs.util.zip;
 
-import java.util.stream.Stream;
+import java.util.Arrays;
 
 import com.google.common.base.Joiner;
 
+/**
+ * Path parsing utilities. These are called for every entry of every
+ * zip and zap, so they are hand-written scanners rather than regular
+ * expressions, but each gives exactly the result of the regular expression
+ * described in its comment (including the way {@code $} matches before a
+ * final line terminator).
+ */
 public class PathUtil {
 
     /**
@@ -12,7 +19,14 @@ public class PathUtil {
      * @return a cleaned up directory name
      */
     public static String asDirectory(String dir) {
-        return dir.replaceFirst("(?<![/\\\\])$", "/");
+        // dir.replaceFirst("(?<![/\\\\])$", "/")
+        int n = dir.length();
+        int t = terminator(dir);
+        int at = t > 0 && (n == t || !isSlash(dir.charAt(n-t-1))) ? n-t : n;
+        if (at == n && n > 0 && isSlash(dir.charAt(n-1))) {
+            return dir;
+        }
+        return dir.substring(0, at)+DEFAULT_SEPARATOR+dir.substring(at);
     }
 
     /**
@@ -21,7 +35,30 @@ public class PathUtil {
      * @return a cleaned up directory name
      */
     public static String stripRoot(String dir) {
-        return dir.replaceFirst("^(?:\\p{Alpha}:|/|\\\\)*", "");
+        // dir.replaceFirst("^(?:\\p{Alpha}:|/|\\\\)*", "")
+        return dir.substring(rootLength(dir));
+    }
+
+    /**
+     * Returns the length of the root prefix that {@link #stripRoot(String)}
+     * would strip, without copying anything.
+     * @param path a possibly messed up path
+     * @return the length of the root prefix
+     */
+    public static int rootLength(CharSequence path) {
+        int n = path.length();
+        int i = 0;
+        while (i < n) {
+            char c = path.charAt(i);
+            if (isSlash(c)) {
+                i++;
+            } else if (isDrive(path, i)) {
+                i += 2;
+            } else {
+                break;
+            }
+        }
+        return i;
     }
 
     /**
@@ -33,8 +70,18 @@ public class PathUtil {
      */
     public static String justDirectory(String file) {
         // this is capture(stripRoot + (name + slash(es))*) + name + slashes
-        // all replaced by the capture (dropping the final name + slashes)
-        return file.replaceFirst("^((?:\\p{Alpha}:|/|\\\\)*(?:[^/\\\\]+[/\\\\]+)*?)"+"[^/\\\\]+[/\\\\]*$", "$1");
+        // all replaced by the capture (dropping the final name + slashes):
+        // file.replaceFirst("^((?:\\p{Alpha}:|/|\\\\)*(?:[^/\\\\]+[/\\\\]+)*?)"+"[^/\\\\]+[/\\\\]*$", "$1")
+        int n = file.length();
+        int root = rootLength(file);
+        if (root == n) {
+            // nothing but root: the regex backs off the last drive letter to use as the name
+            int drive = lastDrive(file);
+            return drive < 0 ? file : file.substring(0, drive);
+        }
+        int end = componentEnd(file, root);
+        int name = nameStart(file, root, trimSlashes(file, root, end));
+        return end == n ? file.substring(0, name) : file.substring(0, name)+file.substring(end);
     }
 
     /**
@@ -43,7 +90,16 @@ public class PathUtil {
      * @return the (possibly empty) file name (with no leading or trailing slashes)
      */
     public static String justFile(String file) {
-        return file.replaceFirst("^((?:\\p{Alpha}:|/|\\\\)*(?:[^/\\\\]+[/\\\\]+)*?)"+"(?:([^/\\\\]+)[/\\\\]*)?$", "$2");
+        // file.replaceFirst("^((?:\\p{Alpha}:|/|\\\\)*(?:[^/\\\\]+[/\\\\]+)*?)"+"(?:([^/\\\\]+)[/\\\\]*)?$", "$2")
+        int n = file.length();
+        int root = rootLength(file);
+        if (root == n) {
+            return "";
+        }
+        int end = componentEnd(file, root);
+        int trimmed = trimSlashes(file, root, end);
+        int name = nameStart(file, root, trimmed);
+        return end == n ? file.substring(name, trimmed) : file.substring(name, trimmed)+file.substring(end);
     }
 
     /**
@@ -105,7 +161,28 @@ public class PathUtil {
         if (path == null) {
             return new String[0];
         }
-        return path.split(ANY_SEPARATOR);
+        // path.split(ANY_SEPARATOR), which keeps a leading empty element
+        // unless there are no elements at all
+        int n = path.length();
+        int first = skipSlashes(path, 0);
+        if (first == 0 && skipName(path, 0) == n) {
+            return new String[] {path};
+        }
+        int count = 0;
+        for (int i=first; i<n; i=skipSlashes(path, skipName(path, i))) {
+            count++;
+        }
+        String[] result = new String[count == 0 || first == 0 ? count : count+1];
+        count = 0;
+        if (result.length > 0 && first > 0) {
+            result[count++] = "";
+        }
+        for (int i=first; i<n; ) {
+            int end = skipName(path, i);
+            result[count++] = path.substring(i, end);
+            i = skipSlashes(path, end);
+        }
+        return result;
     }
 
     /**
@@ -153,10 +230,276 @@ public class PathUtil {
         if (path==null) {
             return new String[0];
         }
-        return Stream.of(stripRoot(path)                           // strip the root
-                .split(ANY_SEPARATOR))                             // split on one or more slash
-                .filter(s -> !(s.equals(".")||s.equals("..")))     // remove . and ..
-                .toArray(String[]::new);
+        int n = path.length();
+        int root = rootLength(path);
+        if (root == n) {
+            return new String[] {""}; // as "".split(ANY_SEPARATOR)
+        }
+        int count = 0;
+        for (int i=root; i<n; ) {
+            int end = skipName(path, i);
+            if (!isDots(path, i, end)) {
+                count++;
+            }
+            i = skipSlashes(path, end);
+        }
+        String[] result = new String[count];
+        count = 0;
+        for (int i=root; i<n; ) {
+            int end = skipName(path, i);
+            if (!isDots(path, i, end)) {
+                result[count++] = path.substring(i, end);
+            }
+            i = skipSlashes(path, end);
+        }
+        return result;
+    }
+
+    /**
+     * A reusable parse of a path into elements, recorded as offsets into
+     * the parsed {@code CharSequence} instead of as new {@code String}s.
+     * Parsing allocates nothing once the offset array has grown to the
+     * deepest path seen, so a single {@code Segments} can be reused to
+     * examine a stream of entry names, copying out only what is kept.
+     */
+    public static class Segments {
+        private CharSequence path;
+        private int[] bounds;
+        private int count;
+
+        public Segments() {
+            this.path = "";
+            this.bounds = new int[16];
+            this.count = 0;
+        }
+
+        /**
+         * Parses {@code path} like {@link PathUtil#split(String)}.
+         * @param path the (possibly {@code null}) path to split
+         * @return {@code this}
+         */
+        public Segments split(CharSequence path) {
+            reset(path);
+            if (path == null) {
+                return this;
+            }
+            int n = path.length();
+            int first = skipSlashes(path, 0);
+            if (first == 0 && skipName(path, 0) == n) {
+                add(0, n);
+                return this;
+            }
+            if (first > 0 && first < n) {
+                add(0, 0);
+            }
+            for (int i=first; i<n; ) {
+                int end = skipName(path, i);
+                add(i, end);
+                i = skipSlashes(path, end);
+            }
+            return this;
+        }
+
+        /**
+         * Parses {@code path} like {@link PathUtil#safePath(String)}.
+         * @param path the (possibly {@code null}) path to parse safely
+         * @return {@code this}
+         */
+        public Segments safePath(CharSequence path) {
+            reset(path);
+            if (path == null) {
+                return this;
+            }
+            int n = path.length();
+            int root = rootLength(path);
+            if (root == n) {
+                add(n, n);
+                return this;
+            }
+            for (int i=root; i<n; ) {
+                int end = skipName(path, i);
+                if (!isDots(path, i, end)) {
+                    add(i, end);
+                }
+                i = skipSlashes(path, end);
+            }
+            return this;
+        }
+
+        /**
+         * Returns the number of path elements.
+         * @return the number of path elements
+         */
+        public int count() {
+            return count;
+        }
+
+        public int start(int i) {
+            return bounds[2*i];
+        }
+
+        public int end(int i) {
+            return bounds[2*i+1];
+        }
+
+        /**
+         * Returns path element {@code i} as a view of the parsed path.
+         * @param i the element index
+         * @return the element
+         */
+        public CharSequence get(int i) {
+            return path.subSequence(start(i), end(i));
+        }
+
+        /**
+         * Compares path element {@code i} to {@code s} without copying it.
+         * @param i the element index
+         * @param s the string to compare
+         * @return {@code true} if they have the same characters
+         */
+        public boolean is(int i, CharSequence s) {
+            int start = start(i);
+            int length = end(i)-start;
+            if (length != s.length()) {
+                return false;
+            }
+            for (int j=0; j<length; j++) {
+                if (path.charAt(start+j) != s.charAt(j)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Copies the path elements into {@code reuse} if it has exactly
+         * the right length, or into a new array if not.
+         * @param reuse a (possibly {@code null}) array to reuse
+         * @return the array of elements
+         */
+        public String[] toArray(String[] reuse) {
+            String[] result = reuse != null && reuse.length == count ? reuse : new String[count];
+            for (int i=0; i<count; i++) {
+                result[i] = get(i).toString();
+            }
+            return result;
+        }
+
+        private void reset(CharSequence path) {
+            this.path = path == null ? "" : path;
+            this.count = 0;
+        }
+
+        private void add(int start, int end) {
+            if (2*count+2 > bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length*2);
+            }
+            bounds[2*count] = start;
+            bounds[2*count+1] = end;
+            count++;
+        }
+    }
+
+    private static boolean isSlash(char c) {
+        return c == '/' || c == '\\';
+    }
+
+    /**
+     * Returns {@code true} if there is a drive letter (the ASCII letter
+     * and colon matched by {@code \p{Alpha}:}) at offset {@code i}.
+     */
+    private static boolean isDrive(CharSequence s, int i) {
+        if (i+1 >= s.length() || s.charAt(i+1) != ':') {
+            return false;
+        }
+        char c = s.charAt(i);
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * Returns the offset of the last drive letter in a path that is
+     * all root prefix, or -1 if there is none.
+     */
+    private static int lastDrive(CharSequence s) {
+        int n = s.length();
+        int drive = -1;
+        for (int i=0; i<n; ) {
+            if (isDrive(s, i)) {
+                drive = i;
+                i += 2;
+            } else {
+                i++;
+            }
+        }
+        return drive;
+    }
+
+    private static int skipSlashes(CharSequence s, int i) {
+        int n = s.length();
+        while (i < n && isSlash(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipName(CharSequence s, int i) {
+        int n = s.length();
+        while (i < n && !isSlash(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int trimSlashes(CharSequence s, int from, int end) {
+        while (end > from && isSlash(s.charAt(end-1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static int nameStart(CharSequence s, int from, int end) {
+        while (end > from && !isSlash(s.charAt(end-1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isDots(CharSequence s, int start, int end) {
+        return (end-start == 1 && s.charAt(start) == '.') ||
+               (end-start == 2 && s.charAt(start) == '.' && s.charAt(start+1) == '.');
+    }
+
+    /**
+     * Returns the length of a line terminator at the end of {@code s}
+     * that a regex {@code $} would also match before, or 0.
+     */
+    private static int terminator(CharSequence s) {
+        int n = s.length();
+        if (n >= 2 && s.charAt(n-2) == '\r' && s.charAt(n-1) == '\n') {
+            return 2;
+        } else if (n >= 1) {
+            char c = s.charAt(n-1);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns where the regex {@code [^/\\]+[/\\]*$} matching the final
+     * name and separators would end, searching from {@code from} which is
+     * not a separator. This is the end of the path, unless the path ends
+     * with separators followed by a line terminator, in which case
+     * {@code $} matches before the terminator first.
+     */
+    private static int componentEnd(CharSequence s, int from) {
+        int n = s.length();
+        int t = terminator(s);
+        if (t > 0 && n-t > from && isSlash(s.charAt(n-t-1))) {
+            return n-t;
+        }
+        return n;
     }
 
     /**
@@ -0,0 +1,335 @@
+package com.cleo.labs.util.zip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+
+import com.cleo.labs.util.zip.ZipDirectoryInputStream.Opener;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * A preset dictionary for {@link Deflater#setDictionary(byte[])}, trained
+ * from a sample of the files to be compressed, so that small files sharing
+ * structure (EDI envelopes, XML with the same namespaces) can refer back to
+ * it instead of starting with an empty window. It is sent once at the start
+ * of a {@link ZapFoundOutputStream zap} archive and identified by a hash of
+ * its contents.
+ * <p/>
+ * Training counts, for each 8-byte sequence, how many of the sampled files
+ * contain it, and then greedily picks the 64-byte segments of the samples
+ * that cover the most widely shared sequences not already covered. The best
+ * segments go at the end of the dictionary, closest to the data, where
+ * deflate finds them with the shortest distances.
+ * <p/>
+ * As training reads a few hundred files, the dictionary for a root directory
+ * is kept in a cache directory and used until it is {@link Cache#maxAge(long, TimeUnit) older}
+ * than a week.
+ */
+public class PresetDictionary {
+
+    private static final int MAGIC = 0x0C4C4443; // .LDC
+
+    /**
+     * The largest useful dictionary, which is the deflate window.
+     */
+    public static final int DEFAULT_SIZE = 32 * 1024;
+    public static final int DEFAULT_SAMPLES = 500;
+    public static final int DEFAULT_SAMPLE_SIZE = 16 * 1024;
+
+    private static final int K = 8;
+    private static final int SEGMENT = 64;
+    private static final int COUNT_BITS = 20;
+    // about one shared sequence per byte: below this the score is mostly slot collisions
+    private static final long MIN_SCORE = SEGMENT;
+
+    private byte[] bytes;
+    private String id;
+
+    /**
+     * Creates a dictionary of {@code bytes}.
+     * @param bytes the dictionary contents
+     */
+    public PresetDictionary(byte[] bytes) {
+        this.bytes = bytes;
+        this.id = Hashing.murmur3_128().hashBytes(bytes).toString().substring(0, 16);
+    }
+
+    /**
+     * Returns the dictionary contents.
+     * @return the bytes
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns an identifier for the dictionary contents.
+     * @return a hash of the contents, in hex
+     */
+    public String id() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return "dictionary "+id+" ("+bytes.length+" bytes)";
+    }
+
+    /*------------------------------------------------------------------------*
+     * Training                                                               *
+     *------------------------------------------------------------------------*/
+
+    private static int slot(byte[] sample, int i) {
+        long gram = 0L;
+        for (int j=0; j<K; j++) {
+            gram = (gram << 8) | (sample[i+j] & 0xFF);
+        }
+        gram *= 0x9E3779B97F4A7C15L;
+        return (int)(gram >>> (64 - COUNT_BITS));
+    }
+
+    private static class Segment implements Comparable<Segment> {
+        private byte[] sample;
+        private int offset;
+        private long score;
+        private Segment(byte[] sample, int offset, long score) {
+            this.sample = sample;
+            this.offset = offset;
+            this.score = score;
+        }
+        @Override
+        public int compareTo(Segment other) {
+            return Long.compare(other.score, score);
+        }
+    }
+
+    private static long score(byte[] sample, int offset, int[] counts) {
+        long score = 0L;
+        for (int i=offset; i<offset+SEGMENT-K+1; i++) {
+            int count = counts[slot(sample, i)];
+            if (count > 1) {
+                score += count;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Trains a dictionary of at most {@code size} bytes from {@code samples}.
+     * @param samples the sample contents, usually the beginnings of files
+     * @param size the dictionary size
+     * @return the dictionary, which is empty if the samples share nothing
+     */
+    public static PresetDictionary train(List<byte[]> samples, int size) {
+        // the number of samples containing each sequence (approximately, as sequences share slots)
+        int[] counts = new int[1 << COUNT_BITS];
+        int[] last = new int[1 << COUNT_BITS];
+        Arrays.fill(last, -1);
+        for (int s=0; s<samples.size(); s++) {
+            byte[] sample = samples.get(s);
+            for (int i=0; i+K<=sample.length; i++) {
+                int slot = slot(sample, i);
+                if (last[slot] != s) {
+                    last[slot] = s;
+                    counts[slot]++;
+                }
+            }
+        }
+        PriorityQueue<Segment> queue = new PriorityQueue<>();
+        for (byte[] sample : samples) {
+            for (int offset=0; offset+SEGMENT<=sample.length; offset+=SEGMENT) {
+                long score = score(sample, offset, counts);
+                if (score >= MIN_SCORE) {
+                    queue.add(new Segment(sample, offset, score));
+                }
+            }
+        }
+        // lazy greedy: a segment's score only goes down as others are picked
+        List<Segment> picked = new ArrayList<>();
+        while (picked.size() * SEGMENT + SEGMENT <= size && !queue.isEmpty()) {
+            Segment best = queue.poll();
+            best.score = score(best.sample, best.offset, counts);
+            if (best.score < MIN_SCORE) {
+                continue;
+            } else if (!queue.isEmpty() && best.score < queue.peek().score) {
+                queue.add(best);
+                continue;
+            }
+            picked.add(best);
+            for (int i=best.offset; i<best.offset+SEGMENT-K+1; i++) {
+                counts[slot(best.sample, i)] = 0;
+            }
+        }
+        Collections.reverse(picked);
+        byte[] bytes = new byte[picked.size() * SEGMENT];
+        for (int i=0; i<picked.size(); i++) {
+            System.arraycopy(picked.get(i).sample, picked.get(i).offset, bytes, i*SEGMENT, SEGMENT);
+        }
+        return new PresetDictionary(bytes);
+    }
+
+    /**
+     * Reads the beginnings of a random sample of the files found by
+     * {@code finder}, for {@link #train(List, int)}.
+     * @param finder the files to sample from (directories are skipped)
+     * @param opener opens the sampled files
+     * @param count the number of files to sample
+     * @param sampleSize the number of bytes to read from the beginning of each file
+     * @return the samples
+     * @throws IOException if a sampled file can not be read
+     */
+    public static List<byte[]> sample(Finder finder, Opener opener, int count, int sampleSize) throws IOException {
+        // reservoir sampling, seeded so that the same tree gives the same dictionary
+        Random random = new Random(0L);
+        List<Found> chosen = new ArrayList<>(count);
+        long seen = 0;
+        for (Found found : finder) {
+            if (found.directory() || found.length() <= 0) {
+                continue;
+            }
+            seen++;
+            if (chosen.size() < count) {
+                chosen.add(found);
+            } else {
+                long i = (long)(random.nextDouble() * seen);
+                if (i < count) {
+                    chosen.set((int)i, found);
+                }
+            }
+        }
+        List<byte[]> samples = new ArrayList<>(chosen.size());
+        for (Found found : chosen) {
+            try (InputStream in = opener.open(found)) {
+                samples.add(ByteStreams.toByteArray(ByteStreams.limit(in, sampleSize)));
+            }
+        }
+        return samples;
+    }
+
+    /*------------------------------------------------------------------------*
+     * Cache                                                                  *
+     *------------------------------------------------------------------------*/
+
+    /**
+     * Keeps the dictionary for each root directory in a cache directory.
+     */
+    public static class Cache {
+        private File cacheDirectory;
+        private long maxAge;
+        private Consumer<String> debug;
+
+        /**
+         * Creates a cache of dictionaries kept in {@code cacheDirectory}.
+         * @param cacheDirectory the cache directory (created as needed)
+         */
+        public Cache(File cacheDirectory) {
+            this.cacheDirectory = cacheDirectory;
+            this.maxAge = TimeUnit.DAYS.toMillis(7);
+            this.debug = s->{};
+        }
+
+        /**
+         * Sets how long a cached dictionary is used before it is trained again.
+         * @param interval the maximum age
+         * @param unit the unit of {@code interval}
+         * @return this
+         */
+        public Cache maxAge(long interval, TimeUnit unit) {
+            this.maxAge = unit.toMillis(interval);
+            return this;
+        }
+
+        public Cache debug(Consumer<String> debug) {
+            if (debug==null) {
+                this.debug = s->{};
+            } else {
+                this.debug = debug;
+            }
+            return this;
+        }
+
+        private File file(File root) {
+            String hash = Hashing.murmur3_128()
+                    .hashString(root.getAbsolutePath(), StandardCharsets.UTF_8)
+                    .toString();
+            return new File(cacheDirectory, hash+".dict");
+        }
+
+        /**
+         * Returns the cached dictionary for {@code root}, training and caching
+         * a new one from {@code finder} if there is none or it is too old.
+         * @param root the root directory
+         * @param finder the files under the root, for training
+         * @param opener opens the files for training
+         * @return the dictionary
+         * @throws IOException if the files can not be read
+         */
+        public PresetDictionary get(File root, Finder finder, Opener opener) throws IOException {
+            File file = file(root);
+            long age = System.currentTimeMillis() - file.lastModified();
+            if (file.isFile() && age >= 0 && age < maxAge) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    if (in.readInt() == MAGIC) {
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        PresetDictionary dictionary = new PresetDictionary(bytes);
+                        debug.accept("using cached "+dictionary);
+                        return dictionary;
+                    }
+                } catch (IOException e) {
+                    // a damaged cache file is just a miss
+                    debug.accept("dictionary cache: unable to read "+file.getPath()+": "+e);
+                }
+            }
+            long start = System.nanoTime();
+            PresetDictionary dictionary = train(sample(finder, opener, DEFAULT_SAMPLES, DEFAULT_SAMPLE_SIZE), DEFAULT_SIZE);
+            debug.accept("trained "+dictionary+" in "+TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start)+"ms");
+            write(file, dictionary);
+            return dictionary;
+        }
+
+        private void write(File file, PresetDictionary dictionary) {
+            try {
+                cacheDirectory.mkdirs();
+                File temp = File.createTempFile("dict", ".tmp", cacheDirectory);
+                try {
+                    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                        out.writeInt(MAGIC);
+                        out.writeInt(dictionary.bytes().length);
+                        out.write(dictionary.bytes());
+                    }
+                    try {
+                        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } finally {
+                    temp.delete();
+                }
+            } catch (IOException e) {
+                // the cache is an optimization: a failure to update it just means training again next time
+                debug.accept("dictionary cache: unable to write "+file.getPath()+": "+e);
+            }
+        }
+    }
+}
@@ -3,13 +3,22 @@ package com.cleo.labs.util.zip;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import com.fasterxml.jackson.core.JsonParser.Feature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 
 public class RemoteFinderStreamDecoder implements Iterator<Found>, Iterable<Found>, AutoCloseable {
 
@@ -28,15 +37,29 @@ public class RemoteFinderStreamDecoder implements Iterator<Found>, Iterable<Foun
         DONE}
 
     private InputStream in;
+    private BinaryListing.Reader binary = null;
     private State state = State.GET;
     private Found next = null;
     private IOException exception = null;
+    private boolean pages = false;
+    private String token = null;
+    private boolean framed = false;
+    private ForkJoinPool pool = null;
+    private int lookahead = 0;
+    private Deque<ForkJoinTask<Found>> decoding = new ArrayDeque<>();
+
+    /**
+     * The number of JSON records read ahead per decoding thread.
+     */
+    private static final int LOOKAHEAD = 4;
 
     private static final ObjectMapper mapper = new ObjectMapper()
             .configure(Feature.AUTO_CLOSE_SOURCE, false);
 
     /**
-     * Creates a new decoder whose elements are parsed from {@code in}.
+     * Creates a new decoder whose elements are parsed from {@code in},
+     * which may be in either the JSON or the {@link BinaryListing} format
+     * (recognized by its leading {@link BinaryListing#MAGIC}).
      * <p/>
      * {@code in} is not closed when the iterator terminates.
      * @param in
@@ -45,6 +68,142 @@ public class RemoteFinderStreamDecoder implements Iterator<Found>, Iterable<Foun
         this.in = in;
     }
 
+    /**
+     * By default the pages of a directory listed in pages (see
+     * {@link Found#page(Found[], boolean)}) are joined back into a single
+     * directory. Set {@code pages} to {@code true} to return each page as it
+     * is read instead, for a reader that can merge them as a stream.
+     * @param pages {@code true} to return the pages separately
+     * @return this
+     */
+    public RemoteFinderStreamDecoder pages(boolean pages) {
+        this.pages = pages;
+        return this;
+    }
+
+    /**
+     * Decodes the records of a JSON listing on {@code parallelism} threads.
+     * As each record is prefixed by its length, the records are still read
+     * one after another on the calling thread, but are then parsed by a pool
+     * while the following records are read, and returned in stream order.
+     * A binary listing is always decoded on the calling thread, as its
+     * records can not be found without decoding them.
+     * @param parallelism the number of decoding threads, or {@code 1}
+     * to decode on the calling thread
+     * @return this
+     */
+    public RemoteFinderStreamDecoder parallelism(int parallelism) {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+        if (parallelism > 1) {
+            pool = new ForkJoinPool(parallelism);
+            lookahead = parallelism * LOOKAHEAD;
+        }
+        return this;
+    }
+
+    /**
+     * Reads the next directory (or page) from either format.
+     * @return the next directory, or {@code null} at the end of the stream
+     * @throws IOException
+     */
+    private Found read() throws IOException {
+        if (pool != null) {
+            while (!framed && decoding.size() < lookahead) {
+                try {
+                    byte[] frame = frame();
+                    if (frame != null) {
+                        decoding.add(pool.submit(() -> {
+                            try {
+                                return parse(frame);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }));
+                    }
+                } catch (IOException e) {
+                    // a failure reading ahead is reported after the records before it
+                    framed = true;
+                    ForkJoinTask<Found> failed = ForkJoinTask.adapt(() -> null);
+                    failed.completeExceptionally(new UncheckedIOException(e));
+                    decoding.add(failed);
+                }
+            }
+            if (!decoding.isEmpty()) {
+                try {
+                    return decoding.poll().join();
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+        } else if (!framed) {
+            int length = length();
+            if (length >= 0) {
+                // parsed as it is read, without buffering the record
+                CountingInputStream record = new CountingInputStream(ByteStreams.limit(in, length));
+                Found found = mapper.readValue(record, Found.class);
+                ByteStreams.exhaust(record);
+                if (record.getCount() < length) {
+                    throw new EOFException("truncated listing: record of "+length+" bytes ends after "+record.getCount());
+                }
+                return found;
+            }
+        }
+        return binary != null ? binary.read() : null;
+    }
+
+    /**
+     * Reads the length prefix of the next JSON record. At the end of the stream,
+     * or if the stream turns out to be a binary listing, sets {@code framed}
+     * (and {@code binary}) and returns {@code -1}.
+     * @return the length of the next JSON record, or {@code -1}
+     * @throws IOException if the length is negative
+     */
+    private int length() throws IOException {
+        byte[] buf = new byte[Integer.BYTES];
+        try {
+            ByteStreams.readFully(in, buf);
+        } catch (EOFException e) {
+            framed = true;
+            return -1;
+        }
+        int length = ByteBuffer.wrap(buf).getInt();
+        if (length == BinaryListing.MAGIC) {
+            framed = true;
+            binary = new BinaryListing.Reader(in);
+            return -1;
+        } else if (length < 0) {
+            throw new IOException("corrupt listing: record length "+length);
+        }
+        return length;
+    }
+
+    /**
+     * Reads the next length-prefixed JSON record, or returns {@code null} as
+     * for {@link #length()}. The record is buffered as it arrives rather than
+     * allocated up front, so a corrupt length fails at the end of the stream
+     * instead of allocating it.
+     * @return the next JSON record, or {@code null}
+     * @throws IOException
+     */
+    private byte[] frame() throws IOException {
+        int length = length();
+        if (length < 0) {
+            return null;
+        }
+        byte[] frame = ByteStreams.toByteArray(ByteStreams.limit(in, length));
+        if (frame.length < length) {
+            throw new EOFException("truncated listing: record of "+length+" bytes ends after "+frame.length);
+        }
+        return frame;
+    }
+
+    private static Found parse(byte[] frame) throws IOException {
+        return mapper.readValue(frame, Found.class);
+    }
+
     /**
      * Gets the next element if the current element has been consumed
      * (as indicated by State.GET, which means "need to go get another one").
@@ -58,16 +217,34 @@ public class RemoteFinderStreamDecoder implements Iterator<Found>, Iterable<Foun
     private boolean get() {
         if (state == State.GET) { 
             try {
-                byte[] buf = new byte[Integer.BYTES];
-                try {
-                    ByteStreams.readFully(in, buf);
-                } catch (EOFException e) {
-                    next = null;
-                    state = State.DONE;
+                next = read();
+                while (next != null && next.token() != null) {
+                    token = next.token();
+                    next = read();
+                }
+                if (!pages && next != null && next.more()) {
+                    // join the pages back into a single directory
+                    List<Found> contents = new ArrayList<>();
+                    Found page = next;
+                    while (true) {
+                        if (page.contents() != null) {
+                            contents.addAll(Arrays.asList(page.contents()));
+                        }
+                        if (!page.more()) {
+                            break;
+                        }
+                        page = read();
+                        if (page == null) {
+                            throw new EOFException("truncated directory listing");
+                        } else if (!page.fullname().equals(next.fullname())) {
+                            throw new IOException("corrupt directory listing: "+next.fullname()+" continued by "+page.fullname());
+                        }
+                    }
+                    next.contents(contents.toArray(new Found[contents.size()])).more(false);
                 }
-                if (state != State.DONE) {
-                    int length = ByteBuffer.wrap(buf).getInt();
-                    next = mapper.readValue(ByteStreams.limit(in, length), Found.class);
+                if (next == null) {
+                    state = State.DONE;
+                } else {
                     next.remote(true);
                     state = State.GOT;
                 }
@@ -80,6 +257,16 @@ public class RemoteFinderStreamDecoder implements Iterator<Found>, Iterable<Foun
         return state == State.GOT;
     }
 
+    /**
+     * Returns the {@link ChangeLog} token that followed the directories of
+     * the listing, once the listing has been read to the end. Token records
+     * are not returned by the iterator.
+     * @return the token, or {@code null} if the listing has none
+     */
+    public String token() {
+        return token;
+    }
+
     public IOException exception() {
         return exception;
     }
@@ -111,6 +298,10 @@ public class RemoteFinderStreamDecoder implements Iterator<Found>, Iterable<Foun
 
     @Override
     public void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+            decoding.clear();
+        }
         if (in!=null) {
             try {
                 in.close();
@@ -0,0 +1,321 @@
+package com.cleo.labs.util.zip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Remembers the state a replicating sender left the remote side in, so that
+ * the next replication can compare against it instead of transferring the
+ * whole Remote Directory Listing again. The state is a directory listing (in
+ * the {@link BinaryListing} format) of the local tree, recorded before the
+ * transfer starts and kept only once the transfer completes: after a
+ * successful replication the remote side has what was listed, and anything
+ * that changes locally while the transfer is running is simply sent again
+ * the next time.
+ * <p>
+ * The remote side may still change behind the sender's back, so the state
+ * is used only until it is {@link #refresh(long, TimeUnit) older} than the
+ * refresh interval, after which a live listing is read again.
+ * <p>
+ * The typical sequence is:
+ * <pre>
+ * InputStream replica = state.usable() ? state.listing() : liveListing();
+ * state.record(localListing);
+ * ...replicate against replica...
+ * state.commit(replica is live) or state.invalidate() on failure
+ * </pre>
+ * If the remote side keeps a {@link ChangeLog}, its listings end with a token
+ * that is remembered with the state (see {@link #received(String)}). Instead
+ * of the remembered state alone, the directories changed on the remote side
+ * since that token can then be {@link #merge(InputStream) merged} onto it.
+ */
+public class RemoteState {
+
+    private File cacheDirectory;
+    private File state;
+    private File live;
+    private File token;
+    private File pending;
+    private File merged;
+    private String received;
+    private long refresh;
+    private Consumer<String> debug;
+
+    /**
+     * Creates a new remote state kept in {@code cacheDirectory}.
+     * @param cacheDirectory the cache directory (created as needed)
+     * @param key distinguishes the states of different replications
+     * sharing the cache directory, for example the root path, the
+     * remote listing URI and the filter patterns
+     */
+    public RemoteState(File cacheDirectory, String...key) {
+        String hash = Hashing.murmur3_128()
+                .hashString(String.join("\n", key), StandardCharsets.UTF_8)
+                .toString();
+        this.cacheDirectory = cacheDirectory;
+        this.state = new File(cacheDirectory, hash);
+        this.live = new File(cacheDirectory, hash+".live");
+        this.token = new File(cacheDirectory, hash+".token");
+        this.pending = null;
+        this.merged = null;
+        this.received = null;
+        this.refresh = TimeUnit.DAYS.toMillis(1);
+        this.debug = s->{};
+    }
+
+    /**
+     * Sets how long the remembered state may be used before a live
+     * listing must be read again. An interval of 0 always reads
+     * the live listing, but still remembers the state.
+     * @param interval the refresh interval
+     * @param unit the unit of {@code interval}
+     * @return this
+     */
+    public RemoteState refresh(long interval, TimeUnit unit) {
+        this.refresh = unit.toMillis(interval);
+        return this;
+    }
+
+    public RemoteState debug(Consumer<String> debug) {
+        if (debug==null) {
+            this.debug = s->{};
+        } else {
+            this.debug = debug;
+        }
+        return this;
+    }
+
+    /**
+     * Returns {@code true} if there is a remembered state and the
+     * last live listing was read within the refresh interval.
+     * @return {@code true} if {@link #listing()} may be used
+     */
+    public boolean usable() {
+        if (!state.isFile() || !live.isFile()) {
+            return false;
+        }
+        long age = System.currentTimeMillis() - live.lastModified();
+        if (age < 0 || age >= refresh) {
+            debug.accept("remote state: last live listing "+TimeUnit.MILLISECONDS.toSeconds(age)+"s ago, refreshing");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Opens the remembered state, to be used as the remote replica listing.
+     * @return a stream of the remembered listing
+     * @throws IOException if the state can not be read
+     */
+    public InputStream listing() throws IOException {
+        debug.accept("remote state: using "+state.getPath());
+        return new FileInputStream(state);
+    }
+
+    /**
+     * Returns the {@link ChangeLog} token of the remote listing the
+     * remembered state was last compared against, which can be used to
+     * ask the remote side for just the directories changed since.
+     * @return the token, or {@code null} if there is no state or no token
+     * @throws IOException if the token can not be read
+     */
+    public String token() throws IOException {
+        if (!state.isFile() || !token.isFile()) {
+            return null;
+        }
+        return new String(Files.readAllBytes(token.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sets the token that ended the live listing compared against, to be
+     * remembered with the state when it is {@link #commit(boolean) committed}.
+     * @param received the token, or {@code null} if the listing had none
+     */
+    public void received(String received) {
+        this.received = received;
+    }
+
+    /**
+     * Orders full names like {@link Finder#preorder(Found, Found)}.
+     */
+    private static int preorder(String a, String b) {
+        if (a.equals(ChangeLog.ROOT)) {
+            return b.equals(ChangeLog.ROOT) ? 0 : -1;
+        } else if (b.equals(ChangeLog.ROOT)) {
+            return 1;
+        }
+        return a.compareTo(b);
+    }
+
+    /**
+     * Merges the directories changed on the remote side, as listed since the
+     * {@link #token()}, onto the remembered state, returning the merged listing
+     * to be used as the remote replica listing. A changed directory replaces
+     * the remembered one, and a remembered directory that is no longer in the
+     * contents of its parent is dropped, with everything under it. A complete
+     * listing (if the remote side did not recognize the token) simply replaces
+     * the remembered state. The token that ends the listing is
+     * {@link #received(String) remembered} for next time.
+     * @param changes the listing of the changed directories
+     * @return a stream of the merged listing
+     * @throws IOException if either listing can not be read
+     */
+    public InputStream merge(InputStream changes) throws IOException {
+        // only the changed directories are held in memory
+        TreeMap<String,Found> changed = new TreeMap<>(RemoteState::preorder);
+        try (RemoteFinderStreamDecoder decoder = new RemoteFinderStreamDecoder(changes)) {
+            for (Found directory : decoder) {
+                changed.put(directory.fullname(), directory);
+            }
+            decoder.throwIfException();
+            received = decoder.token();
+        }
+        debug.accept("remote state: merging "+changed.size()+" changed directories");
+        discardMerged();
+        cacheDirectory.mkdirs();
+        merged = File.createTempFile("merged", ".tmp", cacheDirectory);
+        Set<String> expected = new HashSet<>();
+        expected.add(ChangeLog.ROOT);
+        try (RemoteFinderStreamDecoder remembered = new RemoteFinderStreamDecoder(
+                    new BufferedInputStream(new FileInputStream(state)));
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(merged))) {
+            BinaryListing.Writer writer = new BinaryListing.Writer(out);
+            for (Found directory : remembered) {
+                while (!changed.isEmpty() && preorder(changed.firstKey(), directory.fullname()) < 0) {
+                    write(writer, changed.pollFirstEntry().getValue(), expected);
+                }
+                Found update = changed.remove(directory.fullname());
+                write(writer, update != null ? update : directory, expected);
+            }
+            remembered.throwIfException();
+            for (Found directory : changed.values()) {
+                write(writer, directory, expected);
+            }
+        } catch (IOException e) {
+            discardMerged();
+            throw e;
+        }
+        return new FileInputStream(merged);
+    }
+
+    /**
+     * Writes a directory to the merged listing if its parent listed it.
+     */
+    private static void write(BinaryListing.Writer writer, Found directory, Set<String> expected) throws IOException {
+        if (!expected.remove(directory.fullname())) {
+            // deleted on the remote side
+            return;
+        }
+        if (directory.contents() != null) {
+            for (Found child : directory.contents()) {
+                if (child.directory()) {
+                    expected.add(child.fullname());
+                }
+            }
+        }
+        writer.write(directory);
+    }
+
+    /**
+     * Records the listing that will become the remembered state
+     * once the transfer is {@link #commit(boolean) committed}.
+     * The listing is read to the end (but not closed).
+     * @param listing the listing of the local tree being sent
+     * @throws IOException if the listing can not be read or saved
+     */
+    public void record(InputStream listing) throws IOException {
+        discardPending();
+        cacheDirectory.mkdirs();
+        pending = File.createTempFile("state", ".tmp", cacheDirectory);
+        try (OutputStream out = new FileOutputStream(pending)) {
+            ByteStreams.copy(listing, out);
+        } catch (IOException e) {
+            discardPending();
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the remembered state with the recorded listing
+     * after a successful transfer.
+     * @param refreshed {@code true} if the transfer compared against a
+     * live listing, which restarts the refresh interval
+     * @throws IOException if the state can not be replaced
+     */
+    public void commit(boolean refreshed) throws IOException {
+        if (pending == null) {
+            discard();
+            return;
+        }
+        try {
+            try {
+                Files.move(pending.toPath(), state.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(pending.toPath(), state.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (refreshed) {
+                Files.write(live.toPath(), new byte[0]);
+                live.setLastModified(System.currentTimeMillis());
+            }
+            if (received != null) {
+                Files.write(token.toPath(), received.getBytes(StandardCharsets.UTF_8));
+            } else if (refreshed) {
+                // a live listing without a token: the remote side keeps no change log
+                token.delete();
+            }
+            debug.accept("remote state: saved "+state.getPath());
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Forgets the remembered state, so that the next transfer reads a
+     * live listing. Use this when a transfer fails, as the remote side
+     * may then be anywhere between the old and new states.
+     */
+    public void invalidate() {
+        discard();
+        live.delete();
+        token.delete();
+        state.delete();
+    }
+
+    private void discard() {
+        discardPending();
+        discardMerged();
+        received = null;
+    }
+
+    private void discardPending() {
+        if (pending != null) {
+            pending.delete();
+            pending = null;
+        }
+    }
+
+    private void discardMerged() {
+        if (merged != null) {
+            merged.delete();
+            merged = null;
+        }
+    }
+}
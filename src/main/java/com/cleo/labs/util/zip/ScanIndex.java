@@ -0,0 +1,279 @@
+package com.cleo.labs.util.zip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * A {@link DirectoryScanner} that remembers the listing of each directory
+ * it scans in an on-disk index, and reuses the remembered listing on later
+ * scans as long as the directory modified time has not changed.
+ * <p/>
+ * The index is a cache directory with one small file per scanned directory.
+ * A remembered listing is only used if:
+ * <ul>
+ * <li>the directory modified time matches the one recorded with the listing,</li>
+ * <li>the listing was recorded well after that modified time (at least
+ *     {@code racyInterval} later), since changes made within the resolution
+ *     of the file system clock might not move the modified time, and</li>
+ * <li>when {@code verify} is set, each remembered entry still has the same
+ *     modified time and length. This catches files updated in place, which do
+ *     not change the modified time of their directory, but costs one attribute
+ *     lookup per entry, about as much as listing the directory again, so it
+ *     is off by default.</li>
+ * </ul>
+ * The entries are checked on the default file system, so the index is
+ * only for directories on the local file system.
+ * Otherwise the directory is listed with the underlying scanner and the
+ * index is updated. The index records the raw listing, before any
+ * {@link Finder} filtering, so it can be shared by Finders with different filters.
+ * Note that each listing is collected in memory to be recorded, so the index
+ * does not combine well with a {@link Finder#runSize(int)} for huge directories.
+ */
+public class ScanIndex implements DirectoryScanner {
+
+    private static final int MAGIC = 0x0C4C5849; // .LXI
+    private static final long DEFAULT_RACY_INTERVAL = 2000L;
+
+    private DirectoryScanner scanner;
+    private File cacheDirectory;
+    private boolean verify;
+    private long racyInterval;
+    private Consumer<String> debug;
+    private Consumer<Found> changed;
+
+    private AtomicLong hits;
+    private AtomicLong misses;
+    private AtomicLong missNanos;
+
+    /**
+     * Creates a new index in {@code cacheDirectory} for listings from {@code scanner}.
+     * @param scanner the scanner to use on a cache miss
+     * @param cacheDirectory the cache directory (created as needed)
+     */
+    public ScanIndex(DirectoryScanner scanner, File cacheDirectory) {
+        this.scanner = scanner;
+        this.cacheDirectory = cacheDirectory;
+        this.verify = false;
+        this.racyInterval = DEFAULT_RACY_INTERVAL;
+        this.debug = s->{};
+        this.changed = f->{};
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.missNanos = new AtomicLong();
+    }
+
+    public ScanIndex verify(boolean verify) {
+        this.verify = verify;
+        return this;
+    }
+
+    public ScanIndex racyInterval(long racyInterval, TimeUnit unit) {
+        this.racyInterval = unit.toMillis(racyInterval);
+        return this;
+    }
+
+    public ScanIndex debug(Consumer<String> debug) {
+        if (debug==null) {
+            this.debug = s->{};
+        } else {
+            this.debug = debug;
+        }
+        return this;
+    }
+
+    /**
+     * Sets a consumer for each directory that is listed again because it is
+     * not in the index or has changed since it was indexed, for example to
+     * record local changes in a {@link ChangeLog}.
+     * @param changed the consumer
+     * @return this
+     */
+    public ScanIndex changed(Consumer<Found> changed) {
+        if (changed==null) {
+            this.changed = f->{};
+        } else {
+            this.changed = changed;
+        }
+        return this;
+    }
+
+    /**
+     * Returns the number of directories listed from the index.
+     * @return the hit count
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of directories that had to be listed.
+     * @return the miss count
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the time spent listing directories on cache misses, which is
+     * a rough measure of the time the hits saved.
+     * @param unit the {@code TimeUnit} to report in
+     * @return the time spent on misses
+     */
+    public long missTime(TimeUnit unit) {
+        return unit.convert(missNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("scan index %s: %d hits, %d misses (%dms listing)",
+                cacheDirectory.getPath(), hits(), misses(), missTime(TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public File resolve(File directory, String name) {
+        return scanner.resolve(directory, name);
+    }
+
+    /**
+     * A listing as remembered in the index.
+     */
+    private static class Listing {
+        private long modified;
+        private long indexed;
+        private List<Found> children;
+    }
+
+    private File indexFile(File directory) {
+        String hash = Hashing.murmur3_128()
+                .hashString(directory.getAbsolutePath(), StandardCharsets.UTF_8)
+                .toString();
+        return new File(new File(cacheDirectory, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    private Listing read(Found dir, File index) {
+        if (!index.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            Listing listing = new Listing();
+            listing.modified = in.readLong();
+            listing.indexed = in.readLong();
+            int count = in.readInt();
+            listing.children = new ArrayList<>(count);
+            for (int i=0; i<count; i++) {
+                boolean directory = in.readBoolean();
+                String name = in.readUTF();
+                long length = in.readLong();
+                long modified = in.readLong();
+                listing.children.add(dir.child(scanner.resolve(dir.file(), name), directory, length, modified));
+            }
+            return listing;
+        } catch (IOException e) {
+            // a damaged index entry is just a miss
+            debug.accept("scan index: unable to read "+index.getPath()+": "+e);
+            return null;
+        }
+    }
+
+    private void write(File index, long modified, long indexed, List<Found> children) {
+        try {
+            index.getParentFile().mkdirs();
+            File temp = File.createTempFile("index", ".tmp", index.getParentFile());
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeLong(modified);
+                    out.writeLong(indexed);
+                    out.writeInt(children.size());
+                    for (Found child : children) {
+                        out.writeBoolean(child.directory());
+                        out.writeUTF(child.file().getName());
+                        out.writeLong(child.length());
+                        out.writeLong(child.modified());
+                    }
+                }
+                try {
+                    Files.move(temp.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            // the index is an optimization: a failure to update it just means a miss next time
+            debug.accept("scan index: unable to write "+index.getPath()+": "+e);
+        }
+    }
+
+    /**
+     * Checks a remembered entry with a single attribute lookup, as two
+     * ({@code lastModified()} and {@code length()}) would cost more than
+     * the listing saved.
+     */
+    private static boolean unchanged(Found child) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(child.file().toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            // gone (or unreadable): list again
+            return false;
+        }
+        if (attrs.lastModifiedTime().toMillis() != child.modified()) {
+            return false;
+        } else if (child.directory()) {
+            return attrs.isDirectory();
+        } else {
+            return !attrs.isDirectory() && attrs.size() == child.length();
+        }
+    }
+
+    @Override
+    public Stream<Found> scan(Found dir) throws IOException {
+        File directory = dir.file();
+        File index = indexFile(directory);
+        // get the modified time before listing, so that changes made while
+        // listing leave a stale time in the index and cause a miss next time
+        long modified = directory.lastModified();
+        Listing listing = read(dir, index);
+        if (listing != null && modified != 0L && listing.modified == modified &&
+                listing.indexed - modified >= racyInterval &&
+                (!verify || listing.children.stream().allMatch(ScanIndex::unchanged))) {
+            hits.incrementAndGet();
+            return listing.children.stream();
+        }
+        misses.incrementAndGet();
+        changed.accept(dir);
+        long indexed = System.currentTimeMillis();
+        long start = System.nanoTime();
+        List<Found> children = new ArrayList<>();
+        try (Stream<Found> scanned = scanner.scan(dir)) {
+            scanned.forEachOrdered(children::add);
+        }
+        missNanos.addAndGet(System.nanoTime() - start);
+        write(index, modified, indexed, children);
+        return children.stream();
+    }
+}
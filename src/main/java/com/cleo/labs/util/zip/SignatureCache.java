@@ -0,0 +1,167 @@
+package com.cleo.labs.util.zip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Consumer;
+
+import com.cleo.labs.util.zip.ZipDirectoryInputStream.Opener;
+import com.google.common.hash.Hashing;
+
+/**
+ * Provides the {@link BlockDelta} signatures of large files for a directory
+ * listing, so that a replicating sender can send just the differences. As
+ * computing signatures means reading the whole file, they are kept in a cache
+ * directory, with one file per large file, and reused as long as the length
+ * and modified time of the file have not changed.
+ */
+public class SignatureCache {
+
+    private static final int MAGIC = 0x0C4C5347; // .LSG
+
+    private File cacheDirectory;
+    private long threshold;
+    private Opener opener;
+    private Consumer<String> debug;
+
+    /**
+     * Creates a new signature cache kept in {@code cacheDirectory}.
+     * @param cacheDirectory the cache directory (created as needed)
+     */
+    public SignatureCache(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+        this.threshold = BlockDelta.DEFAULT_THRESHOLD;
+        this.opener = f -> new FileInputStream(f.file());
+        this.debug = s->{};
+    }
+
+    /**
+     * Sets the smallest file that gets signatures.
+     * @param threshold the file length threshold
+     * @return this
+     */
+    public SignatureCache threshold(long threshold) {
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * Sets the {@link Opener} used to read files whose
+     * signatures are not already in the cache.
+     * @param opener the opener
+     * @return this
+     */
+    public SignatureCache opener(Opener opener) {
+        this.opener = opener;
+        return this;
+    }
+
+    public SignatureCache debug(Consumer<String> debug) {
+        if (debug==null) {
+            this.debug = s->{};
+        } else {
+            this.debug = debug;
+        }
+        return this;
+    }
+
+    /**
+     * Sets the signatures of each large file in {@code directory.contents()}.
+     * A file that can not be read just has no signatures.
+     * @param directory a directory with its contents
+     */
+    public void fill(Found directory) {
+        if (directory.contents() == null) {
+            return;
+        }
+        for (Found child : directory.contents()) {
+            if (!child.directory() && child.file() != null && child.length() >= threshold) {
+                try {
+                    child.signatures(signatures(child));
+                } catch (IOException e) {
+                    debug.accept("signatures: unable to read "+child.fullname()+": "+e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the signatures of a file, computing them if they
+     * are not already in the cache.
+     * @param found the file
+     * @return the signatures
+     * @throws IOException if the file can not be read
+     */
+    public byte[] signatures(Found found) throws IOException {
+        File index = indexFile(found.file());
+        byte[] signatures = read(found, index);
+        if (signatures == null) {
+            try (InputStream in = opener.open(found)) {
+                signatures = BlockDelta.signatures(in, found.length());
+            }
+            write(found, index, signatures);
+        }
+        return signatures;
+    }
+
+    private File indexFile(File file) {
+        String hash = Hashing.murmur3_128()
+                .hashString(file.getAbsolutePath(), StandardCharsets.UTF_8)
+                .toString();
+        return new File(new File(cacheDirectory, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    private byte[] read(Found found, File index) {
+        if (!index.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            if (in.readInt() != MAGIC || in.readLong() != found.length() || in.readLong() != found.modified()) {
+                return null;
+            }
+            byte[] signatures = new byte[in.readInt()];
+            in.readFully(signatures);
+            return signatures;
+        } catch (IOException e) {
+            // a damaged cache entry is just a miss
+            debug.accept("signature cache: unable to read "+index.getPath()+": "+e);
+            return null;
+        }
+    }
+
+    private void write(Found found, File index, byte[] signatures) {
+        try {
+            index.getParentFile().mkdirs();
+            File temp = File.createTempFile("sig", ".tmp", index.getParentFile());
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeLong(found.length());
+                    out.writeLong(found.modified());
+                    out.writeInt(signatures.length);
+                    out.write(signatures);
+                }
+                try {
+                    Files.move(temp.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            // the cache is an optimization: a failure to update it just means a miss next time
+            debug.accept("signature cache: unable to write "+index.getPath()+": "+e);
+        }
+    }
+}
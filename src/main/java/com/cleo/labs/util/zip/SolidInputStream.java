@@ -0,0 +1,113 @@
+package com.cleo.labs.util.zip;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the segments written by a {@link SolidOutputStream} back as
+ * one continuous stream. The stream ends where the segments do.
+ */
+public class SolidInputStream extends FilterInputStream {
+
+    private Inflater inflater;
+    private EmbeddedInputStream segment;
+    private InflaterInputStream inflated;
+    private boolean eof;
+
+    public SolidInputStream(InputStream in) {
+        super(in);
+        this.inflater = new Inflater(true);
+        this.segment = null;
+        this.inflated = null;
+        this.eof = false;
+    }
+
+    /**
+     * Starts the next segment.
+     * @return {@code false} at the end of the segments
+     */
+    private boolean startSegment() throws IOException {
+        try {
+            segment = new EmbeddedInputStream(in);
+        } catch (EOFException e) {
+            eof = true;
+            return false;
+        }
+        inflated = new InflaterInputStream(segment, inflater, EmbeddedOutputStream.DEFAULT_BUFSIZE);
+        return true;
+    }
+
+    private void endSegment() throws IOException {
+        segment.close();
+        inflater.reset();
+        segment = null;
+        inflated = null;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (!eof) {
+            if (segment == null && !startSegment()) {
+                break;
+            }
+            int n = inflated.read(b, off, len);
+            if (n >= 0) {
+                return n;
+            }
+            endSegment();
+        }
+        return -1;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        if (read(b) < 0) {
+            return -1;
+        } else {
+            return b[0] & 0xFF;
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return inflated == null ? 0 : inflated.available();
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buf = new byte[(int)Math.min(n, EmbeddedOutputStream.DEFAULT_BUFSIZE)];
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(buf, 0, (int)Math.min(n-skipped, buf.length));
+            if (r < 0) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        super.close();
+    }
+}
@@ -0,0 +1,132 @@
+package com.cleo.labs.util.zip;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses everything written to it as a single deflate stream, so
+ * that many small, similar entries share one compression window, read
+ * back with a {@link SolidInputStream}. The stream is cut into segments at
+ * the {@link #boundary() boundaries} the writer marks once a segment has
+ * reached its {@link #segmentSize(long) size}, each a separate deflate
+ * stream framed as an {@link EmbeddedOutputStream} so that the reader knows
+ * where the next one starts. The framing carries no checks, so the reader
+ * can not pick up again past a damaged region: the rest of the stream is lost.
+ */
+public class SolidOutputStream extends FilterOutputStream {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 16L * 1024L * 1024L;
+
+    private Deflater deflater;
+    private long segmentSize;
+    private EmbeddedOutputStream segment;
+    private DeflaterOutputStream deflated;
+    private OutputStream buffered;
+    private long written;
+    private boolean flushed;
+
+    /**
+     * Creates a solid stream compressing at {@code level}.
+     * @param out the stream to write the segments to
+     * @param level a {@link Deflater} level
+     */
+    public SolidOutputStream(OutputStream out, int level) {
+        super(out);
+        this.deflater = new Deflater(level, true);
+        this.segmentSize = DEFAULT_SEGMENT_SIZE;
+        this.segment = null;
+        this.deflated = null;
+        this.buffered = null;
+        this.written = 0L;
+        this.flushed = true;
+    }
+
+    /**
+     * Sets the uncompressed size after which the next
+     * {@link #boundary()} starts a new segment.
+     * @param segmentSize the segment size in bytes
+     * @return this
+     */
+    public SolidOutputStream segmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * Marks a point at which a new segment may start, which the writer
+     * places where a reader could pick up again, for example between entries.
+     * @throws IOException if the segment can not be finished
+     */
+    public void boundary() throws IOException {
+        if (segment != null && written >= segmentSize) {
+            endSegment();
+        }
+    }
+
+    private void endSegment() throws IOException {
+        buffered.flush();
+        deflated.finish();
+        segment.close();
+        deflater.reset();
+        deflated = null;
+        buffered = null;
+        segment = null;
+        written = 0L;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (segment == null) {
+            segment = new EmbeddedOutputStream(out);
+            deflated = new DeflaterOutputStream(segment, deflater, EmbeddedOutputStream.DEFAULT_BUFSIZE, true);
+            // entry headers arrive a few bytes at a time, which the deflater handles poorly
+            buffered = new BufferedOutputStream(deflated, EmbeddedOutputStream.DEFAULT_BUFSIZE);
+        }
+        buffered.write(b, off, len);
+        written += len;
+        flushed = false;
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte)(b&0xFF)}, 0, 1);
+    }
+
+    /**
+     * Pushes everything written so far through the deflater with a
+     * {@link Deflater#SYNC_FLUSH}, so that a reader can inflate all of it,
+     * without ending the segment. Each flush costs a few bytes, and resets
+     * the deflater's choice of blocks, so it is only done when something
+     * has been written since the last one.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (segment != null && !flushed) {
+            buffered.flush();
+            deflated.flush();
+            flushed = true;
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (segment != null) {
+                endSegment();
+            }
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+}
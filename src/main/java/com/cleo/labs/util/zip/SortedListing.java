@@ -0,0 +1,351 @@
+package com.cleo.labs.util.zip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * The sorted contents of a directory, produced from an unsorted
+ * iterator of children in bounded memory. Children are collected
+ * in runs of up to {@code runSize} entries. If the directory fits in
+ * a single run, the sorted contents are simply kept in memory
+ * (see {@link #contents()}). Otherwise each run is sorted and spilled
+ * to a temporary file, and the runs are merged as the listing is
+ * iterated, so that only one entry per run is held on the heap. No more
+ * than {@link #MAX_FAN_IN} runs are merged at a time: beyond that, groups
+ * of runs are first merged into longer runs, so the files held open stay
+ * bounded however large the directory.
+ * <p/>
+ * Spilled listings hold open files, so they must be {@link #close()}d
+ * (which also deletes the temporary files).
+ * <p/>
+ * A listing created with {@link #unsorted} keeps the children in the
+ * order they were listed, and its runs are simply read one after another.
+ */
+public class SortedListing implements Iterator<Found>, Closeable {
+
+    /**
+     * The most runs merged (and files held open) at a time.
+     */
+    public static final int MAX_FAN_IN = 64;
+
+    private Found parent;
+    private DirectoryScanner scanner;
+    private boolean sorted;
+    private Found[] contents;
+    private int index;
+    private boolean containsAFile;
+    private List<File> spills;
+    private PriorityQueue<Run> queue;
+
+    /**
+     * A reader for a spilled run, positioned on its next entry in {@code head}.
+     */
+    private class Run implements Comparable<Run>, Closeable {
+        private int order;
+        private boolean resolve;
+        private DataInputStream in;
+        private Found head;
+
+        /**
+         * Opens a spilled run.
+         * @param order the order of the run, for unsorted listings
+         * @param spill the spill file
+         * @param resolve {@code false} to skip resolving the children
+         *        (they are only to be spilled again)
+         * @throws IOException
+         */
+        public Run(int order, File spill, boolean resolve) throws IOException {
+            this.order = order;
+            this.resolve = resolve;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill)));
+            advance();
+        }
+
+        public void advance() throws IOException {
+            try {
+                boolean directory = in.readBoolean();
+                String name = in.readUTF();
+                long length = in.readLong();
+                long modified = in.readLong();
+                File file = resolve ? scanner.resolve(parent.file(), name) : new File(parent.file(), name);
+                head = parent.child(file, directory, length, modified);
+            } catch (EOFException e) {
+                head = null;
+            }
+        }
+
+        @Override
+        public int compareTo(Run other) {
+            return sorted ? head.compareTo(other.head) : Integer.compare(order, other.order);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private SortedListing(Found parent, DirectoryScanner scanner, boolean sorted) {
+        this.parent = parent;
+        this.scanner = scanner;
+        this.sorted = sorted;
+        this.contents = null;
+        this.index = 0;
+        this.containsAFile = false;
+        this.spills = new ArrayList<>();
+        this.queue = null;
+    }
+
+    /**
+     * Creates a listing of the children of {@code parent}, spilling sorted
+     * runs of {@code runSize} children into {@code spillDirectory} if needed.
+     * Spilled children are recreated using {@link DirectoryScanner#resolve(File, String)}.
+     * @param parent the parent directory
+     * @param children the (filtered) children
+     * @param scanner the scanner that listed the children
+     * @param runSize the maximum number of children held in memory, or
+     *        {@code 0} to sort everything in memory
+     * @param spillDirectory where to spill runs ({@code null} for the default temporary directory)
+     * @return the sorted listing
+     * @throws IOException
+     */
+    public static SortedListing sort(Found parent, Iterator<Found> children, DirectoryScanner scanner,
+            int runSize, File spillDirectory) throws IOException {
+        return collect(new SortedListing(parent, scanner, true), children, runSize, spillDirectory);
+    }
+
+    /**
+     * Like {@link #sort}, but the children are kept in the order they are
+     * listed, with directories and files intermixed.
+     * @param parent the parent directory
+     * @param children the (filtered) children
+     * @param scanner the scanner that listed the children
+     * @param runSize the maximum number of children held in memory, or
+     *        {@code 0} to keep everything in memory
+     * @param spillDirectory where to spill runs ({@code null} for the default temporary directory)
+     * @return the unsorted listing
+     * @throws IOException
+     */
+    public static SortedListing unsorted(Found parent, Iterator<Found> children, DirectoryScanner scanner,
+            int runSize, File spillDirectory) throws IOException {
+        return collect(new SortedListing(parent, scanner, false), children, runSize, spillDirectory);
+    }
+
+    private static SortedListing collect(SortedListing listing, Iterator<Found> children,
+            int runSize, File spillDirectory) throws IOException {
+        List<Found> run = new ArrayList<>();
+        try {
+            while (children.hasNext()) {
+                Found child = children.next();
+                listing.containsAFile |= !child.directory();
+                run.add(child);
+                if (runSize > 0 && run.size() >= runSize && children.hasNext()) {
+                    listing.spill(listing.toArray(run), spillDirectory);
+                    run.clear();
+                }
+            }
+            Found[] entries = listing.toArray(run);
+            if (listing.spills.isEmpty()) {
+                listing.contents = entries;
+            } else {
+                listing.spill(entries, spillDirectory);
+                listing.merge(spillDirectory);
+            }
+        } catch (IOException | RuntimeException e) {
+            listing.close();
+            throw e;
+        }
+        return listing;
+    }
+
+    /**
+     * Returns a run as an array, sorted unless the listing is {@link #unsorted}.
+     */
+    private Found[] toArray(List<Found> run) {
+        Found[] entries = run.toArray(new Found[run.size()]);
+        if (sorted) {
+            Arrays.sort(entries); // directories < files, otherwise compare fullname
+        }
+        return entries;
+    }
+
+    /**
+     * Spills a run, already in order, to a new temporary file.
+     */
+    private void spill(Found[] entries, File spillDirectory) throws IOException {
+        File spill = File.createTempFile("listing", ".run", spillDirectory);
+        spills.add(spill);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill)))) {
+            for (Found found : entries) {
+                write(out, found);
+            }
+        }
+    }
+
+    private static void write(DataOutputStream out, Found found) throws IOException {
+        out.writeBoolean(found.directory());
+        out.writeUTF(found.file().getName());
+        out.writeLong(found.length());
+        out.writeLong(found.modified());
+    }
+
+    /**
+     * Opens the runs in {@code files} for merging.
+     */
+    private PriorityQueue<Run> open(List<File> files, boolean resolve) throws IOException {
+        PriorityQueue<Run> runs = new PriorityQueue<>(files.size());
+        try {
+            for (int i=0; i<files.size(); i++) {
+                Run run = new Run(i, files.get(i), resolve);
+                if (run.head == null) {
+                    run.close();
+                } else {
+                    runs.add(run);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close(runs);
+            throw e;
+        }
+        return runs;
+    }
+
+    private static void close(PriorityQueue<Run> runs) {
+        for (Run run : runs) {
+            try {
+                run.close();
+            } catch (IOException ignore) {
+            }
+        }
+        runs.clear();
+    }
+
+    /**
+     * Merges consecutive groups of up to {@link #MAX_FAN_IN} runs into
+     * longer runs until no more than that are left, and then opens those
+     * for {@link #next()}. Consecutive groups keep the order of the runs
+     * for unsorted listings.
+     */
+    private void merge(File spillDirectory) throws IOException {
+        while (spills.size() > MAX_FAN_IN) {
+            List<File> runs = spills;
+            spills = new ArrayList<>();
+            try {
+                for (int from=0; from<runs.size(); from+=MAX_FAN_IN) {
+                    List<File> group = runs.subList(from, Math.min(from+MAX_FAN_IN, runs.size()));
+                    if (group.size() == 1) {
+                        spills.add(group.get(0));
+                        continue;
+                    }
+                    File spill = File.createTempFile("listing", ".run", spillDirectory);
+                    spills.add(spill);
+                    PriorityQueue<Run> merging = open(group, false);
+                    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill)))) {
+                        while (!merging.isEmpty()) {
+                            Run run = merging.poll();
+                            write(out, run.head);
+                            run.advance();
+                            if (run.head == null) {
+                                run.close();
+                            } else {
+                                merging.add(run);
+                            }
+                        }
+                    } finally {
+                        close(merging);
+                    }
+                }
+            } finally {
+                // the runs merged so far are in spills, and close() cleans up after a failure
+                for (File run : runs) {
+                    if (!spills.contains(run)) {
+                        run.delete();
+                    }
+                }
+            }
+        }
+        queue = open(spills, true);
+    }
+
+    /**
+     * Returns {@code true} if the listing was too large to sort in memory.
+     * @return {@code true} if runs were spilled
+     */
+    public boolean spilled() {
+        return contents == null;
+    }
+
+    /**
+     * Returns the sorted contents for listings that were not spilled.
+     * @return the sorted contents, or {@code null} if the listing was spilled
+     */
+    public Found[] contents() {
+        return contents;
+    }
+
+    /**
+     * Returns {@code true} if any of the children is a file (like
+     * {@link Found#containsAFile()}, but also for spilled listings).
+     * @return {@code true} if any child is a file
+     */
+    public boolean containsAFile() {
+        return containsAFile;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (contents != null) {
+            return index < contents.length;
+        }
+        return queue != null && !queue.isEmpty();
+    }
+
+    @Override
+    public Found next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (contents != null) {
+            return contents[index++];
+        }
+        Run run = queue.poll();
+        Found next = run.head;
+        try {
+            run.advance();
+            if (run.head == null) {
+                run.close();
+            } else {
+                queue.add(run);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return next;
+    }
+
+    @Override
+    public void close() {
+        if (queue != null) {
+            close(queue);
+        }
+        for (File spill : spills) {
+            spill.delete();
+        }
+        spills.clear();
+    }
+}
@@ -1,21 +1,42 @@
 package com.cleo.labs.util.zip;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.zip.Deflater;
 
 import com.cleo.labs.util.zip.Finder.DirectoryMode;
+import com.cleo.labs.util.zip.Found.Operation;
 
-public class ThreadedZipDirectoryInputStream extends PipedInputStream {
+/**
+ * Zips the files from a {@link Finder} on two background threads: the
+ * {@code finderThread} pumps the {@code Finder} into a small queue and the
+ * {@code zipThread} drains the queue into a {@link BlockingPipe}, which is
+ * read through this stream.
+ * <p/>
+ * All the hand-offs block until they can proceed, without polling:
+ * a thread waiting on the queue or the pipe wakes as soon as its peer
+ * makes progress, and {@link #close()} interrupts both threads. An
+ * exception in either thread (including a failure of the {@code Finder})
+ * is thrown to the reader from {@code read}.
+ * <p/>
+ * A zap archive may instead be {@link Builder#multiplexed(int) multiplexed}
+ * (see {@link MultiplexedZapOutputStream}), in which case several
+ * {@code zipThread}s copy (and compress) different files at the same time,
+ * so that a slow file does not hold up the others. Each thread takes the
+ * next entry from the queue and opens it in the archive in one step, so
+ * the entries are opened in the order the {@code Finder} found them.
+ */
+public class ThreadedZipDirectoryInputStream extends FilterInputStream {
 
     public interface Copier {
         public void copy(Found from, OutputStream to) throws IOException;
@@ -23,86 +44,232 @@ public class ThreadedZipDirectoryInputStream extends PipedInputStream {
 
     private Finder finder;
     private Copier copier;
+    private ChecksumCache checksums;
     private int level;
+    private int zapLevel;
+    private boolean solid;
+    private PresetDictionary dictionary;
+    private int deflateThreads;
+    private int multiplexed;
+    private int chunkSize;
 
-    private OutputStream output;
+    private BlockingPipe pipe;
     private FoundOutputStream zip;
+    private MultiplexedZapOutputStream mux;
 
     private Thread finderThread;
-    private Thread zipThread;
+    private Thread[] zipThreads;
+    private AtomicInteger running;
     private BlockingQueue<Found> foundQueue;
     private int foundQueueCapacity = 3;
-    private int foundQueueTimeout = 1;
-    private TimeUnit foundQueueUnit = TimeUnit.SECONDS;
 
-    private IOException exception;
-    private boolean closed;
+    private volatile RuntimeException finderException;
+    private volatile boolean closed;
 
     private Runnable runFinderThread = () -> {
+        Finder finder = this.finder;
         try {
-            for (Found found : finder) {
-                if (found != null) {
-                    while (!closed && !foundQueue.offer(found, foundQueueTimeout, foundQueueUnit));
-                }
-                if (closed) {
-                    break;
+            try {
+                for (Found found : finder) {
+                    if (closed) {
+                        break;
+                    } else if (found != null) {
+                        foundQueue.put(found);
+                    }
                 }
+            } catch (RuntimeException e) {
+                finderException = e;
+            } catch (AssertionError e) {
+                finderException = new IllegalStateException(e.getMessage(), e.getCause());
+            }
+            if (!closed) {
+                // if close() comes after this check, its interrupt ends the put
+                foundQueue.put(Found.FOUND_END);
             }
-            while (!closed && !foundQueue.offer(Found.FOUND_END, foundQueueTimeout, foundQueueUnit));
         } catch (InterruptedException e) {
             // done
+        } finally {
+            finder.close();
         }
-        finder.close();
     };
 
     private Runnable runZipThread = () -> {
         try {
             Found found;
             do {
-                found = foundQueue.poll(foundQueueTimeout, foundQueueUnit);
-                if (found == Found.FOUND_END || found == null) {
-                    // done, or go back and wait for more
+                found = foundQueue.take();
+                if (found.operation()==Operation.move && !(zip instanceof ZapFoundOutputStream)) {
+                    found.operation(Operation.add); // only zap can carry a move: send the file instead
+                }
+                if (found == Found.FOUND_END) {
+                    // done
                 } else if (found.directory() && found.fullname().equals("/")) {
                     // skip the root path
                 } else if (found.directory()) {
                     zip.putNextEntry(found);
                     zip.closeEntry();
+                } else if (found.operation()==Operation.delete || found.operation()==Operation.touch ||
+                        found.operation()==Operation.move) {
+                    // no content to copy
+                    zip.putNextEntry(found);
+                    zip.closeEntry();
                 } else {
+                    BlockDelta.Encoder encoder = BlockDelta.encoder(found, zip);
+                    OutputStream to = encoder != null ? encoder : zip;
                     zip.putNextEntry(found);
-                    copier.copy(found, zip);
+                    if (checksums != null) {
+                        ChecksumCache.Recorder recorder = checksums.recorder(found, to);
+                        copier.copy(found, recorder);
+                        if (encoder != null) {
+                            encoder.finish();
+                        }
+                        recorder.record();
+                    } else {
+                        copier.copy(found, to);
+                        if (encoder != null) {
+                            encoder.finish();
+                        }
+                    }
                     zip.flush();
                     zip.closeEntry();
                 }
             } while (!closed && found != Found.FOUND_END);
+            if (finderException != null) {
+                throw new IOException("error finding files", finderException);
+            }
+            closeZip();
         } catch (IOException e) {
-            exception = e;
+            if (!closed) {
+                pipe.fail(e);
+            }
+        } catch (RuntimeException e) {
+            if (!closed) {
+                pipe.fail(new IOException(e));
+            }
         } catch (InterruptedException e) {
-            // done
+            if (!closed) {
+                pipe.fail(new InterruptedIOException("zipping interrupted"));
+            }
+        } finally {
+            // the pipe has failed (or was closed) unless the archive is already closed
+            closeZipQuietly();
+        }
+    };
+
+    private Runnable runMuxThread = () -> {
+        boolean failed = false;
+        try {
+            while (!closed) {
+                Found found;
+                MultiplexedZapOutputStream.Entry entry;
+                BlockDelta.Encoder encoder;
+                synchronized (foundQueue) {
+                    found = foundQueue.take();
+                    if (found == Found.FOUND_END) {
+                        foundQueue.put(found); // for the other threads
+                        break;
+                    } else if (found.directory() && found.fullname().equals("/")) {
+                        continue; // skip the root path
+                    }
+                    entry = mux.entry();
+                    encoder = BlockDelta.encoder(found, entry, true);
+                    entry.open(found);
+                }
+                if (found.directory() || !found.operation().content()) {
+                    // no content to copy
+                    entry.close();
+                    continue;
+                }
+                OutputStream to = encoder != null ? encoder : entry;
+                if (checksums != null) {
+                    ChecksumCache.Recorder recorder = checksums.recorder(found, to);
+                    copier.copy(found, recorder);
+                    if (encoder != null) {
+                        encoder.finish();
+                    }
+                    recorder.record();
+                } else {
+                    copier.copy(found, to);
+                    if (encoder != null) {
+                        encoder.finish();
+                    }
+                }
+                entry.close();
+            }
+        } catch (IOException e) {
+            failed = true;
+            if (!closed) {
+                pipe.fail(e);
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            if (!closed) {
+                pipe.fail(new IOException(e));
+            }
+        } catch (InterruptedException e) {
+            failed = true;
+            if (!closed) {
+                pipe.fail(new InterruptedIOException("zipping interrupted"));
+            }
+        } finally {
+            // the last thread out ends the archive, once every entry is closed
+            if (running.decrementAndGet() == 0) {
+                if (!failed && !closed) {
+                    try {
+                        if (finderException != null) {
+                            throw new IOException("error finding files", finderException);
+                        }
+                        closeZip();
+                    } catch (IOException e) {
+                        pipe.fail(e);
+                    }
+                }
+                closeZipQuietly();
+            }
         }
-        closeZip();
     };
 
-    private void setup() throws IOException {
+    private void setup(int bufferSize) throws IOException {
         // start the pump from the finder to the foundQueue
         this.closed = false;
+        this.finderException = null;
         this.foundQueue = new ArrayBlockingQueue<>(foundQueueCapacity);
         this.finderThread = new Thread(runFinderThread, "finderThread");
         finderThread.start();
 
-        // start the zipping thread from the foundQueue to the OutputStream
-        this.exception = null;
-        this.output = new PipedOutputStream(this);
-        this.zip = FoundOutputStream.getFoundOutputStream(output, level);
-        this.zipThread = new Thread(runZipThread, "zipThread");
-        zipThread.start();
+        // start the zipping thread from the foundQueue to the pipe
+        this.pipe = new BlockingPipe(bufferSize);
+        this.in = pipe.input();
+        if (level == FoundOutputStream.ZAP_LEVEL && multiplexed > 1) {
+            this.mux = new MultiplexedZapOutputStream(pipe.output(), zapLevel, chunkSize);
+            this.zipThreads = new Thread[multiplexed];
+            this.running = new AtomicInteger(multiplexed);
+            for (int i=0; i<multiplexed; i++) {
+                zipThreads[i] = new Thread(runMuxThread, "zipThread-"+i);
+            }
+        } else {
+            this.zip = FoundOutputStream.getFoundOutputStream(pipe.output(), level, zapLevel, solid, dictionary, deflateThreads);
+            this.zipThreads = new Thread[] {new Thread(runZipThread, "zipThread")};
+        }
+        for (Thread zipThread : zipThreads) {
+            zipThread.start();
+        }
     }
 
-    private ThreadedZipDirectoryInputStream(Finder finder, Copier copier, int level, int bufferSize) throws IOException {
-        super(bufferSize);
+    private ThreadedZipDirectoryInputStream(Finder finder, Copier copier, ChecksumCache checksums, int level, int zapLevel, boolean solid,
+            PresetDictionary dictionary, int deflateThreads, int multiplexed, int chunkSize, int bufferSize) throws IOException {
+        super(null);
         this.finder = finder;
         this.copier = copier;
+        this.checksums = checksums;
         this.level = level;
-        setup();
+        this.zapLevel = zapLevel;
+        this.solid = solid;
+        this.dictionary = dictionary;
+        this.deflateThreads = deflateThreads;
+        this.multiplexed = multiplexed;
+        this.chunkSize = chunkSize;
+        setup(bufferSize);
     }
 
     public static final int DEFAULT_BUFFERSIZE = 32 * 1024;
@@ -111,12 +278,27 @@ public class ThreadedZipDirectoryInputStream extends PipedInputStream {
         private File path = null;
         private Copier copier = (f,o)->{};
         private int level = Deflater.DEFAULT_COMPRESSION;
+        private int zapLevel = Deflater.NO_COMPRESSION;
+        private boolean solid = false;
+        private PresetDictionary dictionary = null;
+        private int deflateThreads = 1;
+        private int multiplexed = 1;
+        private int chunkSize = MultiplexedZapOutputStream.DEFAULT_CHUNK_SIZE;
         private int bufferSize = DEFAULT_BUFFERSIZE;
         private Finder finder = null;
         private Predicate<Found> filter = Finder.ALL;
+        private DirectoryScanner scanner = DirectoryScanner.FILE;
+        private int parallelism = 1;
+        private int runSize = 0;
+        private File spillDirectory = null;
         private DirectoryMode directoryMode = DirectoryMode.include;
+        private boolean ordered = true;
         private int limit = 0;
         private InputStream remoteReplica = null;
+        private boolean mergeJoin = false;
+        private int decoderParallelism = 1;
+        private HashTree hashTree = null;
+        private ChecksumCache checksums = null;
         private long timeout = 0;
         private TimeUnit unit = null;
         private Consumer<String> debug = s->{};
@@ -131,6 +313,75 @@ public class ThreadedZipDirectoryInputStream extends PipedInputStream {
             this.level = level;
             return this;
         }
+        /**
+         * Sets the compression level for the entries of a zap archive
+         * (when the {@link #level(int) level} is {@link FoundOutputStream#ZAP_LEVEL}).
+         * @param zapLevel a {@link Deflater} level, where {@link Deflater#NO_COMPRESSION}
+         * (the default) writes the original zap format
+         * @return this
+         */
+        public Builder zapLevel(int zapLevel) {
+            this.zapLevel = zapLevel;
+            return this;
+        }
+        /**
+         * Compresses a zap archive as a whole, at the {@link #zapLevel(int) zap level},
+         * instead of file by file (see {@link SolidOutputStream}).
+         * @param solid {@code true} for a solid zap archive
+         * @return this
+         */
+        public Builder solid(boolean solid) {
+            this.solid = solid;
+            return this;
+        }
+        /**
+         * Presets a dictionary for the compressed entries of a zap archive,
+         * which is sent once at the start of the archive (see {@link PresetDictionary}).
+         * It is not used for a solid archive or without a {@link #zapLevel(int) zap level}.
+         * @param dictionary the dictionary, or {@code null} for none
+         * @return this
+         */
+        public Builder dictionary(PresetDictionary dictionary) {
+            this.dictionary = dictionary;
+            return this;
+        }
+        /**
+         * Compresses each large file of a zip archive on {@code deflateThreads}
+         * threads, in blocks joined into a single deflate stream that any zip
+         * reader can inflate (see {@link ParallelDeflater}). Small files, and
+         * zap archives, are compressed as usual.
+         * @param deflateThreads the number of threads, where 1 (the default)
+         * compresses on the zipping thread
+         * @return this
+         */
+        public Builder deflateThreads(int deflateThreads) {
+            this.deflateThreads = deflateThreads;
+            return this;
+        }
+        /**
+         * Copies up to {@code multiplexed} files at the same time into a
+         * multiplexed zap archive (when the {@link #level(int) level} is
+         * {@link FoundOutputStream#ZAP_LEVEL}), each compressed at the
+         * {@link #zapLevel(int) zap level}. A solid archive or a dictionary
+         * is not used when multiplexed.
+         * @param multiplexed the number of entries in flight, where 1 (the
+         * default) writes an archive that is not multiplexed
+         * @return this
+         */
+        public Builder multiplexed(int multiplexed) {
+            this.multiplexed = multiplexed;
+            return this;
+        }
+        /**
+         * Sets the largest chunk of a file written to a multiplexed archive
+         * at a time, which each entry in flight buffers.
+         * @param chunkSize the chunk size in bytes
+         * @return this
+         */
+        public Builder chunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
         public Builder bufferSize(int bufferSize) {
             this.bufferSize = bufferSize;
             return this;
@@ -143,10 +394,30 @@ public class ThreadedZipDirectoryInputStream extends PipedInputStream {
             this.filter = filter;
             return this;
         }
+        public Builder scanner(DirectoryScanner scanner) {
+            this.scanner = scanner;
+            return this;
+        }
+        public Builder parallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+        public Builder runSize(int runSize) {
+            this.runSize = runSize;
+            return this;
+        }
+        public Builder spillDirectory(File spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return this;
+        }
         public Builder directoryMode(DirectoryMode directoryMode) {
             this.directoryMode = directoryMode;
             return this;
         }
+        public Builder ordered(boolean ordered) {
+            this.ordered = ordered;
+            return this;
+        }
         public Builder limit(int limit) {
             this.limit = limit;
             return this;
@@ -155,6 +426,22 @@ public class ThreadedZipDirectoryInputStream extends PipedInputStream {
             this.remoteReplica = remoteReplica;
             return this;
         }
+        public Builder mergeJoin(boolean mergeJoin) {
+            this.mergeJoin = mergeJoin;
+            return this;
+        }
+        public Builder decoderParallelism(int decoderParallelism) {
+            this.decoderParallelism = decoderParallelism;
+            return this;
+        }
+        public Builder hashTree(HashTree hashTree) {
+            this.hashTree = hashTree;
+            return this;
+        }
+        public Builder checksums(ChecksumCache checksums) {
+            this.checksums = checksums;
+            return this;
+        }
         public Builder timeout(long timeout, TimeUnit unit) {
             this.timeout = timeout;
             this.unit = unit;
@@ -173,11 +460,16 @@ public class ThreadedZipDirectoryInputStream extends PipedInputStream {
             }
             Finder finder = new Finder(path)
                     .filter(filter)
+                    .scanner(scanner)
+                    .parallelism(parallelism)
+                    .runSize(runSize)
+                    .spillDirectory(spillDirectory)
                     .directoryMode(directoryMode)
+                    .ordered(ordered)
                     .limit(limit)
                     .debug(debug);
             if (remoteReplica != null) {
-                finder.remoteReplica(remoteReplica);
+                finder.remoteReplica(remoteReplica).mergeJoin(mergeJoin).decoderParallelism(decoderParallelism).hashTree(hashTree).checksums(checksums);
             }
             if (unit != null) {
                 finder.timeout(timeout, unit);
@@ -189,7 +481,7 @@ public class ThreadedZipDirectoryInputStream extends PipedInputStream {
             if (finder == null) {
                 finder = setupFinder();
             }
-            return new ThreadedZipDirectoryInputStream(finder, copier, level, bufferSize);
+            return new ThreadedZipDirectoryInputStream(finder, copier, checksums, level, zapLevel, solid, dictionary, deflateThreads, multiplexed, chunkSize, bufferSize);
         }
     }
 
@@ -205,32 +497,55 @@ public class ThreadedZipDirectoryInputStream extends PipedInputStream {
         return finder;
     }
 
-    private synchronized void closeZip() {
+    private synchronized void closeZip() throws IOException {
         if (zip != null) {
             try {
                 zip.close();
+            } finally {
                 zip = null;
-            } catch (IOException e) {
-                if (exception == null) {
-                    exception = e;
-                }
             }
         }
+        if (mux != null) {
+            try {
+                mux.close();
+            } finally {
+                mux = null;
+            }
+        }
+    }
+
+    /**
+     * Closes the archive after the pipe has failed or the stream was
+     * closed, when its end can no longer reach the reader, so that its
+     * resources (the deflater threads of a zip archive, say) are released.
+     * The writes of the end fail, and their errors are moot.
+     */
+    private void closeZipQuietly() {
+        try {
+            closeZip();
+        } catch (IOException | RuntimeException e) {
+            // the stream has already failed or been closed
+        }
     }
 
     @Override
     public void close() throws IOException {
         closed = true;
-        // finderThread will end when closed is true
-        // zipThread will end when closed is true
-        closeZip();
+        // closing the pipe fails any write in progress, and the interrupts
+        // wake the threads if they are waiting on the queue or the Finder
+        super.close();
+        if (finderThread != null) {
+            finderThread.interrupt();
+        }
+        if (zipThreads != null) {
+            for (Thread zipThread : zipThreads) {
+                zipThread.interrupt();
+            }
+        }
+        closeZipQuietly();
         if (finder != null) {
             finder.close();
             finder = null;
         }
-        super.close();
-        if (exception != null) {
-            throw exception;
-        }
     }
 }
@@ -3,7 +3,6 @@ package com.cleo.labs.util.zip;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.function.BooleanSupplier;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -14,12 +13,16 @@ public class UnzipDirectoryStreamWrapper implements AutoCloseable {
     private Predicate<Found> filter;
     private UnzipProcessor processor;
     private BooleanSupplier interrupted;
+    private int writers;
+    private long memory;
 
     public UnzipDirectoryStreamWrapper(Function<String[],File> resolver) throws IOException {
         this.resolver = resolver;
         this.filter = Finder.ALL;
         this.processor = (zip)->null;
         this.interrupted = ()->false;
+        this.writers = ZapFoundInputStream.DEFAULT_WRITERS;
+        this.memory = ZapFoundInputStream.DEFAULT_MEMORY;
     }
 
     public UnzipDirectoryStreamWrapper filter(Predicate<Found> filter) {
@@ -37,36 +40,37 @@ public class UnzipDirectoryStreamWrapper implements AutoCloseable {
         return this;
     }
 
-    public static final int BUFFER_SIZE = 16384;
+    /**
+     * Sets the number of threads writing the contents of a multiplexed
+     * zap archive (see {@link ZapFoundInputStream#writers(int)}).
+     * @param writers the number of writer threads
+     * @return this
+     */
+    public UnzipDirectoryStreamWrapper writers(int writers) {
+        this.writers = writers;
+        return this;
+    }
+
+    /**
+     * Sets the memory for contents waiting to be written from a multiplexed
+     * zap archive (see {@link ZapFoundInputStream#memory(long)}).
+     * @param memory the memory in bytes
+     * @return this
+     */
+    public UnzipDirectoryStreamWrapper memory(long memory) {
+        this.memory = memory;
+        return this;
+    }
+
+    public static final int BUFFER_SIZE = FoundInputStream.BUFFER_SIZE;
 
     public void process(InputStream in, String filename) throws IOException {
         FoundInputStream archive = FoundInputStream.getFoundInputStream(in, filename);
         archive.resolver(resolver);
-        Found found;
-        byte[] buf = new byte[BUFFER_SIZE];
-        while (!interrupted.getAsBoolean() && (found = archive.getNextEntry()) != null) {
-            if (filter.test(found)) {
-                OutputStream out = processor.process(found);
-                if (out!=null) {
-                    try {
-                        int n;
-                        while (!interrupted.getAsBoolean() && (n = archive.read(buf)) >= 0) {
-                            out.write(buf, 0,  n);
-                        }
-                    } finally {
-                        out.close();
-                    }
-                    if (found.modified() >= 0) {
-                        try {
-                            found.file().setLastModified(found.modified());
-                        } catch (Exception ignore) {
-                            // don't worry about it -- some URIs don't allow this
-                        }
-                    }
-                }
-            }
-            archive.closeEntry();
+        if (archive instanceof ZapFoundInputStream) {
+            ((ZapFoundInputStream)archive).writers(writers).memory(memory);
         }
+        archive.unzip(filter, processor, interrupted);
         archive.close();
     }
 
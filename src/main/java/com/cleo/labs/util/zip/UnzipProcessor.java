@@ -4,6 +4,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 public interface UnzipProcessor {
     public OutputStream process(Found zip) throws IOException;
@@ -12,6 +14,18 @@ public interface UnzipProcessor {
         if (zip.directory()) {
             zip.file().mkdirs();
             return null;
+        } else if (zip.operation()==Found.Operation.touch) {
+            // same contents, just a new modified time
+            zip.file().setLastModified(zip.modified());
+            return null;
+        } else if (zip.operation()==Found.Operation.move) {
+            // the same file is already here under another name
+            zip.file().getParentFile().mkdirs();
+            Files.move(zip.source().file().toPath(), zip.file().toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return null;
+        } else if (zip.operation()==Found.Operation.delta) {
+            // the differences from the file that is already here
+            return new BlockDelta.Patcher(zip.file());
         } else {
             File parent = zip.file().getParentFile();
             if (!parent.exists()) {
@@ -5,34 +5,404 @@ import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.InflaterOutputStream;
+import java.util.zip.ZipEntry;
 
 import com.cleo.labs.util.zip.Found.Operation;
 
+/**
+ * Reads the zap archive format written by {@link ZapFoundOutputStream},
+ * in the original (v1) format, the v2 format with compressed entries,
+ * the solid format, the v2 format with a preset dictionary, or the
+ * multiplexed format, as told by the signature.
+ * <p/>
+ * The entries of a {@link MultiplexedZapOutputStream multiplexed} archive
+ * can not be read one after another, as their contents are interleaved.
+ * Instead {@link #unzip(Predicate, UnzipProcessor, BooleanSupplier)} reads
+ * the frames as they come, opening each entry through the processor in the
+ * order the entries were opened, and hands the chunks of content to a pool
+ * of {@link #writers(int) writer} threads, each entry to a single writer.
+ * Chunks waiting to be written are limited to a {@link #memory(long) memory}
+ * budget, after which reading waits for the writers to catch up.
+ */
 public class ZapFoundInputStream extends FoundInputStream {
 
     private DataInputStream dis;
     private EmbeddedInputStream eis;
+    private Inflater inflater;
+    private boolean solid;
+    private byte[] dictionary;
+    private boolean multiplexed;
+    private int chunkSize;
+    private int writers;
+    private long memory;
+    private Demultiplexer demux;
     private enum State {starting, reading, eof};
+    private static final int SOLID_LOOKAHEAD = 4 * EmbeddedOutputStream.DEFAULT_BUFSIZE;
     private State state;
 
+    public static final int DEFAULT_WRITERS = 4;
+    public static final long DEFAULT_MEMORY = 16L * 1024L * 1024L;
+    private static final int FRAME_LOOKAHEAD = 512;
+
     public ZapFoundInputStream(InputStream in) {
         super(null);
         this.dis = new DataInputStream(in);
         this.in = dis;
         this.eis = null;
+        this.inflater = null;
+        this.solid = false;
+        this.dictionary = null;
+        this.multiplexed = false;
+        this.chunkSize = 0;
+        this.writers = DEFAULT_WRITERS;
+        this.memory = DEFAULT_MEMORY;
+        this.demux = null;
         this.state = State.starting;
     }
 
-    @Override
-    public Found getNextEntry() throws IOException {
+    /**
+     * Reads the signature and sets up for the format it tells.
+     */
+    private void start() throws IOException {
         if (state==State.starting) {
             byte[] check = new byte[FoundInputStream.CLEO_SIGNATURE.length];
             dis.readFully(check);
-            if (!Arrays.equals(check, CLEO_SIGNATURE)) {
+            if (Arrays.equals(check, ZAP2_SIGNATURE)) {
+                inflater = new Inflater(true);
+            } else if (Arrays.equals(check, ZAP_DICTIONARY_SIGNATURE)) {
+                dis.readUTF(); // the id, for a receiver that keeps dictionaries
+                dictionary = new byte[dis.readInt()];
+                dis.readFully(dictionary);
+                inflater = new Inflater(true);
+            } else if (Arrays.equals(check, ZAP_SOLID_SIGNATURE)) {
+                // the rest is the original format, compressed as a whole
+                dis = new DataInputStream(new SolidInputStream(dis));
+                in = dis;
+                solid = true;
+            } else if (Arrays.equals(check, ZAP_MUX_SIGNATURE)) {
+                multiplexed = true;
+                chunkSize = dis.readInt();
+            } else if (!Arrays.equals(check, CLEO_SIGNATURE)) {
                 throw new IOException("not a Zap archive");
             }
             state = State.reading;
+        }
+    }
+
+    /**
+     * As decompressing a solid archive reads ahead by up to a few segment
+     * chunks, and a multiplexed archive is read a frame (of up to a chunk)
+     * at a time, this is how much a push-style reader must let accumulate.
+     */
+    @Override
+    public int lookahead() throws IOException {
+        start();
+        return solid ? SOLID_LOOKAHEAD : multiplexed ? chunkSize + FRAME_LOOKAHEAD : 0;
+    }
+
+    /**
+     * Sets the number of threads writing the contents of a multiplexed archive.
+     * @param writers the number of writer threads
+     * @return this
+     */
+    public ZapFoundInputStream writers(int writers) {
+        this.writers = Math.max(1, writers);
+        return this;
+    }
+
+    /**
+     * Sets how much content read from a multiplexed archive may be waiting
+     * for the writers before reading waits.
+     * @param memory the memory in bytes
+     * @return this
+     */
+    public ZapFoundInputStream memory(long memory) {
+        this.memory = Math.max(1L, memory);
+        return this;
+    }
+
+    /**
+     * Returns {@code true} for a multiplexed archive, which must be read
+     * with {@link #unzip(Predicate, UnzipProcessor, BooleanSupplier)} or
+     * {@link #step(Predicate, UnzipProcessor)} instead of {@link #getNextEntry()}.
+     * @return {@code true} for a multiplexed archive
+     * @throws IOException if the signature can not be read
+     */
+    public boolean multiplexed() throws IOException {
+        start();
+        return multiplexed;
+    }
+
+    @Override
+    public void unzip(Predicate<Found> filter, UnzipProcessor processor, BooleanSupplier interrupted) throws IOException {
+        if (!multiplexed()) {
+            super.unzip(filter, processor, interrupted);
+            return;
+        }
+        try {
+            while (!interrupted.getAsBoolean() && step(filter, processor));
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Reads the next frame of a multiplexed archive: an entry is opened through
+     * {@code processor} (if it passes {@code filter}), content is handed to the
+     * entry's writer, and an entry is closed (and its modified time set) once its
+     * writer is done with it. The end of the archive waits for all the writers.
+     * @param filter selects the entries to unzip
+     * @param processor returns the stream for the content of an entry, or {@code null}
+     * @return {@code false} at the end of the archive
+     * @throws IOException if the archive can not be read or an entry can not be written
+     */
+    public boolean step(Predicate<Found> filter, UnzipProcessor processor) throws IOException {
+        if (!multiplexed()) {
+            throw new IOException("not a multiplexed Zap archive");
+        } else if (state==State.eof) {
+            return false;
+        }
+        if (demux == null) {
+            demux = new Demultiplexer(writers, memory);
+        }
+        demux.check();
+        int type;
+        try {
+            type = dis.readUnsignedByte();
+        } catch (EOFException e) {
+            state = State.eof;
+            throw new IOException("multiplexed Zap archive ended without an end frame");
+        }
+        if (type == MultiplexedZapOutputStream.END) {
+            state = State.eof;
+            demux.finish();
+            return false;
+        }
+        int id = dis.readInt();
+        switch (type) {
+        case MultiplexedZapOutputStream.OPEN:
+            Found found = Found.read(dis);
+            found.file(resolver.apply(PathUtil.safePath(found.fullname())));
+            if (found.source() != null) {
+                found.source().file(resolver.apply(PathUtil.safePath(found.source().fullname())));
+            }
+            int method = found.operation().content() ? dis.readUnsignedByte() : ZipEntry.STORED;
+            if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+                throw new IOException("unsupported method "+method+" for "+found.fullname());
+            }
+            OutputStream os = processor != null && filter.test(found) ? processor.process(found) : null;
+            if (found.operation().content()) {
+                demux.open(id, found, os, method);
+            } else if (os != null) {
+                os.close();
+                modified(found);
+            }
+            break;
+        case MultiplexedZapOutputStream.DATA:
+            int length = dis.readInt();
+            if (length < 0 || length > chunkSize) {
+                throw new IOException("invalid chunk length "+length);
+            }
+            byte[] chunk = new byte[length];
+            dis.readFully(chunk);
+            demux.data(id, chunk);
+            break;
+        case MultiplexedZapOutputStream.CLOSE:
+            demux.close(id);
+            break;
+        default:
+            throw new IOException("invalid frame type "+type);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the writers of a multiplexed archive, closing any entries still open.
+     */
+    private void abort() {
+        if (demux != null) {
+            demux.abort();
+            demux = null;
+        }
+    }
+
+    /**
+     * Hands the contents of the entries of a multiplexed archive to a pool of
+     * single-threaded writers. Each entry is assigned to the writer with the
+     * fewest open entries, and its chunks and close are queued to that writer,
+     * so they happen in order.
+     */
+    private static class Demultiplexer {
+        private static class Stream {
+            private Found found;
+            private OutputStream out;
+            private Inflater inflater;
+            private int writer;
+        }
+
+        private ExecutorService[] writers;
+        private int[] open;
+        private Map<Integer,Stream> streams;
+        private Semaphore memory;
+        private int permits;
+        private volatile IOException failure;
+
+        private Demultiplexer(int writers, long memory) {
+            this.writers = new ExecutorService[writers];
+            for (int i=0; i<writers; i++) {
+                this.writers[i] = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "unzipWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            this.open = new int[writers];
+            this.streams = new HashMap<>();
+            this.permits = (int)Math.min(Integer.MAX_VALUE, memory);
+            this.memory = new Semaphore(permits);
+            this.failure = null;
+        }
+
+        private synchronized void fail(Exception e) {
+            if (failure == null) {
+                failure = e instanceof IOException ? (IOException)e : new IOException(e);
+            }
+        }
+
+        private void check() throws IOException {
+            if (failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+        }
+
+        private void open(int id, Found found, OutputStream out, int method) {
+            Stream stream = new Stream();
+            stream.found = found;
+            stream.out = out;
+            stream.writer = 0;
+            for (int i=1; i<open.length; i++) {
+                if (open[i] < open[stream.writer]) {
+                    stream.writer = i;
+                }
+            }
+            open[stream.writer]++;
+            if (out != null && method == ZipEntry.DEFLATED) {
+                stream.inflater = new Inflater(true);
+                stream.out = new InflaterOutputStream(out, stream.inflater, EmbeddedOutputStream.DEFAULT_BUFSIZE);
+            }
+            streams.put(id, stream);
+        }
+
+        private Stream stream(int id) throws IOException {
+            Stream stream = streams.get(id);
+            if (stream == null) {
+                throw new IOException("frame for unknown entry "+id);
+            }
+            return stream;
+        }
+
+        private void data(int id, byte[] chunk) throws IOException {
+            Stream stream = stream(id);
+            if (stream.out == null) {
+                return; // filtered out
+            }
+            int n = Math.min(chunk.length, permits);
+            try {
+                memory.acquire(n);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            writers[stream.writer].execute(() -> {
+                try {
+                    if (failure == null) {
+                        stream.out.write(chunk);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                } finally {
+                    memory.release(n);
+                }
+            });
+        }
+
+        private void close(int id) throws IOException {
+            Stream stream = stream(id);
+            streams.remove(id);
+            open[stream.writer]--;
+            if (stream.out == null) {
+                return;
+            }
+            writers[stream.writer].execute(() -> close(stream));
+        }
+
+        private void close(Stream stream) {
+            try {
+                stream.out.close();
+                if (failure == null) {
+                    modified(stream.found);
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            } finally {
+                if (stream.inflater != null) {
+                    stream.inflater.end();
+                }
+            }
+        }
+
+        private void finish() throws IOException {
+            for (ExecutorService writer : writers) {
+                writer.shutdown();
+            }
+            try {
+                for (ExecutorService writer : writers) {
+                    while (!writer.awaitTermination(1, TimeUnit.MINUTES));
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (!streams.isEmpty()) {
+                fail(new IOException(streams.size()+" entries were not closed"));
+            }
+            check();
+        }
+
+        private void abort() {
+            for (ExecutorService writer : writers) {
+                writer.shutdownNow();
+            }
+            for (Stream stream : streams.values()) {
+                if (stream.out != null) {
+                    try {
+                        stream.out.close();
+                    } catch (IOException ignore) {
+                        // already failing
+                    }
+                }
+            }
+            streams.clear();
+        }
+    }
+
+    @Override
+    public Found getNextEntry() throws IOException {
+        start();
+        if (multiplexed) {
+            throw new IOException("a multiplexed Zap archive must be unzipped, not read entry by entry");
         } else if (state==State.eof) {
             return null;
         }
@@ -41,9 +411,23 @@ public class ZapFoundInputStream extends FoundInputStream {
             Found found = Found.read(dis);
             String[] safePath = PathUtil.safePath(found.fullname());
             found.file(resolver.apply(safePath));
-            if (found.operation()==Operation.add) {
-                eis = new EmbeddedInputStream(dis); // only add has content
-                in = eis;
+            if (found.source() != null) {
+                found.source().file(resolver.apply(PathUtil.safePath(found.source().fullname())));
+            }
+            if (found.operation().content()) {
+                int method = inflater == null ? ZipEntry.STORED : dis.readUnsignedByte();
+                eis = new EmbeddedInputStream(dis); // only add and delta have content
+                if (method == ZipEntry.DEFLATED) {
+                    if (dictionary != null) {
+                        // a raw inflater never asks for the dictionary: it must be preset
+                        inflater.setDictionary(dictionary);
+                    }
+                    in = new InflaterInputStream(eis, inflater, EmbeddedOutputStream.DEFAULT_BUFSIZE);
+                } else if (method == ZipEntry.STORED) {
+                    in = eis;
+                } else {
+                    throw new IOException("unsupported method "+method+" for "+found.fullname());
+                }
             } else {
                 in = new ByteArrayInputStream(new byte[0]);
                 if (found.operation()==Operation.end) {
@@ -64,7 +448,20 @@ public class ZapFoundInputStream extends FoundInputStream {
             eis.close();
             eis = null;
             in = dis;
+            if (inflater != null) {
+                inflater.reset();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        abort();
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
         }
+        super.close();
     }
 
 }
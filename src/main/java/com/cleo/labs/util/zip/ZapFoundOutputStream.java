@@ -1,32 +1,178 @@
 package com.cleo.labs.util.zip;
 
 import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
 
-import com.cleo.labs.util.zip.Found.Operation;
 import com.google.common.io.ByteStreams;
 
+/**
+ * Writes the zap archive format: a signature followed by a sequence of
+ * {@link Found} entries, each followed by its content (for the operations
+ * that have content) as an {@link EmbeddedOutputStream}, and ended by
+ * {@link Found#FOUND_END}.
+ * <p/>
+ * With a compression level other than {@link Deflater#NO_COMPRESSION} the
+ * v2 format is written instead, which is signed with
+ * {@link FoundInputStream#ZAP2_SIGNATURE} and has a method byte
+ * ({@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}) before the content
+ * of each entry. Deflated content is compressed as it is written, through a
+ * single {@link Deflater} reset for each entry, so the memory used is the
+ * same for every entry. Without compression the original (v1) format is
+ * written, which receivers that predate v2 can still read.
+ * <p/>
+ * A solid archive is signed with {@link FoundInputStream#ZAP_SOLID_SIGNATURE}
+ * and followed by the entries in the original format, all compressed together
+ * as a {@link SolidOutputStream}, so that small, similar files share the
+ * compression window. New segments start only between entries. The entries
+ * flush their content as they end, which would cost the solid stream a sync
+ * point each, so those flushes stop short of it: it is pushed through at the
+ * segment boundaries and on close.
+ * <p/>
+ * With a {@link PresetDictionary} (and a compression level, but not solid)
+ * the archive is signed with {@link FoundInputStream#ZAP_DICTIONARY_SIGNATURE}
+ * and the signature is followed by the dictionary id, length and contents,
+ * and then entries in the v2 format, each deflated with the dictionary preset.
+ */
 public class ZapFoundOutputStream extends FoundOutputStream {
 
     private DataOutputStream dos;
     private EmbeddedOutputStream eos;
+    private DeflaterOutputStream deflated;
+    private Deflater deflater;
+    private SolidOutputStream solid;
+    private byte[] dictionary;
+
+    /**
+     * Passes writes through, but not flushes.
+     */
+    private static class Unflushed extends FilterOutputStream {
+        public Unflushed(OutputStream out) {
+            super(out);
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+        @Override
+        public void flush() {
+            // the solid stream is pushed through at segment boundaries and on close
+        }
+    }
 
     public ZapFoundOutputStream(OutputStream out) throws IOException {
+        this(out, Deflater.NO_COMPRESSION);
+    }
+
+    /**
+     * Creates a zap archive compressing the content of its entries at
+     * {@code level}.
+     * @param out the stream to write the archive to
+     * @param level a {@link Deflater} level, where {@link Deflater#NO_COMPRESSION}
+     * writes the original (v1) format
+     * @throws IOException if the signature can not be written
+     */
+    public ZapFoundOutputStream(OutputStream out, int level) throws IOException {
+        this(out, level, false);
+    }
+
+    /**
+     * Creates a zap archive compressing either the content of its entries,
+     * or the whole archive as a solid stream, at {@code level}.
+     * @param out the stream to write the archive to
+     * @param level a {@link Deflater} level, where {@link Deflater#NO_COMPRESSION}
+     * writes the original (v1) format, or for a solid archive the default level
+     * @param solid {@code true} to compress the whole archive as a solid stream
+     * @throws IOException if the signature can not be written
+     */
+    public ZapFoundOutputStream(OutputStream out, int level, boolean solid) throws IOException {
+        this(out, level, solid, null);
+    }
+
+    /**
+     * Creates a zap archive compressing either the content of its entries,
+     * with a preset dictionary, or the whole archive as a solid stream, at
+     * {@code level}.
+     * @param out the stream to write the archive to
+     * @param level a {@link Deflater} level, where {@link Deflater#NO_COMPRESSION}
+     * writes the original (v1) format, or for a solid archive the default level
+     * @param solid {@code true} to compress the whole archive as a solid stream
+     * @param dictionary the preset dictionary for each entry, or {@code null}
+     * (a dictionary is not used for a solid archive or without compression)
+     * @throws IOException if the signature can not be written
+     */
+    public ZapFoundOutputStream(OutputStream out, int level, boolean solid, PresetDictionary dictionary) throws IOException {
         super(null);
-        this.dos = new DataOutputStream(out);
-        this.out = dos;
         this.eos = null;
-        dos.write(FoundInputStream.CLEO_SIGNATURE);
+        this.deflated = null;
+        this.deflater = null;
+        this.solid = null;
+        this.dictionary = null;
+        if (solid) {
+            out.write(FoundInputStream.ZAP_SOLID_SIGNATURE);
+            this.solid = new SolidOutputStream(out,
+                    level == Deflater.NO_COMPRESSION ? Deflater.DEFAULT_COMPRESSION : level);
+            this.dos = new DataOutputStream(new Unflushed(this.solid));
+        } else if (level == Deflater.NO_COMPRESSION) {
+            this.dos = new DataOutputStream(out);
+            dos.write(FoundInputStream.CLEO_SIGNATURE);
+        } else if (dictionary != null && dictionary.bytes().length > 0) {
+            this.dos = new DataOutputStream(out);
+            this.deflater = new Deflater(level, true);
+            this.dictionary = dictionary.bytes();
+            dos.write(FoundInputStream.ZAP_DICTIONARY_SIGNATURE);
+            dos.writeUTF(dictionary.id());
+            dos.writeInt(this.dictionary.length);
+            dos.write(this.dictionary);
+        } else {
+            this.dos = new DataOutputStream(out);
+            this.deflater = new Deflater(level, true);
+            dos.write(FoundInputStream.ZAP2_SIGNATURE);
+        }
+        this.out = dos;
+    }
+
+    /**
+     * Sets the segment size of a solid archive (see {@link SolidOutputStream#segmentSize(long)}).
+     * @param segmentSize the segment size in bytes
+     * @return this
+     */
+    public ZapFoundOutputStream segmentSize(long segmentSize) {
+        if (solid != null) {
+            solid.segmentSize(segmentSize);
+        }
+        return this;
     }
 
     @Override
     public void putNextEntry(Found found) throws IOException {
         closeEntry();
+        if (solid != null) {
+            solid.boundary();
+        }
         found.write(dos);
-        if (found.operation()==Operation.add) {
-            eos = new EmbeddedOutputStream(dos); // only add has content
-            out = eos;
+        if (found.operation().content()) {
+            if (deflater == null) {
+                eos = new EmbeddedOutputStream(dos); // only add and delta have content
+                out = eos;
+            } else if (found.length() == 0L && found.operation() == Found.Operation.add) {
+                // nothing to compress
+                dos.writeByte(ZipEntry.STORED);
+                eos = new EmbeddedOutputStream(dos);
+                out = eos;
+            } else {
+                dos.writeByte(ZipEntry.DEFLATED);
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                eos = new EmbeddedOutputStream(dos);
+                deflated = new DeflaterOutputStream(eos, deflater, EmbeddedOutputStream.DEFAULT_BUFSIZE);
+                out = deflated;
+            }
         } else {
             out = ByteStreams.nullOutputStream();
         }
@@ -34,6 +180,11 @@ public class ZapFoundOutputStream extends FoundOutputStream {
 
     @Override
     public void closeEntry() throws IOException {
+        if (deflated != null) {
+            deflated.finish();
+            deflater.reset();
+            deflated = null;
+        }
         if (eos != null) {
             eos.close();
             eos = null;
@@ -45,6 +196,9 @@ public class ZapFoundOutputStream extends FoundOutputStream {
     public void close() throws IOException {
         putNextEntry(Found.FOUND_END);
         closeEntry();
+        if (deflater != null) {
+            deflater.end();
+        }
         out = dos;
         super.close();
     }
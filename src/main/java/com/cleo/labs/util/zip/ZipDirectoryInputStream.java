@@ -12,6 +12,7 @@ import java.util.function.Predicate;
 import java.util.zip.Deflater;
 
 import com.cleo.labs.util.zip.Finder.DirectoryMode;
+import com.cleo.labs.util.zip.Found.Operation;
 import com.google.common.io.ByteStreams;
 
 public class ZipDirectoryInputStream extends FilterInputStream implements LambdaWriterInputStream.Writer {
@@ -23,11 +24,18 @@ public class ZipDirectoryInputStream extends FilterInputStream implements Lambda
     private Finder finder;
     private int limit;
     private Opener opener;
+    private ChecksumCache checksums;
     private int level;
+    private int zapLevel;
+    private boolean solid;
+    private PresetDictionary dictionary;
+    private int deflateThreads;
 
     private OutputStream output;
     private LambdaWriterInputStream input;
     private FoundOutputStream zip;
+    private OutputStream entryOutput;
+    private BlockDelta.Encoder encoder;
     private Found entry;
     private InputStream is;
     private byte[] buffer;
@@ -39,18 +47,26 @@ public class ZipDirectoryInputStream extends FilterInputStream implements Lambda
         this.input = new LambdaWriterInputStream(this);
         this.in = input;
         this.output = input.getOutputStream();
-        this.zip = FoundOutputStream.getFoundOutputStream(output, level);
+        this.zip = FoundOutputStream.getFoundOutputStream(output, level, zapLevel, solid, dictionary, deflateThreads);
         this.entry = null;
+        this.entryOutput = null;
+        this.encoder = null;
         this.is = null;
         this.currentSize = 0L;
     }
 
-    private ZipDirectoryInputStream(Finder finder, int limit, Opener opener, int level) throws IOException {
+    private ZipDirectoryInputStream(Finder finder, int limit, Opener opener, ChecksumCache checksums, int level, int zapLevel, boolean solid,
+            PresetDictionary dictionary, int deflateThreads) throws IOException {
         super(null);
         this.finder = finder;
         this.limit = limit;
         this.opener = opener;
+        this.checksums = checksums;
         this.level = level;
+        this.zapLevel = zapLevel;
+        this.solid = solid;
+        this.dictionary = dictionary;
+        this.deflateThreads = deflateThreads;
         this.buffer = new byte[LambdaWriterInputStream.DEFAULT_BUFFERSIZE];
         this.totalSize = -1L;
         setup();
@@ -60,11 +76,24 @@ public class ZipDirectoryInputStream extends FilterInputStream implements Lambda
         private File path = null;
         private Opener opener = f -> new ByteArrayInputStream(new byte[0]);
         private int level = Deflater.DEFAULT_COMPRESSION;
+        private int zapLevel = Deflater.NO_COMPRESSION;
+        private boolean solid = false;
+        private PresetDictionary dictionary = null;
+        private int deflateThreads = 1;
         private Finder finder = null;
         private Predicate<Found> filter = Finder.ALL;
+        private DirectoryScanner scanner = DirectoryScanner.FILE;
+        private int parallelism = 1;
+        private int runSize = 0;
+        private File spillDirectory = null;
         private DirectoryMode directoryMode = DirectoryMode.include;
+        private boolean ordered = true;
         private int limit = 0;
         private InputStream remoteReplica = null;
+        private boolean mergeJoin = false;
+        private int decoderParallelism = 1;
+        private HashTree hashTree = null;
+        private ChecksumCache checksums = null;
         private long timeout = 0;
         private TimeUnit unit = null;
         private Consumer<String> debug = s->{};
@@ -79,6 +108,51 @@ public class ZipDirectoryInputStream extends FilterInputStream implements Lambda
             this.level = level;
             return this;
         }
+        /**
+         * Sets the compression level for the entries of a zap archive
+         * (when the {@link #level(int) level} is {@link FoundOutputStream#ZAP_LEVEL}).
+         * @param zapLevel a {@link Deflater} level, where {@link Deflater#NO_COMPRESSION}
+         * (the default) writes the original zap format
+         * @return this
+         */
+        public Builder zapLevel(int zapLevel) {
+            this.zapLevel = zapLevel;
+            return this;
+        }
+        /**
+         * Compresses a zap archive as a whole, at the {@link #zapLevel(int) zap level},
+         * instead of file by file (see {@link SolidOutputStream}).
+         * @param solid {@code true} for a solid zap archive
+         * @return this
+         */
+        public Builder solid(boolean solid) {
+            this.solid = solid;
+            return this;
+        }
+        /**
+         * Presets a dictionary for the compressed entries of a zap archive,
+         * which is sent once at the start of the archive (see {@link PresetDictionary}).
+         * It is not used for a solid archive or without a {@link #zapLevel(int) zap level}.
+         * @param dictionary the dictionary, or {@code null} for none
+         * @return this
+         */
+        public Builder dictionary(PresetDictionary dictionary) {
+            this.dictionary = dictionary;
+            return this;
+        }
+        /**
+         * Compresses each large file of a zip archive on {@code deflateThreads}
+         * threads, in blocks joined into a single deflate stream that any zip
+         * reader can inflate (see {@link ParallelDeflater}). Small files, and
+         * zap archives, are compressed as usual.
+         * @param deflateThreads the number of threads, where 1 (the default)
+         * compresses on the zipping thread
+         * @return this
+         */
+        public Builder deflateThreads(int deflateThreads) {
+            this.deflateThreads = deflateThreads;
+            return this;
+        }
         public Builder finder(Finder finder) {
             this.finder = finder;
             return this;
@@ -87,10 +161,30 @@ public class ZipDirectoryInputStream extends FilterInputStream implements Lambda
             this.filter = filter;
             return this;
         }
+        public Builder scanner(DirectoryScanner scanner) {
+            this.scanner = scanner;
+            return this;
+        }
+        public Builder parallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+        public Builder runSize(int runSize) {
+            this.runSize = runSize;
+            return this;
+        }
+        public Builder spillDirectory(File spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return this;
+        }
         public Builder directoryMode(DirectoryMode directoryMode) {
             this.directoryMode = directoryMode;
             return this;
         }
+        public Builder ordered(boolean ordered) {
+            this.ordered = ordered;
+            return this;
+        }
         public Builder limit(int limit) {
             this.limit = limit;
             return this;
@@ -99,6 +193,22 @@ public class ZipDirectoryInputStream extends FilterInputStream implements Lambda
             this.remoteReplica = remoteReplica;
             return this;
         }
+        public Builder mergeJoin(boolean mergeJoin) {
+            this.mergeJoin = mergeJoin;
+            return this;
+        }
+        public Builder decoderParallelism(int decoderParallelism) {
+            this.decoderParallelism = decoderParallelism;
+            return this;
+        }
+        public Builder hashTree(HashTree hashTree) {
+            this.hashTree = hashTree;
+            return this;
+        }
+        public Builder checksums(ChecksumCache checksums) {
+            this.checksums = checksums;
+            return this;
+        }
         public Builder timeout(long timeout, TimeUnit unit) {
             this.timeout = timeout;
             this.unit = unit;
@@ -115,9 +225,17 @@ public class ZipDirectoryInputStream extends FilterInputStream implements Lambda
             if (directoryMode == null) {
                 directoryMode = DirectoryMode.include;
             }
-            Finder finder = new Finder(path).filter(filter).directoryMode(directoryMode).debug(debug);
+            Finder finder = new Finder(path)
+                    .filter(filter)
+                    .scanner(scanner)
+                    .parallelism(parallelism)
+                    .runSize(runSize)
+                    .spillDirectory(spillDirectory)
+                    .directoryMode(directoryMode)
+                    .ordered(ordered)
+                    .debug(debug);
             if (remoteReplica != null) {
-                finder.remoteReplica(remoteReplica);
+                finder.remoteReplica(remoteReplica).mergeJoin(mergeJoin).decoderParallelism(decoderParallelism).hashTree(hashTree).checksums(checksums);
             }
             if (unit != null) {
                 finder.timeout(timeout, unit);
@@ -129,7 +247,7 @@ public class ZipDirectoryInputStream extends FilterInputStream implements Lambda
             if (finder == null) {
                 finder = setupFinder();
             }
-            return new ZipDirectoryInputStream(finder, limit, opener, level);
+            return new ZipDirectoryInputStream(finder, limit, opener, checksums, level, zapLevel, solid, dictionary, deflateThreads);
         }
     }
 
@@ -171,19 +289,27 @@ public class ZipDirectoryInputStream extends FilterInputStream implements Lambda
             // time to get the next file and set up a new ZipEntry
             if (finder.hasNext()) {
                 Found next = finder.next();
+                if (next != null && next.operation()==Operation.move && !(zip instanceof ZapFoundOutputStream)) {
+                    next.operation(Operation.add); // only zap can carry a move: send the file instead
+                }
                 if (next == null) {
                     // signal that the finder timed out -- go around again
                     throw new InterruptedException();
                 } else if (next.directory() && next.fullname().equals("/")) {
                     // skip the root path
-                } else if (next.directory()) {
-                    entry = next;
-                    zip.putNextEntry(entry);
+                } else if (next.directory() || next.operation()==Operation.delete || next.operation()==Operation.touch ||
+                        next.operation()==Operation.move) {
+                    // no content to copy
+                    zip.putNextEntry(next);
                     zip.closeEntry();
-                    entry = null;
                 } else {
                     entry = next;
+                    encoder = BlockDelta.encoder(entry, zip);
                     zip.putNextEntry(entry);
+                    entryOutput = encoder != null ? encoder : zip;
+                    if (checksums != null) {
+                        entryOutput = checksums.recorder(entry, entryOutput);
+                    }
                     is = (InputStream)opener.open(next);
                 }
             } else {
@@ -196,12 +322,20 @@ public class ZipDirectoryInputStream extends FilterInputStream implements Lambda
             // time to shuttle a buffer across
             int n = is.read(buffer);
             if (n < 0) {
+                if (encoder != null) {
+                    encoder.finish();
+                }
+                if (entryOutput instanceof ChecksumCache.Recorder) {
+                    ((ChecksumCache.Recorder)entryOutput).record();
+                }
                 zip.closeEntry();
                 is.close();
                 entry = null;
+                entryOutput = null;
+                encoder = null;
                 is = null;
             } else {
-                zip.write(buffer, 0, n);
+                entryOutput.write(buffer, 0, n);
             }
         }
     }
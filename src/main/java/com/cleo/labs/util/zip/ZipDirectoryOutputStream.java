@@ -20,6 +20,10 @@ public class ZipDirectoryOutputStream extends FilterOutputStream implements Lamb
     private boolean closed;
     private Predicate<Found> filter;
     private UnzipProcessor processor;
+    private int entryNeed;
+    private int bufferNeed;
+    private boolean waiting;
+    private boolean multiplexed;
 
     private static final int ENTRY_NEED = 512;
     private static final int BUFFER_SIZE = 8192 * 4;
@@ -37,6 +41,10 @@ public class ZipDirectoryOutputStream extends FilterOutputStream implements Lamb
         this.out = output;
         this.filter = Finder.ALL;
         this.processor = UnzipProcessor.defaultProcessor;
+        this.entryNeed = ENTRY_NEED;
+        this.bufferNeed = BUFFER_NEED;
+        this.waiting = false;
+        this.multiplexed = false;
 //      this.unzip = new ZipFoundInputStream(input);
 //      unzip.resolver(this.resolver);
     }
@@ -45,6 +53,15 @@ public class ZipDirectoryOutputStream extends FilterOutputStream implements Lamb
     public void bootstrap() throws IOException {
         this.unzip = FoundInputStream.getFoundInputStream(input);
         unzip.resolver(resolver);
+        // a multiplexed archive is unzipped a frame at a time, on its own writer threads
+        multiplexed = unzip instanceof ZapFoundInputStream && ((ZapFoundInputStream)unzip).multiplexed();
+        int lookahead = unzip.lookahead();
+        if (lookahead > ENTRY_NEED) {
+            // wait (once) for enough input for the first entry
+            entryNeed = Math.max(ENTRY_NEED, lookahead);
+            bufferNeed = Math.max(BUFFER_NEED, lookahead);
+            waiting = true;
+        }
     }
 
     public ZipDirectoryOutputStream processor(UnzipProcessor processor) {
@@ -66,6 +83,16 @@ public class ZipDirectoryOutputStream extends FilterOutputStream implements Lamb
         if (closed || unzip == null) {
             input.read(buffer);
             return BUFFER_SIZE;
+        } else if (waiting) {
+            waiting = false;
+            return entryNeed;
+        } else if (multiplexed) {
+            if (!((ZapFoundInputStream)unzip).step(filter, processor)) {
+                unzip.close();
+                unzip = null;
+                return BUFFER_SIZE;
+            }
+            return entryNeed;
         } else if (entry == null) {
             entry = unzip.getNextEntry();
             if (entry == null) {
@@ -76,7 +103,7 @@ public class ZipDirectoryOutputStream extends FilterOutputStream implements Lamb
                 if (processor != null && filter.test(entry)) {
                     os = processor.process(entry);
                 }
-                return BUFFER_NEED;
+                return bufferNeed;
             }
         } else {
             int n = unzip.read(buffer);
@@ -95,12 +122,12 @@ public class ZipDirectoryOutputStream extends FilterOutputStream implements Lamb
                     }
                 }
                 entry = null;
-                return ENTRY_NEED;
+                return entryNeed;
             } else {
                 if (os != null) {
                     os.write(buffer, 0, n);
                 }
-                return BUFFER_NEED;
+                return bufferNeed;
             }
         }
     }
@@ -110,6 +137,10 @@ public class ZipDirectoryOutputStream extends FilterOutputStream implements Lamb
         IOException exception = null;
         try {
             super.close();
+            // a compressed archive may hold input it has read but not yet returned
+            while (unzip != null) {
+                read(input);
+            }
         } catch (IOException e) {
             exception = e;
         }
@@ -2,6 +2,7 @@ package com.cleo.labs.util.zip;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -9,7 +10,14 @@ import com.google.common.io.ByteStreams;
 
 public class ZipFoundOutputStream extends FoundOutputStream {
 
+    /**
+     * Files smaller than this are compressed on the writing thread, as
+     * splitting them into blocks would gain little.
+     */
+    public static final long PARALLEL_THRESHOLD = 1024L * 1024L;
+
     private ZipOutputStream zip;
+    private ParallelDeflater deflater = null;
     private boolean skip = false;
 
     public ZipFoundOutputStream(OutputStream out) {
@@ -18,6 +26,46 @@ public class ZipFoundOutputStream extends FoundOutputStream {
         this.out = zip;
     }
 
+    /**
+     * Creates a zip archive whose large files are compressed
+     * on {@code threads} threads by a {@link ParallelDeflater}.
+     * @param out the stream to write the archive to
+     * @param threads the number of threads, where {@code 1} compresses
+     * everything on the writing thread
+     */
+    public ZipFoundOutputStream(OutputStream out, int threads) {
+        super(null);
+        if (threads > 1) {
+            deflater = new ParallelDeflater(Deflater.DEFAULT_COMPRESSION, threads);
+            zip = new ParallelZipOutputStream(out, deflater);
+        } else {
+            zip = new ZipOutputStream(out);
+        }
+        this.out = zip;
+    }
+
+    /**
+     * A {@link ZipOutputStream} deflating with a {@link ParallelDeflater}
+     * in place of its own {@link Deflater}, which it ends on close, even
+     * if the archive can not be finished.
+     */
+    private static class ParallelZipOutputStream extends ZipOutputStream {
+        public ParallelZipOutputStream(OutputStream out, ParallelDeflater deflater) {
+            super(out);
+            def.end();
+            def = deflater;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
     @Override
     public void putNextEntry(Found found) throws IOException {
         if (found.operation() != Found.Operation.add) { 
@@ -34,6 +82,9 @@ public class ZipFoundOutputStream extends FoundOutputStream {
                 entry.setSize(found.length());
                 entry.setCompressedSize(found.length());
             }
+            if (deflater != null) {
+                deflater.parallel(!found.directory() && found.length() >= PARALLEL_THRESHOLD);
+            }
             zip.putNextEntry(entry);
         }
     }
@@ -48,6 +99,13 @@ public class ZipFoundOutputStream extends FoundOutputStream {
         }
     }
 
+    @Override
+    public void close() throws IOException {
+        // the zip, even if closed while skipping an entry
+        this.out = zip;
+        super.close();
+    }
+
     public ZipOutputStream zip() {
         return zip;
     }
@@ -2,22 +2,38 @@ package com.cleo.labs.connector.zip;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 import java.util.zip.Deflater;
 
 import org.junit.Test;
 
 import com.cleo.connector.api.ConnectorClient;
+import com.cleo.connector.api.ConnectorException;
 import com.cleo.connector.api.command.ConnectorCommandResult;
 import com.cleo.connector.api.command.ConnectorCommandResult.Status;
+import com.cleo.connector.shell.interfaces.IConnectorAction;
+import com.cleo.connector.shell.interfaces.IConnectorHost;
 import com.cleo.connector.testing.Commands;
 import com.cleo.connector.testing.StringSource;
 import com.cleo.connector.testing.TestConnectorClientBuilder;
+import com.cleo.labs.util.zip.Finder;
+import com.cleo.labs.util.zip.FoundOutputStream;
+import com.cleo.labs.util.zip.LocalFinderInputStream;
 import com.cleo.labs.util.zip.MockBagOFiles;
 import com.cleo.labs.util.zip.PathUtil;
+import com.cleo.labs.util.zip.ThreadedZipDirectoryInputStream;
 import com.cleo.labs.util.zip.ZipDirectoryInputStream;
 import com.cleo.labs.util.zip.ZipDirectoryOutputStream;
 import com.cleo.labs.util.zip.MockBagOFiles.DirectoryVerifier;
@@ -98,4 +114,156 @@ public class TestPut {
         assertTrue(verifier.verified());
     }
 
+
+    /**
+     * A factory over the local file system, or one that claims not to
+     * be (like a URI root) when {@code normal} is {@code false}.
+     */
+    private FileFactory localFactory(boolean normal) {
+        return new FileFactory() {
+            @Override
+            public void setup(IConnectorHost host, IConnectorAction action) {
+            }
+            @Override
+            public void setSourceAndDest(String source, String dest, int col, Consumer<String> debug) {
+            }
+            @Override
+            public File getFile(String filename) {
+                return new File(filename);
+            }
+            @Override
+            public File getNormalFile(File file) {
+                return normal ? file : null;
+            }
+            @Override
+            public InputStream getInputStream(File file) throws IOException {
+                return new FileInputStream(file);
+            }
+            @Override
+            public OutputStream getOutputStream(File file, long modtime) throws IOException {
+                return new FileOutputStream(file);
+            }
+        };
+    }
+
+    private static void write(Path path, byte[] content, long modified) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.write(path, content);
+        path.toFile().setLastModified(modified);
+    }
+
+    private static void rmdirs(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Replicates {@code local} to {@code remote} with a PUT, the way a
+     * sender with Detect Moves would, starting from {@code listing}.
+     */
+    private ConnectorCommandResult replicate(Path local, Path remote, byte[] listing, FileFactory factory) throws Exception {
+        ConnectorClient client = (ConnectorClient) new TestConnectorClientBuilder(ZipConnectorSchema.class)
+            .logger(System.err)
+            .debug(true)
+            .set("RootPath", remote.toString())
+            .set("UnzipMode", "unzip")
+            .set("ReplicateDeletes", "true")
+            .build(factory);
+        Finder finder = new Finder(local.toFile())
+                .remoteReplica(new ByteArrayInputStream(listing))
+                .replicateDeletes(true)
+                .detectMoves(true);
+        try (InputStream zip = ThreadedZipDirectoryInputStream.builder(local.toFile())
+                .copier((from,to) -> Files.copy(from.file().toPath(), to))
+                .level(FoundOutputStream.ZAP_LEVEL)
+                .finder(finder)
+                .build()) {
+            StringSource source = new StringSource("replica.zip", "") {
+                @Override
+                public InputStream getStream() {
+                    return zip;
+                }
+            };
+            return Commands.put(source, "").go(client);
+        }
+    }
+
+    private static byte[] listing(Path remote) throws IOException {
+        try (InputStream in = LocalFinderInputStream.builder(remote.toFile()).build()) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private void testRename(boolean normal) throws Exception {
+        Path local = Files.createTempDirectory("local");
+        Path remote = Files.createTempDirectory("remote");
+        try {
+            long then = (System.currentTimeMillis() - 60000L) / 1000L * 1000L;
+            byte[] big = new byte[100000];
+            new Random(1L).nextBytes(big);
+            for (int i=0; i<5; i++) {
+                write(local.resolve("b-renamed/f"+i), big, then+i*10000L);
+                write(remote.resolve("z-old/f"+i), big, then+i*10000L);
+            }
+            ConnectorCommandResult result = replicate(local, remote, listing(remote), localFactory(normal));
+            assertEquals(Status.Success, result.getStatus());
+            for (int i=0; i<5; i++) {
+                assertArrayEquals(big, Files.readAllBytes(remote.resolve("b-renamed/f"+i)));
+                assertEquals(then+i*10000L, remote.resolve("b-renamed/f"+i).toFile().lastModified());
+            }
+            assertFalse(remote.resolve("z-old").toFile().exists());
+        } finally {
+            rmdirs(local);
+            rmdirs(remote);
+        }
+    }
+
+    @Test
+    public void testRename() throws Exception {
+        testRename(true);
+    }
+
+    @Test
+    public void testRenameNotNormal() throws Exception {
+        testRename(false);
+    }
+
+    @Test
+    public void testRenameMissingSource() throws Exception {
+        Path local = Files.createTempDirectory("local");
+        Path remote = Files.createTempDirectory("remote");
+        try {
+            long then = (System.currentTimeMillis() - 60000L) / 1000L * 1000L;
+            byte[] big = new byte[100000];
+            new Random(1L).nextBytes(big);
+            for (int i=0; i<5; i++) {
+                write(local.resolve("b-renamed/f"+i), big, then+i*10000L);
+                write(remote.resolve("z-old/f"+i), big, then+i*10000L);
+            }
+            // a stale listing: one of the files to move is already gone
+            byte[] stale = listing(remote);
+            Files.delete(remote.resolve("z-old/f2"));
+            // fails, so that a sender with a Remote State Cache drops its state
+            boolean failed;
+            try {
+                failed = replicate(local, remote, stale, localFactory(true)).getStatus() != Status.Success;
+            } catch (ConnectorException e) {
+                failed = true;
+            }
+            assertTrue(failed);
+            assertFalse(remote.resolve("b-renamed/f2").toFile().exists());
+            // and the next replication adds it
+            ConnectorCommandResult result = replicate(local, remote, listing(remote), localFactory(true));
+            assertEquals(Status.Success, result.getStatus());
+            for (int i=0; i<5; i++) {
+                assertArrayEquals(big, Files.readAllBytes(remote.resolve("b-renamed/f"+i)));
+            }
+            assertFalse(remote.resolve("z-old").toFile().exists());
+        } finally {
+            rmdirs(local);
+            rmdirs(remote);
+        }
+    }
+
 }
@@ -0,0 +1,219 @@
+package com.cleo.labs.util.zip;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cleo.labs.util.zip.Found.Operation;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+
+public class TestBlockDelta {
+
+    private Path local;
+    private Path remote;
+    private Path cache;
+    private long then;
+
+    @Before
+    public void setup() throws IOException {
+        local = Files.createTempDirectory("local");
+        remote = Files.createTempDirectory("remote");
+        cache = Files.createTempDirectory("cache");
+        then = (System.currentTimeMillis() - 60000L) / 1000L * 1000L;
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (Path path : new Path[] {local, remote, cache}) {
+            try (Stream<Path> paths = Files.walk(path)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns {@code old} with {@code insert} inserted at {@code at}
+     * and the byte at {@code change} changed.
+     */
+    private static byte[] edit(byte[] old, int at, byte[] insert, int change) {
+        byte[] edited = new byte[old.length+insert.length];
+        System.arraycopy(old, 0, edited, 0, at);
+        System.arraycopy(insert, 0, edited, at, insert.length);
+        System.arraycopy(old, at, edited, at+insert.length, old.length-at);
+        edited[change] ^= 0x55;
+        return edited;
+    }
+
+    private static byte[] delta(byte[] old, byte[] updated) throws IOException {
+        byte[] signatures = BlockDelta.signatures(new ByteArrayInputStream(old), old.length);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        try (BlockDelta.Encoder encoder = new BlockDelta.Encoder(signatures, delta)) {
+            // write in odd-sized pieces to exercise the buffering
+            for (int i=0; i<updated.length; i+=7777) {
+                encoder.write(updated, i, Math.min(7777, updated.length-i));
+            }
+        }
+        return delta.toByteArray();
+    }
+
+    private byte[] patch(byte[] old, byte[] delta) throws IOException {
+        File target = local.resolve("target").toFile();
+        Files.write(target.toPath(), old);
+        try (BlockDelta.Patcher patcher = new BlockDelta.Patcher(target)) {
+            patcher.write(delta);
+        }
+        return Files.readAllBytes(target.toPath());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] old = random(1000000, 1L);
+        byte[] updated = edit(old, 123457, "inserted".getBytes(), 765432);
+        byte[] delta = delta(old, updated);
+        assertTrue(delta.length < 50000);
+        assertArrayEquals(updated, patch(old, delta));
+    }
+
+    @Test
+    public void testIdentical() throws IOException {
+        byte[] old = random(1000001, 2L);
+        byte[] delta = delta(old, old);
+        assertTrue(delta.length < 32);
+        assertArrayEquals(old, patch(old, delta));
+    }
+
+    @Test
+    public void testUnrelated() throws IOException {
+        byte[] old = random(100000, 3L);
+        byte[] updated = random(120000, 4L);
+        assertArrayEquals(updated, patch(old, delta(old, updated)));
+        assertArrayEquals(new byte[0], patch(old, delta(old, new byte[0])));
+        assertArrayEquals(updated, patch(new byte[0], delta(new byte[0], updated)));
+    }
+
+    @Test
+    public void testWrongBasis() throws IOException {
+        byte[] old = random(100000, 5L);
+        byte[] delta = delta(old, edit(old, 5000, "x".getBytes(), 50000));
+        File target = local.resolve("target").toFile();
+        byte[] other = random(100000, 6L);
+        Files.write(target.toPath(), other);
+        try (BlockDelta.Patcher patcher = new BlockDelta.Patcher(target)) {
+            patcher.write(delta);
+            patcher.close();
+            fail("patch of the wrong file should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertArrayEquals(other, Files.readAllBytes(target.toPath()));
+        assertEquals(1, local.toFile().list().length);
+    }
+
+    @Test
+    public void testIncomplete() throws IOException {
+        byte[] old = random(100000, 7L);
+        byte[] delta = delta(old, random(1000, 8L));
+        File target = local.resolve("target").toFile();
+        Files.write(target.toPath(), old);
+        try (BlockDelta.Patcher patcher = new BlockDelta.Patcher(target)) {
+            patcher.write(delta, 0, delta.length-1);
+            patcher.close();
+            fail("incomplete patch should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertArrayEquals(old, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void testJson() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        Found found = new Found().fullname("a").length(5L).modified(then);
+        assertFalse(mapper.writeValueAsString(found).contains("signatures"));
+        String json = mapper.writeValueAsString(found.signatures(new byte[] {1, 2, 3}));
+        assertArrayEquals(new byte[] {1, 2, 3}, mapper.readValue(json, Found.class).signatures());
+    }
+
+    /**
+     * Replicates local to remote, returning the size of the archive.
+     */
+    private long replicate(int level) throws IOException {
+        SignatureCache signatures = new SignatureCache(cache.toFile()).threshold(1000L);
+        LocalFinderInputStream listing = LocalFinderInputStream.builder(remote.toFile())
+                .format(LocalFinderInputStream.ListingFormat.binary)
+                .signatures(signatures)
+                .build();
+        try (ThreadedZipDirectoryInputStream zip = ThreadedZipDirectoryInputStream.builder(local.toFile())
+                .copier((from,to) -> Files.copy(from.file().toPath(), to))
+                .level(level)
+                .remoteReplica(listing)
+                .build();
+            ZipDirectoryOutputStream unzip = new ZipDirectoryOutputStream(p -> remote.resolve(PathUtil.join(p)).toFile())) {
+            return ByteStreams.copy(zip, unzip);
+        }
+    }
+
+    @Test
+    public void testReplication() throws IOException {
+        byte[] old = random(200000, 9L);
+        byte[] updated = edit(old, 100, "inserted".getBytes(), 150000);
+        Files.write(local.resolve("big"), updated);
+        Files.write(local.resolve("small"), "new".getBytes());
+        Files.write(remote.resolve("big"), old);
+        Files.write(remote.resolve("small"), "old".getBytes());
+        local.resolve("big").toFile().setLastModified(then+10000L);
+        local.resolve("small").toFile().setLastModified(then+10000L);
+        remote.resolve("big").toFile().setLastModified(then);
+        remote.resolve("small").toFile().setLastModified(then);
+
+        // the delta is computed against the remote listing
+        SignatureCache signatures = new SignatureCache(cache.toFile()).threshold(1000L);
+        Found dir = new Found(new String[0], remote.toFile());
+        dir.contents(new Found[] {dir.child(remote.resolve("big").toFile()), dir.child(remote.resolve("small").toFile())});
+        signatures.fill(dir);
+        assertNotNull(dir.contents()[0].signatures());
+        assertNull(dir.contents()[1].signatures());
+        Found replica = new Found(new String[0], local.toFile())
+                .contents(new Found[] {dir.child(local.resolve("big").toFile()), dir.child(local.resolve("small").toFile())})
+                .calculateReplica(dir);
+        assertEquals(Operation.delta, replica.contents()[0].operation());
+        assertEquals(Operation.add, replica.contents()[1].operation());
+
+        assertTrue(replicate(FoundOutputStream.ZAP_LEVEL) < 50000L);
+        assertArrayEquals(updated, Files.readAllBytes(remote.resolve("big")));
+        assertEquals(then+10000L, remote.resolve("big").toFile().lastModified());
+        assertEquals("new", new String(Files.readAllBytes(remote.resolve("small"))));
+    }
+
+    @Test
+    public void testReplicationZip() throws IOException {
+        byte[] old = random(200000, 10L);
+        byte[] updated = edit(old, 100, "inserted".getBytes(), 150000);
+        Files.write(local.resolve("big"), updated);
+        Files.write(remote.resolve("big"), old);
+        remote.resolve("big").toFile().setLastModified(then);
+
+        // a plain zip can not carry a delta, so the whole file is sent
+        assertTrue(replicate(java.util.zip.Deflater.DEFAULT_COMPRESSION) > 200000L);
+        assertArrayEquals(updated, Files.readAllBytes(remote.resolve("big")));
+    }
+}
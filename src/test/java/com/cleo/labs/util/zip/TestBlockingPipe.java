@@ -0,0 +1,94 @@
+package com.cleo.labs.util.zip;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class TestBlockingPipe {
+
+    @Test
+    public void testTransfer() throws Exception {
+        byte[] data = new byte[1000000];
+        new Random(1L).nextBytes(data);
+        BlockingPipe pipe = new BlockingPipe(1000);
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try (OutputStream out = pipe.output()) {
+                int offset = 0;
+                Random random = new Random(2L);
+                while (offset < data.length) {
+                    int n = Math.min(data.length-offset, random.nextInt(3000));
+                    out.write(data, offset, n);
+                    offset += n;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        byte[] read = ByteStreams.toByteArray(pipe.input());
+        writer.get(10, TimeUnit.SECONDS);
+        assertArrayEquals(data, read);
+    }
+
+    @Test
+    public void testFail() throws IOException {
+        BlockingPipe pipe = new BlockingPipe(100);
+        pipe.output().write(new byte[10]);
+        pipe.fail(new IOException("failed"));
+        InputStream in = pipe.input();
+        assertEquals(10, in.read(new byte[100]));
+        try {
+            in.read();
+            fail();
+        } catch (IOException e) {
+            assertEquals("failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testReaderClose() throws Exception {
+        BlockingPipe pipe = new BlockingPipe(100);
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try {
+                pipe.output().write(new byte[1000]); // blocks when the pipe is full
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+        });
+        assertEquals(100, pipe.input().read(new byte[1000]));
+        pipe.input().close();
+        try {
+            writer.get(1, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw new AssertionError(e.getCause());
+        }
+    }
+
+    @Test
+    public void testWakeOnWrite() throws Exception {
+        BlockingPipe pipe = new BlockingPipe(100);
+        CompletableFuture<Long> reader = CompletableFuture.supplyAsync(() -> {
+            try {
+                pipe.input().read();
+                return System.nanoTime();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        long written = System.nanoTime();
+        pipe.output().write(1);
+        long woke = reader.get(1, TimeUnit.SECONDS);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(woke-written) < 100);
+    }
+}
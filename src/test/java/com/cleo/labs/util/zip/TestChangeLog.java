@@ -0,0 +1,121 @@
+package com.cleo.labs.util.zip;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestChangeLog {
+
+    private Path root;
+    private Path cache;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("root");
+        cache = Files.createTempDirectory("cache");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (Path path : new Path[] {root, cache}) {
+            try (Stream<Path> paths = Files.walk(path)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static String[] base(String path) {
+        return PathUtil.split(path);
+    }
+
+    @Test
+    public void testSince() throws IOException {
+        ChangeLog log = new ChangeLog(cache.toFile(), root.toFile());
+        String start = log.token();
+        assertTrue(log.since(start, base("")).isEmpty());
+
+        log.record(base("a"), new Found().fullname("b/c.txt"));
+        log.record(base(""), new Found().fullname("d/").directory(true));
+        String middle = log.token();
+        assertEquals("[/, a/b/, d/]", log.since(start, base("")).toString());
+        // relative to a listed directory, and only below it
+        assertEquals("[b/]", log.since(start, base("a")).toString());
+        assertEquals("[/]", log.since(start, base("a/b")).toString());
+        assertTrue(log.since(start, base("x")).isEmpty());
+
+        // a new directory and all of its parents
+        log.recordPath(base(""), new Found().fullname("x/y/z.txt"));
+        assertEquals("[/, x/, x/y/]", log.since(middle, base("")).toString());
+        // another instance sees the same log
+        assertEquals(5, new ChangeLog(cache.toFile(), root.toFile()).since(start, base("")).size());
+    }
+
+    @Test
+    public void testInvalidToken() throws IOException {
+        ChangeLog log = new ChangeLog(cache.toFile(), root.toFile());
+        String token = log.token();
+        assertNull(log.since(null, base("")));
+        assertNull(log.since("", base("")));
+        assertNull(log.since("nonsense", base("")));
+        // another root keeps another log, with another generation
+        String other = new ChangeLog(cache.toFile(), cache.toFile()).token();
+        assertNull(log.since(other, base("")));
+        assertNotNull(log.since(token, base("")));
+    }
+
+    @Test
+    public void testMaxLength() throws IOException {
+        ChangeLog log = new ChangeLog(cache.toFile(), root.toFile()).maxLength(100L);
+        String token = log.token();
+        for (int i=0; i<10; i++) {
+            log.record("directory"+i+"/");
+            log.flush();
+        }
+        // the log started over, so the token is from an old generation
+        assertNull(log.since(token, base("")));
+        String restarted = log.token();
+        assertFalse(restarted.split("\\.")[0].equals(token.split("\\.")[0]));
+        assertTrue(log.since(restarted, base("")).isEmpty());
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        // separate instances share the log (and its locks) while it starts over
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] futures = new Future<?>[4];
+            for (int t=0; t<futures.length; t++) {
+                String name = "t"+t+"/";
+                futures[t] = pool.submit(() -> {
+                    ChangeLog log = new ChangeLog(cache.toFile(), root.toFile()).maxLength(200L);
+                    for (int i=0; i<200; i++) {
+                        String token = log.token();
+                        log.record(name);
+                        log.flush();
+                        Set<String> changed = log.since(token, base(""));
+                        assertTrue(changed == null || changed.contains(name));
+                    }
+                    return null;
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
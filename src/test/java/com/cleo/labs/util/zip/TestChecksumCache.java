@@ -0,0 +1,209 @@
+package com.cleo.labs.util.zip;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cleo.labs.util.zip.Found.Operation;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+public class TestChecksumCache {
+
+    private Path root;
+    private Path cache;
+    private long then;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("root");
+        cache = Files.createTempDirectory("cache");
+        then = (System.currentTimeMillis() - 60000L) / 1000L * 1000L;
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (Path path : new Path[] {root, cache}) {
+            try (Stream<Path> paths = Files.walk(path)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private Found file(String name, String content, long modified) throws IOException {
+        Path path = root.resolve(name);
+        Files.write(path, content.getBytes());
+        path.toFile().setLastModified(modified);
+        return new Found(new String[0], root.toFile()).child(path.toFile());
+    }
+
+    private static long crc32c(String content) {
+        return Hashing.crc32c().hashBytes(content.getBytes()).padToLong();
+    }
+
+    @Test
+    public void testRemember() throws IOException {
+        Found found = file("a", "hello", then);
+        try (ChecksumCache checksums = new ChecksumCache(cache.toFile())) {
+            assertEquals(ChecksumCache.UNKNOWN_CHECKSUM, checksums.get(found));
+            assertEquals(crc32c("hello"), checksums.checksum(found));
+            assertEquals(crc32c("hello"), checksums.get(found));
+        }
+        try (ChecksumCache checksums = new ChecksumCache(cache.toFile())) {
+            assertEquals(crc32c("hello"), checksums.get(found));
+            assertEquals(ChecksumCache.UNKNOWN_CHECKSUM, checksums.get(file("a", "hello", then+1000L)));
+            assertEquals(ChecksumCache.UNKNOWN_CHECKSUM, checksums.get(file("a", "hello!", then)));
+        }
+    }
+
+    @Test
+    public void testRacy() throws IOException {
+        long now = System.currentTimeMillis() / 1000L * 1000L;
+        Found found = file("a", "hello", now);
+        try (ChecksumCache checksums = new ChecksumCache(cache.toFile())) {
+            assertEquals(crc32c("hello"), checksums.checksum(found));
+            // rewritten with the same length within the same second: not remembered, so not missed
+            found = file("a", "jello", now);
+            assertEquals(ChecksumCache.UNKNOWN_CHECKSUM, checksums.get(found));
+            assertEquals(crc32c("jello"), checksums.checksum(found));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ChecksumCache.Recorder recorder = checksums.recorder(found, out);
+            recorder.write("jello".getBytes());
+            recorder.record();
+            assertEquals(ChecksumCache.UNKNOWN_CHECKSUM, checksums.get(found));
+        }
+        try (ChecksumCache checksums = new ChecksumCache(cache.toFile()).racyInterval(0, TimeUnit.MILLISECONDS)) {
+            assertEquals(crc32c("jello"), checksums.checksum(found));
+            assertEquals(crc32c("jello"), checksums.get(found));
+        }
+    }
+
+    @Test
+    public void testTouch() throws IOException {
+        Found found = file("a", "hello", then);
+        try (ChecksumCache checksums = new ChecksumCache(cache.toFile())) {
+            checksums.checksum(found);
+            checksums.touch(found.file(), then+10000L);
+            found.file().setLastModified(then+10000L);
+            assertEquals(crc32c("hello"), checksums.get(found.modified(then+10000L)));
+        }
+    }
+
+    @Test
+    public void testRecorder() throws IOException {
+        Found found = file("a", "", then).length(5L);
+        try (ChecksumCache checksums = new ChecksumCache(cache.toFile())) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ChecksumCache.Recorder recorder = checksums.recorder(found, out);
+            recorder.write("hel".getBytes());
+            recorder.write("lo".getBytes());
+            recorder.record();
+            assertEquals("hello", out.toString());
+            assertEquals(crc32c("hello"), checksums.get(found));
+        }
+    }
+
+    @Test
+    public void testFill() throws IOException {
+        Found dir = new Found(new String[0], root.toFile());
+        Found a = file("a", "hello", then);
+        Found b = file("b", "world", then);
+        try (ChecksumCache checksums = new ChecksumCache(cache.toFile())) {
+            checksums.checksum(a);
+            dir.contents(new Found[] {dir.child(a.file()), dir.child(b.file())});
+            checksums.fill(dir);
+            assertEquals(crc32c("hello"), dir.contents()[0].checksum());
+            assertEquals(ChecksumCache.UNKNOWN_CHECKSUM, dir.contents()[1].checksum());
+        }
+    }
+
+    @Test
+    public void testReplica() throws IOException {
+        Found local = new Found(new String[0], root.toFile());
+        local.contents(new Found[] {
+                file("a", "hello", then),
+                file("b", "hello", then+10000L),
+                file("c", "jello", then+500L),
+                file("d", "hello", then+10000L),
+            });
+        Found remote = new Found().directory(true).fullname("/").contents(new Found[] {
+                new Found().fullname("a").length(5L).modified(then).checksum(crc32c("hello")),
+                new Found().fullname("b").length(5L).modified(then).checksum(crc32c("hello")),
+                new Found().fullname("c").length(5L).modified(then).checksum(crc32c("hello")),
+                new Found().fullname("d").length(5L).modified(then),
+            });
+        try (ChecksumCache checksums = new ChecksumCache(cache.toFile())) {
+            Found replica = local.calculateReplica(remote, checksums);
+            assertEquals(Operation.match, replica.contents()[0].operation());
+            assertEquals(Operation.touch, replica.contents()[1].operation());
+            assertEquals(Operation.add, replica.contents()[2].operation());
+            assertEquals(Operation.add, replica.contents()[3].operation());
+        }
+        // without checksums, only the attributes are compared
+        Found replica = local.calculateReplica(remote);
+        assertEquals(Operation.match, replica.contents()[0].operation());
+        assertEquals(Operation.add, replica.contents()[1].operation());
+        assertEquals(Operation.match, replica.contents()[2].operation());
+        assertEquals(Operation.add, replica.contents()[3].operation());
+    }
+
+    @Test
+    public void testSendRecords() throws IOException {
+        Found a = file("a", "hello", then);
+        try (ChecksumCache checksums = new ChecksumCache(cache.toFile())) {
+            try (ThreadedZipDirectoryInputStream zip = ThreadedZipDirectoryInputStream.builder(root.toFile())
+                    .copier((from,to) -> Files.copy(from.file().toPath(), to))
+                    .level(FoundOutputStream.ZAP_LEVEL)
+                    .checksums(checksums)
+                    .build()) {
+                ByteStreams.exhaust(zip);
+            }
+            assertEquals(crc32c("hello"), checksums.get(a));
+        }
+    }
+
+    @Test
+    public void testJson() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        Found found = new Found().fullname("a").length(5L).modified(then);
+        String json = mapper.writeValueAsString(found);
+        assertFalse(json.contains("checksum"));
+        assertEquals(ChecksumCache.UNKNOWN_CHECKSUM, mapper.readValue(json, Found.class).checksum());
+        json = mapper.writeValueAsString(found.checksum(0xFFFFFFFEL));
+        assertEquals(0xFFFFFFFEL, mapper.readValue(json, Found.class).checksum());
+    }
+
+    @Test
+    public void testZapTouch() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZapFoundOutputStream zap = new ZapFoundOutputStream(out)) {
+            zap.putNextEntry(new Found().fullname("a").length(5L).modified(then).operation(Operation.touch));
+            zap.putNextEntry(new Found().fullname("b").length(5L).modified(then).operation(Operation.add));
+            zap.write("hello".getBytes());
+            zap.closeEntry();
+        }
+        try (ZapFoundInputStream unzap = new ZapFoundInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            Found a = unzap.getNextEntry();
+            assertEquals(Operation.touch, a.operation());
+            assertEquals(then, a.modified());
+            assertEquals(0, ByteStreams.toByteArray(unzap).length);
+            Found b = unzap.getNextEntry();
+            assertEquals(Operation.add, b.operation());
+            assertEquals("hello", new String(ByteStreams.toByteArray(unzap)));
+            assertNull(unzap.getNextEntry());
+        }
+    }
+}
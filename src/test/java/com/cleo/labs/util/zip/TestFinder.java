@@ -2,10 +2,21 @@ package com.cleo.labs.util.zip;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
 import org.junit.Ignore;
@@ -86,6 +97,238 @@ public class TestFinder {
         assertTrue(files.hasNext());
     }
 
+    private static MockBagOFiles wideBag() {
+        return new MockBagOFiles()
+                .dirs("d%d", 1, 5)
+                    .dirs("e%d", 1, 4)
+                        .dirs("f%d", 1, 3)
+                            .files("test%d.txt", 1, 5, 100, (byte)' ')
+                            .up()
+                        .dirs("empty%d", 1, 2)
+                            .up()
+                        .up()
+                    .files("test%d.txt", 1, 3, 100, (byte)' ')
+                    .up()
+                .files("test%d.txt", 1, 10, 100, (byte)' ')
+                .up();
+    }
+
+    private static String[] names(Finder finder) {
+        return Stream.of(Iterables.toArray(finder, Found.class))
+                .map(Found::fullname)
+                .toArray(String[]::new);
+    }
+
+    @Test
+    public void testParallel() throws IOException {
+        MockBagOFiles root = wideBag();
+        for (DirectoryMode mode : DirectoryMode.values()) {
+            String[] serial = names(new Finder(root.root()).directoryMode(mode));
+            String[] parallel = names(new Finder(root.root()).directoryMode(mode).parallelism(4));
+            assertTrue(serial.length > 0);
+            assertArrayEquals(mode.name(), serial, parallel);
+        }
+    }
+
+    @Test
+    public void testParallelLimit() throws IOException {
+        MockBagOFiles root = wideBag();
+        Finder files = new Finder(root.root()).parallelism(4).limit(17);
+        assertEquals(17, Iterables.size(files));
+    }
+
+    @Test
+    public void testParallelPrefetch() throws IOException {
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("d%02d", 1, 20)
+                    .files("test%d.txt", 1, 3, 100, (byte)' ')
+                    .up();
+        Set<String> scanned = ConcurrentHashMap.newKeySet();
+        DirectoryScanner counting = directory -> {
+            scanned.add(directory.fullname());
+            return DirectoryScanner.FILE.scan(directory);
+        };
+        Finder files = new Finder(root.root()).scanner(counting).parallelism(4);
+        Iterator<Found> i = files.iterator();
+        assertEquals("/", i.next().fullname());
+        assertEquals("d01/", i.next().fullname());
+        // the root, d01 and no more than 4 listings ahead
+        assertTrue(scanned.toString(), scanned.size() <= 6);
+        files.close();
+        assertEquals(20+20*3+1, Iterables.size(new Finder(root.root()).parallelism(4)));
+    }
+
+    @Test
+    public void testStreaming() throws IOException {
+        // MockFiles can't be recreated from their names, so look them up when resolving spilled listings
+        DirectoryScanner mock = new DirectoryScanner() {
+            @Override
+            public Stream<Found> scan(Found directory) throws IOException {
+                return DirectoryScanner.FILE.scan(directory);
+            }
+            @Override
+            public File resolve(File directory, String name) {
+                return Stream.of(directory.listFiles()).filter(f -> f.getName().equals(name)).findFirst().get();
+            }
+        };
+        MockBagOFiles root = wideBag();
+        for (DirectoryMode mode : DirectoryMode.values()) {
+            String[] serial = names(new Finder(root.root()).directoryMode(mode));
+            String[] streamed = names(new Finder(root.root()).directoryMode(mode).scanner(mock).runSize(3));
+            String[] both = names(new Finder(root.root()).directoryMode(mode).scanner(mock).runSize(2).parallelism(4));
+            assertArrayEquals(mode.name(), serial, streamed);
+            assertArrayEquals(mode.name(), serial, both);
+        }
+    }
+
+    @Test
+    public void testUnordered() throws IOException {
+        MockBagOFiles root = wideBag();
+        for (DirectoryMode mode : DirectoryMode.values()) {
+            String[] ordered = names(new Finder(root.root()).directoryMode(mode));
+            String[] unordered = names(new Finder(root.root()).directoryMode(mode).ordered(false));
+            if (mode == DirectoryMode.excludeEmpty) {
+                // excludeEmpty depends on the order, so it is always ordered
+                assertArrayEquals(mode.name(), ordered, unordered);
+            } else if (mode != DirectoryMode.only) {
+                // test10.txt sorts before test2.txt, but is listed after it
+                assertNotEquals(mode.name(), Arrays.asList(ordered), Arrays.asList(unordered));
+            }
+            Set<String> seen = new HashSet<>();
+            for (String name : unordered) {
+                String parent = name.substring(0, name.lastIndexOf('/', name.length()-2)+1);
+                if (mode == DirectoryMode.include && !parent.isEmpty()) {
+                    assertTrue(name+" before its parent", seen.contains(parent));
+                }
+                seen.add(name);
+            }
+            Arrays.sort(ordered);
+            Arrays.sort(unordered);
+            assertArrayEquals(mode.name(), ordered, unordered);
+        }
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        MockBagOFiles root = wideBag();
+        for (DirectoryMode mode : DirectoryMode.values()) {
+            String[] iterated = names(new Finder(root.root()).directoryMode(mode));
+            String[] sequential = new Finder(root.root()).directoryMode(mode).stream(false)
+                    .map(Found::fullname)
+                    .toArray(String[]::new);
+            String[] parallel = new Finder(root.root()).directoryMode(mode).stream(true)
+                    .map(Found::fullname)
+                    .toArray(String[]::new);
+            assertArrayEquals(mode.name(), iterated, sequential);
+            assertArrayEquals(mode.name(), iterated, parallel);
+            String[] unordered = new Finder(root.root()).directoryMode(mode).ordered(false).stream(true)
+                    .map(Found::fullname)
+                    .sorted()
+                    .toArray(String[]::new);
+            Arrays.sort(iterated);
+            assertArrayEquals(mode.name(), iterated, unordered);
+        }
+        assertEquals(5*4*3*5+5*3+10, new Finder(root.root()).directoryMode(DirectoryMode.exclude).stream(true)
+                .mapToLong(Found::length)
+                .sum()/100);
+    }
+
+    @Test
+    public void testStreamDescend() throws IOException {
+        MockBagOFiles root = wideBag();
+        for (DirectoryMode mode : DirectoryMode.values()) {
+            String[] all = names(new Finder(root.root()).directoryMode(mode));
+            String[] iterated = names(new Finder(root.root()).directoryMode(mode).descend(d -> d.depth() < 2));
+            String[] parallel = new Finder(root.root()).directoryMode(mode).descend(d -> d.depth() < 2).stream(true)
+                    .map(Found::fullname)
+                    .toArray(String[]::new);
+            assertTrue(mode.name(), iterated.length < all.length);
+            assertArrayEquals(mode.name(), iterated, parallel);
+        }
+    }
+
+    @Test
+    public void testSpliterator() throws IOException {
+        MockBagOFiles root = wideBag();
+        Spliterator<Found> ordered = new Finder(root.root()).stream(true).spliterator();
+        assertTrue(ordered.hasCharacteristics(Spliterator.ORDERED|Spliterator.NONNULL|Spliterator.DISTINCT));
+        Spliterator<Found> unordered = new Finder(root.root()).ordered(false).stream(true).spliterator();
+        assertFalse(unordered.hasCharacteristics(Spliterator.ORDERED));
+        // the root splits into its contents, and the prefix comes first
+        Spliterator<Found> suffix = new Finder(root.root()).stream(false).spliterator();
+        Spliterator<Found> prefix = suffix.trySplit();
+        assertNotNull(prefix);
+        List<String> names = new ArrayList<>();
+        prefix.forEachRemaining(f -> names.add(f.fullname()));
+        suffix.forEachRemaining(f -> names.add(f.fullname()));
+        assertEquals(Arrays.asList(names(new Finder(root.root()))), names);
+    }
+
+    @Ignore
+    @Test
+    public void benchmarkStream() throws IOException {
+        // simulate a high-latency file system with a slow scanner
+        DirectoryScanner slow = dir -> {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return DirectoryScanner.FILE.scan(dir);
+        };
+        MockBagOFiles root = wideBag();
+        for (boolean parallel : new boolean[] {false, true, false, true}) {
+            long start = System.nanoTime();
+            long total = new Finder(root.root()).scanner(slow).stream(parallel)
+                    .mapToLong(Found::length)
+                    .sum();
+            long elapsed = System.nanoTime() - start;
+            System.out.println(String.format("%-10s: %d bytes in %dms", parallel ? "parallel" : "sequential", total, elapsed/1000000));
+        }
+    }
+
+    @Ignore
+    @Test
+    public void benchmarkUnordered() throws IOException {
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("d%d", 1, 20)
+                    .files("file%d.txt", 1, 50000, 100, (byte)' ')
+                    .up();
+        for (int i=0; i<3; i++) {
+            for (boolean ordered : new boolean[] {true, false}) {
+                long start = System.nanoTime();
+                Finder finder = new Finder(root.root()).directoryMode(DirectoryMode.exclude).ordered(ordered);
+                finder.next();
+                long first = System.nanoTime() - start;
+                int count = 1 + Iterables.size(finder);
+                long elapsed = System.nanoTime() - start;
+                System.out.println(String.format("%-9s: %d found in %dms, first after %dms",
+                        ordered ? "ordered" : "unordered", count, elapsed/1000000, first/1000000));
+            }
+        }
+    }
+
+    @Ignore
+    @Test
+    public void benchmarkParallel() throws IOException {
+        // simulate a high-latency file system with a slow scanner
+        DirectoryScanner slow = dir -> {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return DirectoryScanner.FILE.scan(dir);
+        };
+        MockBagOFiles root = wideBag();
+        for (int parallelism : new int[] {1, 2, 4, 8, 16}) {
+            long start = System.nanoTime();
+            int count = Iterables.size(new Finder(root.root()).scanner(slow).parallelism(parallelism));
+            long elapsed = System.nanoTime() - start;
+            System.out.println(String.format("parallelism %2d: %d found in %dms", parallelism, count, elapsed/1000000));
+        }
+    }
+
     @Ignore
     @Test
     public void testIgnore() {
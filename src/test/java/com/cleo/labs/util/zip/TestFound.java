@@ -2,8 +2,16 @@ package com.cleo.labs.util.zip;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Stream;
 
+import org.junit.Ignore;
 import org.junit.Test;
 
 import com.cleo.labs.util.zip.Found.Operation;
@@ -129,4 +137,112 @@ public class TestFound {
             }
         }
     }
+
+    @Test
+    public void testChild() {
+        Found root = new Found(new String[0], new File("root"));
+        Found a = root.child(new File("root/a"), true, 0L, 0L);
+        Found b = a.child(new File("root/a/b"), true, 0L, 0L);
+        Found c = b.child(new File("root/a/b/c.txt"), false, 10L, 20L);
+        assertEquals(0, root.depth());
+        assertEquals(3, c.depth());
+        assertArrayEquals(new String[] {"a", "b", "c.txt"}, c.path());
+        assertEquals("a/b/", b.fullname());
+        assertEquals("a/b/c.txt", c.fullname());
+        assertTrue(b.contains(c));
+        assertFalse(c.contains(b));
+        Found eager = new Found(new String[] {"a", "b", "c.txt"}, c.file(), false, 20L, 10L);
+        assertEquals(eager.fullname(), c.fullname());
+        assertEquals(eager.depth(), c.depth());
+        // a child of a Found read back from its fullname
+        Found parsed = new Found().directory(true).fullname("x/y/");
+        Found z = parsed.child(new File("x/y/z"), false, 0L, 0L);
+        assertArrayEquals(new String[] {"x", "y", "z"}, z.path());
+        assertEquals("x/y/z", z.fullname());
+    }
+
+    @Test
+    public void testCompareSiblings() {
+        // directory a/ sorts after a.b/ since '/' > '.', and sibling
+        // comparison must agree with comparing the full names
+        String[] names = {"a", "a.b", "a-b", "ab", "a0", "b", "A", "a/"};
+        Found root = new Found(new String[0], new File("."));
+        for (boolean directory : new boolean[] {true, false}) {
+            List<Found> children = new ArrayList<>();
+            for (String name : names) {
+                if (!name.contains("/")) {
+                    children.add(root.child(new File(name), directory, 0L, 0L));
+                }
+            }
+            List<Found> sorted = new ArrayList<>(children);
+            Collections.sort(sorted);
+            List<Found> expected = new ArrayList<>(children);
+            expected.sort((x, y) -> x.fullname().compareTo(y.fullname()));
+            assertEquals(expected, sorted);
+        }
+    }
+
+    @Ignore
+    @Test
+    public void benchmarkChildMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        File file = new File("benchmark");
+        String[] prefix = {"some", "fairly", "deep", "directory", "structure"};
+        for (boolean linked : new boolean[] {false, true, false, true}) {
+            System.gc();
+            long before = runtime.totalMemory()-runtime.freeMemory();
+            Found[] found = new Found[1000000];
+            Found parent = new Found(prefix, file, true, 0L, 0L);
+            for (int i=0; i<found.length; i++) {
+                if (i % 100 == 0) {
+                    String[] path = Arrays.copyOf(prefix, prefix.length+1);
+                    path[prefix.length] = "d"+i;
+                    parent = linked ? new Found(prefix, file, true, 0L, 0L).child(new File("d"+i), true, 0L, 0L)
+                                    : new Found(path, file, true, 0L, 0L);
+                }
+                if (linked) {
+                    found[i] = parent.child(new File("file"+i+".txt"), false, 0L, 0L);
+                } else {
+                    String[] path = Arrays.copyOf(parent.path(), prefix.length+2);
+                    path[prefix.length+1] = "file"+i+".txt";
+                    found[i] = new Found(path, file, false, 0L, 0L);
+                }
+            }
+            System.gc();
+            long after = runtime.totalMemory()-runtime.freeMemory();
+            System.out.println(String.format("%s: %d bytes per Found", linked ? "linked" : "full path",
+                    (after-before)/found.length));
+            assertEquals(prefix.length+2, found[found.length-1].depth());
+        }
+    }
+
+    @Test
+    public void testChildFullnameCached() {
+        Found root = new Found(new String[0], new File("."), true, 0L, 0L);
+        Found dir = root.child(new File("d"), true, 0L, 0L);
+        Found file = dir.child(new File("f.txt"), false, 0L, 0L);
+        assertEquals("d/f.txt", file.fullname());
+        assertSame(file.fullname(), file.fullname());
+        assertEquals("d/", dir.fullname());
+        assertSame(dir.fullname(), dir.fullname());
+    }
+
+    @Test
+    public void testIntern() {
+        Found root = new Found(new String[0], new File("."), true, 0L, 0L);
+        Found a = root.child(new File("a"), true, 0L, 0L);
+        Found b = root.child(new File("b"), true, 0L, 0L);
+        ConcurrentMap<String,String> names = new ConcurrentHashMap<>();
+        Found fa = a.child(new File(new String("index.html")), false, 0L, 0L).intern(names, 2);
+        Found fb = b.child(new File(new String("index.html")), false, 0L, 0L).intern(names, 2);
+        assertSame(fa.path()[1], fb.path()[1]);
+        assertEquals("b/index.html", fb.fullname());
+        // past the limit new names are left alone, known names still shared
+        a.child(new File("other"), false, 0L, 0L).intern(names, 2);
+        a.child(new File("unique"), false, 0L, 0L).intern(names, 2);
+        assertEquals(2, names.size());
+        assertFalse(names.containsKey("unique"));
+        Found fc = b.child(new File(new String("index.html")), false, 0L, 0L).intern(names, 2);
+        assertSame(fa.path()[1], fc.path()[1]);
+    }
 }
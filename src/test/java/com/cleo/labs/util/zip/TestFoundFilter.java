@@ -0,0 +1,164 @@
+package com.cleo.labs.util.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+
+public class TestFoundFilter {
+
+    private static final String[] PATTERNS = {
+            "glob:*.txt",
+            "glob:**/*.txt",
+            "glob:{**/,}.*",
+            "glob:target",
+            "glob:a/b*/**",
+            "glob:[a-c]?/[!x]*.{log,tmp}",
+            "glob:**/cache/**",
+            "glob:d\\[1\\]/*",
+            "glob:*/*/*",
+            "glob:a",
+            "glob:{a,b}/cache/z",
+            "glob:**/b*1",
+            "regex:.*\\.bak",
+            "regex:(a|b)/\\1.*",
+    };
+
+    private static final String[] NAMES = {
+            "a", "b", "b1", "c", "x1", "d[1]", "target", "cache", ".git", "a.txt", "b.log", "x.tmp", "y.bak", "z",
+    };
+
+    private static List<String[]> paths(int count, int depth, long seed) {
+        Random random = new Random(seed);
+        List<String[]> paths = new ArrayList<>();
+        for (int i=0; i<count; i++) {
+            String[] path = new String[1+random.nextInt(depth)];
+            for (int j=0; j<path.length; j++) {
+                path[j] = NAMES[random.nextInt(NAMES.length)];
+            }
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    private static Found found(String[] path, boolean directory) {
+        return new Found(path, new File(String.join("/", path)), directory, 0L, 0L);
+    }
+
+    private static boolean expected(PathMatcher[] matchers, String[] path) {
+        return Stream.of(matchers).anyMatch(m -> m.matches(Paths.get("", path)));
+    }
+
+    @Test
+    public void testSameAsPathMatcher() {
+        List<String[]> paths = paths(5000, 5, 1L);
+        for (String pattern : PATTERNS) {
+            PathMatcher[] matchers = {FileSystems.getDefault().getPathMatcher(pattern)};
+            Predicate<Found> excluding = FoundFilter.excluding(pattern);
+            for (String[] path : paths) {
+                boolean match = expected(matchers, path);
+                assertEquals(pattern+" "+String.join("/", path), !match, excluding.test(found(path, false)));
+                assertEquals(pattern+" "+String.join("/", path), !match, excluding.test(found(path, true)));
+            }
+        }
+    }
+
+    @Test
+    public void testCombined() {
+        List<String[]> paths = paths(5000, 5, 2L);
+        PathMatcher[] matchers = Stream.of(PATTERNS)
+                .map(FileSystems.getDefault()::getPathMatcher)
+                .toArray(PathMatcher[]::new);
+        Predicate<Found> excluding = FoundFilter.excluding(PATTERNS);
+        Predicate<Found> including = FoundFilter.including(PATTERNS);
+        for (String[] path : paths) {
+            boolean match = expected(matchers, path);
+            assertEquals(!match, excluding.test(found(path, false)));
+            assertEquals(match, including.test(found(path, false)));
+        }
+    }
+
+    @Test
+    public void testPruning() {
+        // no regex patterns, so pruning is enabled
+        String[] globs = Stream.of(PATTERNS).filter(p -> p.startsWith("glob:")).toArray(String[]::new);
+        List<String[]> paths = paths(5000, 6, 3L);
+        for (String glob : globs) {
+            PathMatcher[] matchers = {FileSystems.getDefault().getPathMatcher(glob)};
+            FoundFilter only = (FoundFilter)FoundFilter.only(glob);
+            for (String[] path : paths) {
+                if (expected(matchers, path)) {
+                    // every parent of a matching path must be kept
+                    for (int i=1; i<path.length; i++) {
+                        String[] parent = new String[i];
+                        System.arraycopy(path, 0, parent, 0, i);
+                        assertTrue(glob+" pruned "+String.join("/", parent)+" above "+String.join("/", path),
+                                only.test(found(parent, true)));
+                    }
+                }
+            }
+        }
+        FoundFilter only = (FoundFilter)FoundFilter.only("glob:a/b*/**");
+        assertTrue(only.test(found(new String[] {"a"}, true)));
+        assertTrue(only.test(found(new String[] {"a", "b1"}, true)));
+        assertFalse(only.test(found(new String[] {"c"}, true)));
+        assertFalse(only.test(found(new String[] {"a", "c"}, true)));
+    }
+
+    @Test
+    public void testFinderPruning() {
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("d%d", 1, 3)
+                    .dirs("e%d", 1, 3)
+                        .files("f%d.txt", 1, 5, 100, (byte)' ')
+                        .up()
+                    .files("f%d.txt", 1, 5, 100, (byte)' ')
+                    .up()
+                .files("f%d.txt", 1, 5, 100, (byte)' ')
+                .up();
+        String[] found = Stream.of(Iterables.toArray(new Finder(root.root()).filter(Finder.only("glob:d2/e*/f1.txt")), Found.class))
+                .map(Found::fullname)
+                .toArray(String[]::new);
+        assertArrayEquals(new String[] {"/", "d2/", "d2/e1/", "d2/e1/f1.txt", "d2/e2/", "d2/e2/f1.txt", "d2/e3/", "d2/e3/f1.txt"}, found);
+    }
+
+    @Ignore
+    @Test
+    public void benchmark() {
+        String[] patterns = new String[40];
+        for (int i=0; i<patterns.length; i++) {
+            patterns[i] = "glob:{**/,}*.ext"+i;
+        }
+        Found[] found = paths(1000000, 6, 4L).stream().map(p -> found(p, false)).toArray(Found[]::new);
+        PathMatcher[] matchers = Stream.of(patterns)
+                .map(FileSystems.getDefault()::getPathMatcher)
+                .toArray(PathMatcher[]::new);
+        Predicate<Found> legacy = f -> !Stream.of(matchers).anyMatch(m -> m.matches(Paths.get("", f.path())));
+        Predicate<Found> compiled = FoundFilter.excluding(patterns);
+        for (int pass=0; pass<5; pass++) {
+            long start = System.nanoTime();
+            long a = Stream.of(found).filter(legacy).count();
+            long mid = System.nanoTime();
+            long b = Stream.of(found).filter(compiled).count();
+            long end = System.nanoTime();
+            assertEquals(a, b);
+            System.out.println(String.format("pass %d: PathMatcher %dms, compiled %dms",
+                    pass, (mid-start)/1000000, (end-mid)/1000000));
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.cleo.labs.util.zip;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cleo.labs.util.zip.Found.Operation;
+
+public class TestHashTree {
+
+    private Path local;
+    private Path remote;
+    private Path cache;
+    private long then;
+
+    @Before
+    public void setup() throws IOException {
+        local = Files.createTempDirectory("local");
+        remote = Files.createTempDirectory("remote");
+        cache = Files.createTempDirectory("cache");
+        then = (System.currentTimeMillis() - 60000L) / 1000L * 1000L;
+        for (Path root : new Path[] {local, remote}) {
+            for (String dir : new String[] {"a", "b", "b/c"}) {
+                Files.createDirectories(root.resolve(dir));
+                for (int i=0; i<10; i++) {
+                    Files.write(root.resolve(dir).resolve("file"+i), new byte[i]);
+                }
+            }
+            age(root);
+        }
+    }
+
+    /**
+     * Moves all the modified times back a minute, so the cache
+     * entries are not considered racy, and makes both trees alike.
+     */
+    private void age(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.forEach(p -> p.toFile().setLastModified(then));
+        }
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (Path path : new Path[] {local, remote, cache}) {
+            try (Stream<Path> paths = Files.walk(path)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private HashTree hashTree(Path root) {
+        return new HashTree(DirectoryScanner.FILE, Finder.ALL, "test", cache.resolve(root.getFileName()).toFile());
+    }
+
+    private static Found dir(Path root, String name) {
+        Found found = new Found(new String[0], root.toFile());
+        for (String segment : name.split("/")) {
+            found = found.child(new File(found.file(), segment));
+        }
+        return found;
+    }
+
+    @Test
+    public void testStable() throws IOException {
+        Found root = new Found(new String[0], local.toFile());
+        HashTree first = hashTree(local);
+        byte[] hash = first.hash(root);
+        assertEquals(0, first.hits());
+        assertEquals(4, first.misses());
+        HashTree second = hashTree(local);
+        assertArrayEquals(hash, second.hash(root));
+        assertEquals(4, second.hits());
+        assertEquals(0, second.misses());
+    }
+
+    @Test
+    public void testChange() throws IOException {
+        HashTree before = hashTree(local);
+        byte[] root = before.hash(new Found(new String[0], local.toFile()));
+        byte[] a = before.hash(dir(local, "a"));
+        byte[] b = before.hash(dir(local, "b"));
+        byte[] c = before.hash(dir(local, "b/c"));
+
+        Path changed = local.resolve("b/c/file3");
+        Files.write(changed, new byte[4]);
+        changed.toFile().setLastModified(then);
+        local.resolve("b/c").toFile().setLastModified(then);
+
+        HashTree after = hashTree(local);
+        assertFalse(Arrays.equals(root, after.hash(new Found(new String[0], local.toFile()))));
+        assertArrayEquals(a, after.hash(dir(local, "a")));
+        assertFalse(Arrays.equals(b, after.hash(dir(local, "b"))));
+        assertFalse(Arrays.equals(c, after.hash(dir(local, "b/c"))));
+        // the directory modified time was put back, so only verify caught the change
+        assertEquals(1, after.misses());
+    }
+
+    @Test
+    public void testSameContent() throws IOException {
+        byte[] l = hashTree(local).hash(new Found(new String[0], local.toFile()));
+        byte[] r = hashTree(remote).hash(new Found(new String[0], remote.toFile()));
+        assertArrayEquals(l, r);
+    }
+
+    /**
+     * A scanner that remembers which directories it was asked to list.
+     */
+    private static class CountingScanner implements DirectoryScanner {
+        private Set<String> scanned = ConcurrentHashMap.newKeySet();
+        @Override
+        public Stream<Found> scan(Found directory) throws IOException {
+            scanned.add(directory.fullname());
+            return DirectoryScanner.FILE.scan(directory);
+        }
+    }
+
+    private List<String> replicate(CountingScanner scanner) throws IOException {
+        return replicate(scanner, false);
+    }
+
+    private List<String> replicate(CountingScanner scanner, boolean mergeJoin) throws IOException {
+        LocalFinderInputStream listing = LocalFinderInputStream.builder(remote.toFile())
+                .hashTree(hashTree(remote))
+                .build();
+        HashTree hashTree = hashTree(local);
+        List<String> result = new ArrayList<>();
+        Finder finder = new Finder(local.toFile())
+                .scanner(scanner)
+                .remoteReplica(listing)
+                .mergeJoin(mergeJoin)
+                .hashTree(hashTree);
+        for (Found found : finder) {
+            if (found.operation() != Operation.match) {
+                result.add(found.operation()+" "+found.fullname());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testReplicationSkips() throws IOException {
+        CountingScanner scanner = new CountingScanner();
+        assertTrue(replicate(scanner).isEmpty());
+        assertFalse(scanner.scanned.contains("b/c/"));
+        assertFalse(scanner.scanned.contains("a/"));
+    }
+
+    @Test
+    public void testReplicationChanged() throws IOException {
+        Path changed = local.resolve("b/c/file3");
+        Files.write(changed, new byte[4]);
+        changed.toFile().setLastModified(then + 10000L);
+        Files.write(local.resolve("b/c/new"), new byte[1]);
+        age(local);
+        local.resolve("b/c/file3").toFile().setLastModified(then + 10000L);
+
+        CountingScanner scanner = new CountingScanner();
+        List<String> result = replicate(scanner);
+        assertEquals(2, result.size());
+        assertTrue(result.contains("add b/c/file3"));
+        assertTrue(result.contains("add b/c/new"));
+        assertTrue(scanner.scanned.contains("b/c/"));
+        // a/ may or may not be listed, depending on whether its remote
+        // listing arrives before the Finder gets to it, but is not compared
+    }
+
+    @Test
+    public void testReplicationMergeJoin() throws IOException {
+        Files.write(local.resolve("b/c/new"), new byte[1]);
+        age(local);
+        CountingScanner scanner = new CountingScanner();
+        assertEquals("add b/c/new", String.join(",", replicate(scanner, true)));
+        // the remote listing is always there when the Finder gets to a/
+        assertFalse(scanner.scanned.contains("a/"));
+        assertTrue(scanner.scanned.contains("b/c/"));
+    }
+}
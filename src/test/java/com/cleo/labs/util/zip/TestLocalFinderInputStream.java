@@ -1,13 +1,35 @@
 package com.cleo.labs.util.zip;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
+import org.junit.Ignore;
 import org.junit.Test;
 
+import com.cleo.labs.util.zip.Found.Operation;
+import com.cleo.labs.util.zip.LocalFinderInputStream.ListingFormat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Iterators;
 import com.google.common.io.ByteStreams;
 import com.google.gwt.thirdparty.guava.common.primitives.Ints;
 
@@ -100,4 +122,351 @@ public class TestLocalFinderInputStream {
         }
     }
 
+    private static List<Found> decode(byte[] listing) throws IOException {
+        List<Found> result = new ArrayList<>();
+        try (RemoteFinderStreamDecoder decoder = new RemoteFinderStreamDecoder(new ByteArrayInputStream(listing))) {
+            for (Found found : decoder) {
+                result.add(found);
+            }
+            decoder.throwIfException();
+        }
+        return result;
+    }
+
+    private static List<Found> decode(byte[] listing, int parallelism) throws IOException {
+        List<Found> result = new ArrayList<>();
+        try (RemoteFinderStreamDecoder decoder = new RemoteFinderStreamDecoder(new ByteArrayInputStream(listing))
+                .parallelism(parallelism)) {
+            for (Found found : decoder) {
+                result.add(found);
+            }
+            decoder.throwIfException();
+        }
+        return result;
+    }
+
+    private static byte[] listing(MockBagOFiles root, ListingFormat format) throws IOException {
+        try (LocalFinderInputStream in = LocalFinderInputStream.builder(root.root())
+                .format(format)
+                .build()) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private static void assertSameFound(Found expected, Found actual) {
+        assertEquals(expected.fullname(), actual.fullname());
+        assertEquals(expected.fullname(), expected.directory(), actual.directory());
+        assertEquals(expected.fullname(), expected.length(), actual.length());
+        assertEquals(expected.fullname(), expected.modified(), actual.modified());
+        assertEquals(expected.fullname(), expected.operation(), actual.operation());
+        assertArrayEquals(expected.fullname(), expected.hash(), actual.hash());
+        assertEquals(expected.fullname(), expected.checksum(), actual.checksum());
+        assertArrayEquals(expected.fullname(), expected.signatures(), actual.signatures());
+        assertEquals(expected.fullname(), expected.contents()==null, actual.contents()==null);
+        if (expected.contents() != null) {
+            assertEquals(expected.contents().length, actual.contents().length);
+            for (int i=0; i<expected.contents().length; i++) {
+                assertSameFound(expected.contents()[i], actual.contents()[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryDecoder() throws IOException {
+        MockBagOFiles root = new MockBagOFiles()
+                .files("t%d", 1, 2, 100, (byte)'-')
+                .dirs("d%d", 1, 3)
+                .dirs("e%d", 1, 3)
+                .files("f%d.txt", 1, 10, 10000, (byte)' ')
+                .up()
+                .files("e%d.txt", 1, 10, 100, (byte)'.');
+        byte[] json = listing(root, ListingFormat.json);
+        byte[] binary = listing(root, ListingFormat.binary);
+        List<Found> expected = decode(json);
+        List<Found> actual = decode(binary);
+        assertEquals(1 + 3 + 3*3, actual.size());
+        assertEquals(expected.size(), actual.size());
+        for (int i=0; i<expected.size(); i++) {
+            assertSameFound(expected.get(i), actual.get(i));
+            assertTrue(actual.get(i).remote());
+        }
+        assertTrue(binary.length < json.length/3);
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws IOException {
+        Found root = new Found().directory(true).fullname("/").modified(1000L).contents(new Found[] {
+                new Found().directory(true).fullname("a/").modified(2000L),
+                new Found().directory(false).fullname("\u00e9t\u00e9.txt").length(Found.UNKNOWN_LENGTH).modified(-1L),
+                new Found().directory(false).fullname("elsewhere/b").length(5L).operation(Operation.delete)
+                        .checksum(0xFFFFFFFEL),
+                new Found().directory(true).fullname("c/").contents(new Found[] {
+                        new Found().directory(false).fullname("c/x").length(Long.MAX_VALUE).modified(Long.MIN_VALUE)
+                                .signatures(new byte[] {4, 5, 6}),
+                }),
+            });
+        Found a = new Found().directory(true).fullname("a/").modified(2000L).operation(Operation.match)
+                .hash(new byte[] {1, 2, 3}).contents(new Found[0]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryListing.Writer writer = new BinaryListing.Writer(out);
+        writer.write(root);
+        writer.write(a);
+        List<Found> decoded = decode(out.toByteArray());
+        assertEquals(2, decoded.size());
+        assertSameFound(root, decoded.get(0));
+        assertSameFound(a, decoded.get(1));
+    }
+
+    @Test
+    public void testBinaryTruncated() throws IOException {
+        MockBagOFiles root = new MockBagOFiles()
+                .files("f%d.txt", 1, 100, 10, (byte)' ');
+        byte[] binary = listing(root, ListingFormat.binary);
+        byte[] truncated = new byte[binary.length-3];
+        System.arraycopy(binary, 0, truncated, 0, truncated.length);
+        try (RemoteFinderStreamDecoder decoder = new RemoteFinderStreamDecoder(new ByteArrayInputStream(truncated))) {
+            while (decoder.hasNext()) {
+                decoder.next();
+            }
+            assertTrue(decoder.exception() != null);
+        }
+    }
+
+    @Test
+    public void testBinaryCorruptLength() throws IOException {
+        byte[][] records = {
+            // a name claiming almost 2GB
+            {0, (byte)0xF8, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07, 'a', 'b'},
+            // a directory "x/" claiming almost 2G entries
+            {0, 2, 'x', '/', 0x03, 0, 0, (byte)0xF8, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07, 0x01},
+        };
+        for (byte[] record : records) {
+            ByteArrayOutputStream corrupt = new ByteArrayOutputStream();
+            corrupt.write(ByteBuffer.allocate(Integer.BYTES).putInt(BinaryListing.MAGIC).array());
+            corrupt.write(BinaryListing.VERSION);
+            corrupt.write(record);
+            try (RemoteFinderStreamDecoder decoder = new RemoteFinderStreamDecoder(new ByteArrayInputStream(corrupt.toByteArray()))) {
+                while (decoder.hasNext()) {
+                    decoder.next();
+                }
+                assertTrue(decoder.exception() != null);
+            }
+        }
+    }
+
+    private static byte[] pagedListing(MockBagOFiles root, ListingFormat format) throws IOException {
+        try (LocalFinderInputStream in = LocalFinderInputStream.builder(root.root())
+                .format(format)
+                .pageSize(10, 7)
+                .build()) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void testPages() throws IOException {
+        MockBagOFiles root = new MockBagOFiles()
+                .files("t%d", 1, 2, 100, (byte)'-')
+                .dirs("d%d", 1, 3)
+                .files("f%d.txt", 1, 25, 100, (byte)' ');
+        for (ListingFormat format : ListingFormat.values()) {
+            byte[] paged = pagedListing(root, format);
+            List<Found> pages = new ArrayList<>();
+            try (RemoteFinderStreamDecoder decoder = new RemoteFinderStreamDecoder(new ByteArrayInputStream(paged))
+                    .pages(true)) {
+                for (Found found : decoder) {
+                    pages.add(found);
+                }
+                decoder.throwIfException();
+            }
+            // root (5 entries) + d[1-3] (25 entries in pages of 10, 10, 5)
+            assertEquals(format.name(), 1 + 3*3, pages.size());
+            assertEquals("d1/", pages.get(1).fullname());
+            assertEquals(10, pages.get(1).contents().length);
+            assertTrue(pages.get(1).more());
+            assertTrue(pages.get(2).more());
+            assertEquals(5, pages.get(3).contents().length);
+            assertTrue(!pages.get(3).more());
+
+            // by default the pages are joined again
+            List<Found> expected = decode(listing(root, format));
+            List<Found> joined = decode(paged);
+            assertEquals(expected.size(), joined.size());
+            for (int i=0; i<expected.size(); i++) {
+                assertSameFound(expected.get(i), joined.get(i));
+                assertTrue(!joined.get(i).more());
+            }
+        }
+    }
+
+    @Test
+    public void testOnlyAndToken() throws IOException {
+        MockBagOFiles root = new MockBagOFiles()
+                .files("t%d", 1, 2, 100, (byte)'-')
+                .dirs("d%d", 1, 3)
+                .dirs("e%d", 1, 2)
+                .files("f%d.txt", 1, 3, 100, (byte)' ');
+        Set<String> only = new HashSet<>(Arrays.asList("d2/", "d3/e1/"));
+        for (ListingFormat format : ListingFormat.values()) {
+            List<Found> listed = new ArrayList<>();
+            try (LocalFinderInputStream in = LocalFinderInputStream.builder(root.root())
+                    .format(format)
+                    .only(only)
+                    .token("abc.1c")
+                    .build();
+                    RemoteFinderStreamDecoder decoder = new RemoteFinderStreamDecoder(in)) {
+                for (Found found : decoder) {
+                    listed.add(found);
+                }
+                decoder.throwIfException();
+                assertEquals(format.name(), "abc.1c", decoder.token());
+            }
+            assertEquals(format.name(), 2, listed.size());
+            assertEquals("d2/", listed.get(0).fullname());
+            assertEquals(2, listed.get(0).contents().length);
+            assertEquals("d3/e1/", listed.get(1).fullname());
+            assertEquals(3, listed.get(1).contents().length);
+        }
+        // no token without a change log
+        try (RemoteFinderStreamDecoder decoder = new RemoteFinderStreamDecoder(
+                new ByteArrayInputStream(listing(root, ListingFormat.binary)))) {
+            assertEquals(1 + 3 + 3*2, Iterators.size(decoder));
+            assertNull(decoder.token());
+        }
+    }
+
+    @Test
+    public void testParallelDecoder() throws IOException {
+        MockBagOFiles root = new MockBagOFiles()
+                .files("t%d", 1, 2, 100, (byte)'-')
+                .dirs("d%d", 1, 10)
+                .dirs("e%d", 1, 10)
+                .files("f%d.txt", 1, 10, 10000, (byte)' ')
+                .up()
+                .files("e%d.txt", 1, 30, 100, (byte)'.');
+        for (ListingFormat format : ListingFormat.values()) {
+            byte[] listing = listing(root, format);
+            List<Found> expected = decode(listing);
+            List<Found> actual = decode(listing, 4);
+            assertEquals(1 + 10 + 10*10, actual.size());
+            for (int i=0; i<expected.size(); i++) {
+                assertSameFound(expected.get(i), actual.get(i));
+                assertTrue(actual.get(i).remote());
+            }
+        }
+    }
+
+    @Test
+    public void testParallelDecoderTruncated() throws IOException {
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("d%d", 1, 50)
+                .files("f%d.txt", 1, 10, 10, (byte)' ');
+        byte[] json = listing(root, ListingFormat.json);
+        byte[] truncated = new byte[json.length-3];
+        System.arraycopy(json, 0, truncated, 0, truncated.length);
+        int count = 0;
+        try (RemoteFinderStreamDecoder decoder = new RemoteFinderStreamDecoder(new ByteArrayInputStream(truncated))
+                .parallelism(4)) {
+            while (decoder.hasNext()) {
+                decoder.next();
+                count++;
+            }
+            assertTrue(decoder.exception() != null);
+        }
+        // the records before the truncated one are still decoded
+        assertEquals(50, count);
+    }
+
+    @Test
+    public void testDecoderCorruptLength() throws IOException {
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("d%d", 1, 50)
+                .files("f%d.txt", 1, 10, 10, (byte)' ');
+        byte[] json = listing(root, ListingFormat.json);
+        int records = decode(json).size();
+        for (int length : new int[] {-5, Integer.MAX_VALUE-8}) {
+            // a record claiming a negative or huge length, followed by a few bytes
+            ByteArrayOutputStream corrupt = new ByteArrayOutputStream();
+            corrupt.write(json);
+            corrupt.write(ByteBuffer.allocate(Integer.BYTES).putInt(length).array());
+            corrupt.write("{}".getBytes());
+            for (int parallelism : new int[] {1, 4}) {
+                int count = 0;
+                try (RemoteFinderStreamDecoder decoder = new RemoteFinderStreamDecoder(new ByteArrayInputStream(corrupt.toByteArray()))
+                        .parallelism(parallelism)) {
+                    while (decoder.hasNext()) {
+                        decoder.next();
+                        count++;
+                    }
+                    assertTrue(decoder.exception() != null);
+                }
+                // the records before the corrupt one are still decoded
+                assertEquals(records, count);
+            }
+        }
+    }
+
+    @Ignore
+    @Test
+    public void benchmarkParallelDecoder() throws IOException {
+        // a synthetic listing of 1M directories of 10 files each
+        File file = File.createTempFile("listing", ".json");
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                for (int d=0; d<1000000; d++) {
+                    String name = String.format("directory%03d/subdirectory%03d/", d/1000, d%1000);
+                    Found[] contents = new Found[10];
+                    for (int f=0; f<contents.length; f++) {
+                        contents[f] = new Found().fullname(name+"some-longer-file-name-"+f+".txt")
+                                .length(1000L*f).modified(1500000000000L+f).operation(Operation.add);
+                    }
+                    byte[] buffer = mapper.writeValueAsBytes(new Found().directory(true).fullname(name)
+                            .modified(1500000000000L).operation(Operation.add).contents(contents));
+                    out.writeInt(buffer.length);
+                    out.write(buffer);
+                }
+            }
+            for (int pass=0; pass<2; pass++) {
+                for (int parallelism : new int[] {1, 2, 4, 8}) {
+                    long start = System.nanoTime();
+                    int dirs = 0;
+                    try (RemoteFinderStreamDecoder decoder = new RemoteFinderStreamDecoder(
+                            new BufferedInputStream(new FileInputStream(file))).parallelism(parallelism)) {
+                        for (Found found : decoder) {
+                            dirs += found.directory() ? 1 : 0;
+                        }
+                        decoder.throwIfException();
+                    }
+                    long end = System.nanoTime();
+                    assertEquals(1000000, dirs);
+                    System.out.println(String.format("pass %d parallelism %d: %d bytes, decode %dms", pass, parallelism,
+                            file.length(), (end-start)/1000000));
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Ignore
+    @Test
+    public void benchmarkFormats() throws IOException {
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("directory%d", 1, 100)
+                    .files("some-longer-file-name-%d.txt", 1, 10000, 100, (byte)' ')
+                    .up();
+        for (int pass=0; pass<3; pass++) {
+            for (ListingFormat format : ListingFormat.values()) {
+                long start = System.nanoTime();
+                byte[] listing = listing(root, format);
+                long encoded = System.nanoTime();
+                List<Found> decoded = decode(listing);
+                long end = System.nanoTime();
+                assertEquals(101, decoded.size());
+                System.out.println(String.format("pass %d %s: %d bytes, encode %dms, decode %dms", pass, format,
+                        listing.length, (encoded-start)/1000000, (end-encoded)/1000000));
+            }
+        }
+    }
 }
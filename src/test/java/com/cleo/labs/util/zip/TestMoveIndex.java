@@ -0,0 +1,192 @@
+package com.cleo.labs.util.zip;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cleo.labs.util.zip.Found.Operation;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+public class TestMoveIndex {
+
+    private Path local;
+    private Path remote;
+    private Path cache;
+    private long then;
+
+    @Before
+    public void setup() throws IOException {
+        local = Files.createTempDirectory("local");
+        remote = Files.createTempDirectory("remote");
+        cache = Files.createTempDirectory("cache");
+        then = (System.currentTimeMillis() - 60000L) / 1000L * 1000L;
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (Path path : new Path[] {local, remote, cache}) {
+            try (Stream<Path> paths = Files.walk(path)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static Found add(String name, long length, long modified) {
+        return new Found().fullname(name).length(length).modified(modified).operation(Operation.add);
+    }
+
+    private static Found delete(String name, long length, long modified) {
+        return new Found().fullname(name).length(length).modified(modified).operation(Operation.delete);
+    }
+
+    @Test
+    public void testMatch() {
+        MoveIndex index = new MoveIndex(MoveIndex.DEFAULT_CAPACITY, null);
+        assertNull(index.offer(add("new/a", 10L, then)));
+        assertNull(index.offer(add("new/b", 10L, then)));
+        assertNull(index.offer(delete("old/x", 11L, then)));
+        assertNull(index.offer(delete("old/y", 10L, then)));
+        // without checksums, the name and the exact time must match too
+        assertNull(index.offer(delete("old/a", 10L, then+1000L)));
+        Found move = index.offer(delete("old/b", 10L, then));
+        assertEquals(Operation.move, move.operation());
+        assertEquals("new/b", move.fullname());
+        assertEquals("old/b", move.source().fullname());
+        assertEquals(1, index.moves());
+        List<Found> rest = index.drain();
+        assertEquals(4, rest.size());
+        assertEquals("new/a", rest.get(0).fullname());
+        assertEquals(Operation.add, rest.get(0).operation());
+        assertEquals("old/x", rest.get(1).fullname());
+        assertEquals("old/y", rest.get(2).fullname());
+        assertEquals(Operation.delete, rest.get(2).operation());
+        assertEquals("old/a", rest.get(3).fullname());
+        assertTrue(index.drain().isEmpty());
+    }
+
+    @Test
+    public void testCapacity() {
+        MoveIndex index = new MoveIndex(2, null);
+        assertNull(index.offer(add("a", 1L, then)));
+        assertNull(index.offer(add("b", 2L, then)));
+        Found evicted = index.offer(add("c", 3L, then));
+        assertEquals("a", evicted.fullname());
+        assertEquals(Operation.add, evicted.operation());
+        assertEquals(Operation.move, index.offer(delete("x/b", 2L, then)).operation());
+        assertEquals(1, index.drain().size());
+    }
+
+    @Test
+    public void testChecksum() throws IOException {
+        Files.write(local.resolve("a"), "hello".getBytes());
+        local.resolve("a").toFile().setLastModified(then);
+        Found a = new Found(new String[0], local.toFile()).child(local.resolve("a").toFile()).operation(Operation.add);
+        long hello = Hashing.crc32c().hashBytes("hello".getBytes()).padToLong();
+        try (ChecksumCache checksums = new ChecksumCache(cache.toFile())) {
+            MoveIndex index = new MoveIndex(MoveIndex.DEFAULT_CAPACITY, checksums);
+            assertNull(index.offer(a));
+            assertNull(index.offer(delete("b", 5L, then).checksum(hello+1)));
+            assertEquals(Operation.move, index.offer(delete("c", 5L, then).checksum(hello)).operation());
+        }
+    }
+
+    @Test
+    public void testAmbiguous() {
+        MoveIndex index = new MoveIndex(MoveIndex.DEFAULT_CAPACITY, null);
+        assertNull(index.offer(delete("old/1/data.csv", 10L, then)));
+        assertNull(index.offer(delete("old/2/data.csv", 10L, then)));
+        // either could be the one renamed: send it as it is
+        assertNull(index.offer(add("new/data.csv", 10L, then)));
+        assertEquals(0, index.moves());
+        assertEquals(3, index.drain().size());
+    }
+
+    @Test
+    public void testCandidate() {
+        assertTrue(MoveIndex.candidate(add("a", 1L, then)));
+        assertFalse(MoveIndex.candidate(add("a", 0L, then)));
+        assertFalse(MoveIndex.candidate(add("a/", 1L, then).directory(true)));
+        assertFalse(MoveIndex.candidate(add("a", 1L, then).operation(Operation.match)));
+    }
+
+    private static void write(Path path, byte[] content, long modified) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.write(path, content);
+        path.toFile().setLastModified(modified);
+    }
+
+    private long replicate(List<String> operations) throws IOException {
+        LocalFinderInputStream listing = LocalFinderInputStream.builder(remote.toFile()).build();
+        Finder finder = new Finder(local.toFile())
+                .remoteReplica(listing)
+                .replicateDeletes(true)
+                .detectMoves(true)
+                .debug(s -> { if (s.startsWith("detected")) operations.add(s); });
+        try (ThreadedZipDirectoryInputStream zip = ThreadedZipDirectoryInputStream.builder(local.toFile())
+                .copier((from,to) -> Files.copy(from.file().toPath(), to))
+                .level(FoundOutputStream.ZAP_LEVEL)
+                .finder(finder)
+                .build();
+            ZipDirectoryOutputStream unzip = new ZipDirectoryOutputStream(p -> remote.resolve(PathUtil.join(p)).toFile())) {
+            unzip.processor(entry -> {
+                synchronized (operations) {
+                    operations.add(entry.operation()+" "+entry.fullname());
+                }
+                if (entry.directory() && entry.operation() == Operation.delete) {
+                    try (Stream<Path> paths = Files.walk(entry.file().toPath())) {
+                        paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                    }
+                    return null;
+                } else if (entry.operation() == Operation.delete) {
+                    entry.file().delete();
+                    return null;
+                }
+                return UnzipProcessor.defaultProcessor.process(entry);
+            });
+            return ByteStreams.copy(zip, unzip);
+        }
+    }
+
+    @Test
+    public void testRenameDirectory() throws IOException {
+        byte[] big = new byte[100000];
+        new Random(1L).nextBytes(big);
+        for (Path root : new Path[] {local, remote}) {
+            String dir = root == local ? "b-renamed" : "z-old";
+            for (int i=0; i<5; i++) {
+                write(root.resolve(dir).resolve("f"+i), big, then+i*10000L);
+            }
+            write(root.resolve("same"), "same".getBytes(), then);
+        }
+        write(local.resolve("b-renamed/new"), big, then+60000L);
+
+        List<String> operations = new ArrayList<>();
+        long size = replicate(operations);
+        assertTrue(size < big.length*2);
+        assertTrue(operations.contains("detected 5 moves"));
+        for (int i=0; i<5; i++) {
+            assertTrue(operations.contains("move b-renamed/f"+i));
+            assertArrayEquals(big, Files.readAllBytes(remote.resolve("b-renamed/f"+i)));
+            assertEquals(then+i*10000L, remote.resolve("b-renamed/f"+i).toFile().lastModified());
+        }
+        assertTrue(operations.contains("add b-renamed/new"));
+        assertTrue(operations.contains("delete z-old/"));
+        // the directory is deleted after the files are moved out of it
+        assertTrue(operations.indexOf("delete z-old/") > operations.indexOf("move b-renamed/f4"));
+        assertFalse(remote.resolve("z-old").toFile().exists());
+        assertArrayEquals(big, Files.readAllBytes(remote.resolve("b-renamed/new")));
+    }
+}
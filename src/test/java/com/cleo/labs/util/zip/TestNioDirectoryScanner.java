@@ -0,0 +1,191 @@
+package com.cleo.labs.util.zip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestNioDirectoryScanner {
+
+    /**
+     * A {@code File} that counts the attribute lookups and listings made
+     * through it (and through the children it lists).
+     */
+    private static class CountingFile extends File {
+        private static final long serialVersionUID = 1L;
+        private final AtomicLong stats;
+        private final AtomicLong lists;
+        public CountingFile(String path, AtomicLong stats, AtomicLong lists) {
+            super(path);
+            this.stats = stats;
+            this.lists = lists;
+        }
+        @Override
+        public boolean isDirectory() {
+            stats.incrementAndGet();
+            return super.isDirectory();
+        }
+        @Override
+        public long length() {
+            stats.incrementAndGet();
+            return super.length();
+        }
+        @Override
+        public long lastModified() {
+            stats.incrementAndGet();
+            return super.lastModified();
+        }
+        @Override
+        public File[] listFiles() {
+            lists.incrementAndGet();
+            String[] names = super.list();
+            if (names == null) {
+                return null;
+            }
+            File[] files = new File[names.length];
+            for (int i=0; i<names.length; i++) {
+                files[i] = new CountingFile(new File(this, names[i]).getPath(), stats, lists);
+            }
+            return files;
+        }
+    }
+
+    /**
+     * A {@link NioDirectoryScanner} that counts the attribute reads and listings it makes.
+     */
+    private static class CountingScanner extends NioDirectoryScanner {
+        private final AtomicLong stats = new AtomicLong();
+        private final AtomicLong lists = new AtomicLong();
+        @Override
+        protected DirectoryStream<Path> open(Path path) throws IOException {
+            lists.incrementAndGet();
+            return super.open(path);
+        }
+        @Override
+        protected BasicFileAttributes attributes(Path entry) throws IOException {
+            stats.incrementAndGet();
+            return super.attributes(entry);
+        }
+    }
+
+    private Path root;
+
+    private void tree(Path dir, int depth, int dirs, int files) throws IOException {
+        for (int i=0; i<files; i++) {
+            Files.write(dir.resolve("file"+i+".txt"), new byte[i%17]);
+        }
+        if (depth > 0) {
+            for (int i=0; i<dirs; i++) {
+                tree(Files.createDirectory(dir.resolve("dir"+i)), depth-1, dirs, files);
+            }
+        }
+    }
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("scanner");
+        tree(root, 2, 4, 25); // 1+4+16 = 21 directories, 21*25 = 525 files
+        Files.createDirectory(root.resolve("empty"));
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static List<String> describe(Finder finder) {
+        List<String> result = new ArrayList<>();
+        for (Found found : finder) {
+            result.add(found.fullname()+" "+found.directory()+" "+found.length()+" "+found.modified());
+        }
+        return result;
+    }
+
+    @Test
+    public void testSameResults() throws IOException {
+        List<String> legacy = describe(new Finder(root.toFile()));
+        List<String> nio = describe(new Finder(root.toFile()).scanner(new NioDirectoryScanner()));
+        assertEquals(21+1+525, legacy.size());
+        assertEquals(legacy, nio);
+    }
+
+    @Test
+    public void testFallback() throws IOException {
+        // File subclasses are not mapped by default, so they fall back to listFiles()
+        AtomicLong stats = new AtomicLong();
+        AtomicLong lists = new AtomicLong();
+        File counting = new CountingFile(root.toString(), stats, lists);
+        List<String> fallback = describe(new Finder(counting).scanner(new NioDirectoryScanner()));
+        assertEquals(describe(new Finder(root.toFile())), fallback);
+        assertEquals(22, lists.get());
+        assertTrue(stats.get() >= 3*fallback.size());
+    }
+
+    @Test
+    public void testUnreadable() throws IOException {
+        // an unlistable directory is an error, not an empty directory
+        Found missing = new Found(new String[0], root.resolve("missing").toFile(), true, 0L, 0L);
+        for (DirectoryScanner scanner : new DirectoryScanner[] {DirectoryScanner.FILE, new NioDirectoryScanner()}) {
+            try {
+                scanner.scan(missing).close();
+                fail("scan of missing directory should fail");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testStatCount() throws IOException {
+        AtomicLong stats = new AtomicLong();
+        AtomicLong lists = new AtomicLong();
+        List<String> legacy = describe(new Finder(new CountingFile(root.toString(), stats, lists)));
+        CountingScanner scanner = new CountingScanner();
+        List<String> nio = describe(new Finder(root.toFile()).scanner(scanner));
+        assertEquals(legacy, nio);
+        // legacy: isDirectory, length, lastModified for every Found (including the root)
+        assertEquals(3*legacy.size(), stats.get());
+        assertEquals(22, lists.get());
+        // nio: one attribute read per child (the root is still read through File)
+        assertEquals(nio.size()-1, scanner.stats.get());
+        assertEquals(22, scanner.lists.get());
+    }
+
+    @Test
+    @Ignore
+    public void benchmark() throws IOException {
+        Path big = root.resolve("big");
+        Files.createDirectory(big);
+        tree(big, 3, 5, 100); // 156 directories, 15600 files
+        File dir = big.toFile();
+        for (int pass=0; pass<5; pass++) {
+            long start = System.nanoTime();
+            int legacy = Lists.newArrayList(new Finder(dir).iterator()).size();
+            long mid = System.nanoTime();
+            int nio = Lists.newArrayList(new Finder(dir).scanner(new NioDirectoryScanner()).iterator()).size();
+            long end = System.nanoTime();
+            assertEquals(legacy, nio);
+            System.out.println(String.format("pass %d: %d entries, File %dms, NIO %dms",
+                    pass, legacy, (mid-start)/1000000, (end-mid)/1000000));
+        }
+    }
+}
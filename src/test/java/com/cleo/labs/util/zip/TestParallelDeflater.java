@@ -0,0 +1,247 @@
+package com.cleo.labs.util.zip;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class TestParallelDeflater {
+
+    private static final String[] WORDS = {"ISA", "GS", "ST", "BEG", "N1", "PO1", "CTT", "SE", "GE", "IEA",
+            "00", "ZZ", "SENDER", "RECEIVER", "850", "EA", "*", "~", "\n", "4010", "X"};
+
+    private Path root;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("root");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Returns {@code length} bytes of compressible text, with numbers mixed in.
+     */
+    private static byte[] text(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder s = new StringBuilder(length + 16);
+        while (s.length() < length) {
+            s.append(WORDS[random.nextInt(WORDS.length)]);
+            if (random.nextInt(4) == 0) {
+                s.append(random.nextInt(100000));
+            }
+        }
+        return s.substring(0, length).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] deflate(byte[] data, int threads, int blockSize) throws IOException {
+        ParallelDeflater deflater = new ParallelDeflater(Deflater.DEFAULT_COMPRESSION, threads).blockSize(blockSize);
+        try {
+            deflater.parallel(true);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater)) {
+                // odd sized writes, to cross the block boundaries
+                for (int off=0; off<data.length; off+=10007) {
+                    deflated.write(data, off, Math.min(10007, data.length-off));
+                }
+            }
+            assertEquals(data.length, deflater.getBytesRead());
+            assertEquals(out.size(), deflater.getBytesWritten());
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] deflated) throws IOException {
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(deflated), new Inflater(true))) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void testBlocks() throws IOException {
+        int blockSize = 64 * 1024;
+        for (int length : new int[] {0, 1000, blockSize, 5*blockSize, 5*blockSize+1234}) {
+            byte[] data = text(length, length);
+            byte[] deflated = deflate(data, 4, blockSize);
+            assertArrayEquals("length "+length, data, inflate(deflated));
+        }
+        // the dictionaries keep the blocks about as small as a single stream
+        byte[] data = text(2*1024*1024, 0L);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream single = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(single, deflater)) {
+            out.write(data);
+        }
+        deflater.end();
+        int parallel = deflate(data, 4, ParallelDeflater.DEFAULT_BLOCK_SIZE).length;
+        assertTrue(parallel+" vs "+single.size(), parallel < single.size() * 1.01);
+    }
+
+    @Test
+    public void testZip() throws IOException {
+        Map<String,byte[]> files = new HashMap<>();
+        files.put("small.txt", text(1000, 1L));
+        files.put("empty.txt", new byte[0]);
+        files.put("d/large.txt", text(3*1024*1024+17, 2L));
+        files.put("d/exact.txt", text((int)ZipFoundOutputStream.PARALLEL_THRESHOLD, 3L));
+        for (Map.Entry<String,byte[]> file : files.entrySet()) {
+            Path path = root.resolve(file.getKey());
+            Files.createDirectories(path.getParent());
+            Files.write(path, file.getValue());
+        }
+        File archive = File.createTempFile("parallel", ".zip");
+        try {
+            try (ThreadedZipDirectoryInputStream zip = ThreadedZipDirectoryInputStream.builder(root.toFile())
+                    .copier((from,to) -> Files.copy(from.file().toPath(), to))
+                    .deflateThreads(4)
+                    .build();
+                OutputStream out = new FileOutputStream(archive)) {
+                ByteStreams.copy(zip, out);
+            }
+            // read back through the central directory...
+            int count = 0;
+            try (ZipFile zip = new ZipFile(archive)) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory()) {
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            assertArrayEquals(entry.getName(), files.get(entry.getName()), ByteStreams.toByteArray(in));
+                        }
+                        count++;
+                    }
+                }
+            }
+            assertEquals(files.size(), count);
+            // ...and as a stream, which checks the CRC of each entry
+            count = 0;
+            try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(archive.toPath()))) {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    if (!entry.isDirectory()) {
+                        assertArrayEquals(entry.getName(), files.get(entry.getName()), ByteStreams.toByteArray(zip));
+                        count++;
+                    }
+                }
+            }
+            assertEquals(files.size(), count);
+        } finally {
+            archive.delete();
+        }
+    }
+
+    private static long deflateThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().equals("deflateThread") && t.isAlive())
+                .count();
+    }
+
+    @Test
+    public void testThreadsEnd() throws IOException, InterruptedException {
+        // an archive whose output fails part way through a parallel entry
+        OutputStream failing = new OutputStream() {
+            private long count = 0;
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte)b}, 0, 1);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                count += len;
+                if (count > 100000) {
+                    throw new IOException("disk full");
+                }
+            }
+        };
+        byte[] data = text(4*1024*1024, 4L);
+        ZipFoundOutputStream zip = new ZipFoundOutputStream(failing, 4);
+        try {
+            zip.putNextEntry(new Found().fullname("large.txt").length(data.length).modified(0L)
+                    .operation(Found.Operation.add));
+            zip.write(data);
+            zip.closeEntry();
+            fail("expected disk full");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        } finally {
+            try {
+                zip.close();
+            } catch (IOException e) {
+                // the archive can not be finished either
+            }
+        }
+        // an archive closed while skipping an entry
+        zip = new ZipFoundOutputStream(ByteStreams.nullOutputStream(), 4);
+        zip.putNextEntry(new Found().fullname("large.txt").length(data.length).modified(0L)
+                .operation(Found.Operation.add));
+        zip.write(data);
+        zip.closeEntry();
+        zip.putNextEntry(new Found().fullname("deleted.txt").operation(Found.Operation.delete));
+        zip.close();
+        // the deflaters were ended anyway, stopping their threads
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (deflateThreads() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+        }
+        assertEquals(0, deflateThreads());
+    }
+
+    @Ignore
+    @Test
+    public void benchmarkScaling() throws IOException {
+        byte[] data = text(64*1024*1024, 0L);
+        Files.write(root.resolve("large.txt"), data);
+        for (int round=0; round<2; round++) {
+            for (int threads : new int[] {1, 2, 4, 8, 16}) {
+                long start = System.nanoTime();
+                long size;
+                try (ThreadedZipDirectoryInputStream zip = ThreadedZipDirectoryInputStream.builder(root.toFile())
+                        .copier((from,to) -> Files.copy(from.file().toPath(), to))
+                        .deflateThreads(threads)
+                        .build()) {
+                    size = ByteStreams.copy(zip, ByteStreams.nullOutputStream());
+                }
+                long elapsed = System.nanoTime() - start;
+                System.out.println(String.format("%2d threads %,12d bytes of %,d (%.2f%%) in %,dms (%.1f MB/s)",
+                        threads, size, data.length, size*100.0/data.length, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                        data.length/(elapsed/1e9)/1e6));
+            }
+        }
+    }
+}
@@ -2,6 +2,10 @@ package com.cleo.labs.util.zip;
 
 import static org.junit.Assert.*;
 
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.Ignore;
 import org.junit.Test;
 
 public class TestPathUtil {
@@ -86,4 +90,117 @@ public class TestPathUtil {
         assertArrayEquals(new String[] {"a", "b."}, PathUtil.safePath("a/b."));
     }
 
+    /*
+     * The original regular expression implementations, which the
+     * scanners in PathUtil must match exactly.
+     */
+    private static class Regex {
+        static String asDirectory(String dir) {
+            return dir.replaceFirst("(?<![/\\\\])$", "/");
+        }
+        static String stripRoot(String dir) {
+            return dir.replaceFirst("^(?:\\p{Alpha}:|/|\\\\)*", "");
+        }
+        static String justDirectory(String file) {
+            return file.replaceFirst("^((?:\\p{Alpha}:|/|\\\\)*(?:[^/\\\\]+[/\\\\]+)*?)"+"[^/\\\\]+[/\\\\]*$", "$1");
+        }
+        static String justFile(String file) {
+            return file.replaceFirst("^((?:\\p{Alpha}:|/|\\\\)*(?:[^/\\\\]+[/\\\\]+)*?)"+"(?:([^/\\\\]+)[/\\\\]*)?$", "$2");
+        }
+        static String[] split(String path) {
+            return path.split(PathUtil.ANY_SEPARATOR);
+        }
+        static String[] safePath(String path) {
+            return Stream.of(stripRoot(path).split(PathUtil.ANY_SEPARATOR))
+                    .filter(s -> !(s.equals(".")||s.equals("..")))
+                    .toArray(String[]::new);
+        }
+    }
+
+    private static final char[] ALPHABET = "ab.C:/\\\\\n\r\u2028\u00e9 1".toCharArray();
+
+    private static String randomPath(Random random) {
+        char[] path = new char[random.nextInt(12)];
+        for (int i=0; i<path.length; i++) {
+            path[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+        return new String(path);
+    }
+
+    @Test
+    public void testSameAsRegex() {
+        Random random = new Random(1L);
+        PathUtil.Segments segments = new PathUtil.Segments();
+        for (int i=0; i<100000; i++) {
+            String path = randomPath(random);
+            String quoted = "\""+path.replace("\n", "\\n").replace("\r", "\\r")+"\"";
+            assertEquals(quoted, Regex.asDirectory(path), PathUtil.asDirectory(path));
+            assertEquals(quoted, Regex.stripRoot(path), PathUtil.stripRoot(path));
+            assertEquals(quoted, Regex.justDirectory(path), PathUtil.justDirectory(path));
+            assertEquals(quoted, Regex.justFile(path), PathUtil.justFile(path));
+            assertArrayEquals(quoted, Regex.split(path), PathUtil.split(path));
+            assertArrayEquals(quoted, Regex.safePath(path), PathUtil.safePath(path));
+            assertArrayEquals(quoted, Regex.split(path), segments.split(path).toArray(null));
+            assertArrayEquals(quoted, Regex.safePath(path), segments.safePath(new StringBuilder(path)).toArray(null));
+        }
+    }
+
+    @Test
+    public void testSegments() {
+        PathUtil.Segments segments = new PathUtil.Segments().safePath("c:/a/./b\\..\\cc//");
+        assertEquals(3, segments.count());
+        assertTrue(segments.is(0, "a"));
+        assertTrue(segments.is(2, "cc"));
+        assertFalse(segments.is(2, "c"));
+        assertEquals("b", segments.get(1).toString());
+        String[] reuse = new String[3];
+        assertSame(reuse, segments.toArray(reuse));
+        assertArrayEquals(new String[] {"a", "b", "cc"}, reuse);
+        assertNotSame(reuse, segments.toArray(new String[2]));
+        // the offset array grows for deep paths
+        StringBuilder deep = new StringBuilder();
+        for (int i=0; i<100; i++) {
+            deep.append("d").append(i).append('/');
+        }
+        assertEquals(100, segments.split(deep).count());
+        assertTrue(segments.is(99, "d99"));
+    }
+
+    @Ignore
+    @Test
+    public void benchmark() {
+        Random random = new Random(2L);
+        String[] names = new String[1000000];
+        for (int i=0; i<names.length; i++) {
+            StringBuilder name = new StringBuilder();
+            int depth = 1+random.nextInt(6);
+            for (int j=0; j<depth; j++) {
+                name.append(j==0 ? "" : "/").append("directory").append(random.nextInt(1000));
+            }
+            names[i] = name.append(".txt").toString();
+        }
+        PathUtil.Segments segments = new PathUtil.Segments();
+        for (int pass=0; pass<5; pass++) {
+            long start = System.nanoTime();
+            long a = 0;
+            for (String name : names) {
+                a += Regex.safePath(name).length + Regex.justFile(name).length();
+            }
+            long regex = System.nanoTime();
+            long b = 0;
+            for (String name : names) {
+                b += PathUtil.safePath(name).length + PathUtil.justFile(name).length();
+            }
+            long scanner = System.nanoTime();
+            long c = 0;
+            for (String name : names) {
+                c += segments.safePath(name).count() + PathUtil.justFile(name).length();
+            }
+            long end = System.nanoTime();
+            assertEquals(a, b);
+            assertEquals(a, c);
+            System.out.println(String.format("pass %d: regex %dms, scanner %dms, segments %dms",
+                    pass, (regex-start)/1000000, (scanner-regex)/1000000, (end-scanner)/1000000));
+        }
+    }
 }
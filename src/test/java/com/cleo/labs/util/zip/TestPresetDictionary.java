@@ -0,0 +1,114 @@
+package com.cleo.labs.util.zip;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPresetDictionary {
+
+    private Path root;
+    private Path cache;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("root");
+        cache = Files.createTempDirectory("cache");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (Path path : new Path[] {root, cache}) {
+            try (Stream<Path> paths = Files.walk(path)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static int deflate(byte[] data, byte[] dictionary) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length + 1024];
+        int length = 0;
+        while (!deflater.finished()) {
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        deflater.end();
+        return length;
+    }
+
+    @Test
+    public void testTrain() {
+        Random random = new Random(1L);
+        List<byte[]> samples = new ArrayList<>();
+        for (int i=0; i<100; i++) {
+            String text = "<?xml version=\"1.0\"?><order xmlns=\"urn:example:orders\"><id>"+random.nextInt()
+                    +"</id><customer>"+random.nextInt(1000)+"</customer><status>shipped</status></order>";
+            samples.add(text.getBytes(StandardCharsets.UTF_8));
+        }
+        PresetDictionary dictionary = PresetDictionary.train(samples, 1024);
+        assertTrue(dictionary.bytes().length > 0);
+        assertTrue(dictionary.bytes().length <= 1024);
+        byte[] sample = samples.get(0);
+        assertTrue(deflate(sample, dictionary.bytes()) < deflate(sample, null));
+        // the same samples make the same dictionary
+        assertEquals(dictionary.id(), PresetDictionary.train(samples, 1024).id());
+
+        // samples with nothing in common make an empty dictionary
+        List<byte[]> noise = new ArrayList<>();
+        for (int i=0; i<10; i++) {
+            byte[] bytes = new byte[1000];
+            random.nextBytes(bytes);
+            noise.add(bytes);
+        }
+        assertEquals(0, PresetDictionary.train(noise, 1024).bytes().length);
+    }
+
+    @Test
+    public void testCache() throws IOException {
+        for (int i=0; i<20; i++) {
+            Files.write(root.resolve("f"+i), ("ISA*00*SENDER*RECEIVER*"+i+"~GS*PO*SENDER*RECEIVER~").getBytes());
+        }
+        List<String> debug = new ArrayList<>();
+        PresetDictionary.Cache dictionaries = new PresetDictionary.Cache(cache.toFile()).debug(debug::add);
+        PresetDictionary trained = dictionaries.get(root.toFile(), new Finder(root.toFile()), f -> {
+            return new ByteArrayInputStream(Files.readAllBytes(f.file().toPath()));
+        });
+        assertTrue(debug.get(0).startsWith("trained"));
+        // the second time it comes from the cache, without reading the files
+        PresetDictionary cached = dictionaries.get(root.toFile(), new Finder(root.toFile()), f -> {
+            throw new IOException("should not be read");
+        });
+        assertTrue(debug.get(1).startsWith("using cached"));
+        assertEquals(trained.id(), cached.id());
+        assertTrue(Arrays.equals(trained.bytes(), cached.bytes()));
+        assertEquals(0, cache.toFile().list((d,n) -> n.endsWith(".tmp")).length);
+
+        // until it is too old
+        dictionaries.maxAge(0, TimeUnit.DAYS);
+        dictionaries.get(root.toFile(), new Finder(root.toFile()), f -> {
+            return new ByteArrayInputStream(Files.readAllBytes(f.file().toPath()));
+        });
+        assertTrue(debug.get(2).startsWith("trained"));
+    }
+}
@@ -0,0 +1,188 @@
+package com.cleo.labs.util.zip;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class TestRemoteState {
+
+    private Path local;
+    private Path remote;
+    private Path cache;
+    private long then;
+
+    @Before
+    public void setup() throws IOException {
+        local = Files.createTempDirectory("local");
+        remote = Files.createTempDirectory("remote");
+        cache = Files.createTempDirectory("cache");
+        then = (System.currentTimeMillis() - 60000L) / 1000L * 1000L;
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (Path path : new Path[] {local, remote, cache}) {
+            try (Stream<Path> paths = Files.walk(path)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private void write(String name, String content, long modified) throws IOException {
+        Path path = local.resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes());
+        path.toFile().setLastModified(modified);
+    }
+
+    /**
+     * Replicates local to remote the way the connector does with a
+     * remote state, returning the names of the files sent.
+     */
+    private List<String> replicate(RemoteState state) throws IOException {
+        boolean live = !state.usable();
+        try (LocalFinderInputStream listing = LocalFinderInputStream.builder(local.toFile())
+                .format(LocalFinderInputStream.ListingFormat.binary)
+                .build()) {
+            state.record(listing);
+        }
+        InputStream replica = live
+                ? LocalFinderInputStream.builder(remote.toFile()).build()
+                : state.listing();
+        List<String> sent = new ArrayList<>();
+        try (ThreadedZipDirectoryInputStream zip = ThreadedZipDirectoryInputStream.builder(local.toFile())
+                .copier((from,to) -> Files.copy(from.file().toPath(), to))
+                .level(FoundOutputStream.ZAP_LEVEL)
+                .remoteReplica(replica)
+                .build();
+            ZipDirectoryOutputStream unzip = new ZipDirectoryOutputStream(p -> remote.resolve(PathUtil.join(p)).toFile())) {
+            unzip.processor(entry -> {
+                if (!entry.directory()) {
+                    synchronized (sent) {
+                        sent.add(entry.fullname());
+                    }
+                }
+                return UnzipProcessor.defaultProcessor.process(entry);
+            });
+            ByteStreams.copy(zip, unzip);
+        }
+        state.commit(live);
+        return sent;
+    }
+
+    @Test
+    public void testReplicate() throws IOException {
+        write("a", "a", then);
+        write("d/b", "b", then);
+        RemoteState state = new RemoteState(cache.toFile(), local.toString(), "pipe:listing");
+        assertFalse(state.usable());
+        assertEquals(2, replicate(state).size());
+        assertTrue(state.usable());
+
+        // only the change is sent, compared to the remembered state
+        write("d/b", "bb", then+10000L);
+        assertEquals("d/b", String.join(",", replicate(state)));
+        assertEquals("bb", new String(Files.readAllBytes(remote.resolve("d/b"))));
+
+        // a change on the remote side is not seen until the next refresh
+        Files.delete(remote.resolve("a"));
+        assertTrue(replicate(state).isEmpty());
+        assertFalse(remote.resolve("a").toFile().exists());
+        state.refresh(0, TimeUnit.HOURS);
+        assertFalse(state.usable());
+        assertEquals("a", String.join(",", replicate(state)));
+        assertTrue(remote.resolve("a").toFile().exists());
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        RemoteState state = new RemoteState(cache.toFile(), "root", "listing");
+        state.record(new ByteArrayInputStream("listing".getBytes()));
+        assertFalse(state.usable());
+        state.commit(true);
+        assertTrue(state.usable());
+        try (InputStream in = state.listing()) {
+            assertEquals("listing", new String(ByteStreams.toByteArray(in)));
+        }
+        // a different key is a different state
+        assertFalse(new RemoteState(cache.toFile(), "root", "other").usable());
+        // a commit without a live listing keeps the refresh time
+        state.record(new ByteArrayInputStream("updated".getBytes()));
+        state.commit(false);
+        assertTrue(state.usable());
+        state.record(new ByteArrayInputStream("failed".getBytes()));
+        state.invalidate();
+        assertFalse(state.usable());
+        assertEquals(0, cache.toFile().list().length);
+    }
+    private static byte[] binary(Found...directories) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryListing.Writer writer = new BinaryListing.Writer(out);
+        for (Found directory : directories) {
+            writer.write(directory);
+        }
+        return out.toByteArray();
+    }
+
+    private static Found dir(String fullname, Found...contents) {
+        return new Found().directory(true).fullname(fullname).contents(contents);
+    }
+
+    private static Found file(String fullname) {
+        return new Found().fullname(fullname).length(1L).modified(1000L);
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+        RemoteState state = new RemoteState(cache.toFile(), "root", "listing");
+        assertNull(state.token());
+        state.record(new ByteArrayInputStream(binary(
+                dir("/", file("a"), dir("b/"), dir("c/")),
+                dir("b/", file("b/x"), dir("b/d/")),
+                dir("b/d/", file("b/d/y")),
+                dir("c/", file("c/z")))));
+        state.received("1.c");
+        state.commit(true);
+        assertEquals("1.c", state.token());
+
+        // b/ lost d/ and gained e/, and c/ changed
+        List<String> merged = new ArrayList<>();
+        try (RemoteFinderStreamDecoder decoder = new RemoteFinderStreamDecoder(state.merge(new ByteArrayInputStream(binary(
+                dir("b/", file("b/x"), dir("b/e/")),
+                dir("b/e/", file("b/e/w")),
+                dir("c/", file("c/z"), file("c/zz")),
+                new Found().token("1.2a")))))) {
+            for (Found directory : decoder) {
+                merged.add(directory.fullname()+directory.contents().length);
+            }
+            decoder.throwIfException();
+        }
+        assertEquals("/3,b/2,b/e/1,c/2", String.join(",", merged));
+        state.record(new ByteArrayInputStream("local".getBytes()));
+        state.commit(false);
+        assertEquals("1.2a", state.token());
+        assertEquals(0, cache.toFile().list((d,n) -> n.endsWith(".tmp")).length);
+
+        // a live listing without a token forgets it
+        state.record(new ByteArrayInputStream("local".getBytes()));
+        state.commit(true);
+        assertNull(state.token());
+    }
+}
@@ -2,6 +2,19 @@ package com.cleo.labs.util.zip;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
 import org.junit.Test;
 
 import com.cleo.labs.util.zip.Finder.DirectoryMode;
@@ -164,4 +177,203 @@ public class TestReplication {
         assertEquals(3, dcount); // d[1-3]/e3
     }
 
+    private static List<String> replicate(int parallelism) {
+        return replicate(parallelism, false);
+    }
+
+    private static List<String> replicate(int parallelism, boolean mergeJoin) {
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("d%d", 1, 3)
+                .dirs("e%d", 1, 2)
+                .files("f%d.txt", 1, 9, 10000, (byte)' ')
+                .up()
+                .files("e%d.txt", 1, 10, 100, (byte)'.');
+        MockBagOFiles remote = new MockBagOFiles()
+                .now(root.now())
+                .files("t%d", 1, 2, 100, (byte)'-')
+                .dirs("d%d", 1, 3)
+                .dirs("e%d", 1, 3)
+                .files("f%d.txt", 1, 10, 10000, (byte)' ')
+                .up()
+                .files("e%d.txt", 1, 10, 100, (byte)'.');
+        Finder files = new Finder(root.root())
+                .filter(Finder.excluding("glob:{**/,}.*"))
+                .directoryMode(DirectoryMode.excludeEmpty)
+                .parallelism(parallelism)
+                .remoteReplica(LocalFinderInputStream.builder(remote.root()).build())
+                .mergeJoin(mergeJoin)
+                .replicateDeletes(true);
+        List<String> result = new ArrayList<>();
+        for (Found f : files) {
+            if (f != null) {
+                result.add(f.operation()+" "+f.fullname());
+            }
+        }
+        // the order of replicated directories depends on when the remote listing arrives
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test
+    public void testParallel() {
+        List<String> serial = replicate(1);
+        assertEquals(2+3*2*1+3*10+3, serial.stream().filter(s -> s.startsWith("delete")).count());
+        assertEquals(serial, replicate(4));
+    }
+
+    @Test
+    public void testMergeJoin() {
+        List<String> serial = replicate(1);
+        assertEquals(serial, replicate(1, true));
+        assertEquals(serial, replicate(4, true));
+    }
+
+    @Test
+    public void testMergeJoinDeletes() {
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("a%d", 1, 2)
+                .files("f%d", 1, 2, 100, (byte)'.')
+                .up()
+                .dirs("c%d", 1, 2)
+                .files("f%d", 1, 2, 100, (byte)'.');
+        MockBagOFiles remote = new MockBagOFiles()
+                .now(root.now())
+                .dirs("a%d", 1, 2)
+                .files("f%d", 1, 2, 100, (byte)'.')
+                .up()
+                .dirs("b%d", 1, 2) // only remote, nested between local directories
+                .dirs("x%d", 1, 2)
+                .files("f%d", 1, 2, 100, (byte)'.')
+                .up().up();
+        Finder files = new Finder(root.root())
+                .remoteReplica(LocalFinderInputStream.builder(remote.root()).build())
+                .mergeJoin(true)
+                .replicateDeletes(true);
+        List<String> result = new ArrayList<>();
+        for (Found f : files) {
+            if (f != null && f.operation() != Operation.match) {
+                result.add(f.operation()+" "+f.fullname());
+            }
+        }
+        assertEquals(2+2*2+2*2*2, result.stream().filter(s -> s.startsWith("delete")).count());
+        assertTrue(result.contains("delete b1/x2/f2"));
+        assertEquals(2+2*2, result.stream().filter(s -> s.startsWith("add")).count());
+        assertTrue(result.contains("add c2/f1"));
+    }
+
+    private static void write(Path root, String format, int from, int to, long modified) throws IOException {
+        Files.createDirectories(root);
+        for (int i=from; i<=to; i++) {
+            Path file = root.resolve(String.format(format, i));
+            Files.write(file, file.getFileName().toString().getBytes());
+            file.toFile().setLastModified(modified);
+        }
+    }
+
+    @Test
+    public void testMergeJoinPages() throws IOException {
+        // spilled listings are read back from the file system, so this needs real directories
+        Path local = Files.createTempDirectory("local");
+        Path remote = Files.createTempDirectory("remote");
+        long then = (System.currentTimeMillis() - 60000L) / 1000L * 1000L;
+        try {
+            write(local, "t%d", 1, 30, then);
+            write(local.resolve("d1"), "f%d", 1, 40, then);
+            write(local.resolve("d2"), "f%d", 1, 40, then);
+            write(remote, "t%d", 5, 35, then);
+            write(remote.resolve("d2"), "f%d", 10, 45, then);
+            write(remote.resolve("d3"), "f%d", 10, 45, then);
+            List<List<String>> results = new ArrayList<>();
+            for (boolean paged : new boolean[] {false, true}) {
+                Finder files = new Finder(local.toFile())
+                        .remoteReplica(LocalFinderInputStream.builder(remote.toFile())
+                                .pageSize(paged ? 8 : 0, 5)
+                                .build())
+                        .runSize(paged ? 5 : 0)
+                        .mergeJoin(paged)
+                        .replicateDeletes(true);
+                List<String> result = new ArrayList<>();
+                for (Found f : files) {
+                    if (f != null && f.operation() != Operation.match) {
+                        result.add(f.operation()+" "+f.fullname());
+                    }
+                }
+                Collections.sort(result);
+                results.add(result);
+            }
+            assertTrue(results.get(0).contains("add t1"));
+            assertTrue(results.get(0).contains("delete t35"));
+            assertTrue(results.get(0).contains("add d1/f40"));
+            assertTrue(results.get(0).contains("delete d2/f45"));
+            assertTrue(results.get(0).contains("delete d3/f10"));
+            assertFalse(results.get(0).contains("add d2/f10"));
+            assertEquals(results.get(0), results.get(1));
+        } finally {
+            for (Path path : new Path[] {local, remote}) {
+                try (Stream<Path> paths = Files.walk(path)) {
+                    paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMergeJoinTimeout() throws Exception {
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("a%d", 1, 2)
+                .files("f%d", 1, 2, 100, (byte)'.');
+        // a remote side that never sends anything until it is closed
+        CountDownLatch closed = new CountDownLatch(1);
+        InputStream stalled = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return -1;
+            }
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+        Finder files = new Finder(root.root())
+                .remoteReplica(stalled)
+                .mergeJoin(true)
+                .timeout(100, TimeUnit.MILLISECONDS);
+        long start = System.currentTimeMillis();
+        assertTrue(files.hasNext());
+        assertNull(files.next());
+        assertTrue(files.hasNext());
+        assertNull(files.next());
+        assertTrue(System.currentTimeMillis() - start < 5000L);
+        files.close();
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertFalse(files.hasNext());
+    }
+
+    @Test
+    public void testPreorder() {
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("a%s", 1, 1)
+                .dirs("b", 1, 1)
+                .up()
+                .up()
+                .dirs("a-%d", 1, 2)
+                .up()
+                .dirs("a.%d", 1, 2)
+                .up()
+                .dirs("a%d", 10, 11);
+        Found previous = null;
+        for (Found f : new Finder(root.root()).directoryMode(DirectoryMode.only)) {
+            if (previous != null) {
+                assertTrue(previous+" before "+f, Finder.preorder(previous, f) < 0);
+                assertTrue(Finder.preorder(f, previous) > 0);
+            }
+            previous = f;
+        }
+    }
+
 }
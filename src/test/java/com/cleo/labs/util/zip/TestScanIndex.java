@@ -0,0 +1,120 @@
+package com.cleo.labs.util.zip;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestScanIndex {
+
+    private Path root;
+    private Path cache;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("root");
+        cache = Files.createTempDirectory("cache");
+        for (String dir : new String[] {"a", "b", "b/c"}) {
+            Files.createDirectories(root.resolve(dir));
+            for (int i=0; i<10; i++) {
+                Files.write(root.resolve(dir).resolve("file"+i), new byte[i]);
+            }
+        }
+        age();
+    }
+
+    /**
+     * Moves all the modified times back a minute, so the index
+     * entries are not considered racy.
+     */
+    private void age() throws IOException {
+        long then = System.currentTimeMillis() - 60000L;
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.forEach(p -> p.toFile().setLastModified(then));
+        }
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (Path path : new Path[] {root, cache}) {
+            try (Stream<Path> paths = Files.walk(path)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static List<String> describe(Finder finder) {
+        List<String> result = new ArrayList<>();
+        for (Found found : finder) {
+            result.add(found.fullname()+" "+found.directory()+" "+found.length()+" "+found.modified());
+        }
+        return result;
+    }
+
+    private List<String> scan(ScanIndex index) {
+        return describe(new Finder(root.toFile()).scanner(index));
+    }
+
+    @Test
+    public void testHits() throws IOException {
+        List<String> expected = describe(new Finder(root.toFile()));
+        ScanIndex first = new ScanIndex(DirectoryScanner.FILE, cache.toFile());
+        assertEquals(expected, scan(first));
+        assertEquals(0, first.hits());
+        assertEquals(4, first.misses());
+        ScanIndex second = new ScanIndex(DirectoryScanner.FILE, cache.toFile());
+        assertEquals(expected, scan(second));
+        assertEquals(4, second.hits());
+        assertEquals(0, second.misses());
+    }
+
+    @Test
+    public void testChanges() throws IOException {
+        scan(new ScanIndex(DirectoryScanner.FILE, cache.toFile()));
+        // update a file in place: caught by verify
+        Files.write(root.resolve("a/file1"), new byte[100]);
+        root.resolve("a/file1").toFile().setLastModified(System.currentTimeMillis()-30000L);
+        // add a file: moves the directory modified time
+        Files.write(root.resolve("b/c/new"), new byte[1]);
+        List<String> expected = describe(new Finder(root.toFile()));
+        ScanIndex index = new ScanIndex(DirectoryScanner.FILE, cache.toFile()).verify(true);
+        assertEquals(expected, scan(index));
+        // only / is unchanged: a has a changed file, b has a changed directory c, and c has a new file
+        assertEquals(1, index.hits());
+        assertEquals(3, index.misses());
+    }
+
+    @Test
+    public void testNoVerify() throws IOException {
+        scan(new ScanIndex(DirectoryScanner.FILE, cache.toFile()));
+        Files.write(root.resolve("a/file1"), new byte[100]);
+        ScanIndex index = new ScanIndex(DirectoryScanner.FILE, cache.toFile()).verify(false);
+        scan(index);
+        assertEquals(4, index.hits());
+    }
+
+    @Test
+    public void testRacy() throws IOException {
+        // a directory modified just before it was indexed can't be trusted
+        root.resolve("a").toFile().setLastModified(System.currentTimeMillis());
+        scan(new ScanIndex(DirectoryScanner.FILE, cache.toFile()));
+        ScanIndex index = new ScanIndex(DirectoryScanner.FILE, cache.toFile());
+        scan(index);
+        assertEquals(3, index.hits());
+        assertEquals(1, index.misses());
+        ScanIndex trusting = new ScanIndex(DirectoryScanner.FILE, cache.toFile()).racyInterval(0, TimeUnit.MILLISECONDS);
+        scan(trusting);
+        assertEquals(4, trusting.hits());
+    }
+}
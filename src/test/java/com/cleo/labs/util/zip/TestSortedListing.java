@@ -0,0 +1,161 @@
+package com.cleo.labs.util.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class TestSortedListing {
+
+    private File spill;
+    private Found parent;
+
+    @Before
+    public void setup() throws IOException {
+        spill = Files.createTempDirectory("spill").toFile();
+        parent = new Found(new String[] {"parent"}, new File("parent"), true, 0L, 0L);
+    }
+
+    @After
+    public void cleanup() {
+        Arrays.stream(spill.listFiles()).forEach(File::delete);
+        spill.delete();
+    }
+
+    private List<Found> children(int count) {
+        Random random = new Random(count);
+        List<Found> children = new ArrayList<>();
+        for (int i=0; i<count; i++) {
+            boolean directory = random.nextInt(10)==0;
+            String name = Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+            children.add(parent.child(new File(parent.file(), name), directory, i, random.nextLong()));
+        }
+        return children;
+    }
+
+    private static String[] describe(Found[] found) {
+        return Arrays.stream(found)
+                .map(f -> f.fullname()+" "+f.directory()+" "+f.length()+" "+f.modified())
+                .toArray(String[]::new);
+    }
+
+    @Test
+    public void testInMemory() throws IOException {
+        List<Found> children = children(100);
+        try (SortedListing listing = SortedListing.sort(parent, children.iterator(), DirectoryScanner.FILE, 100, spill)) {
+            assertFalse(listing.spilled());
+            Found[] expected = children.stream().sorted().toArray(Found[]::new);
+            assertArrayEquals(expected, listing.contents());
+        }
+        assertEquals(0, spill.list().length);
+    }
+
+    @Test
+    public void testSpilled() throws IOException {
+        List<Found> children = children(1000);
+        List<Found> merged = new ArrayList<>();
+        try (SortedListing listing = SortedListing.sort(parent, children.iterator(), DirectoryScanner.FILE, 7, spill)) {
+            assertTrue(listing.spilled());
+            // 143 runs, merged down to groups of no more than MAX_FAN_IN
+            assertEquals((143+SortedListing.MAX_FAN_IN-1)/SortedListing.MAX_FAN_IN, spill.list().length);
+            listing.forEachRemaining(merged::add);
+        }
+        assertEquals(0, spill.list().length);
+        Found[] expected = children.stream().sorted().toArray(Found[]::new);
+        assertArrayEquals(describe(expected), describe(merged.toArray(new Found[merged.size()])));
+    }
+
+    @Test
+    public void testUnsorted() throws IOException {
+        List<Found> children = children(1000);
+        List<Found> listed = new ArrayList<>();
+        try (SortedListing listing = SortedListing.unsorted(parent, children.iterator(), DirectoryScanner.FILE, 7, spill)) {
+            assertTrue(listing.spilled());
+            listing.forEachRemaining(listed::add);
+        }
+        assertEquals(0, spill.list().length);
+        Found[] expected = children.toArray(new Found[children.size()]);
+        assertArrayEquals(describe(expected), describe(listed.toArray(new Found[listed.size()])));
+        try (SortedListing listing = SortedListing.unsorted(parent, children.iterator(), DirectoryScanner.FILE, 0, spill)) {
+            assertFalse(listing.spilled());
+            assertArrayEquals(expected, listing.contents());
+        }
+    }
+
+    @Test
+    public void testFanIn() throws IOException {
+        // 5000 runs take two passes to get under MAX_FAN_IN
+        List<Found> children = children(5000);
+        for (boolean sorted : new boolean[] {true, false}) {
+            List<Found> listed = new ArrayList<>();
+            try (SortedListing listing = sorted
+                    ? SortedListing.sort(parent, children.iterator(), DirectoryScanner.FILE, 1, spill)
+                    : SortedListing.unsorted(parent, children.iterator(), DirectoryScanner.FILE, 1, spill)) {
+                assertTrue(spill.list().length <= SortedListing.MAX_FAN_IN);
+                listing.forEachRemaining(listed::add);
+            }
+            assertEquals(0, spill.list().length);
+            Found[] expected = sorted
+                    ? children.stream().sorted().toArray(Found[]::new)
+                    : children.toArray(new Found[children.size()]);
+            assertArrayEquals(describe(expected), describe(listed.toArray(new Found[listed.size()])));
+        }
+    }
+
+    @Test
+    public void testCloseEarly() throws IOException {
+        SortedListing listing = SortedListing.sort(parent, children(100).iterator(), DirectoryScanner.FILE, 10, spill);
+        listing.next();
+        listing.close();
+        assertEquals(0, spill.list().length);
+    }
+
+    @Ignore
+    @Test
+    public void benchmarkLarge() throws IOException {
+        // 5M generated children, never more than runSize of them on the heap
+        int count = 5_000_000;
+        Random random = new Random(count);
+        Iterator<Found> children = new Iterator<Found>() {
+            private int i = 0;
+            @Override
+            public boolean hasNext() {
+                return i < count;
+            }
+            @Override
+            public Found next() {
+                String name = "edi"+Long.toString(random.nextLong() & Long.MAX_VALUE, 36)+".x12";
+                return parent.child(new File(parent.file(), name), false, i++, 0L);
+            }
+        };
+        long start = System.nanoTime();
+        int n = 0;
+        String last = "";
+        try (SortedListing listing = SortedListing.sort(parent, children, DirectoryScanner.FILE, 100000, spill)) {
+            while (listing.hasNext()) {
+                String name = listing.next().fullname();
+                assertTrue(last.compareTo(name) <= 0);
+                last = name;
+                n++;
+            }
+        }
+        assertEquals(count, n);
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println(String.format("%d entries sorted in %dms, heap in use %dMB", n,
+                (System.nanoTime()-start)/1000000, (runtime.totalMemory()-runtime.freeMemory())/1024/1024));
+    }
+}
@@ -2,18 +2,30 @@ package com.cleo.labs.util.zip;
 
 import static org.junit.Assert.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 
+import org.junit.Ignore;
 import org.junit.Test;
 
 import com.cleo.labs.util.zip.MockBagOFiles.DirectoryVerifier;
@@ -151,6 +163,162 @@ public class TestThreadedZipDirectoryInputStream {
         }
     }
 
+    @Test
+    public void testFinderException() throws IOException {
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("d%d", 1, 3)
+                .files("f%d.txt", 1, 10, 100, (byte)' ');
+        try (InputStream zip = ThreadedZipDirectoryInputStream.builder(root.root())
+                .scanner(dir -> {
+                        throw new IOException("can not list "+dir.fullname());
+                    })
+                .build()) {
+            ByteStreams.exhaust(zip);
+            fail("finder exception not reported");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof UncheckedIOException);
+        }
+    }
+
+    @Test
+    public void testCopierException() throws IOException {
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("d%d", 1, 3)
+                .files("f%d.txt", 1, 10, 100, (byte)' ');
+        // the archive is closed after the failure, but its end must not hide it
+        try (InputStream zip = ThreadedZipDirectoryInputStream.builder(root.root())
+                .copier((from,to) -> {
+                        throw new IOException("can not read "+from.fullname());
+                    })
+                .build()) {
+            ByteStreams.exhaust(zip);
+            fail("copier exception not reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("can not read"));
+        }
+    }
+
+    @Test
+    public void testCloseWakesReader() throws Exception {
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("d%d", 1, 3)
+                .files("f%d.txt", 1, 10, 100, (byte)' ');
+        BlockingPipe remote = new BlockingPipe(1024); // a remote listing that never arrives
+        ThreadedZipDirectoryInputStream zip = ThreadedZipDirectoryInputStream.builder(root.root())
+                .remoteReplica(remote.input())
+                .build();
+        CompletableFuture<Long> reader = CompletableFuture.supplyAsync(() -> {
+            try {
+                ByteStreams.exhaust(zip);
+            } catch (IOException e) {
+                // expected: pipe closed
+            }
+            return System.nanoTime();
+        });
+        Thread.sleep(100);
+        long closed = System.nanoTime();
+        zip.close();
+        long woke = reader.get(1, TimeUnit.SECONDS);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(woke-closed) < 500);
+    }
+
+    /**
+     * Feeds a remote listing one directory at a time, pausing between
+     * directories so that the decoder thread is always behind the finder.
+     * The pipe is tiny so the feeder can not get ahead of the decoder.
+     */
+    private static InputStream slowListing(InputStream listing, long pause) {
+        BlockingPipe pipe = new BlockingPipe(16);
+        Thread feeder = new Thread(() -> {
+            try (DataInputStream in = new DataInputStream(listing);
+                    DataOutputStream out = new DataOutputStream(pipe.output())) {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    Thread.sleep(pause);
+                    out.writeInt(length);
+                    out.write(record);
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                pipe.fail(new IOException(e));
+            }
+        }, "slowListing");
+        feeder.setDaemon(true);
+        feeder.start();
+        return pipe.input();
+    }
+
+    @Test
+    @Ignore
+    public void benchmarkLatency() throws IOException {
+        final int DIRS = 200;
+        MockBagOFiles root = new MockBagOFiles()
+                .dirs("d%d", 1, DIRS)
+                .files("f%d.txt", 1, 1, 100, (byte)' ');
+        MockBagOFiles remote = new MockBagOFiles()
+                .now(root.now())
+                .dirs("d%d", 1, DIRS);
+        // time each remote directory comes out of the decoder...
+        Map<String,Long> decoded = new ConcurrentHashMap<>();
+        Pattern retrieved = Pattern.compile("remote directory (?:\\w+ )?(\\S+) .*retrieved");
+        // ...and each file in it comes out of the zip stream (found by
+        // looking for its name in the local header, since it is stored)
+        Map<String,Long> zipped = new ConcurrentHashMap<>();
+        Pattern header = Pattern.compile("(d\\d+/)f1\\.txt");
+        long start = System.nanoTime();
+        try (InputStream zip = ThreadedZipDirectoryInputStream.builder(root.root())
+                .copier((from,to) -> {
+                        InputStream is = root.opener().open(from);
+                        ByteStreams.copy(is, to);
+                    })
+                .level(Deflater.NO_COMPRESSION)
+                .remoteReplica(slowListing(LocalFinderInputStream.builder(remote.root()).build(), 5L))
+                .debug(s -> {
+                        Matcher m = retrieved.matcher(s);
+                        if (m.matches()) {
+                            decoded.put(m.group(1), System.nanoTime());
+                        }
+                    })
+                .build()) {
+            byte[] buffer = new byte[8192];
+            String carry = "";
+            int n;
+            while ((n = zip.read(buffer)) >= 0) {
+                long now = System.nanoTime();
+                String chunk = carry + new String(buffer, 0, n, StandardCharsets.ISO_8859_1);
+                Matcher m = header.matcher(chunk);
+                while (m.find()) {
+                    zipped.putIfAbsent(m.group(1), now);
+                }
+                carry = chunk.substring(Math.max(0, chunk.length()-16));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long total = 0;
+        long max = 0;
+        int count = 0;
+        for (Map.Entry<String,Long> entry : zipped.entrySet()) {
+            Long from = decoded.get(entry.getKey());
+            if (from != null) {
+                long latency = entry.getValue() - from;
+                total += latency;
+                max = Math.max(max, latency);
+                count++;
+            }
+        }
+        assertEquals(DIRS, count);
+        System.out.println(String.format("%d directories in %dms: decoder to zip latency average %.3fms, max %.3fms",
+                count, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                total / (double)count / 1e6, max / 1e6));
+    }
+
     /*-----------*
      * ZAP TESTS *
      *-----------*/
@@ -197,6 +365,79 @@ public class TestThreadedZipDirectoryInputStream {
         }
     }
 
+    private static MockBagOFiles multiplexedFiles() {
+        return new MockBagOFiles()
+                .files("empty%d", 1, 2, 0, (byte)' ')
+                .dirs("d%d", 1, 3)
+                .files("f%d.txt", 1, 300, 10000, (byte)' ')
+                .up()
+                .files("e%d.txt", 1, 20, 100000, (byte)'.');
+    }
+
+    private static ThreadedZipDirectoryInputStream multiplexed(MockBagOFiles root) throws IOException {
+        return ThreadedZipDirectoryInputStream.builder(root.root())
+                .copier((from,to) -> {
+                        try (InputStream is = root.opener().open(from)) {
+                            ByteStreams.copy(is, to);
+                        }
+                    })
+                .level(ZapFoundOutputStream.ZAP_LEVEL)
+                .zapLevel(Deflater.BEST_SPEED)
+                .multiplexed(4)
+                .chunkSize(1000)
+                .build();
+    }
+
+    @Test
+    public void testZapMultiplexed() throws IOException {
+        MockBagOFiles root = multiplexedFiles();
+        DirectoryVerifier verifier = root.verifier();
+        try (InputStream zip = multiplexed(root);
+            ZipDirectoryOutputStream unzip = new ZipDirectoryOutputStream(p -> Paths.get("", p).toFile())) {
+           unzip.processor(entry -> {
+                    if (!entry.directory()) {
+                        OutputStream os = verifier.verify(entry.path());
+                        assertNotNull("path not found or duplicate: "+entry.path().toString(), os);
+                        return os;
+                    }
+                    return null;
+                });
+            ByteStreams.copy(zip,  unzip);
+            unzip.flush();
+            unzip.close();
+            boolean verified = verifier.verified();
+            if (!verified) {
+                System.out.println(verifier.toString());
+            }
+            assertTrue(verified);
+        }
+    }
+
+    @Test
+    public void testZapMultiplexedUnzip() throws IOException {
+        MockBagOFiles root = multiplexedFiles();
+        DirectoryVerifier verifier = root.verifier();
+        try (InputStream zip = multiplexed(root);
+            UnzipDirectoryStreamWrapper unzip = new UnzipDirectoryStreamWrapper(p -> Paths.get("", p).toFile())) {
+            unzip.processor(entry -> {
+                    if (!entry.directory()) {
+                        OutputStream os = verifier.verify(entry.path());
+                        assertNotNull("path not found or duplicate: "+entry.path().toString(), os);
+                        return os;
+                    }
+                    return null;
+                })
+                .writers(3)
+                .memory(5000L)
+                .process(zip, null);
+            boolean verified = verifier.verified();
+            if (!verified) {
+                System.out.println(verifier.toString());
+            }
+            assertTrue(verified);
+        }
+    }
+
     @Test
     public void testZapFiles() throws IOException {
         Path root = Paths.get(System.getProperty("user.home"), "d","vagrant","cache","zip");
@@ -2,22 +2,39 @@ package com.cleo.labs.util.zip;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
 
 import org.junit.Ignore;
 import org.junit.Test;
 
 import com.cleo.labs.util.zip.MockBagOFiles.DirectoryVerifier;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CountingInputStream;
-import com.google.gwt.thirdparty.guava.common.io.ByteStreams;
 
 public class TestZapDirectoryInputStream {
 
@@ -113,6 +130,332 @@ public class TestZapDirectoryInputStream {
         }
     }
 
+    private static long zap(MockBagOFiles root, int zapLevel) throws IOException {
+        return zap(root, zapLevel, false);
+    }
+
+    private static long zap(MockBagOFiles root, int zapLevel, boolean solid) throws IOException {
+        DirectoryVerifier verifier = root.verifier();
+        try (ZipDirectoryInputStream zip = ZipDirectoryInputStream.builder(root.root())
+                .opener(root.opener())
+                .level(FoundOutputStream.ZAP_LEVEL)
+                .zapLevel(zapLevel)
+                .solid(solid)
+                .build();
+            ZipDirectoryOutputStream unzip = new ZipDirectoryOutputStream(p -> new File(PathUtil.join(p)))) {
+           unzip.processor(entry -> {
+                    if (!entry.directory()) {
+                        OutputStream os = verifier.verify(entry.path());
+                        assertNotNull("path not found or duplicate: "+entry.path().toString(), os);
+                        return os;
+                    }
+                    return null;
+                });
+           CountingInputStream nzip = new CountingInputStream(zip);
+           ByteStreams.copy(nzip,  unzip);
+           nzip.close();
+           unzip.flush();
+           unzip.close();
+           boolean verified = verifier.verified();
+           if (!verified) {
+               System.out.println(verifier.toString());
+           }
+           assertTrue(verified);
+           return nzip.getCount();
+        }
+    }
+
+    @Test
+    public void testCompressed() throws IOException {
+        MockBagOFiles root = new MockBagOFiles()
+                .files("empty%d", 1, 2, 0, (byte)' ')
+                .dirs("d%d", 1, 3)
+                .files("f%d.txt", 1, 100, 100000, (byte)' ')
+                .up()
+                .files("e%d.txt", 1, 100, 100, (byte)'.');
+        long stored = zap(root, Deflater.NO_COMPRESSION);
+        long deflated = zap(root, Deflater.DEFAULT_COMPRESSION);
+        long fastest = zap(root, Deflater.BEST_SPEED);
+        assertTrue(stored > 30000000L);
+        assertTrue(deflated < stored/100);
+        assertTrue(fastest < stored/100);
+        long solid = zap(root, Deflater.DEFAULT_COMPRESSION, true);
+        assertTrue(solid < deflated);
+    }
+
+    @Test
+    public void testSolidSegments() throws IOException {
+        Random random = new Random(1L);
+        List<byte[]> contents = new ArrayList<>();
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (ZapFoundOutputStream zap = new ZapFoundOutputStream(archive, Deflater.DEFAULT_COMPRESSION, true)
+                .segmentSize(10000L)) {
+            for (int i=0; i<50; i++) {
+                byte[] content = new byte[random.nextInt(5000)];
+                random.nextBytes(content);
+                contents.add(content);
+                zap.putNextEntry(new Found().fullname("f"+i).length(content.length).operation(Found.Operation.add));
+                zap.write(content);
+            }
+            zap.putNextEntry(new Found().fullname("d/").directory(true).operation(Found.Operation.add));
+        }
+        try (FoundInputStream unzap = FoundInputStream.getFoundInputStream(new ByteArrayInputStream(archive.toByteArray()))) {
+            assertTrue(unzap instanceof ZapFoundInputStream);
+            for (int i=0; i<50; i++) {
+                Found found = unzap.getNextEntry();
+                assertEquals("f"+i, found.fullname());
+                assertArrayEquals(contents.get(i), ByteStreams.toByteArray(unzap));
+            }
+            assertTrue(unzap.getNextEntry().directory());
+            assertNull(unzap.getNextEntry());
+        }
+    }
+
+    @Test
+    public void testSolidFlush() throws IOException, DataFormatException {
+        byte[] first = "the first part, flushed".getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (SolidOutputStream solid = new SolidOutputStream(archive, Deflater.DEFAULT_COMPRESSION)) {
+            solid.write(first);
+            solid.flush();
+            // everything written so far can be inflated before the stream ends:
+            // the segment's buffer size and the flushed chunk are all there is
+            DataInputStream segment = new DataInputStream(new ByteArrayInputStream(archive.toByteArray()));
+            segment.readInt();
+            byte[] chunk = new byte[segment.readInt()];
+            segment.readFully(chunk);
+            assertEquals(-1, segment.read());
+            Inflater inflater = new Inflater(true);
+            inflater.setInput(chunk);
+            byte[] read = new byte[first.length];
+            assertEquals(first.length, inflater.inflate(read));
+            inflater.end();
+            assertArrayEquals(first, read);
+            solid.write(" and the rest".getBytes(StandardCharsets.US_ASCII));
+        }
+        assertEquals("the first part, flushed and the rest", new String(ByteStreams.toByteArray(
+                new SolidInputStream(new ByteArrayInputStream(archive.toByteArray()))), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testMultiplexedAbandoned() throws IOException {
+        byte[] a = new byte[2500];
+        new Random(1L).nextBytes(a);
+        MultiplexedZapOutputStream zap = new MultiplexedZapOutputStream(new ByteArrayOutputStream(), Deflater.DEFAULT_COMPRESSION, 1000);
+        MultiplexedZapOutputStream.Entry ea = zap.entry();
+        ea.open(new Found().fullname("a").length(a.length).operation(Found.Operation.add));
+        ea.write(a, 0, 1200);
+        // as if copying the rest failed: the entry is never closed, but its deflater ends with the archive
+        zap.close();
+        try {
+            ea.write(a, 1200, a.length-1200);
+            ea.close();
+            fail("deflater not ended");
+        } catch (NullPointerException | IOException expected) {
+            // "Deflater has been closed"
+        }
+    }
+
+    @Test
+    public void testMultiplexedFrames() throws IOException {
+        byte[] a = new byte[2500];
+        byte[] b = new byte[1500];
+        new Random(1L).nextBytes(a);
+        Arrays.fill(b, (byte)'b');
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (MultiplexedZapOutputStream zap = new MultiplexedZapOutputStream(archive, Deflater.DEFAULT_COMPRESSION, 1000)) {
+            MultiplexedZapOutputStream.Entry ea = zap.entry();
+            ea.open(new Found().fullname("a").length(a.length).operation(Found.Operation.add));
+            MultiplexedZapOutputStream.Entry eb = zap.entry();
+            eb.open(new Found().fullname("b").length(b.length).operation(Found.Operation.add));
+            // the contents are interleaved, and the delete comes between them
+            ea.write(a, 0, 1200);
+            eb.write(b);
+            eb.close();
+            zap.entry().open(new Found().fullname("c").operation(Found.Operation.delete));
+            ea.write(a, 1200, a.length-1200);
+            ea.close();
+        }
+        List<String> opened = new ArrayList<>();
+        Map<String,ByteArrayOutputStream> contents = new ConcurrentHashMap<>();
+        try (FoundInputStream unzap = FoundInputStream.getFoundInputStream(new ByteArrayInputStream(archive.toByteArray()))) {
+            assertTrue(((ZapFoundInputStream)unzap).multiplexed());
+            try {
+                unzap.getNextEntry();
+                fail("entries of a multiplexed archive can not be read one by one");
+            } catch (IOException expected) {
+                // unzip instead
+            }
+            ((ZapFoundInputStream)unzap).writers(2).unzip(Finder.ALL, entry -> {
+                opened.add(entry.fullname()+":"+entry.operation());
+                if (!entry.operation().content()) {
+                    return null;
+                }
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                contents.put(entry.fullname(), content);
+                return content;
+            }, () -> false);
+        }
+        assertEquals("[a:add, b:add, c:delete]", opened.toString());
+        assertArrayEquals(a, contents.get("a").toByteArray());
+        assertArrayEquals(b, contents.get("b").toByteArray());
+    }
+
+    /**
+     * Writes {@code count} small files of similar text (1-20KB) under {@code root}.
+     */
+    private static void similarFiles(Path root, int count) throws IOException {
+        Random random = new Random(1L);
+        String[] segments = {"ISA*00*          *00*          *ZZ*SENDER%d*ZZ*RECEIVER*%06d*1200*U*00401*%09d*0*P*>~",
+                "GS*PO*SENDER%d*RECEIVER*%06d*1200*%d*X*004010~", "ST*850*%04d~", "BEG*00*SA*PO%d**%06d~",
+                "PO1*%d*%d*EA*%d.95**VP*ITEM%d~", "PID*F****DESCRIPTION OF ITEM %d~", "CTT*%d~", "SE*%d*%04d~"};
+        for (int i=0; i<count; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = 1024 + random.nextInt(19*1024);
+            while (text.length() < length) {
+                String segment = segments[random.nextInt(segments.length)];
+                text.append(String.format(segment, random.nextInt(1000), random.nextInt(1000000),
+                        random.nextInt(100000), random.nextInt(100))).append('\n');
+            }
+            Path file = root.resolve("d"+(i%20)).resolve("f"+i+".edi");
+            Files.createDirectories(file.getParent());
+            Files.write(file, text.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static Path copyTo(FoundInputStream unzap, Path to) throws IOException {
+        Found found;
+        while ((found = unzap.getNextEntry()) != null) {
+            if (!found.directory()) {
+                Path file = to.resolve(PathUtil.join(found.path()));
+                Files.createDirectories(file.getParent());
+                Files.write(file, ByteStreams.toByteArray(unzap));
+            }
+        }
+        return to;
+    }
+
+    private static byte[] zap(Path root, PresetDictionary dictionary) throws IOException {
+        try (ZipDirectoryInputStream zip = ZipDirectoryInputStream.builder(root.toFile())
+                .opener(f -> new FileInputStream(f.file()))
+                .level(FoundOutputStream.ZAP_LEVEL)
+                .zapLevel(Deflater.DEFAULT_COMPRESSION)
+                .dictionary(dictionary)
+                .build()) {
+            return ByteStreams.toByteArray(zip);
+        }
+    }
+
+    @Test
+    public void testDictionary() throws IOException {
+        Path root = Files.createTempDirectory("similar");
+        Path copy = Files.createTempDirectory("copy");
+        try {
+            similarFiles(root, 200);
+            PresetDictionary dictionary = PresetDictionary.train(PresetDictionary.sample(
+                    new Finder(root.toFile()), f -> new FileInputStream(f.file()), 50, 4096), 16*1024);
+            assertTrue(dictionary.bytes().length > 0);
+            byte[] plain = zap(root, null);
+            byte[] preset = zap(root, dictionary);
+            assertTrue(preset.length < plain.length);
+            try (FoundInputStream unzap = FoundInputStream.getFoundInputStream(new ByteArrayInputStream(preset))) {
+                copyTo(unzap, copy);
+            }
+            try (Stream<Path> paths = Files.walk(root)) {
+                for (Path file : (Iterable<Path>)paths.filter(Files::isRegularFile)::iterator) {
+                    assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(copy.resolve(root.relativize(file))));
+                }
+            }
+        } finally {
+            for (Path path : new Path[] {root, copy}) {
+                try (Stream<Path> paths = Files.walk(path)) {
+                    paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+    }
+
+    @Ignore
+    @Test
+    public void benchmarkSolid() throws IOException {
+        Path root = Files.createTempDirectory("similar");
+        try {
+            similarFiles(root, 5000);
+            long total;
+            try (Stream<Path> paths = Files.walk(root)) {
+                total = paths.map(Path::toFile).filter(File::isFile).mapToLong(File::length).sum();
+            }
+            long trainingStart = System.nanoTime();
+            PresetDictionary dictionary = PresetDictionary.train(PresetDictionary.sample(
+                    new Finder(root.toFile()), f -> new FileInputStream(f.file()),
+                    PresetDictionary.DEFAULT_SAMPLES, PresetDictionary.DEFAULT_SAMPLE_SIZE), PresetDictionary.DEFAULT_SIZE);
+            System.out.println(String.format("trained %s in %,dms", dictionary,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - trainingStart)));
+            for (int round=0; round<2; round++) {
+                for (String mode : new String[] {"stored", "per-entry", "dictionary", "solid"}) {
+                    long start = System.nanoTime();
+                    long size;
+                    try (ZipDirectoryInputStream zip = ZipDirectoryInputStream.builder(root.toFile())
+                            .opener(f -> new FileInputStream(f.file()))
+                            .level(FoundOutputStream.ZAP_LEVEL)
+                            .zapLevel(mode.equals("stored") ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION)
+                            .solid(mode.equals("solid"))
+                            .dictionary(mode.equals("dictionary") ? dictionary : null)
+                            .build()) {
+                        CountingInputStream counted = new CountingInputStream(zip);
+                        ByteStreams.copy(counted, ByteStreams.nullOutputStream());
+                        size = counted.getCount();
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    System.out.println(String.format("%-10s %,12d bytes of %,d (%.1f%%) in %,dms (%.1f MB/s)",
+                            mode, size, total, size*100.0/total, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                            total/(elapsed/1e9)/1e6));
+                }
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Ignore
+    @Test
+    public void benchmarkMultiplexed() throws IOException {
+        Path root = Files.createTempDirectory("similar");
+        try {
+            similarFiles(root, 5000);
+            long total;
+            try (Stream<Path> paths = Files.walk(root)) {
+                total = paths.map(Path::toFile).filter(File::isFile).mapToLong(File::length).sum();
+            }
+            for (int round=0; round<2; round++) {
+                for (int multiplexed : new int[] {1, 2, 4, 8}) {
+                    long start = System.nanoTime();
+                    long size;
+                    try (ThreadedZipDirectoryInputStream zip = ThreadedZipDirectoryInputStream.builder(root.toFile())
+                            .copier((from,to) -> Files.copy(from.file().toPath(), to))
+                            .level(FoundOutputStream.ZAP_LEVEL)
+                            .zapLevel(Deflater.DEFAULT_COMPRESSION)
+                            .multiplexed(multiplexed)
+                            .build()) {
+                        CountingInputStream counted = new CountingInputStream(zip);
+                        ByteStreams.copy(counted, ByteStreams.nullOutputStream());
+                        size = counted.getCount();
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    System.out.println(String.format("%d threads %,12d bytes of %,d (%.1f%%) in %,dms (%.1f MB/s)",
+                            multiplexed, size, total, size*100.0/total, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                            total/(elapsed/1e9)/1e6));
+                }
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
     @Ignore
     @Test
     public void testTotalSize() throws IOException {